@@ -0,0 +1,46 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Loads the webhook and Sonar API payloads used by the benchmarks.
+ *
+ * @author Steinar Bang
+ *
+ */
+final class BenchmarkResources {
+    static final String WEBHOOK_POST = "json/sonar/webhook-post.json";
+    static final String COMPONENTS_SHOW = "json/sonar/api-components-show-version-1.0.0.json";
+    static final String MEASURES_COMPONENT = "json/sonar/api-measures-component-get-many-metrics.json";
+
+    private BenchmarkResources() {}
+
+    static byte[] load(String resource) {
+        try (var stream = BenchmarkResources.class.getClassLoader().getResourceAsStream(resource)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing benchmark resource " + resource);
+            }
+
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
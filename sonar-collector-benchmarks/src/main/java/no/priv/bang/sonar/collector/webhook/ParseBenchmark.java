@@ -0,0 +1,76 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the webhook payload, of the measures returned by Sonar,
+ * and of the analysis timestamps.
+ *
+ * @author Steinar Bang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    private SonarCollectorServlet servlet;
+    private byte[] webhookPost;
+    private byte[] measuresComponent;
+    private String analysedAt;
+
+    @Setup
+    public void setup() throws IOException {
+        servlet = new SonarCollectorServlet(url -> { throw new IOException("No callbacks in this benchmark"); });
+        webhookPost = BenchmarkResources.load(BenchmarkResources.WEBHOOK_POST);
+        measuresComponent = BenchmarkResources.load(BenchmarkResources.MEASURES_COMPONENT);
+        analysedAt = SonarCollectorServlet.mapper.readTree(webhookPost).path("analysedAt").asText();
+    }
+
+    @Benchmark
+    public Measurements decodeMeasurements() throws IOException {
+        return Measurements.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(measuresComponent));
+    }
+
+    @Benchmark
+    public WebhookPayload decodeWebhookPayload() throws IOException {
+        return WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(webhookPost));
+    }
+
+    @Benchmark
+    public long parseTimestamp() {
+        return servlet.parseTimestamp(analysedAt);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+/**
+ * Building the URL of the measures callback, both from the metric keys
+ * array and from the query parameter precomputed by the configuration
+ * snapshot.
+ *
+ * @author Steinar Bang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlBenchmark {
+
+    private SonarCollectorServlet servlet;
+    private URI serverUrl;
+    private String project;
+    private String[] metricKeys;
+    private String metricKeysQueryParameter;
+
+    @Setup
+    public void setup() throws IOException {
+        servlet = new SonarCollectorServlet(url -> { throw new IOException("No callbacks in this benchmark"); });
+        servlet.getConfiguration().loadProperties(new MockLogService());
+        serverUrl = URI.create("http://localhost:9000");
+        project = "no.priv.bang.sonar.sonar-collector:parent";
+        metricKeys = servlet.getConfiguration().getMetricKeys();
+        metricKeysQueryParameter = servlet.getConfiguration().snapshot().getMetricKeysQueryParameter();
+    }
+
+    @Benchmark
+    public URI createSonarMeasurementsComponentUrl() throws IOException {
+        return servlet.createSonarMeasurementsComponentUrl(serverUrl, project, metricKeys);
+    }
+
+    @Benchmark
+    public URI createSonarMeasurementsComponentUrlFromSnapshot() throws IOException {
+        return servlet.createSonarMeasurementsComponentUrl(serverUrl, project, metricKeysQueryParameter);
+    }
+
+}
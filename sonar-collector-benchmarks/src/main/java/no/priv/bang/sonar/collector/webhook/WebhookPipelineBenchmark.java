@@ -0,0 +1,144 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+/**
+ * A full webhook call without the HTTP layer: the two callbacks to Sonar,
+ * answered by a stub {@link URLConnectionFactory} with the payloads of the
+ * webhook tests, and the insert of the measures into an in-memory Derby
+ * database.
+ *
+ * @author Steinar Bang
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WebhookPipelineBenchmark {
+
+    private final AtomicLong analyses = new AtomicLong();
+    private SonarCollectorServlet servlet;
+    private WebhookPayload payload;
+
+    /**
+     * Answers the callbacks to Sonar from byte arrays, without any network access.
+     */
+    static class StubConnection extends HttpURLConnection {
+        private final byte[] body;
+
+        StubConnection(URI url, byte[] body) throws IOException {
+            super(url.toURL());
+            this.body = body;
+        }
+
+        @Override
+        public ByteArrayInputStream getInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return HTTP_OK;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var componentsShow = BenchmarkResources.load(BenchmarkResources.COMPONENTS_SHOW);
+        var measuresComponent = BenchmarkResources.load(BenchmarkResources.MEASURES_COMPONENT);
+        URLConnectionFactory factory = url -> new StubConnection(url, url.getPath().endsWith("/api/components/show") ? componentsShow : measuresComponent);
+        var dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:sonar-collector-benchmark");
+        dataSource.setCreateDatabase("create");
+        servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(dataSource);
+        servlet.setLogservice(new MockLogService());
+        servlet.activate(Collections.emptyMap());
+        payload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(BenchmarkResources.load(BenchmarkResources.WEBHOOK_POST)));
+    }
+
+    /**
+     * Start every iteration with empty tables, so that the inserts of later
+     * iterations aren't slowed down by the rows of the earlier iterations.
+     */
+    @Setup(Level.Iteration)
+    public void emptyTables() throws SQLException {
+        try (var connection = servlet.dataSource.getConnection()) {
+            try (var statement = connection.createStatement()) {
+                statement.executeUpdate("delete from measure_rollups");
+                statement.executeUpdate("delete from measure_values");
+                statement.executeUpdate("delete from measures");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        servlet.deactivate();
+    }
+
+    @Benchmark
+    public int callbackAndSave() throws Exception {
+        var build = servlet.callbackToSonarServerToGetMetrics(payload);
+        // A new analysis id for every invocation, so that the insert isn't stopped by the unique constraint
+        var analysis = new SonarBuild(build.getAnalysedAt(), build.getProject(), build.getVersion(), build.getServerUrl(), "benchmark-" + analyses.incrementAndGet(), build.getMeasurements());
+        return servlet.saveMeasuresInDatabase(analysis);
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+import no.priv.bang.sonar.collector.webhook.SonarCollectorServlet;
+
+/**
+ * A {@link SonarCollectorServlet} in an embedded jetty, listening on the
+ * loopback interface, with an in-memory derby database.
+ *
+ * The servlet is configured from system properties, e.g.
+ * -Dsonar.collector.async.enabled=true, the same way as when it runs
+ * in karaf.
+ *
+ * @author Steinar Bang
+ *
+ */
+class EmbeddedCollector implements AutoCloseable {
+    static final String WEBHOOK_PATH = "/sonar-collector";
+
+    private final SonarCollectorServlet servlet;
+    private final MockLogService logservice = new MockLogService();
+    private final Server server;
+
+    EmbeddedCollector() throws Exception {
+        var dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:sonar-collector-loadtest");
+        dataSource.setCreateDatabase("create");
+        servlet = new SonarCollectorServlet();
+        servlet.setDataSource(dataSource);
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        server = new Server(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        var context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(servlet), WEBHOOK_PATH + "/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    URI getWebhookUrl() {
+        var connector = (ServerConnector) server.getConnectors()[0];
+        return URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + connector.getLocalPort() + WEBHOOK_PATH);
+    }
+
+    /**
+     * @return the number of errors logged by the collector since the last call
+     */
+    long takeErrorCount() {
+        var messages = logservice.getLogmessages();
+        synchronized (messages) {
+            var errors = messages.stream().filter(message -> message.startsWith("[ERROR]")).count();
+            messages.clear();
+            return errors;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new IOException("Unable to stop the embedded servlet container", e);
+        } finally {
+            servlet.deactivate();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latencies and outcomes of the webhook calls of one load generator
+ * thread.  Not thread safe: each thread records into its own instance,
+ * and the instances are merged when the threads are done.
+ *
+ * @author Steinar Bang
+ *
+ */
+class LatencyStats {
+    static final String TIMEOUT = "timeout";
+    static final String CONNECTION_ERROR = "connection error";
+
+    private long[] latencies = new long[1024];
+    private int count;
+    private boolean sorted = true;
+    private final Map<String, Long> outcomes = new TreeMap<>();
+
+    /**
+     * @param latencyNanos the time from sending the webhook call to receiving the response
+     * @param outcome the HTTP status of the response, or {@link #TIMEOUT} or {@link #CONNECTION_ERROR}
+     */
+    void record(long latencyNanos, String outcome) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+
+        latencies[count++] = latencyNanos;
+        sorted = false;
+        outcomes.merge(outcome, 1L, Long::sum);
+    }
+
+    void addAll(LatencyStats other) {
+        for (var i = 0; i < other.count; ++i) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, Math.max(count * 2, count + other.count));
+            }
+
+            latencies[count++] = other.latencies[i];
+        }
+
+        sorted = false;
+        other.outcomes.forEach((outcome, calls) -> outcomes.merge(outcome, calls, Long::sum));
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    Map<String, Long> getOutcomes() {
+        return outcomes;
+    }
+
+    long getOutcomeCount(String outcome) {
+        return outcomes.getOrDefault(outcome, 0L);
+    }
+
+    /**
+     * @param percentile the percentile from 0 to 100
+     * @return the latency in nanoseconds that the given percentage of the calls were at or below, using the nearest-rank method
+     */
+    long percentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (!sorted) {
+            Arrays.sort(latencies, 0, count);
+            sorted = true;
+        }
+
+        var rank = (int) Math.ceil(percentile / 100.0 * count);
+        return latencies[Math.clamp(rank - 1L, 0, count - 1)];
+    }
+
+    /**
+     * @param elapsedNanos the length of the measured run
+     * @return a human readable report of the run
+     */
+    String report(long elapsedNanos) {
+        var seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        var successes = outcomes.entrySet().stream().filter(e -> e.getKey().startsWith("2")).mapToLong(Map.Entry::getValue).sum();
+        return String.format(
+            "Webhook calls:  %d in %.1f s, %.1f calls/s, %.1f successful calls/s%n" +
+            "Outcomes:       %s%n" +
+            "Latency (ms):   p50 %.1f, p95 %.1f, p99 %.1f, max %.1f%n",
+            count, seconds, count / seconds, successes / seconds,
+            outcomes,
+            millis(percentileNanos(50)), millis(percentileNanos(95)), millis(percentileNanos(99)), millis(percentileNanos(100)));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+}
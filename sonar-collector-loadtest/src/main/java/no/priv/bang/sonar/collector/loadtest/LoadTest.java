@@ -0,0 +1,75 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.time.Duration;
+
+/**
+ * Measures how many webhook calls per second the collector can take
+ * before SonarQube sees timeouts.
+ *
+ * Starts a stub SonarQube and the collector in an embedded servlet
+ * container, both on the loopback interface, and sends webhook calls to
+ * the collector from a fixed number of concurrent clients.  After a
+ * warmup, the throughput and the latency percentiles of the measured run
+ * are reported.  No network access beyond the local host is needed.
+ *
+ * @author Steinar Bang
+ *
+ */
+public class LoadTest {
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java -jar loadtest.jar [--concurrency=32] [--duration=30] [--warmup=5] [--projects=100] [--sonar-latency=20] [--sonar-jitter=10] [--sonar-error-rate=0.0] [--timeout=10000]");
+            System.exit(1);
+            return;
+        }
+
+        System.out.println(run(options));
+    }
+
+    static String run(LoadTestOptions options) throws Exception {
+        try (var sonar = new StubSonarServer(options.sonarLatencyMillis(), options.sonarJitterMillis(), options.sonarErrorRate());
+             var collector = new EmbeddedCollector()) {
+            var generator = new WebhookLoadGenerator(collector.getWebhookUrl(), sonar.getUrl(), options);
+            if (options.warmupSeconds() > 0) {
+                generator.run(Duration.ofSeconds(options.warmupSeconds()));
+            }
+
+            collector.takeErrorCount();
+            var callbacksBefore = sonar.getCallbackCount();
+            var sonarErrorsBefore = sonar.getErrorCount();
+            var startedAt = System.nanoTime();
+            var stats = generator.run(Duration.ofSeconds(options.durationSeconds()));
+            var elapsed = System.nanoTime() - startedAt;
+            return String.format(
+                "%s%n%sSonar callbacks: %d, answered with errors: %d%nCollector errors logged: %d%n",
+                options,
+                stats.report(elapsed),
+                sonar.getCallbackCount() - callbacksBefore,
+                sonar.getErrorCount() - sonarErrorsBefore,
+                collector.takeErrorCount());
+        }
+    }
+
+}
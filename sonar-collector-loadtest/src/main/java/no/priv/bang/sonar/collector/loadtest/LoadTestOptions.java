@@ -0,0 +1,86 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The settings of a load test run, parsed from "--name=value" arguments.
+ *
+ * @param concurrency the number of webhook calls in progress at the same time
+ * @param durationSeconds the length of the measured run
+ * @param warmupSeconds the length of the run before the measured run, whose results are discarded
+ * @param projects the number of projects the webhook calls are spread over
+ * @param sonarLatencyMillis the time used by the stub SonarQube to answer a callback
+ * @param sonarJitterMillis a random time, up to this value, added to the latency of each callback
+ * @param sonarErrorRate the fraction of the callbacks answered with "502 Bad Gateway"
+ * @param timeoutMillis the time a webhook call may take before SonarQube gives up on it
+ *
+ * @author Steinar Bang
+ *
+ */
+record LoadTestOptions(
+    int concurrency,
+    int durationSeconds,
+    int warmupSeconds,
+    int projects,
+    int sonarLatencyMillis,
+    int sonarJitterMillis,
+    double sonarErrorRate,
+    int timeoutMillis)
+{
+    // SonarQube waits at most 10 seconds for the webhook to respond
+    static final int SONARQUBE_WEBHOOK_TIMEOUT_MILLIS = 10000;
+
+    static LoadTestOptions parse(String... args) {
+        var values = new HashMap<String, String>();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected an argument of the form --name=value, got: " + arg);
+            }
+
+            values.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        var options = new LoadTestOptions(
+            intValue(values, "concurrency", 32),
+            intValue(values, "duration", 30),
+            intValue(values, "warmup", 5),
+            intValue(values, "projects", 100),
+            intValue(values, "sonar-latency", 20),
+            intValue(values, "sonar-jitter", 10),
+            doubleValue(values, "sonar-error-rate", 0.0),
+            intValue(values, "timeout", SONARQUBE_WEBHOOK_TIMEOUT_MILLIS));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown arguments: " + values.keySet());
+        }
+
+        return options;
+    }
+
+    private static int intValue(Map<String, String> values, String name, int defaultValue) {
+        var value = values.remove(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static double doubleValue(Map<String, String> values, String name, double defaultValue) {
+        var value = values.remove(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for SonarQube, answering the api/components/show and
+ * api/measures/component callbacks of the collector with canned payloads,
+ * after a configurable latency, and with a configurable fraction of errors.
+ * Listens on the loopback interface only.
+ *
+ * @author Steinar Bang
+ *
+ */
+class StubSonarServer implements AutoCloseable {
+    static final String COMPONENTS_SHOW = "json/sonar/api-components-show-version-1.0.0.json";
+    static final String MEASURES_COMPONENT = "json/sonar/api-measures-component-get-many-metrics.json";
+
+    private final HttpServer server;
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final double errorRate;
+    private final LongAdder callbacks = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    StubSonarServer(int latencyMillis, int jitterMillis, double errorRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/components/show", new CannedResponse(load(COMPONENTS_SHOW)));
+        server.createContext("/api/measures/component", new CannedResponse(load(MEASURES_COMPONENT)));
+        server.start();
+    }
+
+    URI getUrl() {
+        var address = server.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort());
+    }
+
+    long getCallbackCount() {
+        return callbacks.sum();
+    }
+
+    long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private class CannedResponse implements HttpHandler {
+        private final byte[] body;
+
+        CannedResponse(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try (exchange) {
+                callbacks.increment();
+                delay();
+                if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    errors.increment();
+                    exchange.sendResponseHeaders(502, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        }
+
+        private void delay() {
+            var millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+            if (millis > 0) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    static byte[] load(String resource) {
+        try (InputStream stream = StubSonarServer.class.getClassLoader().getResourceAsStream(resource)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing load test resource " + resource);
+            }
+
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sends webhook calls to the collector from a fixed number of virtual
+ * threads, each sending a new call as soon as the previous one has
+ * been answered.  Every call is for a new analysis, so that no call is
+ * skipped as a retry of an earlier call.
+ *
+ * @author Steinar Bang
+ *
+ */
+class WebhookLoadGenerator {
+    static final String WEBHOOK_POST = "json/sonar/webhook-post.json";
+    // The format of the timestamps of the SonarQube webhook payloads
+    static final DateTimeFormatter ANALYSED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ");
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final URI webhookUrl;
+    private final URI sonarUrl;
+    private final LoadTestOptions options;
+    private final ObjectNode template;
+    private final AtomicLong analyses = new AtomicLong();
+
+    WebhookLoadGenerator(URI webhookUrl, URI sonarUrl, LoadTestOptions options) throws IOException {
+        this.webhookUrl = webhookUrl;
+        this.sonarUrl = sonarUrl;
+        this.options = options;
+        this.template = (ObjectNode) mapper.readTree(StubSonarServer.load(WEBHOOK_POST));
+    }
+
+    /**
+     * Send webhook calls until the duration has passed, and wait for the
+     * calls in progress to complete.
+     *
+     * @param duration the length of the run
+     * @return the latencies and outcomes of all calls of the run
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    LatencyStats run(Duration duration) throws InterruptedException {
+        var deadline = System.nanoTime() + duration.toNanos();
+        var threads = new ArrayList<Thread>();
+        var results = new ArrayList<LatencyStats>();
+        for (var i = 0; i < options.concurrency(); ++i) {
+            var stats = new LatencyStats();
+            results.add(stats);
+            threads.add(Thread.ofVirtual().name("webhook-load-" + i).start(() -> sendUntil(deadline, stats)));
+        }
+
+        var total = new LatencyStats();
+        for (var i = 0; i < threads.size(); ++i) {
+            threads.get(i).join();
+            total.addAll(results.get(i));
+        }
+
+        return total;
+    }
+
+    private void sendUntil(long deadline, LatencyStats stats) {
+        while (System.nanoTime() < deadline) {
+            var request = HttpRequest.newBuilder(webhookUrl)
+                .timeout(Duration.ofMillis(options.timeoutMillis()))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(nextPayload()))
+                .build();
+            var startedAt = System.nanoTime();
+            try {
+                var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                stats.record(System.nanoTime() - startedAt, Integer.toString(response.statusCode()));
+            } catch (HttpTimeoutException e) {
+                stats.record(System.nanoTime() - startedAt, LatencyStats.TIMEOUT);
+            } catch (IOException e) {
+                stats.record(System.nanoTime() - startedAt, LatencyStats.CONNECTION_ERROR);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    byte[] nextPayload() {
+        var analysis = analyses.incrementAndGet();
+        var payload = template.deepCopy();
+        payload.put("serverUrl", sonarUrl.toString());
+        payload.put("taskId", "loadtest-task-" + analysis);
+        payload.put("analysisId", "loadtest-analysis-" + analysis);
+        payload.put("analysedAt", ANALYSED_AT.format(ZonedDateTime.now()));
+        ((ObjectNode) payload.path("project")).put("key", "loadtest-project-" + (analysis % options.projects()));
+        try {
+            return mapper.writeValueAsBytes(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write webhook payload", e);
+        }
+    }
+
+}
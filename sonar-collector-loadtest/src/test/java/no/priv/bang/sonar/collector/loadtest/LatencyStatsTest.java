@@ -0,0 +1,78 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyStatsTest {
+
+    @Test
+    void testPercentiles() {
+        var stats = new LatencyStats();
+        for (var millis = 100; millis > 0; --millis) {
+            stats.record(TimeUnit.MILLISECONDS.toNanos(millis), "202");
+        }
+
+        assertEquals(100, stats.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), stats.percentileNanos(50));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(95), stats.percentileNanos(95));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(99), stats.percentileNanos(99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), stats.percentileNanos(100));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), stats.percentileNanos(0));
+    }
+
+    @Test
+    void testPercentileOfNoCalls() {
+        assertEquals(0, new LatencyStats().percentileNanos(99));
+    }
+
+    @Test
+    void testAddAll() {
+        var first = new LatencyStats();
+        var second = new LatencyStats();
+        for (var i = 0; i < 2000; ++i) {
+            first.record(1000, "202");
+            second.record(3000, "503");
+        }
+
+        second.record(5000, LatencyStats.TIMEOUT);
+        first.addAll(second);
+
+        assertEquals(4001, first.getCount());
+        assertEquals(2000, first.getOutcomeCount("202"));
+        assertEquals(2000, first.getOutcomeCount("503"));
+        assertEquals(1, first.getOutcomeCount(LatencyStats.TIMEOUT));
+        assertEquals(5000, first.percentileNanos(100));
+    }
+
+    @Test
+    void testReport() {
+        var stats = new LatencyStats();
+        stats.record(TimeUnit.MILLISECONDS.toNanos(10), "202");
+        stats.record(TimeUnit.MILLISECONDS.toNanos(30), "503");
+
+        var report = stats.report(TimeUnit.SECONDS.toNanos(2));
+
+        assertTrue(report.contains("2 in 2.0 s, 1.0 calls/s, 0.5 successful calls/s"), report);
+        assertTrue(report.contains("{202=1, 503=1}"), report);
+        assertTrue(report.contains("max 30.0"), report);
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class LoadTestOptionsTest {
+
+    @Test
+    void testDefaults() {
+        var options = LoadTestOptions.parse();
+
+        assertEquals(32, options.concurrency());
+        assertEquals(LoadTestOptions.SONARQUBE_WEBHOOK_TIMEOUT_MILLIS, options.timeoutMillis());
+    }
+
+    @Test
+    void testParse() {
+        var options = LoadTestOptions.parse("--concurrency=200", "--duration=60", "--sonar-latency=100", "--sonar-error-rate=0.05");
+
+        assertEquals(200, options.concurrency());
+        assertEquals(60, options.durationSeconds());
+        assertEquals(100, options.sonarLatencyMillis());
+        assertEquals(0.05, options.sonarErrorRate(), 0.0001);
+    }
+
+    @Test
+    void testUnknownOrMalformedArguments() {
+        assertThrows(IllegalArgumentException.class, () -> LoadTestOptions.parse("--concurency=200"));
+        assertThrows(IllegalArgumentException.class, () -> LoadTestOptions.parse("concurrency=200"));
+        assertThrows(IllegalArgumentException.class, () -> LoadTestOptions.parse("--concurrency"));
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.loadtest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class StubSonarServerTest {
+
+    @Test
+    void testAnswerCallbacks() throws Exception {
+        try (var sonar = new StubSonarServer(5, 0, 0.0)) {
+            var client = HttpClient.newHttpClient();
+            var startedAt = System.nanoTime();
+            var componentsShow = client.send(HttpRequest.newBuilder(sonar.getUrl().resolve("/api/components/show?component=foo")).build(), HttpResponse.BodyHandlers.ofByteArray());
+            var measures = client.send(HttpRequest.newBuilder(sonar.getUrl().resolve("/api/measures/component?component=foo&metricKeys=lines")).build(), HttpResponse.BodyHandlers.ofByteArray());
+
+            assertTrue(System.nanoTime() - startedAt >= 10_000_000L, "Expected the latency to be added to both callbacks");
+            assertEquals(200, componentsShow.statusCode());
+            assertEquals("1.0.0", new ObjectMapper().readTree(componentsShow.body()).path("component").path("version").asText());
+            assertEquals(200, measures.statusCode());
+            assertTrue(new ObjectMapper().readTree(measures.body()).path("component").path("measures").size() > 0);
+            assertEquals(2, sonar.getCallbackCount());
+            assertEquals(0, sonar.getErrorCount());
+        }
+    }
+
+    @Test
+    void testInjectErrors() throws Exception {
+        try (var sonar = new StubSonarServer(0, 0, 1.0)) {
+            var client = HttpClient.newHttpClient();
+            var response = client.send(HttpRequest.newBuilder(sonar.getUrl().resolve("/api/measures/component?component=foo")).build(), HttpResponse.BodyHandlers.discarding());
+
+            assertEquals(502, response.statusCode());
+            assertEquals(1, sonar.getErrorCount());
+        }
+    }
+
+}
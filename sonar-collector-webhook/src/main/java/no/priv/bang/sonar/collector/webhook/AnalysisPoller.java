@@ -0,0 +1,395 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.sonar.collector.webhook.HistoryBackfill.Analysis;
+import no.priv.bang.sonar.collector.webhook.SpoolReplayer.BatchInserter;
+import no.priv.bang.sonar.collector.webhook.WebhookAdmission.TokenBucket;
+
+/**
+ * Polls the projects of the listed Sonar servers for analyses that
+ * haven't been received by the webhook, e.g. because the collector
+ * was being redeployed, or because of a network outage, so that the
+ * gaps close without running a backfill.
+ *
+ * The time of the newest analysis seen of each project is kept in the
+ * poll_watermarks table, and each poll asks
+ * /api/project_analyses/search for the analyses after the watermark:
+ * <ul>
+ * <li>the newest analysis is processed like a webhook call, i.e. with the callbacks to Sonar and the same checks for already stored analyses</li>
+ * <li>older analyses missed in between have their measures loaded from /api/measures/search_history, since the callbacks would give the measures of the newest analysis</li>
+ * </ul>
+ *
+ * The first poll of a project only records the newest analysis, the
+ * history before that is loaded by the backfill.
+ *
+ * At most "concurrency" projects are polled at the same time, and
+ * the requests to each server are limited to a number per second.
+ *
+ * @author Steinar Bang
+ *
+ */
+class AnalysisPoller {
+
+    /**
+     * Processes an analysis found by the poller as if it was the payload of a webhook call.
+     */
+    @FunctionalInterface
+    interface AnalysisProcessor {
+        void process(WebhookPayload payload) throws IOException, URISyntaxException, SQLException;
+    }
+
+    /**
+     * An analysis from /api/project_analyses/search.
+     */
+    record PolledAnalysis(String key, String date, long analysedAt, String version) {}
+
+    private static final int PROJECTS_PAGE_SIZE = 500;
+    private static final int ANALYSES_PAGE_SIZE = 100;
+    private static final int HISTORY_PAGE_SIZE = 1000;
+    private static final DateTimeFormatter SONAR_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ").withZone(ZoneOffset.UTC);
+    private final SonarApiClient sonarApiClient;
+    private final DataSource dataSource;
+    private final BatchInserter inserter;
+    private final AnalysisProcessor processor;
+    private final SonarCollectorConfiguration configuration;
+    private final LoggerAdapter logger;
+    private final ConcurrentHashMap<String, TokenBucket> rateLimits = new ConcurrentHashMap<>();
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder analysesProcessed = new LongAdder();
+    private final LongAdder gapAnalysesLoaded = new LongAdder();
+    private final LongAdder failedPolls = new LongAdder();
+    private volatile boolean running = true;
+    private Thread poller;
+
+    AnalysisPoller(SonarApiClient sonarApiClient, DataSource dataSource, BatchInserter inserter, AnalysisProcessor processor, SonarCollectorConfiguration configuration, LoggerAdapter logger) {
+        this.sonarApiClient = sonarApiClient;
+        this.dataSource = dataSource;
+        this.inserter = inserter;
+        this.processor = processor;
+        this.configuration = configuration;
+        this.logger = logger;
+    }
+
+    /**
+     * Poll all of the projects now, and then every interval, on a virtual thread.
+     */
+    void start() {
+        poller = Thread.ofVirtual().name("sonar-collector-analysis-poller").start(() -> {
+            while (running) {
+                pollServers();
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(Math.max(1, configuration.snapshot().getPollerIntervalSeconds())));
+            }
+        });
+    }
+
+    void shutdown(long timeoutMillis) {
+        running = false;
+        var thread = poller;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(Duration.ofMillis(timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Poll the projects of all of the listed servers, and wait for the poll to complete.
+     */
+    void pollServers() {
+        var settings = configuration.snapshot();
+        var permits = new Semaphore(Math.max(1, settings.getPollerConcurrency()));
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var serverUrl : settings.getListedSonarServerUrls()) {
+                List<String> projects;
+                try {
+                    projects = findProjects(serverUrl);
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Sonar Collector poller unable to find the projects of {}", serverUrl, e);
+                    failedPolls.increment();
+                    continue;
+                }
+
+                for (var project : projects) {
+                    executor.execute(() -> {
+                        permits.acquireUninterruptibly();
+                        try {
+                            if (running) {
+                                pollProject(serverUrl, project);
+                            }
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the analyses of a project after its watermark, store them,
+     * and move the watermark to the newest analysis.
+     *
+     * @param serverUrl the Sonar server of the project
+     * @param project the key of the project
+     * @return the number of analyses stored
+     */
+    int pollProject(URI serverUrl, String project) {
+        polls.increment();
+        try {
+            var watermark = findWatermark(serverUrl, project);
+            var analyses = findAnalysesAfter(serverUrl, project, watermark);
+            if (analyses.isEmpty()) {
+                return 0;
+            }
+
+            var newest = analyses.get(0);
+            var stored = 0;
+            if (watermark != null && analyses.size() > 1) {
+                stored += loadGap(serverUrl, project, analyses.subList(1, analyses.size()));
+            }
+
+            if (!isStored(newest.key())) {
+                processor.process(new WebhookPayload(serverUrl.toString(), project, newest.date(), "", newest.key(), newest.version(), Collections.emptyMap()));
+                analysesProcessed.increment();
+                ++stored;
+            }
+
+            recordWatermark(serverUrl, project, newest);
+            return stored;
+        } catch (IOException | URISyntaxException | SQLException | RuntimeException e) {
+            logger.error("Sonar Collector poller failed to poll project {} from {}", project, serverUrl, e);
+            failedPolls.increment();
+            return 0;
+        }
+    }
+
+    /**
+     * @return the analyses of the project after the watermark, newest first, or only the newest analysis if the project has no watermark
+     */
+    List<PolledAnalysis> findAnalysesAfter(URI serverUrl, String project, Long watermark) throws IOException {
+        var analyses = new ArrayList<PolledAnalysis>();
+        var from = watermark != null ? "&from=" + encode(SONAR_DATE_TIME.format(Instant.ofEpochMilli(watermark))) : "";
+        var pageSize = watermark != null ? ANALYSES_PAGE_SIZE : 1;
+        var page = 1;
+        var total = 0;
+        do {
+            var root = get(serverUrl, "/api/project_analyses/search?project=" + encode(project) + from + "&p=" + page + "&ps=" + pageSize);
+            for (var analysis : root.path("analyses")) {
+                var date = analysis.path("date").asText();
+                var analysedAt = IsoTimestamps.parseEpochMillis(date);
+                // The from parameter is inclusive, and only has a precision of seconds
+                if (watermark == null || analysedAt > watermark) {
+                    analyses.add(new PolledAnalysis(analysis.path("key").asText(), date, analysedAt, HistoryBackfill.versionOf(analysis)));
+                }
+            }
+
+            total = watermark != null ? root.path("paging").path("total").asInt() : 0;
+        } while (page++ * pageSize < total);
+
+        return analyses;
+    }
+
+    /**
+     * Load the measures of the analyses missed between the watermark and
+     * the newest analysis from the measures history of the project.
+     */
+    private int loadGap(URI serverUrl, String project, List<PolledAnalysis> missed) throws IOException, SQLException {
+        var analyses = new HashMap<Long, Analysis>();
+        for (var analysis : missed) {
+            analyses.put(analysis.analysedAt(), new Analysis(analysis.key(), analysis.version()));
+        }
+
+        var oldest = missed.get(missed.size() - 1);
+        var newest = missed.get(0);
+        var metricKeys = configuration.snapshot().getMetricKeysQueryParameter();
+        var builds = new ArrayList<SonarBuild>();
+        var page = 1;
+        var total = 0;
+        do {
+            var root = get(serverUrl, "/api/measures/search_history?component=" + encode(project) + "&metrics=" + metricKeys +
+                "&from=" + encode(SONAR_DATE_TIME.format(Instant.ofEpochMilli(oldest.analysedAt()))) +
+                "&to=" + encode(SONAR_DATE_TIME.format(Instant.ofEpochMilli(newest.analysedAt()))) +
+                "&p=" + page + "&ps=" + HISTORY_PAGE_SIZE);
+            for (var build : HistoryBackfill.toBuilds(serverUrl, project, analyses, root.path("measures"))) {
+                if (analyses.containsKey(build.getAnalysedAt())) {
+                    builds.add(build);
+                }
+            }
+
+            total = root.path("paging").path("total").asInt();
+        } while (page++ * HISTORY_PAGE_SIZE < total);
+
+        if (!builds.isEmpty()) {
+            inserter.insert(builds);
+            gapAnalysesLoaded.add(builds.size());
+            logger.info("Sonar Collector poller loaded {} missed analyses of project {} from {}", builds.size(), project, serverUrl);
+        }
+
+        return builds.size();
+    }
+
+    private List<String> findProjects(URI serverUrl) throws IOException {
+        var keys = new ArrayList<String>();
+        var page = 1;
+        var total = 0;
+        do {
+            var root = get(serverUrl, "/api/components/search?qualifiers=TRK&p=" + page + "&ps=" + PROJECTS_PAGE_SIZE);
+            for (var component : root.path("components")) {
+                keys.add(component.path("key").asText());
+            }
+
+            total = root.path("paging").path("total").asInt();
+        } while (page++ * PROJECTS_PAGE_SIZE < total);
+
+        return keys;
+    }
+
+    Long findWatermark(URI serverUrl, String project) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select analysis_time from poll_watermarks where server_url=? and project_key=?")) {
+                statement.setString(1, serverUrl.toString());
+                statement.setString(2, project);
+                try (var results = statement.executeQuery()) {
+                    return results.next() ? results.getTimestamp(1).getTime() : null;
+                }
+            }
+        }
+    }
+
+    private void recordWatermark(URI serverUrl, String project, PolledAnalysis newest) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var update = connection.prepareStatement("update poll_watermarks set analysis_time=?, analysis_id=?, polled_at=? where server_url=? and project_key=?")) {
+                update.setTimestamp(1, new Timestamp(newest.analysedAt()));
+                update.setString(2, newest.key());
+                update.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+                update.setString(4, serverUrl.toString());
+                update.setString(5, project);
+                if (update.executeUpdate() > 0) {
+                    return;
+                }
+            }
+
+            try (var insert = connection.prepareStatement("insert into poll_watermarks (server_url, project_key, analysis_time, analysis_id, polled_at) values (?, ?, ?, ?, ?)")) {
+                insert.setString(1, serverUrl.toString());
+                insert.setString(2, project);
+                insert.setTimestamp(3, new Timestamp(newest.analysedAt()));
+                insert.setString(4, newest.key());
+                insert.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                insert.executeUpdate();
+            }
+        } catch (SQLException e) {
+            // Only one poll of a project runs at a time, so a concurrent insert can't happen
+            if (!SqlStates.isUniqueViolation(e)) {
+                throw e;
+            }
+        }
+    }
+
+    private boolean isStored(String analysisId) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select 1 from measures where analysis_id=?")) {
+                statement.setString(1, analysisId);
+                try (var results = statement.executeQuery()) {
+                    return results.next();
+                }
+            }
+        }
+    }
+
+    private JsonNode get(URI serverUrl, String localPath) throws IOException {
+        waitForRequestSlot(serverUrl);
+        return SonarCollectorServlet.waitForResult(sonarApiClient.get(serverUrl.resolve(localPath)).thenApply(AnalysisPoller::readTree));
+    }
+
+    /**
+     * Wait until the poller may do another request to the server.
+     */
+    private void waitForRequestSlot(URI serverUrl) throws IOException {
+        var requestsPerSecond = Math.max(1, configuration.snapshot().getPollerRequestsPerSecond());
+        var bucket = rateLimits.computeIfAbsent(SonarServerSettings.serverKey(serverUrl), server -> new TokenBucket(1, System.nanoTime()));
+        while (!bucket.tryTake(System.nanoTime(), requestsPerSecond, 1)) {
+            try {
+                Thread.sleep(Duration.ofNanos(Math.max(1, bucket.nanosUntilNextToken(requestsPerSecond))));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Sonar Collector poller interrupted", e);
+            }
+        }
+    }
+
+    private static JsonNode readTree(InputStream body) {
+        try (body) {
+            return SonarCollectorServlet.mapper.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, UTF_8);
+    }
+
+    long getPollCount() {
+        return polls.sum();
+    }
+
+    long getAnalysesProcessedCount() {
+        return analysesProcessed.sum();
+    }
+
+    long getGapAnalysesLoadedCount() {
+        return gapAnalysesLoaded.sum();
+    }
+
+    long getFailedPollCount() {
+        return failedPolls.sum();
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+/**
+ * How the callbacks to Sonar are done: the timeouts of each request,
+ * the retries of failed requests, and the hedging of slow requests.
+ *
+ * @param connectTimeoutMillis the max time used to connect to the Sonar server
+ * @param readTimeoutMillis the max time to wait for the response of the Sonar server
+ * @param maxRetries the max number of times a failed request is retried
+ * @param retryBackoffMillis the max delay before the first retry, the max delay is doubled for each retry
+ * @param retryMaxBackoffMillis the upper limit of the max delay before a retry
+ * @param hedgingEnabled if true, a second request is sent when the first request is slow
+ * @param hedgingPercentile the percentile of the recent response times of the same request to the same server that a request must exceed to be hedged
+ * @param hedgingMinDelayMillis a request is never hedged before this time has passed
+ *
+ * @author Steinar Bang
+ *
+ */
+record CallbackPolicy(
+    int connectTimeoutMillis,
+    int readTimeoutMillis,
+    int maxRetries,
+    int retryBackoffMillis,
+    int retryMaxBackoffMillis,
+    boolean hedgingEnabled,
+    int hedgingPercentile,
+    int hedgingMinDelayMillis)
+{
+
+    /**
+     * The delay before a retry is drawn at random between 0 and this
+     * value ("full jitter"), so that the retries of webhook calls that
+     * failed at the same time are spread out.
+     *
+     * @param retry the number of retries already done
+     * @return the max delay before the next retry, in milliseconds
+     */
+    long maxBackoffMillis(int retry) {
+        var backoff = (long) retryBackoffMillis << Math.min(retry, 30);
+        return Math.max(0, Math.min(backoff, retryMaxBackoffMillis));
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.SonarCollectorConfiguration.*;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * An immutable snapshot of the configuration of the collector, compiled
+ * once every time the configuration changes.
+ *
+ * The values that are used for every webhook call (the metric keys,
+ * the metric keys query parameter and the Authorization header value)
+ * and all of the typed settings are parsed and built when the snapshot
+ * is compiled, so that reading them has no cost beyond a field access.
+ *
+ * @author Steinar Bang
+ *
+ */
+final class ConfigurationSnapshot {
+
+    private final Map<String, String> settings;
+    private final String[] metricKeys;
+    private final String metricKeysQueryParameter;
+    private final String sonarApiUserToken;
+    private final String sonarApiAuthorization;
+    private final SonarServerSettings defaultServerSettings;
+    private final Map<String, SonarServerSettings> serverSettings;
+    private final List<URI> serverUrls;
+    private final CallbackPolicy callbackPolicy;
+    private final boolean pollerEnabled;
+    private final int pollerIntervalSeconds;
+    private final int pollerConcurrency;
+    private final int pollerRequestsPerSecond;
+    private final boolean payloadMeasuresEnabled;
+    private final boolean admissionEnabled;
+    private final int admissionMaxConcurrentWebhooks;
+    private final int admissionProjectRatePerMinute;
+    private final int admissionProjectBurst;
+    private final int admissionRetryAfterSeconds;
+    private final int callbacksMaxWaitMillis;
+    private final boolean callbacksBatchEnabled;
+    private final int callbacksBatchWindowMillis;
+    private final int callbacksBatchMaxSize;
+    private final boolean asyncEnabled;
+    private final int asyncWorkers;
+    private final int asyncQueueCapacity;
+    private final boolean jdbcBatchEnabled;
+    private final int jdbcBatchMaxSize;
+    private final int jdbcBatchMaxDelayMillis;
+    private final int dedupeMaxEntries;
+    private final int dedupeTtlSeconds;
+    private final boolean spoolEnabled;
+    private final String spoolDirectory;
+    private final int spoolSegmentSizeBytes;
+    private final int spoolReplayBatchSize;
+    private final int spoolReplayIntervalMillis;
+    private final boolean adminEnabled;
+    private final int backfillConcurrency;
+    private final int backfillPageSize;
+    private final int importBatchSize;
+    private final int readFetchSize;
+    private final int readDefaultLimit;
+    private final int readMaxLimit;
+    private final boolean partitioningEnabled;
+    private final int partitioningMonthsAhead;
+    private final boolean measureValuesEnabled;
+    private final boolean rollupsEnabled;
+
+    private ConfigurationSnapshot(Map<String, String> settings, String sonarApiUserToken) {
+        this.settings = Collections.unmodifiableMap(settings);
+        this.metricKeys = parseMetricKeys(settings.get(SONAR_MEASURES_COMPONENTS_METRIC_KEYS));
+        this.metricKeysQueryParameter = String.join(",", metricKeys);
+        this.sonarApiUserToken = sonarApiUserToken;
+        this.sonarApiAuthorization = basicAuthorization(sonarApiUserToken);
+        this.defaultServerSettings = new SonarServerSettings(
+            null,
+            sonarApiAuthorization,
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_MAX_CONCURRENT_CALLS, 16),
+            getIntSetting(SONAR_COLLECTOR_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 5),
+            getIntSetting(SONAR_COLLECTOR_CIRCUIT_BREAKER_OPEN_MILLIS, 30000));
+        this.serverSettings = parseServerSettings();
+        this.serverUrls = parseServerUrls();
+        this.callbackPolicy = new CallbackPolicy(
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_CONNECT_TIMEOUT_MILLIS, 5000),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_READ_TIMEOUT_MILLIS, 10000),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_MAX_RETRIES, 2),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_RETRY_BACKOFF_MILLIS, 100),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_RETRY_MAX_BACKOFF_MILLIS, 2000),
+            getBooleanSetting(SONAR_COLLECTOR_CALLBACKS_HEDGING_ENABLED),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_HEDGING_PERCENTILE, 95),
+            getIntSetting(SONAR_COLLECTOR_CALLBACKS_HEDGING_MIN_DELAY_MILLIS, 50));
+        this.pollerEnabled = getBooleanSetting(SONAR_COLLECTOR_POLLER_ENABLED);
+        this.pollerIntervalSeconds = getIntSetting(SONAR_COLLECTOR_POLLER_INTERVAL_SECONDS, 300);
+        this.pollerConcurrency = getIntSetting(SONAR_COLLECTOR_POLLER_CONCURRENCY, 4);
+        this.pollerRequestsPerSecond = getIntSetting(SONAR_COLLECTOR_POLLER_REQUESTS_PER_SECOND, 5);
+        this.payloadMeasuresEnabled = getBooleanSetting(SONAR_COLLECTOR_PAYLOAD_MEASURES_ENABLED);
+        this.admissionEnabled = getBooleanSetting(SONAR_COLLECTOR_ADMISSION_ENABLED);
+        this.admissionMaxConcurrentWebhooks = getIntSetting(SONAR_COLLECTOR_ADMISSION_MAX_CONCURRENT_WEBHOOKS, 64);
+        this.admissionProjectRatePerMinute = getIntSetting(SONAR_COLLECTOR_ADMISSION_PROJECT_RATE_PER_MINUTE, 30);
+        this.admissionProjectBurst = getIntSetting(SONAR_COLLECTOR_ADMISSION_PROJECT_BURST, 10);
+        this.admissionRetryAfterSeconds = getIntSetting(SONAR_COLLECTOR_ADMISSION_RETRY_AFTER_SECONDS, 30);
+        this.callbacksMaxWaitMillis = getIntSetting(SONAR_COLLECTOR_CALLBACKS_MAX_WAIT_MILLIS, 1000);
+        this.callbacksBatchEnabled = getBooleanSetting(SONAR_COLLECTOR_CALLBACKS_BATCH_ENABLED);
+        this.callbacksBatchWindowMillis = getIntSetting(SONAR_COLLECTOR_CALLBACKS_BATCH_WINDOW_MILLIS, 20);
+        this.callbacksBatchMaxSize = getIntSetting(SONAR_COLLECTOR_CALLBACKS_BATCH_MAX_SIZE, 50);
+        this.asyncEnabled = getBooleanSetting(SONAR_COLLECTOR_ASYNC_ENABLED);
+        this.asyncWorkers = getIntSetting(SONAR_COLLECTOR_ASYNC_WORKERS, 16);
+        this.asyncQueueCapacity = getIntSetting(SONAR_COLLECTOR_ASYNC_QUEUE_CAPACITY, 1000);
+        this.jdbcBatchEnabled = getBooleanSetting(SONAR_COLLECTOR_JDBC_BATCH_ENABLED);
+        this.jdbcBatchMaxSize = getIntSetting(SONAR_COLLECTOR_JDBC_BATCH_MAX_SIZE, 100);
+        this.jdbcBatchMaxDelayMillis = getIntSetting(SONAR_COLLECTOR_JDBC_BATCH_MAX_DELAY_MILLIS, 10);
+        this.dedupeMaxEntries = getIntSetting(SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES, 10000);
+        this.dedupeTtlSeconds = getIntSetting(SONAR_COLLECTOR_DEDUPE_TTL_SECONDS, 3600);
+        this.spoolEnabled = getBooleanSetting(SONAR_COLLECTOR_SPOOL_ENABLED);
+        var directory = getSetting(SONAR_COLLECTOR_SPOOL_DIRECTORY);
+        this.spoolDirectory = directory != null ? directory : "data/sonar-collector/spool";
+        this.spoolSegmentSizeBytes = getIntSetting(SONAR_COLLECTOR_SPOOL_SEGMENT_SIZE_BYTES, 16777216);
+        this.spoolReplayBatchSize = getIntSetting(SONAR_COLLECTOR_SPOOL_REPLAY_BATCH_SIZE, 100);
+        this.spoolReplayIntervalMillis = getIntSetting(SONAR_COLLECTOR_SPOOL_REPLAY_INTERVAL_MILLIS, 1000);
+        this.adminEnabled = getBooleanSetting(SONAR_COLLECTOR_ADMIN_ENABLED);
+        this.backfillConcurrency = getIntSetting(SONAR_COLLECTOR_BACKFILL_CONCURRENCY, 8);
+        this.backfillPageSize = getIntSetting(SONAR_COLLECTOR_BACKFILL_PAGE_SIZE, 1000);
+        this.importBatchSize = getIntSetting(SONAR_COLLECTOR_IMPORT_BATCH_SIZE, 1000);
+        this.readFetchSize = getIntSetting(SONAR_COLLECTOR_READ_FETCH_SIZE, 500);
+        this.readDefaultLimit = getIntSetting(SONAR_COLLECTOR_READ_DEFAULT_LIMIT, 1000);
+        this.readMaxLimit = getIntSetting(SONAR_COLLECTOR_READ_MAX_LIMIT, 100000);
+        this.partitioningEnabled = getBooleanSetting(SONAR_COLLECTOR_PARTITIONING_ENABLED);
+        this.partitioningMonthsAhead = getIntSetting(SONAR_COLLECTOR_PARTITIONING_MONTHS_AHEAD, 3);
+        this.measureValuesEnabled = getBooleanSetting(SONAR_COLLECTOR_MEASURE_VALUES_ENABLED);
+        this.rollupsEnabled = getBooleanSetting(SONAR_COLLECTOR_ROLLUPS_ENABLED);
+    }
+
+    private static String basicAuthorization(String userToken) {
+        return userToken != null ?
+            "Basic " + Base64.getEncoder().encodeToString((userToken + ":").getBytes()) :
+            null;
+    }
+
+    /**
+     * Find the servers with settings of their own, i.e. the names with a
+     * sonar.collector.server.&lt;name&gt;.url setting.  Settings not given
+     * for a server are taken from the default settings.
+     */
+    private Map<String, SonarServerSettings> parseServerSettings() {
+        var servers = new HashMap<String, SonarServerSettings>();
+        for (var key : settings.keySet()) {
+            if (key.startsWith(SONAR_COLLECTOR_SERVER_PREFIX) && key.endsWith("." + SERVER_URL)) {
+                var name = key.substring(SONAR_COLLECTOR_SERVER_PREFIX.length(), key.length() - SERVER_URL.length() - 1);
+                var serverKey = parseServerKey(settings.get(key));
+                if (serverKey != null) {
+                    var prefix = SONAR_COLLECTOR_SERVER_PREFIX + name + ".";
+                    var token = getSetting(prefix + SERVER_TOKEN);
+                    servers.put(serverKey, new SonarServerSettings(
+                        serverKey,
+                        token != null ? basicAuthorization(token) : defaultServerSettings.authorization(),
+                        getIntSetting(prefix + SERVER_MAX_CONCURRENT_CALLS, defaultServerSettings.maxConcurrentCalls()),
+                        getIntSetting(prefix + SERVER_FAILURE_THRESHOLD, defaultServerSettings.failureThreshold()),
+                        getIntSetting(prefix + SERVER_OPEN_MILLIS, defaultServerSettings.openMillis())));
+                }
+            }
+        }
+
+        return Collections.unmodifiableMap(servers);
+    }
+
+    private List<URI> parseServerUrls() {
+        var urls = new ArrayList<URI>();
+        for (var entry : new TreeMap<>(settings).entrySet()) {
+            var key = entry.getKey();
+            if (key.startsWith(SONAR_COLLECTOR_SERVER_PREFIX) && key.endsWith("." + SERVER_URL) && parseServerKey(entry.getValue()) != null) {
+                var url = entry.getValue().trim();
+                urls.add(URI.create(url.endsWith("/") ? url.substring(0, url.length() - 1) : url));
+            }
+        }
+
+        return Collections.unmodifiableList(urls);
+    }
+
+    private static String parseServerKey(String url) {
+        try {
+            var serverUrl = new URI(url.trim());
+            return serverUrl.isAbsolute() ? SonarServerSettings.serverKey(serverUrl) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Resolve all settings with the precedence: karaf config first,
+     * then system properties, and finally the built-in application.properties.
+     *
+     * @param applicationProperties the built-in application.properties
+     * @param injectedconfig the configuration injected by karaf
+     * @return an immutable snapshot of the resolved settings
+     */
+    static ConfigurationSnapshot compile(Properties applicationProperties, Map<String, Object> injectedconfig) {
+        var settings = new HashMap<String, String>();
+        applicationProperties.stringPropertyNames().forEach(key -> settings.put(key, applicationProperties.getProperty(key)));
+        var systemProperties = System.getProperties();
+        systemProperties.stringPropertyNames().forEach(key -> settings.put(key, systemProperties.getProperty(key)));
+        injectedconfig.forEach((key, value) -> {
+            if (value != null) {
+                settings.put(key, value.toString());
+            }
+        });
+        var userToken = injectedconfig.get(SONAR_USER_TOKEN);
+        return new ConfigurationSnapshot(settings, userToken != null ? userToken.toString() : null);
+    }
+
+    private static String[] parseMetricKeys(String metricKeys) {
+        if (metricKeys == null) {
+            return new String[0];
+        }
+
+        return Arrays.stream(metricKeys.split(","))
+            .map(String::trim)
+            .filter(key -> !key.isEmpty())
+            .toArray(String[]::new);
+    }
+
+    String getSetting(String key) {
+        return settings.get(key);
+    }
+
+    boolean getBooleanSetting(String key) {
+        return Boolean.parseBoolean(getSetting(key));
+    }
+
+    int getIntSetting(String key, int defaultValue) {
+        var value = getSetting(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the parsed metric keys, shared by all users of the snapshot, so the array must not be modified
+     */
+    String[] getMetricKeys() {
+        return metricKeys;
+    }
+
+    /**
+     * @return the metric keys joined to the value of the metricKeys query parameter of the Sonar web API
+     */
+    String getMetricKeysQueryParameter() {
+        return metricKeysQueryParameter;
+    }
+
+    boolean hasSonarApiUserToken() {
+        return sonarApiUserToken != null;
+    }
+
+    String getSonarApiUserToken() {
+        return sonarApiUserToken;
+    }
+
+    String getSonarApiAuthorization() {
+        return sonarApiAuthorization;
+    }
+
+    /**
+     * @param url the URL of a call to a Sonar server
+     * @return the settings of the server if it is listed in the configuration, otherwise the default settings shared by all unlisted servers, which have a null server key
+     */
+    SonarServerSettings getSonarServerSettings(URI url) {
+        var listed = serverSettings.get(SonarServerSettings.serverKey(url));
+        return listed != null ? listed : defaultServerSettings;
+    }
+
+    /**
+     * @return true if the server of the URL has settings of its own in the configuration
+     */
+    boolean isListedSonarServer(URI url) {
+        return serverSettings.containsKey(SonarServerSettings.serverKey(url));
+    }
+
+    /**
+     * @return the URLs of the servers with settings of their own, sorted by server name
+     */
+    List<URI> getListedSonarServerUrls() {
+        return serverUrls;
+    }
+
+    /**
+     * @return the timeouts, retries and hedging of the callbacks to Sonar
+     */
+    CallbackPolicy getCallbackPolicy() {
+        return callbackPolicy;
+    }
+
+    /**
+     * When true, the projects of the listed Sonar servers are polled
+     * for analyses that haven't been received by the webhook.
+     *
+     * @return true if the poller is on
+     */
+    boolean isPollerEnabled() {
+        return pollerEnabled;
+    }
+
+    int getPollerIntervalSeconds() {
+        return pollerIntervalSeconds;
+    }
+
+    int getPollerConcurrency() {
+        return pollerConcurrency;
+    }
+
+    int getPollerRequestsPerSecond() {
+        return pollerRequestsPerSecond;
+    }
+
+    /**
+     * When true, the measures in the quality gate conditions of the webhook
+     * payload are used, and the callbacks to Sonar are only done for the
+     * metrics and the version that the payload doesn't have.
+     *
+     * @return true if the measures of the webhook payload are used
+     */
+    boolean isPayloadMeasuresEnabled() {
+        return payloadMeasuresEnabled;
+    }
+
+    /**
+     * When true, webhook calls over the global concurrency limit, or over
+     * the rate of their project, are shed with a fast 503 or 429 response.
+     *
+     * @return true if the admission control of webhook calls is on
+     */
+    boolean isAdmissionEnabled() {
+        return admissionEnabled;
+    }
+
+    int getAdmissionMaxConcurrentWebhooks() {
+        return admissionMaxConcurrentWebhooks;
+    }
+
+    int getAdmissionProjectRatePerMinute() {
+        return admissionProjectRatePerMinute;
+    }
+
+    int getAdmissionProjectBurst() {
+        return admissionProjectBurst;
+    }
+
+    int getAdmissionRetryAfterSeconds() {
+        return admissionRetryAfterSeconds;
+    }
+
+    int getCallbacksMaxWaitMillis() {
+        return callbacksMaxWaitMillis;
+    }
+
+    /**
+     * When true, the api/measures/component callbacks to the same Sonar
+     * server are collected for a short window, and done as a single
+     * api/measures/search request for all of the projects.
+     *
+     * @return true if the measures callbacks are batched
+     */
+    boolean isCallbacksBatchEnabled() {
+        return callbacksBatchEnabled;
+    }
+
+    int getCallbacksBatchWindowMillis() {
+        return callbacksBatchWindowMillis;
+    }
+
+    int getCallbacksBatchMaxSize() {
+        return callbacksBatchMaxSize;
+    }
+
+    boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    int getAsyncWorkers() {
+        return asyncWorkers;
+    }
+
+    int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    boolean isJdbcBatchEnabled() {
+        return jdbcBatchEnabled;
+    }
+
+    int getJdbcBatchMaxSize() {
+        return jdbcBatchMaxSize;
+    }
+
+    int getJdbcBatchMaxDelayMillis() {
+        return jdbcBatchMaxDelayMillis;
+    }
+
+    int getDedupeMaxEntries() {
+        return dedupeMaxEntries;
+    }
+
+    int getDedupeTtlSeconds() {
+        return dedupeTtlSeconds;
+    }
+
+    boolean isSpoolEnabled() {
+        return spoolEnabled;
+    }
+
+    String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    int getSpoolSegmentSizeBytes() {
+        return spoolSegmentSizeBytes;
+    }
+
+    int getSpoolReplayBatchSize() {
+        return spoolReplayBatchSize;
+    }
+
+    int getSpoolReplayIntervalMillis() {
+        return spoolReplayIntervalMillis;
+    }
+
+    boolean isAdminEnabled() {
+        return adminEnabled;
+    }
+
+    int getBackfillConcurrency() {
+        return backfillConcurrency;
+    }
+
+    int getBackfillPageSize() {
+        return backfillPageSize;
+    }
+
+    int getImportBatchSize() {
+        return importBatchSize;
+    }
+
+    int getReadFetchSize() {
+        return readFetchSize;
+    }
+
+    int getReadDefaultLimit() {
+        return readDefaultLimit;
+    }
+
+    int getReadMaxLimit() {
+        return readMaxLimit;
+    }
+
+    boolean isPartitioningEnabled() {
+        return partitioningEnabled;
+    }
+
+    int getPartitioningMonthsAhead() {
+        return partitioningMonthsAhead;
+    }
+
+    boolean isMeasureValuesEnabled() {
+        return measureValuesEnabled;
+    }
+
+    boolean isRollupsEnabled() {
+        return rollupsEnabled;
+    }
+
+    /**
+     * @param other the snapshot to compare with
+     * @return true if the spool can be kept when changing from the other snapshot to this one
+     */
+    boolean hasSameSpoolSettings(ConfigurationSnapshot other) {
+        return isSpoolEnabled() == other.isSpoolEnabled() &&
+            getSpoolDirectory().equals(other.getSpoolDirectory()) &&
+            getSpoolSegmentSizeBytes() == other.getSpoolSegmentSizeBytes() &&
+            getSpoolReplayBatchSize() == other.getSpoolReplayBatchSize() &&
+            getSpoolReplayIntervalMillis() == other.getSpoolReplayIntervalMillis();
+    }
+
+    /**
+     * Check if the settings of the queue and the batch writer are the same
+     * in this snapshot and another snapshot.
+     *
+     * @param other the snapshot to compare with
+     * @return true if the queue and the batch writer can be kept when changing from the other snapshot to this one
+     */
+    boolean hasSamePipelineSettings(ConfigurationSnapshot other) {
+        return isAsyncEnabled() == other.isAsyncEnabled() &&
+            getAsyncWorkers() == other.getAsyncWorkers() &&
+            getAsyncQueueCapacity() == other.getAsyncQueueCapacity() &&
+            isJdbcBatchEnabled() == other.isJdbcBatchEnabled() &&
+            getJdbcBatchMaxSize() == other.getJdbcBatchMaxSize() &&
+            getJdbcBatchMaxDelayMillis() == other.getJdbcBatchMaxDelayMillis() &&
+            isMeasureValuesEnabled() == other.isMeasureValuesEnabled() &&
+            isRollupsEnabled() == other.isRollupsEnabled();
+    }
+
+    /**
+     * @param other the snapshot to compare with
+     * @return true if the dedupe cache, and the analyses it remembers, can be kept when changing from the other snapshot to this one
+     */
+    boolean hasSameDedupeSettings(ConfigurationSnapshot other) {
+        return getDedupeMaxEntries() == other.getDedupeMaxEntries() &&
+            getDedupeTtlSeconds() == other.getDedupeTtlSeconds();
+    }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.sonar.collector.webhook.SpoolReplayer.BatchInserter;
+
+/**
+ * Load the measures of analyses done before the webhook was set up,
+ * from the history kept by the Sonar server.
+ *
+ * The history of each project is paged through with
+ * /api/measures/search_history, and the analyses of each page are
+ * written to the database in a single batch.  The projects are
+ * backfilled in parallel, with at most "concurrency" projects in
+ * flight at the same time.
+ *
+ * A project that has been completely backfilled is recorded in the
+ * backfill_checkpoints table, and is skipped when the backfill is
+ * run again, e.g. after a restart of an interrupted backfill.
+ * Analyses of a partly backfilled project that have already been
+ * stored are skipped by the unique constraint on analysis_id.  History
+ * points that don't match an analysis of the project have no analysis_id
+ * to deduplicate on, and are skipped.
+ *
+ * @author Steinar Bang
+ *
+ */
+class HistoryBackfill {
+
+    /**
+     * The progress of a backfill, in the shape returned by the admin endpoint.
+     */
+    record Progress(String state, String serverUrl, int projects, int projectsCompleted, int projectsSkipped, int projectsFailed, long analysesLoaded, long elapsedMillis) {}
+
+    /**
+     * The key and version of an analysis, from /api/project_analyses/search.
+     */
+    record Analysis(String key, String version) {}
+
+    static final String RUNNING = "running";
+    static final String COMPLETED = "completed";
+    static final String FAILED = "failed";
+    private static final int PROJECTS_PAGE_SIZE = 500;
+    private static final int ANALYSES_PAGE_SIZE = 500;
+    private final SonarApiClient sonarApiClient;
+    private final DataSource dataSource;
+    private final BatchInserter inserter;
+    private final String metricKeysQueryParameter;
+    private final int concurrency;
+    private final int pageSize;
+    private final LoggerAdapter logger;
+    private final URI serverUrl;
+    private final AtomicInteger projects = new AtomicInteger();
+    private final AtomicInteger projectsCompleted = new AtomicInteger();
+    private final AtomicInteger projectsSkipped = new AtomicInteger();
+    private final AtomicInteger projectsFailed = new AtomicInteger();
+    private final AtomicLong analysesLoaded = new AtomicLong();
+    private final long startedAt = System.nanoTime();
+    private volatile long finishedAt;
+    private volatile String state = RUNNING;
+
+    HistoryBackfill(URI serverUrl, SonarApiClient sonarApiClient, DataSource dataSource, BatchInserter inserter, ConfigurationSnapshot settings, LoggerAdapter logger) {
+        this.serverUrl = serverUrl;
+        this.sonarApiClient = sonarApiClient;
+        this.dataSource = dataSource;
+        this.inserter = inserter;
+        this.metricKeysQueryParameter = settings.getMetricKeysQueryParameter();
+        this.concurrency = Math.max(1, settings.getBackfillConcurrency());
+        this.pageSize = Math.clamp(settings.getBackfillPageSize(), 1, 1000);
+        this.logger = logger;
+    }
+
+    /**
+     * Backfill the history of projects, and wait for the backfill to complete.
+     *
+     * @param projectKeys the projects to backfill, or an empty list to backfill all projects of the Sonar server
+     * @return the progress at the end of the backfill
+     */
+    Progress run(List<String> projectKeys) {
+        try {
+            var keys = projectKeys.isEmpty() ? findProjects() : projectKeys;
+            projects.set(keys.size());
+            var checkpoints = findCompletedProjects();
+            var permits = new Semaphore(concurrency);
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (var project : keys) {
+                    if (checkpoints.contains(project)) {
+                        projectsSkipped.incrementAndGet();
+                        continue;
+                    }
+
+                    executor.execute(() -> {
+                        permits.acquireUninterruptibly();
+                        try {
+                            backfillProject(project);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            }
+
+            state = projectsFailed.get() > 0 ? FAILED : COMPLETED;
+        } catch (IOException | SQLException e) {
+            logger.error("Sonar Collector backfill from {} failed", serverUrl, e);
+            state = FAILED;
+        }
+
+        finishedAt = System.nanoTime();
+        var progress = getProgress();
+        logger.info("Sonar Collector backfill from {} {}: {} analyses of {} projects in {} ms", serverUrl, progress.state(), progress.analysesLoaded(), progress.projectsCompleted(), progress.elapsedMillis());
+        return progress;
+    }
+
+    Progress getProgress() {
+        var end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        return new Progress(
+            state,
+            serverUrl.toString(),
+            projects.get(),
+            projectsCompleted.get(),
+            projectsSkipped.get(),
+            projectsFailed.get(),
+            analysesLoaded.get(),
+            (end - startedAt) / 1_000_000);
+    }
+
+    boolean isRunning() {
+        return RUNNING.equals(state);
+    }
+
+    private void backfillProject(String project) {
+        try {
+            var analyses = findAnalyses(project);
+            var loaded = 0;
+            var page = 1;
+            var total = 0;
+            do {
+                var url = serverUrl.resolve("/api/measures/search_history?component=" + encode(project) + "&metrics=" + metricKeysQueryParameter + "&p=" + page + "&ps=" + pageSize);
+                var root = get(url);
+                var builds = toBuilds(project, analyses, root.path("measures"));
+                if (!builds.isEmpty()) {
+                    inserter.insert(builds);
+                }
+
+                loaded += builds.size();
+                analysesLoaded.addAndGet(builds.size());
+                total = root.path("paging").path("total").asInt();
+            } while (page++ * pageSize < total);
+
+            recordCompletedProject(project, loaded);
+            projectsCompleted.incrementAndGet();
+        } catch (IOException | SQLException | RuntimeException e) {
+            logger.error("Sonar Collector failed to backfill project {} from {}", project, serverUrl, e);
+            projectsFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Turn the history of each metric on a page into one build for each analysis on the page.
+     * History points without a matching analysis are left out.
+     */
+    List<SonarBuild> toBuilds(String project, Map<Long, Analysis> analyses, JsonNode measuresNode) {
+        return toBuilds(serverUrl, project, analyses, measuresNode);
+    }
+
+    static List<SonarBuild> toBuilds(URI serverUrl, String project, Map<Long, Analysis> analyses, JsonNode measuresNode) {
+        var measurementsByDate = new LinkedHashMap<String, Measurements>();
+        for (var measureNode : measuresNode) {
+            var metric = measureNode.path("metric").asText();
+            for (var historyNode : measureNode.path("history")) {
+                var measurements = measurementsByDate.computeIfAbsent(historyNode.path("date").asText(), date -> new Measurements());
+                var value = historyNode.path("value");
+                if (!value.isMissingNode()) {
+                    measurements.set(metric, value.asText());
+                }
+            }
+        }
+
+        var builds = new ArrayList<SonarBuild>(measurementsByDate.size());
+        for (var entry : measurementsByDate.entrySet()) {
+            var analysedAt = IsoTimestamps.parseEpochMillis(entry.getKey());
+            var analysis = analyses.get(analysedAt);
+            if (analysis != null) {
+                builds.add(new SonarBuild(analysedAt, project, analysis.version(), serverUrl, analysis.key(), entry.getValue()));
+            }
+        }
+
+        return builds;
+    }
+
+    private List<String> findProjects() throws IOException {
+        var keys = new ArrayList<String>();
+        var page = 1;
+        var total = 0;
+        do {
+            var root = get(serverUrl.resolve("/api/components/search?qualifiers=TRK&p=" + page + "&ps=" + PROJECTS_PAGE_SIZE));
+            for (var component : root.path("components")) {
+                keys.add(component.path("key").asText());
+            }
+
+            total = root.path("paging").path("total").asInt();
+        } while (page++ * PROJECTS_PAGE_SIZE < total);
+
+        return keys;
+    }
+
+    /**
+     * Find the key and the version of the analyses of a project, by analysis time.
+     */
+    Map<Long, Analysis> findAnalyses(String project) throws IOException {
+        var analyses = new HashMap<Long, Analysis>();
+        var page = 1;
+        var total = 0;
+        do {
+            var root = get(serverUrl.resolve("/api/project_analyses/search?project=" + encode(project) + "&p=" + page + "&ps=" + ANALYSES_PAGE_SIZE));
+            for (var analysis : root.path("analyses")) {
+                var analysedAt = IsoTimestamps.parseEpochMillis(analysis.path("date").asText());
+                analyses.put(analysedAt, new Analysis(analysis.path("key").asText(), versionOf(analysis)));
+            }
+
+            total = root.path("paging").path("total").asInt();
+        } while (page++ * ANALYSES_PAGE_SIZE < total);
+
+        return analyses;
+    }
+
+    static String versionOf(JsonNode analysis) {
+        var projectVersion = analysis.path("projectVersion").asText();
+        if (!"".equals(projectVersion)) {
+            return projectVersion;
+        }
+
+        // Older Sonar servers only have the version as an event of the analysis
+        for (var event : analysis.path("events")) {
+            if ("VERSION".equals(event.path("category").asText())) {
+                return event.path("name").asText();
+            }
+        }
+
+        return "";
+    }
+
+    private Set<String> findCompletedProjects() throws SQLException {
+        var completed = new HashSet<String>();
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select project_key from backfill_checkpoints where server_url=?")) {
+                statement.setString(1, serverUrl.toString());
+                try (var results = statement.executeQuery()) {
+                    while (results.next()) {
+                        completed.add(results.getString(1));
+                    }
+                }
+            }
+        }
+
+        return completed;
+    }
+
+    private void recordCompletedProject(String project, int analyses) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("insert into backfill_checkpoints (server_url, project_key, analyses, completed_at) values (?, ?, ?, ?)")) {
+                statement.setString(1, serverUrl.toString());
+                statement.setString(2, project);
+                statement.setInt(3, analyses);
+                statement.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            if (!SqlStates.isUniqueViolation(e)) {
+                throw e;
+            }
+        }
+    }
+
+    private JsonNode get(URI url) throws IOException {
+        return SonarCollectorServlet.waitForResult(sonarApiClient.get(url).thenApply(HistoryBackfill::readTree));
+    }
+
+    private static JsonNode readTree(InputStream body) {
+        try (body) {
+            return SonarCollectorServlet.mapper.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, UTF_8);
+    }
+
+}
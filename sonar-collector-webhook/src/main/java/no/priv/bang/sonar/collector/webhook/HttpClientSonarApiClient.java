@@ -0,0 +1,136 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link SonarApiClient} built on {@link HttpClient}.
+ *
+ * There is one {@link HttpClient} for each Sonar server, so that
+ * connections to a server are kept alive and reused across webhook calls.
+ * The client will negotiate HTTP/2 when the server supports it,
+ * and ask for gzip compressed responses.
+ *
+ * The connect timeout of a server is the one configured when the
+ * first call to the server is done, while the read timeout is
+ * applied to each request, and is the deadline for receiving the
+ * whole response body.
+ *
+ * Redirects aren't followed, so that the Authorization header of a
+ * server is never sent anywhere else.  A redirect response fails the
+ * call like an error status.
+ *
+ * @author Steinar Bang
+ *
+ */
+public class HttpClientSonarApiClient implements SonarApiClient {
+
+    private final SonarCollectorConfiguration configuration;
+    private final Map<String, HttpClient> clients = new ConcurrentHashMap<>();
+
+    public HttpClientSonarApiClient(SonarCollectorConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> get(URI url) {
+        var readTimeoutMillis = configuration.snapshot().getCallbackPolicy().readTimeoutMillis();
+        var request = HttpRequest.newBuilder(url)
+            .GET()
+            .header("Accept", "application/json")
+            .header("Accept-Encoding", "gzip")
+            .timeout(Duration.ofMillis(readTimeoutMillis));
+        var authorization = configuration.getSonarApiAuthorization(url);
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+
+        // The request timeout only covers the arrival of the response headers, so the body is read under a deadline of its own
+        var call = clientFor(url).sendAsync(request.build(), BodyHandlers.ofByteArray());
+        return call.copy()
+            .orTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+            .exceptionallyCompose(failure -> {
+                if (failure instanceof TimeoutException) {
+                    call.cancel(true); // Abort the exchange
+                    return CompletableFuture.failedFuture(new HttpTimeoutException("Response from " + url + " not received within " + readTimeoutMillis + " ms"));
+                }
+
+                return CompletableFuture.failedFuture(failure);
+            })
+            .thenApply(response -> responseBody(url, response));
+    }
+
+    HttpClient clientFor(URI url) {
+        return clients.computeIfAbsent(url.getScheme() + "://" + url.getRawAuthority(), server -> createClient());
+    }
+
+    private HttpClient createClient() {
+        return HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofMillis(configuration.snapshot().getCallbackPolicy().connectTimeoutMillis()))
+            .build();
+    }
+
+    static InputStream responseBody(URI url, HttpResponse<byte[]> response) {
+        try {
+            if (response.statusCode() >= 300) {
+                throw new SonarApiException(url, response.statusCode());
+            }
+
+            var body = new ByteArrayInputStream(response.body());
+            var contentEncoding = response.headers().firstValue("Content-Encoding").orElse("");
+            if ("gzip".equalsIgnoreCase(contentEncoding)) {
+                return new GZIPInputStream(body);
+            }
+
+            return body;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int getNumberOfServers() {
+        return clients.size();
+    }
+
+    @Override
+    public void close() {
+        for (var client : clients.values()) {
+            client.close();
+        }
+
+        clients.clear();
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Hand-written parser for the ISO 8601 timestamps sent by Sonar,
+ * i.e. "2017-11-19T10:39:24+0100", with optional fractions of a second,
+ * and with the offset as "+HHMM", "+HH:MM", "+HH" or "Z".
+ *
+ * Timestamps of other shapes are reported as {@link #UNPARSEABLE}, and
+ * the caller should fall back to a {@link java.time.format.DateTimeFormatter}.
+ *
+ * @author Steinar Bang
+ *
+ */
+final class IsoTimestamps {
+
+    static final long UNPARSEABLE = Long.MIN_VALUE;
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private IsoTimestamps() {}
+
+    /**
+     * Parse a timestamp into milliseconds since the epoch, falling back to
+     * {@link SonarCollectorServlet#isoZonedDateTimeformatter} for timestamps
+     * that aren't of a known shape.
+     *
+     * @param timestamp the timestamp to parse
+     * @return milliseconds since the epoch, with the fractions of a second dropped
+     * @throws java.time.format.DateTimeParseException if the timestamp can't be parsed
+     */
+    static long parseEpochMillis(String timestamp) {
+        var epochSeconds = parseEpochSeconds(timestamp);
+        if (epochSeconds != UNPARSEABLE) {
+            return epochSeconds * 1000;
+        }
+
+        return ZonedDateTime.parse(timestamp, SonarCollectorServlet.isoZonedDateTimeformatter).toEpochSecond() * 1000;
+    }
+
+    /**
+     * Parse a timestamp into seconds since the epoch.  Fractions of a second are dropped.
+     *
+     * @param timestamp the timestamp to parse
+     * @return seconds since the epoch, or {@link #UNPARSEABLE} if the timestamp isn't of a known shape
+     */
+    static long parseEpochSeconds(CharSequence timestamp) {
+        var length = timestamp.length();
+        if (length < 20 ||
+            timestamp.charAt(4) != '-' ||
+            timestamp.charAt(7) != '-' ||
+            timestamp.charAt(10) != 'T' ||
+            timestamp.charAt(13) != ':' ||
+            timestamp.charAt(16) != ':')
+        {
+            return UNPARSEABLE;
+        }
+
+        var year = digits(timestamp, 0, 4);
+        var month = digits(timestamp, 5, 2);
+        var day = digits(timestamp, 8, 2);
+        var hour = digits(timestamp, 11, 2);
+        var minute = digits(timestamp, 14, 2);
+        var second = digits(timestamp, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) ||
+            hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+        {
+            return UNPARSEABLE;
+        }
+
+        var position = skipFraction(timestamp, 19);
+        var offsetSeconds = parseOffsetSeconds(timestamp, position);
+        if (offsetSeconds == UNPARSEABLE) {
+            return UNPARSEABLE;
+        }
+
+        return daysFromCivil(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+    }
+
+    private static int skipFraction(CharSequence timestamp, int position) {
+        if (position < timestamp.length() && timestamp.charAt(position) == '.') {
+            var end = position + 1;
+            while (end < timestamp.length() && isDigit(timestamp.charAt(end))) {
+                ++end;
+            }
+
+            // A decimal point must be followed by at least one digit
+            return end > position + 1 ? end : -1;
+        }
+
+        return position;
+    }
+
+    private static long parseOffsetSeconds(CharSequence timestamp, int position) {
+        if (position < 0) {
+            return UNPARSEABLE;
+        }
+
+        var remaining = timestamp.length() - position;
+        if (remaining == 1 && timestamp.charAt(position) == 'Z') {
+            return 0;
+        }
+
+        if (remaining < 3) {
+            return UNPARSEABLE;
+        }
+
+        var sign = timestamp.charAt(position);
+        if (sign != '+' && sign != '-') {
+            return UNPARSEABLE;
+        }
+
+        var hours = digits(timestamp, position + 1, 2);
+        int minutes;
+        if (remaining == 3) {
+            minutes = 0;
+        } else if (remaining == 5) {
+            minutes = digits(timestamp, position + 3, 2);
+        } else if (remaining == 6 && timestamp.charAt(position + 3) == ':') {
+            minutes = digits(timestamp, position + 4, 2);
+        } else {
+            return UNPARSEABLE;
+        }
+
+        if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59) {
+            return UNPARSEABLE;
+        }
+
+        var offset = hours * 3600L + minutes * 60L;
+        return sign == '-' ? -offset : offset;
+    }
+
+    private static int digits(CharSequence timestamp, int start, int count) {
+        var value = 0;
+        for (var i = start; i < start + count; ++i) {
+            var c = timestamp.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 29;
+        }
+
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic gregorian calendar
+     * (the "days_from_civil" algorithm of Howard Hinnant).
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        var y = month <= 2 ? year - 1 : year;
+        var era = Math.floorDiv(y, 400);
+        var yearOfEra = y - era * 400;
+        var dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        var dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+import javax.sql.DataSource;
+
+/**
+ * The most recent build of each project, kept in memory, so that
+ * wallboards polling for the latest measures don't hit the database.
+ *
+ * Reads of the map are lock-free.  The JSON document served to the
+ * wallboards is rendered once for each change of the map, and shared by
+ * all requests until the next change, together with an ETag computed
+ * from its contents.
+ *
+ * @author Steinar Bang
+ *
+ */
+class LatestMeasuresCache {
+
+    /**
+     * The JSON document of the cache at a given version of the map.
+     */
+    record Rendered(long version, byte[] body, String etag) {}
+
+    static final String LATEST_MEASURES_SQL = "select m.project_key, m.version, m.analysis_time, m.analysis_id, " + metricColumns() + " from measures m where m.analysis_time = (select max(l.analysis_time) from measures l where l.project_key = m.project_key) order by m.id";
+    private static final URI UNKNOWN_SERVER = URI.create("");
+    private final ConcurrentHashMap<String, SonarBuild> latest = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Rendered> rendered = new AtomicReference<>();
+
+    /**
+     * Make a build the latest build of its project, unless a later build of the project is already known.
+     *
+     * @param build a build that has been stored
+     */
+    void update(SonarBuild build) {
+        var current = latest.merge(build.getProject(), build, (existing, candidate) -> candidate.getAnalysedAt() >= existing.getAnalysedAt() ? candidate : existing);
+        if (current == build) {
+            version.incrementAndGet();
+        }
+    }
+
+    SonarBuild get(String project) {
+        return latest.get(project);
+    }
+
+    int size() {
+        return latest.size();
+    }
+
+    /**
+     * Load the latest build of each project from the database.
+     *
+     * @param dataSource the database with the measures table
+     * @throws SQLException if the query fails
+     */
+    void warm(DataSource dataSource) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement(LATEST_MEASURES_SQL)) {
+                try (var results = statement.executeQuery()) {
+                    while (results.next()) {
+                        var measurements = readMeasurements(results, 5);
+                        update(new SonarBuild(results.getTimestamp(3).getTime(), results.getString(1), results.getString(2), UNKNOWN_SERVER, results.getString(4), measurements));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the JSON document of the current contents of the cache, rendered again only if the contents have changed
+     * @throws IOException if the JSON can't be written
+     */
+    Rendered render() throws IOException {
+        var currentVersion = version.get();
+        var current = rendered.get();
+        if (current != null && current.version() == currentVersion) {
+            return current;
+        }
+
+        var body = renderJson();
+        var checksum = new CRC32C();
+        checksum.update(body);
+        var next = new Rendered(currentVersion, body, "\"" + Long.toHexString(checksum.getValue()) + "-" + Integer.toHexString(body.length) + "\"");
+        rendered.compareAndSet(current, next);
+        return next;
+    }
+
+    private byte[] renderJson() throws IOException {
+        var body = new ByteArrayOutputStream();
+        try (var generator = SonarCollectorServlet.mapper.getFactory().createGenerator(body)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("projects");
+            // Sorted on project key, so that the same contents always give the same document and ETag
+            for (var build : new TreeMap<>(latest).values()) {
+                generator.writeStartObject();
+                generator.writeStringField("project", build.getProject());
+                generator.writeStringField("analysisTime", Instant.ofEpochMilli(build.getAnalysedAt()).toString());
+                generator.writeStringField("version", build.getVersion());
+                generator.writeBooleanField("versionIsRelease", SonarCollectorServlet.isReleaseVersion(build.getVersion()));
+                var measurements = build.getMeasurements();
+                for (var metric : Metric.all()) {
+                    switch (metric.type()) {
+                        case LONG -> generator.writeNumberField(metric.key(), measurements.getLong(metric));
+                        case DOUBLE -> generator.writeNumberField(metric.key(), measurements.getDouble(metric));
+                        case RATING -> generator.writeStringField(metric.key(), measurements.getRatingLetter(metric));
+                    }
+                }
+
+                generator.writeEndObject();
+            }
+
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        return body.toByteArray();
+    }
+
+    /**
+     * @param results a result set positioned on a row with the {@link #metricColumns()}
+     * @param firstColumn the index of the first of the metric columns
+     * @return the measurements of the row
+     * @throws SQLException if the columns can't be read
+     */
+    static Measurements readMeasurements(ResultSet results, int firstColumn) throws SQLException {
+        var measurements = new Measurements();
+        var column = firstColumn;
+        for (var metric : Metric.all()) {
+            switch (metric.type()) {
+                case LONG -> measurements.set(metric, results.getLong(column));
+                case DOUBLE -> measurements.set(metric, results.getDouble(column));
+                case RATING -> {
+                    var rating = results.getString(column);
+                    if (rating != null && !rating.isEmpty()) {
+                        measurements.set(metric, Measurements.ratingNumber(rating));
+                    }
+                }
+            }
+
+            ++column;
+        }
+
+        return measurements;
+    }
+
+    /**
+     * @return the columns of the metrics in the measures table, in the order of {@link Metric}, prefixed by the table alias "m"
+     */
+    static String metricColumns() {
+        var columns = new StringBuilder();
+        for (var metric : Metric.all()) {
+            columns.append(columns.isEmpty() ? "" : ", ").append("m.").append(metric.key());
+        }
+
+        return columns.toString();
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.priv.bang.sonar.collector.webhook.MeasuresBatchWriter.MeasuresStatementBinder;
+
+/**
+ * Writes the narrow form of the measures: one row in the measure_values
+ * table for each metric of each row inserted into the measures table,
+ * with the metric keys replaced by the small integer ids of the metrics
+ * table.
+ *
+ * All metrics of a build are written, including the metrics that don't
+ * have a column of their own in the measures table.  Ratings are stored as
+ * the numbers 1.0 (A) to 5.0 (E).  Metrics without a value, and extra
+ * metrics with values that aren't numbers (e.g. the quality gate status),
+ * are skipped.
+ *
+ * The values are written in the same transaction as the measures rows
+ * they belong to, with batched inserts.  PostgreSQL returns the generated
+ * ids of all rows of a batch, while derby only returns the id of the last
+ * row, so on other databases than PostgreSQL the measures rows are inserted
+ * one statement at a time (but still in a single transaction).
+ *
+ * The metric keys are replaced by ids from the {@link MetricDictionary}.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasureValuesWriter {
+
+    static final String INSERT_MEASURE_VALUE_SQL = "insert into measure_values (measure_id, metric_id, metric_value) values (?, ?, ?)";
+    private final MetricDictionary metrics;
+    private final AtomicLong valueCount = new AtomicLong();
+
+    MeasureValuesWriter(MetricDictionary metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Prepare an insert into the measures table that returns the generated ids of the inserted rows.
+     *
+     * @param connection the connection of the transaction inserting the rows
+     * @param insertSql the insert statement
+     * @return the prepared statement
+     * @throws SQLException if the statement can't be prepared
+     */
+    static PreparedStatement prepareInsert(Connection connection, String insertSql) throws SQLException {
+        if (returnsGeneratedIdsOfBatches(connection)) {
+            return connection.prepareStatement(insertSql, new String[] { "id" });
+        }
+
+        return connection.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS);
+    }
+
+    static boolean returnsGeneratedIdsOfBatches(Connection connection) throws SQLException {
+        return "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName());
+    }
+
+    /**
+     * Insert the measures rows of the builds, followed by their values in
+     * the measure_values table.  The caller commits, or rolls back, the
+     * transaction.
+     *
+     * @param connection a connection with a transaction
+     * @param statement an insert into the measures table, from {@link #prepareInsert(Connection, String)}
+     * @param builds the builds to insert
+     * @param binder sets the parameters of the insert from a build
+     * @throws SQLException if an insert fails
+     */
+    void insert(Connection connection, PreparedStatement statement, List<SonarBuild> builds, MeasuresStatementBinder binder) throws SQLException {
+        long[] measureIds;
+        if (returnsGeneratedIdsOfBatches(connection)) {
+            for (var build : builds) {
+                binder.bind(statement, build);
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+            measureIds = generatedIds(statement, builds.size());
+        } else {
+            measureIds = new long[builds.size()];
+            for (var i = 0; i < builds.size(); ++i) {
+                binder.bind(statement, builds.get(i));
+                statement.executeUpdate();
+                measureIds[i] = generatedIds(statement, 1)[0];
+            }
+        }
+
+        write(connection, builds, measureIds);
+    }
+
+    /**
+     * @param statement a statement that has inserted rows into the measures table
+     * @param count the number of inserted rows
+     * @return the generated ids of the inserted rows
+     * @throws SQLException if the statement doesn't return the id of each row
+     */
+    static long[] generatedIds(Statement statement, int count) throws SQLException {
+        var ids = new long[count];
+        var found = 0;
+        try (var keys = statement.getGeneratedKeys()) {
+            while (keys != null && keys.next() && found < count) {
+                ids[found++] = keys.getLong(1);
+            }
+        }
+
+        if (found != count) {
+            throw new SQLException(String.format("Expected the ids of %d inserted measures rows, got %d", count, found));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Write the values of the metrics of builds that have been inserted into the measures table.
+     *
+     * @param connection the connection of the transaction that inserted the measures rows
+     * @param builds the inserted builds
+     * @param measureIds the ids of the measures rows of the builds, in the same order as the builds
+     * @throws SQLException if writing the values fails
+     */
+    void write(Connection connection, List<SonarBuild> builds, long[] measureIds) throws SQLException {
+        var values = 0;
+        try (var statement = connection.prepareStatement(INSERT_MEASURE_VALUE_SQL)) {
+            for (var i = 0; i < builds.size(); ++i) {
+                values += addValues(statement, measureIds[i], builds.get(i).getMeasurements());
+            }
+
+            if (values > 0) {
+                statement.executeBatch();
+            }
+        }
+
+        valueCount.addAndGet(values);
+    }
+
+    private int addValues(PreparedStatement statement, long measureId, Measurements measurements) throws SQLException {
+        var values = 0;
+        for (var metric : Metric.all()) {
+            if (measurements.has(metric)) {
+                var value = switch (metric.type()) {
+                    case LONG -> measurements.getLong(metric);
+                    case DOUBLE -> measurements.getDouble(metric);
+                    case RATING -> measurements.getRating(metric);
+                };
+                values += addValue(statement, measureId, metric.key(), value);
+            }
+        }
+
+        for (var extra : measurements.getExtras().entrySet()) {
+            values += addValue(statement, measureId, extra.getKey(), Measurements.parseNumber(extra.getValue()));
+        }
+
+        return values;
+    }
+
+    private int addValue(PreparedStatement statement, long measureId, String metricKey, double value) throws SQLException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return 0;
+        }
+
+        statement.setLong(1, measureId);
+        statement.setInt(2, metrics.metricId(metricKey));
+        statement.setDouble(3, value);
+        statement.addBatch();
+        return 1;
+    }
+
+    /**
+     * @return the number of values written to the measure_values table
+     */
+    long getValueCount() {
+        return valueCount.get();
+    }
+
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The measures of a Sonar analysis, with the values of the {@link Metric}s
+ * stored in fixed slots of primitive arrays.
+ *
+ * Values of metrics that aren't in {@link Metric} are kept as strings
+ * in a separate map of extra measures.
+ *
+ * Metrics without a value are 0 (for the numbers) and the empty string
+ * (for the ratings).
+ *
+ * @author Steinar Bang
+ *
+ */
+public class Measurements {
+    private static final String[] RATING_LETTERS = { "", "A", "B", "C", "D", "E" };
+
+    private final long[] longs = new long[Metric.NUMBER_OF_LONGS];
+    private final double[] doubles = new double[Metric.NUMBER_OF_DOUBLES];
+    private final byte[] ratings = new byte[Metric.NUMBER_OF_RATINGS];
+    private long present;
+    private Map<String, String> extras;
+
+    /**
+     * Set the value of a metric from the value returned by the Sonar web API.
+     *
+     * Numbers with fractions are rounded for the metrics stored as integers.
+     *
+     * @param metricKey the Sonar key of the metric
+     * @param value the value of the metric as returned by Sonar
+     * @return false if the value isn't valid for the metric, in which case the metric is left unchanged
+     */
+    public boolean set(String metricKey, String value) {
+        var metric = Metric.fromKey(metricKey);
+        if (metric == null) {
+            if (extras == null) {
+                extras = new LinkedHashMap<>();
+            }
+
+            extras.put(metricKey, value);
+            return true;
+        }
+
+        return set(metric, parseNumber(value));
+    }
+
+    /**
+     * Set the value of a metric.
+     *
+     * @param metric the metric to set
+     * @param value the new value, ratings are 1.0 (A) to 5.0 (E)
+     * @return false if the value isn't valid for the metric, in which case the metric is left unchanged
+     */
+    boolean set(Metric metric, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+
+        switch (metric.type()) {
+            case LONG -> longs[metric.slot()] = Math.round(value);
+            case DOUBLE -> doubles[metric.slot()] = value;
+            case RATING -> {
+                var rating = toRating(value);
+                if (rating == 0) {
+                    return false;
+                }
+
+                ratings[metric.slot()] = rating;
+            }
+        }
+
+        present |= 1L << metric.ordinal();
+        return true;
+    }
+
+    boolean has(Metric metric) {
+        return (present & (1L << metric.ordinal())) != 0;
+    }
+
+    long getLong(Metric metric) {
+        return longs[metric.slot()];
+    }
+
+    double getDouble(Metric metric) {
+        return doubles[metric.slot()];
+    }
+
+    /**
+     * @param metric a rating metric
+     * @return the rating from 1 (A) to 5 (E), or 0 if the rating has no value
+     */
+    byte getRating(Metric metric) {
+        return ratings[metric.slot()];
+    }
+
+    /**
+     * @param metric a rating metric
+     * @return the rating as a letter from "A" to "E", or the empty string if the rating has no value
+     */
+    String getRatingLetter(Metric metric) {
+        return ratingLetter(ratings[metric.slot()]);
+    }
+
+    /**
+     * @return values of the metrics that aren't stored in fixed slots, by metric key
+     */
+    public Map<String, String> getExtras() {
+        return extras != null ? Collections.unmodifiableMap(extras) : Collections.emptyMap();
+    }
+
+    /**
+     * @return a copy of the measurements, that can be changed without changing these measurements
+     */
+    Measurements copy() {
+        var copy = new Measurements();
+        System.arraycopy(longs, 0, copy.longs, 0, longs.length);
+        System.arraycopy(doubles, 0, copy.doubles, 0, doubles.length);
+        System.arraycopy(ratings, 0, copy.ratings, 0, ratings.length);
+        copy.present = present;
+        copy.extras = extras != null ? new LinkedHashMap<>(extras) : null;
+        return copy;
+    }
+
+    /**
+     * Write the measurements in a compact binary form, that can be read back with {@link #readFrom(DataInput)}.
+     *
+     * @param output where the measurements are written
+     * @throws IOException if writing fails
+     */
+    void writeTo(DataOutput output) throws IOException {
+        output.writeLong(present);
+        for (var value : longs) {
+            output.writeLong(value);
+        }
+
+        for (var value : doubles) {
+            output.writeDouble(value);
+        }
+
+        output.write(ratings);
+        var extraMeasures = getExtras();
+        output.writeInt(extraMeasures.size());
+        for (var extra : extraMeasures.entrySet()) {
+            output.writeUTF(extra.getKey());
+            output.writeUTF(extra.getValue());
+        }
+    }
+
+    static Measurements readFrom(DataInput input) throws IOException {
+        var measurements = new Measurements();
+        measurements.present = input.readLong();
+        for (var i = 0; i < measurements.longs.length; ++i) {
+            measurements.longs[i] = input.readLong();
+        }
+
+        for (var i = 0; i < measurements.doubles.length; ++i) {
+            measurements.doubles[i] = input.readDouble();
+        }
+
+        input.readFully(measurements.ratings);
+        var numberOfExtras = input.readInt();
+        for (var i = 0; i < numberOfExtras; ++i) {
+            measurements.set(input.readUTF(), input.readUTF());
+        }
+
+        return measurements;
+    }
+
+    static String ratingLetter(byte rating) {
+        return rating >= 0 && rating < RATING_LETTERS.length ? RATING_LETTERS[rating] : "";
+    }
+
+    /**
+     * @param value a rating number from the Sonar web API
+     * @return 1 (A) to 5 (E), or 0 if the value isn't a valid rating
+     */
+    static byte toRating(double value) {
+        if (value == 1.0) {
+            return 1;
+        } else if (value == 2.0) {
+            return 2;
+        } else if (value == 3.0) {
+            return 3;
+        } else if (value == 4.0) {
+            return 4;
+        } else if (value == 5.0) {
+            return 5;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Ratings stored in the measures table are letters, while ratings
+     * from Sonar are numbers.  Letters are converted to numbers, and
+     * other values are parsed as numbers.
+     *
+     * @param value a rating letter from "A" to "E", or a rating number
+     * @return the rating number, or {@link Double#NaN} if the value is neither a letter nor a number
+     */
+    static double ratingNumber(String value) {
+        if (value.length() == 1 && value.charAt(0) >= 'A' && value.charAt(0) <= 'E') {
+            return value.charAt(0) - 'A' + 1.0;
+        }
+
+        return parseNumber(value);
+    }
+
+    /**
+     * Parse a number without throwing exceptions.  The syntax is checked before
+     * doing any conversion, and plain integers are converted without calling
+     * {@link Double#parseDouble(String)}.
+     *
+     * @param value a decimal number with an optional sign, fraction and exponent
+     * @return the parsed number, or {@link Double#NaN} if the value is null or not a number
+     */
+    static double parseNumber(String value) {
+        if (value == null) {
+            return Double.NaN;
+        }
+
+        var length = value.length();
+        var position = 0;
+        var negative = false;
+        if (position < length && (value.charAt(position) == '-' || value.charAt(position) == '+')) {
+            negative = value.charAt(position) == '-';
+            ++position;
+        }
+
+        var integerStart = position;
+        long integer = 0;
+        while (position < length && isDigit(value.charAt(position))) {
+            if (position - integerStart < 18) {
+                integer = integer * 10 + (value.charAt(position) - '0');
+            }
+
+            ++position;
+        }
+
+        var integerDigits = position - integerStart;
+        if (position == length) {
+            if (integerDigits == 0) {
+                return Double.NaN;
+            }
+
+            if (integerDigits <= 18) {
+                return negative ? -integer : integer;
+            }
+
+            return Double.parseDouble(value);
+        }
+
+        var fractionDigits = 0;
+        if (value.charAt(position) == '.') {
+            ++position;
+            var fractionStart = position;
+            while (position < length && isDigit(value.charAt(position))) {
+                ++position;
+            }
+
+            fractionDigits = position - fractionStart;
+        }
+
+        if (integerDigits + fractionDigits == 0) {
+            return Double.NaN;
+        }
+
+        if (position < length && (value.charAt(position) == 'e' || value.charAt(position) == 'E')) {
+            ++position;
+            if (position < length && (value.charAt(position) == '-' || value.charAt(position) == '+')) {
+                ++position;
+            }
+
+            var exponentStart = position;
+            while (position < length && isDigit(value.charAt(position))) {
+                ++position;
+            }
+
+            if (position == exponentStart) {
+                return Double.NaN;
+            }
+        }
+
+        // The syntax has been checked, so parseDouble won't throw
+        return position == length ? Double.parseDouble(value) : Double.NaN;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Decode the measures of a response from the /api/measures/component
+     * endpoint of the Sonar web API, using a streaming parser.
+     *
+     * A measure that doesn't have a value of its own, gets the value
+     * of its first period (this is the case for the "new_" metrics).
+     *
+     * @param factory the JSON factory creating the parser
+     * @param body the body of the response
+     * @return the decoded measures
+     * @throws IOException if the body can't be read or parsed
+     */
+    static Measurements decode(JsonFactory factory, InputStream body) throws IOException {
+        var measurements = new Measurements();
+        try (var parser = factory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return measurements;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var fieldName = parser.currentName();
+                var value = parser.nextToken();
+                if ("component".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                    decodeComponent(parser, measurements);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return measurements;
+    }
+
+    private static void decodeComponent(JsonParser parser, Measurements measurements) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var value = parser.nextToken();
+            if ("measures".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    decodeMeasure(parser, component -> measurements);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Decode the measures of a response from the /api/measures/search
+     * endpoint of the Sonar web API, that has the measures of several
+     * projects in a single flat list, using a streaming parser.
+     *
+     * @param factory the JSON factory creating the parser
+     * @param body the body of the response
+     * @return the decoded measures by project key, projects without any measures are missing from the map
+     * @throws IOException if the body can't be read or parsed
+     */
+    static Map<String, Measurements> decodeSearch(JsonFactory factory, InputStream body) throws IOException {
+        var measurementsByProject = new HashMap<String, Measurements>();
+        try (var parser = factory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return measurementsByProject;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var fieldName = parser.currentName();
+                var value = parser.nextToken();
+                if ("measures".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        decodeMeasure(parser, component -> component != null ? measurementsByProject.computeIfAbsent(component, c -> new Measurements()) : null);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return measurementsByProject;
+    }
+
+    private static void decodeMeasure(JsonParser parser, Function<String, Measurements> measurementsOfComponent) throws IOException {
+        String component = null;
+        String metric = null;
+        String value = null;
+        String periodValue = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var token = parser.nextToken();
+            switch (fieldName) {
+                case "component" -> component = scalarText(parser, token);
+                case "metric" -> metric = scalarText(parser, token);
+                case "value" -> value = scalarText(parser, token);
+                case "periods" -> periodValue = firstPeriodValue(parser, token);
+                case "period" -> periodValue = periodValue(parser, token);
+                default -> parser.skipChildren();
+            }
+        }
+
+        var measurements = measurementsOfComponent.apply(component);
+        if (metric != null && measurements != null) {
+            var measureValue = value != null && !value.isEmpty() ? value : periodValue;
+            measurements.set(metric, measureValue != null ? measureValue : "");
+        }
+    }
+
+    /**
+     * Newer versions of Sonar have a single "period" object instead of the "periods" array.
+     */
+    private static String periodValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+
+        String periodValue = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var fieldToken = parser.nextToken();
+            if ("value".equals(fieldName)) {
+                periodValue = scalarText(parser, fieldToken);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return periodValue;
+    }
+
+    private static String firstPeriodValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+
+        String periodValue = null;
+        var first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (first && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var fieldName = parser.currentName();
+                    var fieldToken = parser.nextToken();
+                    if ("value".equals(fieldName)) {
+                        periodValue = scalarText(parser, fieldToken);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+
+            first = false;
+        }
+
+        return periodValue;
+    }
+
+    private static String scalarText(JsonParser parser, JsonToken token) throws IOException {
+        if (token != null && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+            return parser.getText();
+        }
+
+        parser.skipChildren();
+        return null;
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * A writer stage that collects {@link SonarBuild} results and inserts
+ * them into the database in batches, with one transaction per batch
+ * (i.e. "group commit").
+ *
+ * A batch is written when it reaches the max size, or when the oldest
+ * build in the batch has waited for the max delay, whichever comes first.
+ * Each caller gets a {@link CompletableFuture} that is completed
+ * when the batch containing its build has been committed.
+ *
+ * Only plain JDBC batching is used, so this works with both
+ * PostgreSQL and derby.
+ *
+ * When a {@link MeasureValuesWriter} is given, the values of the
+ * metrics of each build are written to the measure_values table in the
+ * same transaction as the measures rows.  Likewise, when
+ * {@link MeasuresRollups} are given, the rollups are updated in the
+ * same transaction.
+ *
+ * If a batch fails because a build has already been stored (i.e.
+ * a unique constraint is violated), the builds of the batch are
+ * written one at a time, and the builds already stored are completed
+ * with 0 rows inserted.  A batch rolled back by the database (e.g.
+ * because of a deadlock) is written again a few times before its builds
+ * are failed.
+ *
+ * Builds submitted after {@link #shutdown(long)} has been called, and
+ * builds still waiting when the writer has stopped, are failed, so that
+ * no caller waits for a build that will never be written.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresBatchWriter {
+
+    @FunctionalInterface
+    interface MeasuresStatementBinder {
+        void bind(PreparedStatement statement, SonarBuild build) throws SQLException;
+    }
+
+    private record PendingInsert(SonarBuild build, CompletableFuture<Integer> completion) {}
+
+    // The longest time write() waits for the batch of a build to be committed
+    static final long WRITE_TIMEOUT_MILLIS = 60000;
+
+    private final DataSource dataSource;
+    private final String insertSql;
+    private final MeasuresStatementBinder binder;
+    private final MeasureValuesWriter measureValues;
+    private final MeasuresRollups rollups;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final LoggerAdapter logger;
+    private final BlockingQueue<PendingInsert> pending;
+    private final Thread flusher;
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong rowCount = new AtomicLong();
+    private final AtomicLong failedRowCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private volatile boolean running = true;
+    // Held for reading while a build is added, and for writing when the writer is shut down
+    private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+
+    MeasuresBatchWriter(DataSource dataSource, String insertSql, MeasuresStatementBinder binder, int maxBatchSize, long maxDelayMillis, LoggerAdapter logger) {
+        this(dataSource, insertSql, binder, null, null, maxBatchSize, maxDelayMillis, logger);
+    }
+
+    MeasuresBatchWriter(DataSource dataSource, String insertSql, MeasuresStatementBinder binder, MeasureValuesWriter measureValues, MeasuresRollups rollups, int maxBatchSize, long maxDelayMillis, LoggerAdapter logger) {
+        this.dataSource = dataSource;
+        this.insertSql = insertSql;
+        this.binder = binder;
+        this.measureValues = measureValues;
+        this.rollups = rollups;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        this.logger = logger;
+        this.pending = new LinkedBlockingQueue<>(this.maxBatchSize * 16);
+        this.flusher = Thread.ofVirtual().name("sonar-collector-measures-writer").start(this::flushLoop);
+    }
+
+    /**
+     * Add a build to the next batch.
+     *
+     * @param build the build to insert into the measures table
+     * @return a future that is completed with the number of rows inserted when the batch has been committed
+     */
+    CompletableFuture<Integer> submit(SonarBuild build) {
+        var completion = new CompletableFuture<Integer>();
+        submitLock.readLock().lock();
+        try {
+            if (!running) {
+                completion.completeExceptionally(shutDownException());
+                return completion;
+            }
+
+            pending.put(new PendingInsert(build, completion));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            completion.completeExceptionally(e);
+        } finally {
+            submitLock.readLock().unlock();
+        }
+
+        return completion;
+    }
+
+    /**
+     * Add a build to the next batch and wait for the batch to be committed.
+     *
+     * @param build the build to insert into the measures table
+     * @return the number of rows inserted
+     * @throws SQLException if the batch containing the build failed, or wasn't committed in time
+     */
+    int write(SonarBuild build) throws SQLException {
+        try {
+            return submit(build).get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SQLException("Timed out waiting for measures to be written", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for measures to be written", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+
+            throw new SQLException("Failed to write measures", e.getCause());
+        }
+    }
+
+    private void flushLoop() {
+        var batch = new ArrayList<PendingInsert>(maxBatchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                var first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    fillBatch(batch);
+                    flush(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.drainTo(batch);
+                failAll(batch, e);
+                return;
+            }
+        }
+    }
+
+    private void fillBatch(List<PendingInsert> batch) throws InterruptedException {
+        var deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            pending.drainTo(batch, maxBatchSize - batch.size());
+            var remaining = deadline - System.nanoTime();
+            if (batch.size() >= maxBatchSize || remaining <= 0) {
+                return;
+            }
+
+            var next = pending.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+
+            batch.add(next);
+        }
+    }
+
+    private void flush(List<PendingInsert> batch) {
+        for (var attempt = 1; ; ++attempt) {
+            try {
+                // Builds completed by an earlier attempt, e.g. builds that failed to bind, aren't written again
+                writeBatch(batch.stream().filter(insert -> !insert.completion().isDone()).toList());
+                return;
+            } catch (SQLException e) {
+                if (attempt >= SonarCollectorServlet.MAX_TRANSACTION_ATTEMPTS || !SqlStates.isTransactionRollback(e)) {
+                    logger.error("Sonar Collector failed to write a batch of {} measures", batch.size(), e);
+                    failAll(batch, e);
+                    return;
+                }
+
+                logger.warn("Sonar Collector batch of measures rolled back by the database, retrying (attempt {} of {})", attempt, SonarCollectorServlet.MAX_TRANSACTION_ATTEMPTS);
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingInsert> batch) throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        var bound = new ArrayList<PendingInsert>(batch.size());
+        try (var connection = dataSource.getConnection()) {
+            var autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (var statement = prepareInsert(connection)) {
+                for (var insert : batch) {
+                    if (bind(statement, insert)) {
+                        if (measureValues == null) {
+                            statement.addBatch();
+                        }
+
+                        bound.add(insert);
+                    }
+                }
+
+                if (bound.isEmpty()) {
+                    return;
+                }
+
+                int[] updateCounts;
+                try {
+                    updateCounts = insertBatch(connection, statement, bound);
+                } catch (SQLException e) {
+                    if (!SqlStates.isUniqueViolation(e)) {
+                        throw e;
+                    }
+
+                    connection.rollback();
+                    writeOneAtATime(connection, bound);
+                    return;
+                }
+
+                connection.commit();
+                batchCount.incrementAndGet();
+                rowCount.addAndGet(bound.size());
+                for (var i = 0; i < bound.size(); ++i) {
+                    var updateCount = i < updateCounts.length ? updateCounts[i] : Statement.SUCCESS_NO_INFO;
+                    bound.get(i).completion().complete(updateCount == Statement.SUCCESS_NO_INFO ? 1 : updateCount);
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private PreparedStatement prepareInsert(Connection connection) throws SQLException {
+        return measureValues != null ?
+            MeasureValuesWriter.prepareInsert(connection, insertSql) :
+            connection.prepareStatement(insertSql);
+    }
+
+    private int[] insertBatch(Connection connection, PreparedStatement statement, List<PendingInsert> inserts) throws SQLException {
+        int[] updateCounts;
+        if (measureValues != null) {
+            // The builds have only been bound to check them, the inserts of the values need the ids of each row
+            statement.clearParameters();
+            measureValues.insert(connection, statement, builds(inserts), binder);
+            updateCounts = new int[inserts.size()];
+            Arrays.fill(updateCounts, 1);
+        } else {
+            updateCounts = statement.executeBatch();
+        }
+
+        if (rollups != null) {
+            rollups.update(connection, builds(inserts));
+        }
+
+        return updateCounts;
+    }
+
+    private static List<SonarBuild> builds(List<PendingInsert> inserts) {
+        return inserts.stream().map(PendingInsert::build).toList();
+    }
+
+    private void writeOneAtATime(Connection connection, List<PendingInsert> inserts) throws SQLException {
+        for (var insert : inserts) {
+            try (var statement = prepareInsert(connection)) {
+                var updateCount = 1;
+                if (measureValues != null) {
+                    measureValues.insert(connection, statement, List.of(insert.build()), binder);
+                } else {
+                    binder.bind(statement, insert.build());
+                    updateCount = statement.executeUpdate();
+                }
+
+                if (rollups != null) {
+                    rollups.update(connection, List.of(insert.build()));
+                }
+
+                connection.commit();
+                rowCount.addAndGet(updateCount);
+                insert.completion().complete(updateCount);
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!SqlStates.isUniqueViolation(e)) {
+                    throw e;
+                }
+
+                duplicateCount.incrementAndGet();
+                insert.completion().complete(0);
+            }
+        }
+
+        batchCount.incrementAndGet();
+    }
+
+    private boolean bind(PreparedStatement statement, PendingInsert insert) throws SQLException {
+        try {
+            statement.clearParameters();
+            binder.bind(statement, insert.build());
+            return true;
+        } catch (RuntimeException e) {
+            // A single bad build shouldn't fail the rest of the batch
+            failedRowCount.incrementAndGet();
+            insert.completion().completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private void failAll(List<PendingInsert> batch, Exception e) {
+        for (var insert : batch) {
+            if (insert.completion().completeExceptionally(e)) {
+                failedRowCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new builds, and write the builds already waiting.
+     * The builds that haven't been written when the timeout expires are
+     * failed.
+     *
+     * @param timeoutMillis the maximum time to wait for the waiting builds to be written
+     */
+    void shutdown(long timeoutMillis) {
+        submitLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+
+        try {
+            if (!flusher.join(Duration.ofMillis(timeoutMillis))) {
+                flusher.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // No builds are added after running is cleared, so this fails all builds the flusher didn't get to
+        var leftovers = new ArrayList<PendingInsert>();
+        pending.drainTo(leftovers);
+        if (!leftovers.isEmpty()) {
+            logger.warn("Sonar Collector measures writer stopped with {} measures not written", leftovers.size());
+            failAll(leftovers, shutDownException());
+        }
+    }
+
+    private static SQLException shutDownException() {
+        return new SQLException("Sonar Collector measures writer has been shut down");
+    }
+
+    long getBatchCount() {
+        return batchCount.get();
+    }
+
+    long getRowCount() {
+        return rowCount.get();
+    }
+
+    long getFailedRowCount() {
+        return failedRowCount.get();
+    }
+
+    /**
+     * @return the number of builds not inserted because they had already been stored
+     */
+    long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.sonar.collector.webhook.SpoolReplayer.BatchInserter;
+
+/**
+ * Bulk import of measures from CSV or NDJSON files, e.g. exports from
+ * spreadsheets or from the measures table of an older collector.
+ *
+ * The files use the column names of the measures table (project_key,
+ * version, analysis_time, and an optional analysis_id) and the Sonar metric
+ * keys, e.g. lines, coverage and sqale_rating.  CSV files must start with
+ * a header line, and NDJSON files have one JSON object on each line.
+ * Other columns, e.g. id, version_is_release and issues from measures_view,
+ * are ignored.
+ *
+ * Rows are validated and converted with the same rules as the measures
+ * from Sonar: ratings are the numbers 1.0 to 5.0 (the letters A to E are
+ * also accepted), and rows with invalid values are rejected and counted.
+ *
+ * On PostgreSQL the rows are streamed into the measures table with
+ * "COPY FROM STDIN", in a single transaction, and the measure_values and
+ * the rollups of the copied rows are filled in the same transaction, when
+ * they are kept.  Since COPY bypasses the inserter, the latest build of
+ * each project written by COPY is handed to a listener when the COPY has
+ * completed.  On other databases the rows are written with batched
+ * inserts.  Either way, analyses that already have been stored are
+ * skipped.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresImporter {
+
+    enum Format { CSV, NDJSON }
+
+    /**
+     * The outcome of an import, in the shape returned by the admin endpoint.
+     */
+    record Result(String method, long rows, long rejected, long elapsedMillis, long rowsPerSecond) {}
+
+    /**
+     * The destination of the imported rows.
+     */
+    interface MeasuresSink {
+        void add(SonarBuild build) throws SQLException;
+        void finish() throws SQLException;
+        void abort();
+    }
+
+    @FunctionalInterface
+    private interface RowHandler {
+        void handle(Map<String, String> row) throws SQLException;
+    }
+
+    static final String COPY = "copy";
+    static final String BATCH = "batch";
+    private static final int MAX_LOGGED_REJECTS = 10;
+    private static final URI UNKNOWN_SERVER = URI.create("");
+    private final DataSource dataSource;
+    private final BatchInserter inserter;
+    private final int batchSize;
+    private final MeasureValuesWriter measureValues;
+    private final MeasuresRollups rollups;
+    private final Consumer<SonarBuild> copiedListener;
+    private final LoggerAdapter logger;
+    private long rows;
+    private long rejected;
+
+    MeasuresImporter(DataSource dataSource, BatchInserter inserter, int batchSize, LoggerAdapter logger) {
+        this(dataSource, inserter, batchSize, null, null, build -> {}, logger);
+    }
+
+    /**
+     * @param measureValues fills the measure_values of the rows written by COPY, or null if they aren't kept
+     * @param rollups updates the rollups with the rows written by COPY, or null if they aren't kept
+     * @param copiedListener gets the latest build of each project written by COPY, when the COPY has completed
+     */
+    MeasuresImporter(DataSource dataSource, BatchInserter inserter, int batchSize, MeasureValuesWriter measureValues, MeasuresRollups rollups, Consumer<SonarBuild> copiedListener, LoggerAdapter logger) {
+        this.dataSource = dataSource;
+        this.inserter = inserter;
+        this.batchSize = Math.max(1, batchSize);
+        this.measureValues = measureValues;
+        this.rollups = rollups;
+        this.copiedListener = copiedListener;
+        this.logger = logger;
+    }
+
+    /**
+     * Import all rows of a file, and wait for the import to complete.
+     *
+     * @param input the contents of the file
+     * @param format the format of the file
+     * @return the number of imported and rejected rows, and the time used
+     * @throws IOException if the file can't be read or isn't well-formed
+     * @throws SQLException if writing to the database fails
+     */
+    Result importMeasures(InputStream input, Format format) throws IOException, SQLException {
+        var startedAt = System.nanoTime();
+        String method;
+        try (var connection = dataSource.getConnection()) {
+            var sink = createSink(connection);
+            var copying = !(sink instanceof BatchSink);
+            method = copying ? COPY : BATCH;
+            var latestCopied = new HashMap<String, SonarBuild>();
+            try {
+                RowHandler handler = row -> {
+                    var build = toBuild(row);
+                    if (build != null) {
+                        sink.add(build);
+                        ++rows;
+                        if (copying) {
+                            latestCopied.merge(build.getProject(), build, (existing, candidate) -> candidate.getAnalysedAt() >= existing.getAnalysedAt() ? candidate : existing);
+                        }
+                    }
+                };
+                if (format == Format.NDJSON) {
+                    readNdjson(input, handler);
+                } else {
+                    readCsv(input, handler);
+                }
+
+                sink.finish();
+                if (sink instanceof PostgresqlMeasuresCopy copy && copy.getSkippedCount() > 0) {
+                    logger.info("Sonar Collector import skipped {} rows of analyses that had already been stored", copy.getSkippedCount());
+                }
+            } catch (IOException | SQLException | RuntimeException e) {
+                sink.abort();
+                throw e;
+            }
+
+            latestCopied.values().forEach(copiedListener);
+        }
+
+        var elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        var result = new Result(method, rows, rejected, elapsedMillis, rows * 1000 / Math.max(1, elapsedMillis));
+        logger.info("Sonar Collector imported {} rows of measures ({} rejected) in {} ms with {}, {} rows/second", result.rows(), result.rejected(), result.elapsedMillis(), result.method(), result.rowsPerSecond());
+        return result;
+    }
+
+    private MeasuresSink createSink(Connection connection) throws SQLException {
+        if ("PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+            // The PostgreSQL JDBC driver classes are only loaded when the database is PostgreSQL
+            return new PostgresqlMeasuresCopy(connection, measureValues, rollups, batchSize);
+        }
+
+        return new BatchSink(inserter, batchSize);
+    }
+
+    private void readCsv(InputStream input, RowHandler handler) throws IOException, SQLException {
+        var reader = new BufferedReader(new InputStreamReader(input, UTF_8));
+        var headerLine = reader.readLine();
+        if (headerLine == null) {
+            return;
+        }
+
+        var header = parseCsvLine(headerLine).stream().map(column -> column.trim().toLowerCase(Locale.ROOT)).toList();
+        var lineNumber = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            if (line.isBlank()) {
+                continue;
+            }
+
+            var values = parseCsvLine(line);
+            if (values.size() != header.size()) {
+                reject("line " + lineNumber + " has " + values.size() + " columns, expected " + header.size());
+                continue;
+            }
+
+            var row = new HashMap<String, String>(header.size() * 2);
+            for (var i = 0; i < header.size(); ++i) {
+                row.put(header.get(i), values.get(i));
+            }
+
+            handler.handle(row);
+        }
+    }
+
+    /**
+     * Split a CSV line into values, with double quotes around values
+     * containing commas, and doubled double quotes inside quoted values.
+     */
+    static List<String> parseCsvLine(String line) {
+        var values = new ArrayList<String>();
+        var value = new StringBuilder();
+        var quoted = false;
+        for (var i = 0; i < line.length(); ++i) {
+            var c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        ++i;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+
+        values.add(value.toString());
+        return values;
+    }
+
+    private void readNdjson(InputStream input, RowHandler handler) throws IOException, SQLException {
+        JsonFactory factory = SonarCollectorServlet.mapper.getFactory();
+        try (var parser = factory.createParser(input)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    reject("NDJSON value that isn't an object");
+                    continue;
+                }
+
+                var row = new HashMap<String, String>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var name = parser.currentName().toLowerCase(Locale.ROOT);
+                    var value = parser.nextToken();
+                    if (value.isScalarValue()) {
+                        row.put(name, value == JsonToken.VALUE_NULL ? null : parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+
+                handler.handle(row);
+            }
+        }
+    }
+
+    /**
+     * Validate a row and convert it to a build.
+     *
+     * @param row values by column name
+     * @return the build, or null if the row is rejected
+     */
+    SonarBuild toBuild(Map<String, String> row) {
+        var project = row.get("project_key");
+        if (project == null || project.isBlank()) {
+            reject("row without project_key");
+            return null;
+        }
+
+        long analysedAt;
+        try {
+            analysedAt = parseAnalysisTime(row.get("analysis_time"));
+        } catch (DateTimeParseException | IllegalArgumentException | NullPointerException e) {
+            reject("row of project " + project + " with invalid analysis_time \"" + row.get("analysis_time") + "\"");
+            return null;
+        }
+
+        var measurements = new Measurements();
+        for (var metric : Metric.all()) {
+            var value = row.get(metric.key());
+            if (value == null || value.isBlank()) {
+                continue;
+            }
+
+            var number = metric.type() == Metric.Type.RATING ? Measurements.ratingNumber(value.trim()) : Measurements.parseNumber(value.trim());
+            if (!measurements.set(metric, number)) {
+                reject("row of project " + project + " with invalid " + metric.key() + " \"" + value + "\"");
+                return null;
+            }
+        }
+
+        var version = row.getOrDefault("version", "");
+        var analysisId = row.get("analysis_id");
+        return new SonarBuild(
+            analysedAt,
+            project,
+            version != null ? version : "",
+            UNKNOWN_SERVER,
+            analysisId == null || analysisId.isBlank() ? null : analysisId,
+            measurements);
+    }
+
+    /**
+     * Accept both the ISO 8601 timestamps of Sonar and the
+     * "yyyy-mm-dd hh:mm:ss" timestamps of database exports.
+     */
+    private static long parseAnalysisTime(String analysisTime) {
+        var timestamp = analysisTime.trim();
+        if (timestamp.length() > 10 && timestamp.charAt(10) == ' ') {
+            return Timestamp.valueOf(timestamp).getTime();
+        }
+
+        return IsoTimestamps.parseEpochMillis(timestamp);
+    }
+
+    private void reject(String reason) {
+        if (++rejected <= MAX_LOGGED_REJECTS) {
+            logger.warn("Sonar Collector import rejected {}", reason);
+        }
+    }
+
+    /**
+     * Writes the rows in batches of batchSize with the same inserter as the spool replayer.
+     */
+    private static class BatchSink implements MeasuresSink {
+        private final BatchInserter inserter;
+        private final int batchSize;
+        private final List<SonarBuild> batch;
+
+        BatchSink(BatchInserter inserter, int batchSize) {
+            this.inserter = inserter;
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        @Override
+        public void add(SonarBuild build) throws SQLException {
+            batch.add(build);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void finish() throws SQLException {
+            flush();
+        }
+
+        @Override
+        public void abort() {
+            // The batches already written are kept
+        }
+
+        private void flush() throws SQLException {
+            if (!batch.isEmpty()) {
+                inserter.insert(batch);
+                batch.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * Creates the monthly partitions of the measures table ahead of time,
+ * when the measures table has been partitioned by
+ * db-changelog/db-changelog-partitioning.xml.
+ *
+ * A partition must be created before any row for its month arrives,
+ * because a partition can't be added for rows already in the default
+ * partition.  The partitions of the current month and the next
+ * monthsAhead months are created when the collector is activated, and
+ * then once a day.
+ *
+ * On databases other than PostgreSQL, and on an unpartitioned measures
+ * table, nothing is done.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresPartitionMaintainer {
+
+    static final String IS_PARTITIONED_SQL = "select count(*) from pg_partitioned_table p join pg_class c on c.oid = p.partrelid where c.relname = 'measures'";
+    static final String PARTITION_EXISTS_SQL = "select to_regclass(?) is not null";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final long INTERVAL_NANOS = TimeUnit.DAYS.toNanos(1);
+    private final DataSource dataSource;
+    private final int monthsAhead;
+    private final LoggerAdapter logger;
+    private volatile boolean running = true;
+    private Thread maintainer;
+
+    MeasuresPartitionMaintainer(DataSource dataSource, int monthsAhead, LoggerAdapter logger) {
+        this.dataSource = dataSource;
+        this.monthsAhead = Math.max(0, monthsAhead);
+        this.logger = logger;
+    }
+
+    /**
+     * Create the missing partitions now, and then once a day, on a virtual thread.
+     */
+    void start() {
+        maintainer = Thread.ofVirtual().name("sonar-collector-partition-maintainer").start(() -> {
+            while (running) {
+                createPartitionsAhead(LocalDate.now());
+                LockSupport.parkNanos(INTERVAL_NANOS);
+            }
+        });
+    }
+
+    void shutdown(long timeoutMillis) {
+        running = false;
+        var thread = maintainer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(Duration.ofMillis(timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Create the partitions of the month of a date and the months after it,
+     * that don't already exist.
+     *
+     * @param today the date to count the months from
+     * @return the number of partitions created
+     */
+    int createPartitionsAhead(LocalDate today) {
+        var created = 0;
+        try (var connection = dataSource.getConnection()) {
+            if (!isPartitioned(connection)) {
+                return 0;
+            }
+
+            var month = YearMonth.from(today);
+            for (var i = 0; i <= monthsAhead; ++i) {
+                if (createPartitionIfMissing(connection, month.plusMonths(i))) {
+                    ++created;
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Sonar Collector unable to create partitions of the measures table", e);
+        }
+
+        if (created > 0) {
+            logger.info("Sonar Collector created {} partitions of the measures table", created);
+        }
+
+        return created;
+    }
+
+    private boolean isPartitioned(Connection connection) throws SQLException {
+        if (!"PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+            return false;
+        }
+
+        try (var statement = connection.prepareStatement(IS_PARTITIONED_SQL)) {
+            try (var results = statement.executeQuery()) {
+                return results.next() && results.getInt(1) > 0;
+            }
+        }
+    }
+
+    private boolean createPartitionIfMissing(Connection connection, YearMonth month) throws SQLException {
+        var name = partitionName(month);
+        try (var statement = connection.prepareStatement(PARTITION_EXISTS_SQL)) {
+            statement.setString(1, name);
+            try (var results = statement.executeQuery()) {
+                if (results.next() && results.getBoolean(1)) {
+                    return false;
+                }
+            }
+        }
+
+        try (var statement = connection.createStatement()) {
+            statement.executeUpdate(createPartitionSql(month));
+            return true;
+        } catch (SQLException e) {
+            // E.g. rows for the month have already ended up in the default partition
+            logger.warn("Sonar Collector unable to create partition {} of the measures table", name, e);
+            return false;
+        }
+    }
+
+    static String partitionName(YearMonth month) {
+        return "measures_p" + month.format(PARTITION_SUFFIX);
+    }
+
+    static String createPartitionSql(YearMonth month) {
+        return "create table if not exists " + partitionName(month) +
+            " partition of measures for values from ('" + month.atDay(1) + "') to ('" + month.plusMonths(1).atDay(1) + "')";
+    }
+
+}
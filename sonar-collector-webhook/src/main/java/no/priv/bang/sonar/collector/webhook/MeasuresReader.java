@@ -0,0 +1,304 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * Reads the time series of the measures of a project, and streams it to
+ * the HTTP response as JSON.
+ *
+ * The rows are ordered on (analysis_time, id), and pages are fetched
+ * with keyset pagination: the response ends with a "next" cursor that
+ * is passed as the "after" parameter to get the next page, so that
+ * fetching a page costs the same no matter how far into the series it is.
+ *
+ * The rows are read with a cursor with a fixed fetch size, and are written
+ * to the response as they are read, so that a large page is never held
+ * in memory.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresReader {
+
+    /**
+     * A parsed read request.
+     *
+     * @param project the key of the project to read
+     * @param metrics the metrics to return
+     * @param from the earliest analysis time to return, inclusive, or null for no limit
+     * @param to the latest analysis time to return, exclusive, or null for no limit
+     * @param releasesOnly if true, only analyses of release versions are returned
+     * @param after the position to continue from, or null to start at the beginning
+     * @param limit the max number of rows to return
+     */
+    record Query(String project, List<Metric> metrics, Long from, Long to, boolean releasesOnly, Cursor after, int limit) {}
+
+    /**
+     * The position of a row in the (analysis_time, id) order.
+     */
+    record Cursor(long analysisTime, long id) {
+
+        static Cursor parse(String cursor) {
+            var separator = cursor.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Malformed cursor \"" + cursor + "\"");
+            }
+
+            return new Cursor(Long.parseLong(cursor.substring(0, separator)), Long.parseLong(cursor.substring(separator + 1)));
+        }
+
+        @Override
+        public String toString() {
+            return analysisTime + ":" + id;
+        }
+    }
+
+    private final DataSource dataSource;
+    private final int fetchSize;
+    private final LoggerAdapter logger;
+
+    MeasuresReader(DataSource dataSource, int fetchSize, LoggerAdapter logger) {
+        this.dataSource = dataSource;
+        this.fetchSize = Math.max(1, fetchSize);
+        this.logger = logger;
+    }
+
+    /**
+     * Parse the parameters of a read request.
+     *
+     * @param request a request with the parameters project, and optionally metrics, from, to, releasesOnly, after and limit
+     * @param defaultLimit the number of rows returned when there is no limit parameter
+     * @param maxLimit the highest allowed value of the limit parameter
+     * @return the parsed request
+     * @throws IllegalArgumentException if a parameter is missing or has an invalid value
+     */
+    static Query parseQuery(HttpServletRequest request, int defaultLimit, int maxLimit) {
+        var project = request.getParameter("project");
+        if (project == null || project.isBlank()) {
+            throw new IllegalArgumentException("Missing parameter \"project\"");
+        }
+
+        var metrics = parseMetrics(request.getParameter("metrics"));
+        try {
+            var from = request.getParameter("from");
+            var to = request.getParameter("to");
+            var after = request.getParameter("after");
+            var limit = request.getParameter("limit");
+            var parsedLimit = limit != null ? Integer.parseInt(limit) : defaultLimit;
+            if (parsedLimit < 1 || parsedLimit > maxLimit) {
+                throw new IllegalArgumentException("Parameter \"limit\" must be between 1 and " + maxLimit);
+            }
+
+            return new Query(
+                project,
+                metrics,
+                from != null ? IsoTimestamps.parseEpochMillis(from) : null,
+                to != null ? IsoTimestamps.parseEpochMillis(to) : null,
+                Boolean.parseBoolean(request.getParameter("releasesOnly")),
+                after != null ? Cursor.parse(after) : null,
+                parsedLimit);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Malformed timestamp \"" + e.getParsedString() + "\"", e);
+        }
+    }
+
+    private static List<Metric> parseMetrics(String metrics) {
+        if (metrics == null || metrics.isBlank()) {
+            return List.of(Metric.all());
+        }
+
+        // Only known metrics are accepted, since the metric keys become column names in the SQL
+        var parsed = new ArrayList<Metric>();
+        for (var key : metrics.split(",")) {
+            var metric = Metric.fromKey(key.trim());
+            if (metric == null) {
+                throw new IllegalArgumentException("Unknown metric \"" + key.trim() + "\"");
+            }
+
+            parsed.add(metric);
+        }
+
+        return parsed;
+    }
+
+    static String createSql(Query query) {
+        var sql = new StringBuilder("select id, version, version_is_release, analysis_time");
+        for (var metric : query.metrics()) {
+            sql.append(", ").append(metric.key());
+        }
+
+        sql.append(" from measures where project_key=?");
+        if (query.from() != null) {
+            sql.append(" and analysis_time>=?");
+        }
+
+        if (query.to() != null) {
+            sql.append(" and analysis_time<?");
+        }
+
+        if (query.releasesOnly()) {
+            sql.append(" and version_is_release=?");
+        }
+
+        if (query.after() != null) {
+            sql.append(" and (analysis_time>? or (analysis_time=? and id>?))");
+        }
+
+        return sql.append(" order by analysis_time, id").toString();
+    }
+
+    /**
+     * Run a query and stream the result to the response.
+     *
+     * @param query the parsed request
+     * @param response the response the JSON is written to
+     * @throws SQLException if the query fails before anything has been written to the response
+     * @throws IOException if writing the response fails
+     */
+    void read(Query query, HttpServletResponse response) throws SQLException, IOException {
+        try (var connection = dataSource.getConnection()) {
+            // PostgreSQL only uses a cursor, and honors the fetch size, inside a transaction
+            connection.setAutoCommit(false);
+            try (var statement = connection.prepareStatement(createSql(query))) {
+                var parameterIndex = 1;
+                statement.setString(parameterIndex++, query.project());
+                if (query.from() != null) {
+                    statement.setTimestamp(parameterIndex++, new Timestamp(query.from()));
+                }
+
+                if (query.to() != null) {
+                    statement.setTimestamp(parameterIndex++, new Timestamp(query.to()));
+                }
+
+                if (query.releasesOnly()) {
+                    statement.setBoolean(parameterIndex++, true);
+                }
+
+                if (query.after() != null) {
+                    var afterTime = new Timestamp(query.after().analysisTime());
+                    statement.setTimestamp(parameterIndex++, afterTime);
+                    statement.setTimestamp(parameterIndex++, afterTime);
+                    statement.setLong(parameterIndex, query.after().id());
+                }
+
+                // One row more than the limit, to tell if there is a next page
+                statement.setMaxRows(query.limit() + 1);
+                statement.setFetchSize(Math.min(fetchSize, query.limit() + 1));
+                try (var results = statement.executeQuery()) {
+                    response.setStatus(200);
+                    response.setContentType("application/json");
+                    try (var generator = SonarCollectorServlet.mapper.getFactory().createGenerator(response.getOutputStream())) {
+                        writeSeries(generator, query, results);
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        }
+    }
+
+    private void writeSeries(JsonGenerator generator, Query query, ResultSet results) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("project", query.project());
+        generator.writeArrayFieldStart("measures");
+        Cursor next = null;
+        var failed = false;
+        var rows = 0;
+        Cursor last = null;
+        try {
+            while (results.next()) {
+                if (rows == query.limit()) {
+                    next = last;
+                    break;
+                }
+
+                last = writeRow(generator, query.metrics(), results);
+                ++rows;
+            }
+        } catch (SQLException e) {
+            // The status has already been sent, so end the JSON early with an error, and
+            // a cursor after the last complete row, so that the client can resume the read
+            logger.error("Sonar Collector failed reading measures of project {} after {} rows", query.project(), rows, e);
+            failed = true;
+            next = last != null ? last : query.after();
+        }
+
+        generator.writeEndArray();
+        if (next != null) {
+            generator.writeStringField("next", next.toString());
+        }
+
+        if (failed) {
+            generator.writeBooleanField("error", true);
+        }
+
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write a row of the result.  All of the columns are read before anything
+     * is written, so that a failing read never leaves half a row in the JSON.
+     */
+    private static Cursor writeRow(JsonGenerator generator, List<Metric> metrics, ResultSet results) throws SQLException, IOException {
+        var id = results.getLong(1);
+        var version = results.getString(2);
+        var versionIsRelease = results.getBoolean(3);
+        var analysisTime = results.getTimestamp(4).getTime();
+        var values = new Object[metrics.size()];
+        for (var i = 0; i < values.length; ++i) {
+            var column = i + 5;
+            values[i] = switch (metrics.get(i).type()) {
+                case LONG -> results.getLong(column);
+                case DOUBLE -> results.getDouble(column);
+                case RATING -> results.getString(column);
+            };
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("analysisTime", Instant.ofEpochMilli(analysisTime).toString());
+        generator.writeStringField("version", version);
+        generator.writeBooleanField("versionIsRelease", versionIsRelease);
+        for (var i = 0; i < values.length; ++i) {
+            var key = metrics.get(i).key();
+            switch (values[i]) {
+                case Long value -> generator.writeNumberField(key, value);
+                case Double value -> generator.writeNumberField(key, value);
+                case null, default -> generator.writeStringField(key, (String) values[i]);
+            }
+        }
+
+        generator.writeEndObject();
+        return new Cursor(analysisTime, id);
+    }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * Rollups of the measures of each project in time buckets of a day, a
+ * week (starting on monday) and a month, in UTC.  Each rollup holds the
+ * count, min, max, sum and last value of a metric in a bucket, so that
+ * trend charts can read a few hundred rollups instead of all measures.
+ *
+ * The rollups cover the metrics of the measures table (ratings as the
+ * numbers 1.0 to 5.0, and only when they have a value), and the extra
+ * metrics that are numbers.
+ *
+ * The rollups are updated in the same transaction as the measures rows are
+ * inserted, and can be rebuilt from the measures and measure_values tables.
+ * On PostgreSQL the rollups are updated with batched "insert ... on conflict
+ * do update".  On other databases each rollup is updated, and inserted if
+ * it doesn't exist.  When two transactions insert the same rollup, the
+ * insert of the transaction committing last fails on the primary key, and
+ * that transaction updates the rollup inserted by the other one instead.
+ * The rollups are always updated in the same order, so that two
+ * transactions don't wait for each other's row locks.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresRollups {
+
+    enum Bucket {
+        DAY("day"),
+        WEEK("week"),
+        MONTH("month");
+
+        private final String key;
+
+        private Bucket(String key) {
+            this.key = key;
+        }
+
+        String key() {
+            return key;
+        }
+
+        /**
+         * @param epochMillis a point in time
+         * @return the start of the bucket containing the point in time
+         */
+        long start(long epochMillis) {
+            var date = Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC).toLocalDate();
+            var first = switch (this) {
+                case DAY -> date;
+                case WEEK -> date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                case MONTH -> date.withDayOfMonth(1);
+            };
+            return first.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * The outcome of a rebuild, in the shape returned by the admin endpoint.
+     */
+    record Result(long measures, long rollups, long elapsedMillis) {}
+
+    private record Key(String project, Bucket bucket, String metricKey, long bucketStart) {}
+
+    @FunctionalInterface
+    private interface ValueConsumer {
+        void accept(String metricKey, double value);
+    }
+
+    private static class Rollup {
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        double last;
+        long lastTime = Long.MIN_VALUE;
+
+        void add(double value, long time) {
+            ++count;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            if (time >= lastTime) {
+                last = value;
+                lastTime = time;
+            }
+        }
+    }
+
+    // Rollups are always written in the same order, to avoid deadlocks between concurrent transactions
+    private static final Comparator<Key> KEY_ORDER = Comparator.comparing(Key::project)
+        .thenComparing(Key::bucket)
+        .thenComparing(Key::metricKey)
+        .thenComparingLong(Key::bucketStart);
+    static final String ROLLUP_COLUMNS = "project_key, bucket, metric_id, bucket_start, value_count, min_value, max_value, sum_value, last_value, last_time";
+    static final String INSERT_ROLLUP_SQL = "insert into measure_rollups (" + ROLLUP_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final String UPSERT_ROLLUP_SQL = INSERT_ROLLUP_SQL + " on conflict (project_key, bucket, metric_id, bucket_start) do update set " +
+        "value_count = measure_rollups.value_count + excluded.value_count, " +
+        "min_value = least(measure_rollups.min_value, excluded.min_value), " +
+        "max_value = greatest(measure_rollups.max_value, excluded.max_value), " +
+        "sum_value = measure_rollups.sum_value + excluded.sum_value, " +
+        "last_value = case when measure_rollups.last_time > excluded.last_time then measure_rollups.last_value else excluded.last_value end, " +
+        "last_time = greatest(measure_rollups.last_time, excluded.last_time)";
+    static final String UPDATE_ROLLUP_SQL = "update measure_rollups set " +
+        "value_count = value_count + ?, " +
+        "min_value = case when min_value <= cast(? as double precision) then min_value else cast(? as double precision) end, " +
+        "max_value = case when max_value >= cast(? as double precision) then max_value else cast(? as double precision) end, " +
+        "sum_value = sum_value + ?, " +
+        "last_value = case when last_time > cast(? as timestamp) then last_value else cast(? as double precision) end, " +
+        "last_time = case when last_time > cast(? as timestamp) then last_time else cast(? as timestamp) end " +
+        "where project_key = ? and bucket = ? and metric_id = ? and bucket_start = ?";
+    static final String DELETE_ROLLUPS_SQL = "delete from measure_rollups";
+    static final String REBUILD_MEASURES_SQL = "select m.project_key, m.analysis_time, " + LatestMeasuresCache.metricColumns() + " from measures m order by m.project_key, m.analysis_time, m.id";
+    static final String REBUILD_MEASURE_VALUES_SQL = "select m.project_key, m.analysis_time, k.metric_key, v.metric_value from measure_values v join metrics k on k.id = v.metric_id join measures m on m.id = v.measure_id order by m.project_key, m.analysis_time, m.id";
+    private final DataSource dataSource;
+    private final MetricDictionary metrics;
+    private final LoggerAdapter logger;
+    private final AtomicLong updateCount = new AtomicLong();
+
+    MeasuresRollups(DataSource dataSource, MetricDictionary metrics, LoggerAdapter logger) {
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /**
+     * Add the measures of builds to the rollups, after the measures rows of
+     * the builds have been inserted.  A transaction inserting many rows can
+     * add them in several calls.  The caller commits, or rolls back, the
+     * transaction.
+     *
+     * @param connection the connection of the transaction that inserted the measures rows
+     * @param builds the inserted builds
+     * @throws SQLException if updating the rollups fails
+     */
+    void update(Connection connection, List<SonarBuild> builds) throws SQLException {
+        var rollups = new TreeMap<Key, Rollup>(KEY_ORDER);
+        for (var build : builds) {
+            var project = build.getProject();
+            var analysedAt = build.getAnalysedAt();
+            forEachValue(build.getMeasurements(), (metricKey, value) -> add(rollups, project, analysedAt, metricKey, value));
+        }
+
+        if ("PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())) {
+            try (var statement = connection.prepareStatement(UPSERT_ROLLUP_SQL)) {
+                for (var rollup : rollups.entrySet()) {
+                    bindRollup(statement, rollup.getKey(), rollup.getValue());
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+            }
+        } else {
+            updateOrInsert(connection, rollups);
+        }
+
+        updateCount.addAndGet(rollups.size());
+    }
+
+    private void updateOrInsert(Connection connection, Map<Key, Rollup> rollups) throws SQLException {
+        try (var update = connection.prepareStatement(UPDATE_ROLLUP_SQL)) {
+            try (var insert = connection.prepareStatement(INSERT_ROLLUP_SQL)) {
+                for (var entry : rollups.entrySet()) {
+                    var key = entry.getKey();
+                    var rollup = entry.getValue();
+                    bindUpdate(update, key, rollup);
+                    if (update.executeUpdate() == 0) {
+                        insertOrUpdate(insert, update, key, rollup);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert a rollup that didn't exist when it was updated.  If another
+     * transaction has inserted the rollup since then, the insert fails and
+     * the rollup of the other transaction is updated instead.  The failed
+     * insert only rolls back the statement, not the transaction.
+     */
+    private void insertOrUpdate(PreparedStatement insert, PreparedStatement update, Key key, Rollup rollup) throws SQLException {
+        bindRollup(insert, key, rollup);
+        try {
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            if (!SqlStates.isUniqueViolation(e) || update.executeUpdate() == 0) {
+                throw e;
+            }
+
+            logger.debug("Sonar Collector rollup {} {} of {} was inserted by another transaction, updated it instead", key.bucket().key(), key.metricKey(), key.project());
+        }
+    }
+
+    private void bindUpdate(PreparedStatement update, Key key, Rollup rollup) throws SQLException {
+        var lastTime = new Timestamp(rollup.lastTime);
+        update.setLong(1, rollup.count);
+        update.setDouble(2, rollup.min);
+        update.setDouble(3, rollup.min);
+        update.setDouble(4, rollup.max);
+        update.setDouble(5, rollup.max);
+        update.setDouble(6, rollup.sum);
+        update.setTimestamp(7, lastTime);
+        update.setDouble(8, rollup.last);
+        update.setTimestamp(9, lastTime);
+        update.setTimestamp(10, lastTime);
+        update.setString(11, key.project());
+        update.setString(12, key.bucket().key());
+        update.setInt(13, metrics.metricId(key.metricKey()));
+        update.setTimestamp(14, new Timestamp(key.bucketStart()));
+    }
+
+    /**
+     * Replace all rollups with rollups computed from the measures and
+     * measure_values tables, in a single transaction.  Measures inserted
+     * while the rebuild runs may be missing from the rebuilt rollups, so
+     * the rebuild should be run when no measures are written.
+     *
+     * @return the number of measures rows read, and rollups written
+     * @throws SQLException if reading the measures or writing the rollups fails
+     */
+    synchronized Result rebuild() throws SQLException {
+        var startedAt = System.nanoTime();
+        long measures = 0;
+        long written = 0;
+        try (var connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (var insert = connection.prepareStatement(INSERT_ROLLUP_SQL)) {
+                try (var delete = connection.prepareStatement(DELETE_ROLLUPS_SQL)) {
+                    delete.executeUpdate();
+                }
+
+                var rollups = new TreeMap<Key, Rollup>(KEY_ORDER);
+                try (var statement = connection.prepareStatement(REBUILD_MEASURES_SQL)) {
+                    try (var results = statement.executeQuery()) {
+                        while (results.next()) {
+                            written += writeIfNewProject(insert, rollups, results.getString(1));
+                            var project = results.getString(1);
+                            var analysedAt = results.getTimestamp(2).getTime();
+                            forEachValue(LatestMeasuresCache.readMeasurements(results, 3), (metricKey, value) -> add(rollups, project, analysedAt, metricKey, value));
+                            ++measures;
+                        }
+                    }
+                }
+
+                written += write(insert, rollups);
+                try (var statement = connection.prepareStatement(REBUILD_MEASURE_VALUES_SQL)) {
+                    try (var results = statement.executeQuery()) {
+                        while (results.next()) {
+                            var metricKey = results.getString(3);
+                            // The metrics with columns in the measures table have already been added
+                            if (Metric.fromKey(metricKey) == null) {
+                                written += writeIfNewProject(insert, rollups, results.getString(1));
+                                add(rollups, results.getString(1), results.getTimestamp(2).getTime(), metricKey, results.getDouble(4));
+                            }
+                        }
+                    }
+                }
+
+                written += write(insert, rollups);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+
+        var elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        logger.info("Sonar Collector rebuilt {} rollups from {} rows of measures in {} ms", written, measures, elapsedMillis);
+        return new Result(measures, written, elapsedMillis);
+    }
+
+    /**
+     * The rows are read in project order, so the rollups of a project are
+     * complete, and can be written, when the rows of the next project start.
+     */
+    private int writeIfNewProject(PreparedStatement insert, TreeMap<Key, Rollup> rollups, String project) throws SQLException {
+        if (rollups.isEmpty() || rollups.firstKey().project().equals(project)) {
+            return 0;
+        }
+
+        return write(insert, rollups);
+    }
+
+    private int write(PreparedStatement insert, TreeMap<Key, Rollup> rollups) throws SQLException {
+        if (rollups.isEmpty()) {
+            return 0;
+        }
+
+        for (var rollup : rollups.entrySet()) {
+            bindRollup(insert, rollup.getKey(), rollup.getValue());
+            insert.addBatch();
+        }
+
+        insert.executeBatch();
+        var written = rollups.size();
+        rollups.clear();
+        return written;
+    }
+
+    private void bindRollup(PreparedStatement statement, Key key, Rollup rollup) throws SQLException {
+        statement.setString(1, key.project());
+        statement.setString(2, key.bucket().key());
+        statement.setInt(3, metrics.metricId(key.metricKey()));
+        statement.setTimestamp(4, new Timestamp(key.bucketStart()));
+        statement.setLong(5, rollup.count);
+        statement.setDouble(6, rollup.min);
+        statement.setDouble(7, rollup.max);
+        statement.setDouble(8, rollup.sum);
+        statement.setDouble(9, rollup.last);
+        statement.setTimestamp(10, new Timestamp(rollup.lastTime));
+    }
+
+    private static void add(Map<Key, Rollup> rollups, String project, long analysedAt, String metricKey, double value) {
+        for (var bucket : Bucket.values()) {
+            rollups.computeIfAbsent(new Key(project, bucket, metricKey, bucket.start(analysedAt)), k -> new Rollup()).add(value, analysedAt);
+        }
+    }
+
+    /**
+     * The values of a build as they are stored in the measures table: all
+     * numbers, and the ratings that have a value.  Followed by the extra
+     * metrics that are numbers.
+     */
+    private static void forEachValue(Measurements measurements, ValueConsumer consumer) {
+        for (var metric : Metric.all()) {
+            switch (metric.type()) {
+                case LONG -> consumer.accept(metric.key(), measurements.getLong(metric));
+                case DOUBLE -> consumer.accept(metric.key(), measurements.getDouble(metric));
+                case RATING -> {
+                    var rating = measurements.getRating(metric);
+                    if (rating > 0) {
+                        consumer.accept(metric.key(), rating);
+                    }
+                }
+            }
+        }
+
+        for (var extra : measurements.getExtras().entrySet()) {
+            var value = Measurements.parseNumber(extra.getValue());
+            if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                consumer.accept(extra.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * @return the number of rollups updated or inserted when measures were inserted
+     */
+    long getUpdateCount() {
+        return updateCount.get();
+    }
+
+}
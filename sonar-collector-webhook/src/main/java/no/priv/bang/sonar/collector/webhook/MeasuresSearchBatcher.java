@@ -0,0 +1,200 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the requests for the measures of projects on the same Sonar
+ * server for a short window, and fetches the measures of all of them
+ * with a single request, instead of one request per project.
+ *
+ * A batch is fetched when the window of its first request has passed,
+ * or at once when it reaches the max batch size.  Projects missing
+ * from the response of a batch are fetched one at the time, so that
+ * the caller gets the same result (or failure) as without batching.
+ *
+ * Each request is completed with measures of its own, so that a caller
+ * can change its measures without changing the measures of other callers.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresSearchBatcher {
+    /**
+     * The max number of projectKeys of a single request to /api/measures/search.
+     */
+    static final int MAX_PROJECT_KEYS = 100;
+    private static final Executor VIRTUAL_THREADS = runnable -> Thread.ofVirtual().name("sonar-collector-measures-search").start(runnable);
+
+    /**
+     * Fetches the measures of one or more projects of a Sonar server.
+     */
+    @FunctionalInterface
+    interface MeasuresFetch {
+        CompletableFuture<Map<String, Measurements>> fetch(URI serverUrl, List<String> projectKeys, String metricKeysQueryParameter) throws IOException;
+    }
+
+    /**
+     * Requests can only share a batch when they are for the same server and the same metrics.
+     */
+    record BatchKey(URI serverUrl, String metricKeysQueryParameter) {}
+
+    private final MeasuresFetch fetch;
+    private final SonarCollectorConfiguration configuration;
+    private final Map<BatchKey, Map<String, List<CompletableFuture<Measurements>>>> pending = new HashMap<>();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedProjectCount = new AtomicLong();
+
+    MeasuresSearchBatcher(MeasuresFetch fetch, SonarCollectorConfiguration configuration) {
+        this.fetch = fetch;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Add a project to the pending batch of its server.
+     *
+     * @param serverUrl the Sonar server of the project
+     * @param projectKey the project to get the measures of
+     * @param metricKeysQueryParameter the comma separated metric keys to get
+     * @return a future that will complete with the measures of the project, when the batch has been fetched
+     */
+    CompletableFuture<Measurements> fetch(URI serverUrl, String projectKey, String metricKeysQueryParameter) {
+        var settings = configuration.snapshot();
+        var key = new BatchKey(serverUrl, metricKeysQueryParameter);
+        Map<String, List<CompletableFuture<Measurements>>> full = null;
+        CompletableFuture<Measurements> result;
+        synchronized (pending) {
+            var batch = pending.get(key);
+            if (batch == null) {
+                var created = new LinkedHashMap<String, List<CompletableFuture<Measurements>>>();
+                pending.put(key, created);
+                batch = created;
+                CompletableFuture.delayedExecutor(settings.getCallbacksBatchWindowMillis(), TimeUnit.MILLISECONDS, VIRTUAL_THREADS)
+                    .execute(() -> fetchWhenStillPending(key, created));
+            }
+
+            // Concurrent requests for the same project share a single fetch, since Sonar only has the measures of its latest analysis
+            result = new CompletableFuture<>();
+            batch.computeIfAbsent(projectKey, p -> new ArrayList<>()).add(result);
+            if (batch.size() >= Math.min(settings.getCallbacksBatchMaxSize(), MAX_PROJECT_KEYS)) {
+                pending.remove(key);
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            fetchBatch(key, full);
+        }
+
+        return result;
+    }
+
+    private void fetchWhenStillPending(BatchKey key, Map<String, List<CompletableFuture<Measurements>>> batch) {
+        synchronized (pending) {
+            if (!pending.remove(key, batch)) {
+                return; // Already fetched because the batch was full
+            }
+        }
+
+        fetchBatch(key, batch);
+    }
+
+    private void fetchBatch(BatchKey key, Map<String, List<CompletableFuture<Measurements>>> batch) {
+        var projectKeys = new ArrayList<>(batch.keySet());
+        if (projectKeys.size() > 1) {
+            batchCount.incrementAndGet();
+            batchedProjectCount.addAndGet(projectKeys.size());
+        }
+
+        fetchProjects(key, projectKeys).whenComplete((measurementsByProject, exception) -> {
+                for (var requests : batch.entrySet()) {
+                    if (exception != null) {
+                        requests.getValue().forEach(request -> request.completeExceptionally(exception));
+                        continue;
+                    }
+
+                    var measurements = measurementsByProject.get(requests.getKey());
+                    if (measurements != null) {
+                        complete(requests.getValue(), measurements);
+                    } else if (projectKeys.size() > 1) {
+                        fetchMissingProject(key, requests.getKey(), requests.getValue());
+                    } else {
+                        complete(requests.getValue(), new Measurements());
+                    }
+                }
+            });
+    }
+
+    private static void complete(List<CompletableFuture<Measurements>> requests, Measurements measurements) {
+        for (var i = 0; i < requests.size(); ++i) {
+            requests.get(i).complete(i == 0 ? measurements : measurements.copy());
+        }
+    }
+
+    /**
+     * A project without measures in the response of a batch is fetched alone, to
+     * get the same failure (e.g. an unknown project) as without batching.
+     */
+    private void fetchMissingProject(BatchKey key, String projectKey, List<CompletableFuture<Measurements>> requests) {
+        fetchProjects(key, List.of(projectKey)).whenComplete((measurementsByProject, exception) -> {
+                if (exception != null) {
+                    requests.forEach(request -> request.completeExceptionally(exception));
+                } else {
+                    complete(requests, measurementsByProject.getOrDefault(projectKey, new Measurements()));
+                }
+            });
+    }
+
+    private CompletableFuture<Map<String, Measurements>> fetchProjects(BatchKey key, List<String> projectKeys) {
+        try {
+            return fetch.fetch(key.serverUrl(), projectKeys, key.metricKeysQueryParameter());
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return the number of requests fetching the measures of more than one project
+     */
+    long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the number of project measures fetched by requests for more than one project
+     */
+    long getBatchedProjectCount() {
+        return batchedProjectCount.get();
+    }
+
+    int getPendingCount() {
+        synchronized (pending) {
+            return pending.values().stream().flatMap(batch -> batch.values().stream()).mapToInt(List::size).sum();
+        }
+    }
+
+}
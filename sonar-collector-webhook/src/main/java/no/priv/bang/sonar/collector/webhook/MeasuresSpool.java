@@ -0,0 +1,389 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * A local, append-only spool of {@link SonarBuild}s waiting to be written
+ * to the database, used when the database is unavailable.
+ *
+ * The spool is a sequence of memory-mapped segment files of a fixed size.
+ * Each segment starts with a header holding the position of the first
+ * record not yet written to the database, followed by the records.
+ * Each record is: the length of the payload, a CRC32 checksum, the time
+ * the record was spooled, and the payload.  A record with a bad checksum
+ * (e.g. a record that was being written when the process died) marks
+ * the end of a segment.
+ *
+ * Records that can't be written to the database can be moved out of the
+ * way, to files in the "quarantine" sub directory of the spool directory.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MeasuresSpool implements AutoCloseable {
+
+    /**
+     * A record of the spool.  The build is null if the payload of the record couldn't be decoded.
+     */
+    record SpooledBuild(SonarBuild build, long spooledAt, long segmentSequence, int startPosition, int endPosition) {}
+
+    private static final int MAGIC = 0x534f4e31; // "SON1"
+    private static final int READ_POSITION_OFFSET = 8;
+    private static final int DATA_START = 16;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "measures-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    static final String QUARANTINE_DIRECTORY = "quarantine";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final LoggerAdapter logger;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long pendingRecords;
+    private long pendingBytes;
+    private long spooledCount;
+    private long quarantinedCount;
+
+    private static class Segment {
+        final long sequence;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        Segment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    MeasuresSpool(Path directory, int segmentSize, LoggerAdapter logger) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.logger = logger;
+        Files.createDirectories(directory);
+        try (var files = Files.list(directory)) {
+            var existing = files
+                .filter(f -> f.getFileName().toString().startsWith(SEGMENT_PREFIX) && f.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .sorted()
+                .toList();
+            for (var path : existing) {
+                recoverSegment(path);
+            }
+        }
+    }
+
+    private void recoverSegment(Path path) throws IOException {
+        var name = path.getFileName().toString();
+        var sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        var size = (int) Math.max(Files.size(path), DATA_START);
+        var segment = mapSegment(sequence, path, size);
+        if (segment.buffer.getInt(0) != MAGIC) {
+            logger.warn("Sonar Collector ignoring spool segment {} with unknown format", path);
+            segment.channel.close();
+            return;
+        }
+
+        segment.readPosition = (int) segment.buffer.getLong(READ_POSITION_OFFSET);
+        var position = DATA_START;
+        var crc = new CRC32();
+        while (true) {
+            var length = recordLengthAt(segment, position);
+            if (length <= 0 || !checksumIsValid(segment, position, length, crc)) {
+                break;
+            }
+
+            if (position >= segment.readPosition) {
+                ++pendingRecords;
+                pendingBytes += RECORD_HEADER_SIZE + length;
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        segment.writePosition = position;
+        segment.readPosition = Math.min(Math.max(segment.readPosition, DATA_START), position);
+        segments.addLast(segment);
+    }
+
+    private static int recordLengthAt(Segment segment, int position) {
+        if (position + RECORD_HEADER_SIZE > segment.buffer.capacity()) {
+            return 0;
+        }
+
+        var length = segment.buffer.getInt(position);
+        return position + RECORD_HEADER_SIZE + length <= segment.buffer.capacity() ? length : 0;
+    }
+
+    private static boolean checksumIsValid(Segment segment, int position, int length, CRC32 crc) {
+        crc.reset();
+        crc.update(segment.buffer.slice(position + 8, 8 + length));
+        return (int) crc.getValue() == segment.buffer.getInt(position + 4);
+    }
+
+    /**
+     * Append a build to the spool, and force it to disk.
+     *
+     * @param build the build to spool
+     * @throws IOException if the build can't be written to the spool
+     */
+    synchronized void append(SonarBuild build) throws IOException {
+        var payload = serialize(build);
+        var recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize > segmentSize - DATA_START) {
+            throw new IOException("Sonar Collector measures of " + build.getProject() + " too large for the spool");
+        }
+
+        var segment = segments.peekLast();
+        if (segment == null || segment.writePosition + recordSize > segment.buffer.capacity()) {
+            segment = createSegment(segment != null ? segment.sequence + 1 : 1);
+        }
+
+        var position = segment.writePosition;
+        var buffer = segment.buffer;
+        buffer.putLong(position + 8, System.currentTimeMillis());
+        buffer.put(position + RECORD_HEADER_SIZE, payload);
+        var crc = new CRC32();
+        crc.update(buffer.slice(position + 8, 8 + payload.length));
+        buffer.putInt(position + 4, (int) crc.getValue());
+        var next = position + recordSize;
+        if (next + 4 <= buffer.capacity()) {
+            buffer.putInt(next, 0); // Don't let an old record after this one be read after a restart
+        }
+
+        // The length is written last, so that a record is only valid when completely written
+        buffer.putInt(position, payload.length);
+        buffer.force();
+        segment.writePosition = next;
+        ++pendingRecords;
+        pendingBytes += recordSize;
+        ++spooledCount;
+    }
+
+    /**
+     * Read the oldest builds in the spool, without removing them from the spool.
+     * A record that can't be decoded is returned with a null build, so that it
+     * can be quarantined instead of blocking the records after it.
+     *
+     * @param maxBuilds the max number of builds to read
+     * @return the oldest builds in the spool, in the order they were spooled
+     */
+    synchronized List<SpooledBuild> peek(int maxBuilds) {
+        var builds = new ArrayList<SpooledBuild>();
+        for (var segment : segments) {
+            var position = segment.readPosition;
+            while (builds.size() < maxBuilds && position < segment.writePosition) {
+                var start = position;
+                var length = segment.buffer.getInt(position);
+                var spooledAt = segment.buffer.getLong(position + 8);
+                var payload = new byte[length];
+                segment.buffer.get(position + RECORD_HEADER_SIZE, payload);
+                position += RECORD_HEADER_SIZE + length;
+                builds.add(new SpooledBuild(decode(segment, start, payload), spooledAt, segment.sequence, start, position));
+            }
+
+            if (builds.size() >= maxBuilds) {
+                break;
+            }
+        }
+
+        return builds;
+    }
+
+    /**
+     * Remove builds that have been written to the database from the spool.
+     * Segments that have been completely written to the database are deleted.
+     *
+     * @param builds builds returned by {@link #peek(int)}, in the same order
+     * @throws IOException if a segment can't be updated or deleted
+     */
+    synchronized void remove(List<SpooledBuild> builds) throws IOException {
+        for (var build : builds) {
+            for (var segment : segments) {
+                if (segment.sequence == build.segmentSequence() && build.endPosition() > segment.readPosition) {
+                    pendingRecords -= 1;
+                    pendingBytes -= build.endPosition() - segment.readPosition;
+                    segment.readPosition = build.endPosition();
+                }
+            }
+        }
+
+        for (var segment : segments) {
+            segment.buffer.putLong(READ_POSITION_OFFSET, segment.readPosition);
+            segment.buffer.force();
+        }
+
+        while (segments.size() > 1 && segments.peekFirst().readPosition >= segments.peekFirst().writePosition) {
+            var drained = segments.removeFirst();
+            drained.channel.close();
+            Files.deleteIfExists(drained.path);
+        }
+    }
+
+    private SonarBuild decode(Segment segment, int position, byte[] payload) {
+        try {
+            return deserialize(payload);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Sonar Collector unable to decode the record at position {} of spool segment {}", position, segment.path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Move a record that can't be written to the database out of the spool,
+     * to a file of its own in the quarantine directory.
+     *
+     * @param build a record returned by {@link #peek(int)}, that must be the oldest record in the spool
+     * @return the file holding the payload of the record
+     * @throws IOException if the record can't be written to the quarantine directory or removed from the spool
+     */
+    synchronized Path quarantine(SpooledBuild build) throws IOException {
+        var segment = segments.stream().filter(s -> s.sequence == build.segmentSequence()).findFirst()
+            .orElseThrow(() -> new IOException("Sonar Collector spool segment " + build.segmentSequence() + " not found"));
+        var payload = new byte[build.endPosition() - build.startPosition() - RECORD_HEADER_SIZE];
+        segment.buffer.get(build.startPosition() + RECORD_HEADER_SIZE, payload);
+        var quarantineDirectory = Files.createDirectories(directory.resolve(QUARANTINE_DIRECTORY));
+        var file = quarantineDirectory.resolve(String.format("%s%019d-%010d.record", SEGMENT_PREFIX, build.segmentSequence(), build.startPosition()));
+        Files.write(file, payload);
+        remove(List.of(build));
+        ++quarantinedCount;
+        return file;
+    }
+
+    synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return the number of builds spooled since the spool was opened
+     */
+    synchronized long getSpooledCount() {
+        return spooledCount;
+    }
+
+    /**
+     * @return the number of records moved to the quarantine directory since the spool was opened
+     */
+    synchronized long getQuarantinedCount() {
+        return quarantinedCount;
+    }
+
+    /**
+     * @return the time in milliseconds since the oldest build in the spool was spooled, or 0 if the spool is empty
+     */
+    synchronized long getOldestRecordAgeMillis() {
+        for (var segment : segments) {
+            if (segment.readPosition < segment.writePosition) {
+                return Math.max(0, System.currentTimeMillis() - segment.buffer.getLong(segment.readPosition + 8));
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (var segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+
+        segments.clear();
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        var path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        var segment = mapSegment(sequence, path, segmentSize);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putLong(READ_POSITION_OFFSET, DATA_START);
+        segment.buffer.putInt(DATA_START, 0);
+        segment.buffer.force();
+        segment.readPosition = DATA_START;
+        segment.writePosition = DATA_START;
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private static Segment mapSegment(long sequence, Path path, int size) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new Segment(sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static byte[] serialize(SonarBuild build) throws IOException {
+        var bytes = new ByteArrayOutputStream(512);
+        try (var output = new DataOutputStream(bytes)) {
+            output.writeLong(build.getAnalysedAt());
+            output.writeUTF(build.getProject());
+            output.writeUTF(build.getVersion());
+            output.writeUTF(build.getServerUrl().toString());
+            output.writeBoolean(build.getAnalysisId() != null);
+            if (build.getAnalysisId() != null) {
+                output.writeUTF(build.getAnalysisId());
+            }
+
+            build.getMeasurements().writeTo(output);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static SonarBuild deserialize(byte[] payload) throws IOException {
+        try (var input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            var analysedAt = input.readLong();
+            var project = input.readUTF();
+            var version = input.readUTF();
+            var serverUrl = new URI(input.readUTF());
+            var analysisId = input.readBoolean() ? input.readUTF() : null;
+            var measurements = Measurements.readFrom(input);
+            return new SonarBuild(analysedAt, project, version, serverUrl, analysisId, measurements);
+        } catch (URISyntaxException e) {
+            throw new IOException("Sonar Collector found a bad server URL in the spool", e);
+        }
+    }
+
+}
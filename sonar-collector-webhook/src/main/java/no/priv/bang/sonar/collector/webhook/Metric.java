@@ -0,0 +1,97 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Sonar metrics stored in the columns of the measures table, in column order.
+ *
+ * Each metric has a slot in the array of its type in {@link Measurements}.
+ *
+ * @author Steinar Bang
+ *
+ */
+enum Metric {
+    LINES("lines", Type.LONG, 0),
+    BUGS("bugs", Type.LONG, 1),
+    NEW_BUGS("new_bugs", Type.LONG, 2),
+    VULNERABILITIES("vulnerabilities", Type.LONG, 3),
+    NEW_VULNERABILITIES("new_vulnerabilities", Type.LONG, 4),
+    CODE_SMELLS("code_smells", Type.LONG, 5),
+    NEW_CODE_SMELLS("new_code_smells", Type.LONG, 6),
+    COVERAGE("coverage", Type.DOUBLE, 0),
+    NEW_COVERAGE("new_coverage", Type.DOUBLE, 1),
+    COMPLEXITY("complexity", Type.LONG, 7),
+    SQALE_RATING("sqale_rating", Type.RATING, 0),
+    NEW_MAINTAINABILITY_RATING("new_maintainability_rating", Type.RATING, 1),
+    SECURITY_RATING("security_rating", Type.RATING, 2),
+    NEW_SECURITY_RATING("new_security_rating", Type.RATING, 3),
+    RELIABILITY_RATING("reliability_rating", Type.RATING, 4),
+    NEW_RELIABILITY_RATING("new_reliability_rating", Type.RATING, 5);
+
+    enum Type { LONG, DOUBLE, RATING }
+
+    static final int NUMBER_OF_LONGS = 8;
+    static final int NUMBER_OF_DOUBLES = 2;
+    static final int NUMBER_OF_RATINGS = 6;
+    private static final Metric[] METRICS = values();
+    private static final Map<String, Metric> METRICS_BY_KEY = new HashMap<>();
+    static {
+        for (var metric : METRICS) {
+            METRICS_BY_KEY.put(metric.key, metric);
+        }
+    }
+
+    private final String key;
+    private final Type type;
+    private final int slot;
+
+    private Metric(String key, Type type, int slot) {
+        this.key = key;
+        this.type = type;
+        this.slot = slot;
+    }
+
+    String key() {
+        return key;
+    }
+
+    Type type() {
+        return type;
+    }
+
+    int slot() {
+        return slot;
+    }
+
+    /**
+     * @param key a Sonar metric key
+     * @return the metric with the key, or null if the metric isn't stored in a column of its own
+     */
+    static Metric fromKey(String key) {
+        return METRICS_BY_KEY.get(key);
+    }
+
+    /**
+     * @return all metrics, in column order. The array is shared and must not be modified
+     */
+    static Metric[] all() {
+        return METRICS;
+    }
+
+}
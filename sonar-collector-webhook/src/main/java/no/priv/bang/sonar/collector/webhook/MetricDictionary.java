@@ -0,0 +1,93 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+/**
+ * The small integer ids of the Sonar metric keys in the metrics table,
+ * used by the measure_values and measure_rollups tables.
+ *
+ * The ids are cached.  New metrics are added to the metrics table on a
+ * connection of their own, so that a metric added by a transaction that
+ * is rolled back is kept.
+ *
+ * @author Steinar Bang
+ *
+ */
+class MetricDictionary {
+
+    static final String FIND_METRIC_SQL = "select id from metrics where metric_key=?";
+    static final String INSERT_METRIC_SQL = "insert into metrics (metric_key) values (?)";
+    private final DataSource dataSource;
+    private final ConcurrentHashMap<String, Integer> metricIds = new ConcurrentHashMap<>();
+
+    MetricDictionary(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Find the id of a metric, adding the metric to the metrics table if it isn't there.
+     *
+     * @param metricKey the Sonar key of a metric
+     * @return the id of the metric in the metrics table
+     * @throws SQLException if the metric can't be found or added
+     */
+    int metricId(String metricKey) throws SQLException {
+        var id = metricIds.get(metricKey);
+        if (id != null) {
+            return id;
+        }
+
+        try (var connection = dataSource.getConnection()) {
+            id = findMetric(connection, metricKey);
+            if (id == null) {
+                try (var statement = connection.prepareStatement(INSERT_METRIC_SQL)) {
+                    statement.setString(1, metricKey);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    // Another writer added the metric first
+                    if (!SqlStates.isUniqueViolation(e)) {
+                        throw e;
+                    }
+                }
+
+                id = findMetric(connection, metricKey);
+            }
+        }
+
+        if (id == null) {
+            throw new SQLException(String.format("Unable to add metric \"%s\" to the metrics table", metricKey));
+        }
+
+        metricIds.put(metricKey, id);
+        return id;
+    }
+
+    private static Integer findMetric(Connection connection, String metricKey) throws SQLException {
+        try (var statement = connection.prepareStatement(FIND_METRIC_SQL)) {
+            statement.setString(1, metricKey);
+            try (var results = statement.executeQuery()) {
+                return results.next() ? results.getInt(1) : null;
+            }
+        }
+    }
+
+}
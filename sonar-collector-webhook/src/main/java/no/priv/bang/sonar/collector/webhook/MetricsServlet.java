@@ -0,0 +1,55 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+/**
+ * Exposes the {@link PipelineMetrics} of the collector in the OpenMetrics
+ * text format, on an alias of its own so that access to the metrics can be
+ * configured separately from access to the webhook.
+ *
+ * @author Steinar Bang
+ *
+ */
+@Component(service={Servlet.class}, property={"alias=/sonar-collector-metrics"} )
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 2961350457839182504L;
+    private transient PipelineMetrics pipelineMetrics;
+
+    @Reference
+    public void setPipelineMetrics(PipelineMetrics pipelineMetrics) {
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(200);
+        response.setContentType(PipelineMetrics.CONTENT_TYPE);
+        var writer = response.getWriter();
+        pipelineMetrics.write(writer);
+        writer.flush();
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.osgi.service.component.annotations.Component;
+
+/**
+ * Counters and histograms of the webhook pipeline, shared by the
+ * {@link SonarCollectorServlet} that records them and the
+ * {@link MetricsServlet} that exposes them in the OpenMetrics text format.
+ * (These are metrics of the collector itself, not to be confused with the
+ * Sonar metrics that are collected.)
+ *
+ * Recording a value is lock-free: each histogram bucket and counter is a
+ * {@link LongAdder}, and the cumulative bucket counts are computed when the
+ * metrics are written.
+ *
+ * @author Steinar Bang
+ *
+ */
+@Component(service=PipelineMetrics.class, immediate=true)
+public class PipelineMetrics {
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    static final double[] LATENCY_BUCKETS_SECONDS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+    static final double[] SIZE_BUCKETS_BYTES = { 256, 1024, 4096, 16384, 65536, 262144, 1048576 };
+    static final String SUCCESS = "success";
+    static final String FAILURE = "failure";
+    // The server URLs come from the webhook payloads, so the number of label values must be limited
+    static final int MAX_SERVERS = 64;
+    static final String OTHER_SERVERS = "other";
+
+    /**
+     * A histogram with fixed bucket upper bounds.
+     */
+    static class Histogram {
+        private final double[] upperBounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] upperBounds) {
+            this.upperBounds = upperBounds;
+            this.buckets = new LongAdder[upperBounds.length];
+            for (var i = 0; i < buckets.length; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            for (var i = 0; i < upperBounds.length; ++i) {
+                if (value <= upperBounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Record the time since a start time, in seconds.
+         *
+         * @param startNanos a start time from {@link System#nanoTime()}
+         */
+        void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getSum() {
+            return sum.sum();
+        }
+
+        void write(Writer writer, String name) throws IOException {
+            long cumulative = 0;
+            for (var i = 0; i < upperBounds.length; ++i) {
+                cumulative += buckets[i].sum();
+                writer.write(name + "_bucket{le=\"" + formatNumber(upperBounds[i]) + "\"} " + cumulative + "\n");
+            }
+
+            // Read the count after the buckets, so that the +Inf bucket is never less than the other buckets
+            var total = Math.max(cumulative, count.sum());
+            writer.write(name + "_bucket{le=\"+Inf\"} " + total + "\n");
+            writer.write(name + "_count " + total + "\n");
+            writer.write(name + "_sum " + formatNumber(sum.sum()) + "\n");
+        }
+    }
+
+    private record Family(String help, String type, String unit) {}
+
+    final Histogram webhookDecode = new Histogram(LATENCY_BUCKETS_SECONDS);
+    final Histogram componentsShowCallback = new Histogram(LATENCY_BUCKETS_SECONDS);
+    final Histogram measuresCallback = new Histogram(LATENCY_BUCKETS_SECONDS);
+    final Histogram measuresDecode = new Histogram(LATENCY_BUCKETS_SECONDS);
+    final Histogram databaseInsert = new Histogram(LATENCY_BUCKETS_SECONDS);
+    final Histogram payloadSize = new Histogram(SIZE_BUCKETS_BYTES);
+    private final LongAdder decodeFailures = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> webhookResults = new ConcurrentHashMap<>();
+    private final Map<String, Family> suppliedFamilies = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> suppliers = new ConcurrentHashMap<>();
+
+    /**
+     * @param contentLength the Content-Length of a webhook call, or a negative number if the length isn't known
+     */
+    void observePayloadSize(long contentLength) {
+        if (contentLength >= 0) {
+            payloadSize.observe(contentLength);
+        }
+    }
+
+    void decodeFailed() {
+        decodeFailures.increment();
+    }
+
+    void webhookSucceeded(String serverUrl) {
+        webhookResult(serverUrl, SUCCESS).increment();
+    }
+
+    void webhookFailed(String serverUrl) {
+        webhookResult(serverUrl, FAILURE).increment();
+    }
+
+    long getWebhookResultCount(String serverUrl, String result) {
+        var counter = webhookResults.get(labels(serverUrl, result));
+        return counter != null ? counter.sum() : 0;
+    }
+
+    private LongAdder webhookResult(String serverUrl, String result) {
+        var key = labels(serverUrl, result);
+        var counter = webhookResults.get(key);
+        if (counter != null) {
+            return counter;
+        }
+
+        if (webhookResults.size() >= MAX_SERVERS * 2) {
+            key = labels(OTHER_SERVERS, result);
+        }
+
+        return webhookResults.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    private static String labels(String serverUrl, String result) {
+        return "server=\"" + escapeLabelValue(serverUrl) + "\",result=\"" + result + "\"";
+    }
+
+    /**
+     * Expose a value kept by one of the pipeline stages, e.g. the depth of
+     * the queue.  A value registered again with the same name replaces the
+     * old one.
+     *
+     * @param name the metric name, without "_total" for counters
+     * @param help the description of the metric
+     * @param counter true for a counter, false for a gauge
+     * @param value reads the current value
+     */
+    synchronized void register(String name, String help, boolean counter, LongSupplier value) {
+        suppliers.put(name, value);
+        suppliedFamilies.put(name, new Family(help, counter ? "counter" : "gauge", null));
+    }
+
+    /**
+     * Stop exposing a value registered with {@link #register}.  Nothing is
+     * removed if the value has been replaced by a value registered later,
+     * e.g. by a component activated before the old one was deactivated.
+     *
+     * @param name the metric name the value was registered with
+     * @param value the value that was registered
+     */
+    synchronized void unregister(String name, LongSupplier value) {
+        if (suppliers.remove(name, value)) {
+            suppliedFamilies.remove(name);
+        }
+    }
+
+    /**
+     * Write all metrics in the OpenMetrics text format.
+     *
+     * @param writer where the metrics are written
+     * @throws IOException if writing fails
+     */
+    void write(Writer writer) throws IOException {
+        writeHistogram(writer, "sonar_collector_webhook_decode_seconds", "Time used to decode the payload of a webhook call", "seconds", webhookDecode);
+        writeHistogram(writer, "sonar_collector_components_show_callback_seconds", "Time used by the api/components/show callback to Sonar", "seconds", componentsShowCallback);
+        writeHistogram(writer, "sonar_collector_measures_callback_seconds", "Time used by the api/measures/component and api/measures/search callbacks to Sonar", "seconds", measuresCallback);
+        writeHistogram(writer, "sonar_collector_measures_decode_seconds", "Time used to decode the measures from Sonar, including the conversion of the ratings", "seconds", measuresDecode);
+        writeHistogram(writer, "sonar_collector_database_insert_seconds", "Time used to store the measures of a webhook call", "seconds", databaseInsert);
+        writeHistogram(writer, "sonar_collector_webhook_payload_bytes", "Content-Length of the webhook calls", "bytes", payloadSize);
+
+        writeMetadata(writer, "sonar_collector_webhook_decode_failures", "Webhook calls with a payload that couldn't be decoded", "counter", null);
+        writer.write("sonar_collector_webhook_decode_failures_total " + decodeFailures.sum() + "\n");
+        writeMetadata(writer, "sonar_collector_webhooks", "Webhook calls processed, by Sonar server and result", "counter", null);
+        for (var result : new TreeMap<>(webhookResults).entrySet()) {
+            writer.write("sonar_collector_webhooks_total{" + result.getKey() + "} " + result.getValue().sum() + "\n");
+        }
+
+        for (var family : suppliedFamilies.entrySet()) {
+            var name = family.getKey();
+            var value = suppliers.get(name);
+            if (value != null) {
+                writeMetadata(writer, name, family.getValue().help(), family.getValue().type(), null);
+                var sampleName = "counter".equals(family.getValue().type()) ? name + "_total" : name;
+                writer.write(sampleName + " " + value.getAsLong() + "\n");
+            }
+        }
+
+        writer.write("# EOF\n");
+    }
+
+    private static void writeHistogram(Writer writer, String name, String help, String unit, Histogram histogram) throws IOException {
+        writeMetadata(writer, name, help, "histogram", unit);
+        histogram.write(writer, name);
+    }
+
+    private static void writeMetadata(Writer writer, String name, String help, String type, String unit) throws IOException {
+        writer.write("# TYPE " + name + " " + type + "\n");
+        if (unit != null) {
+            writer.write("# UNIT " + name + " " + unit + "\n");
+        }
+
+        writer.write("# HELP " + name + " " + help + "\n");
+    }
+
+    static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value) + ".0";
+        }
+
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
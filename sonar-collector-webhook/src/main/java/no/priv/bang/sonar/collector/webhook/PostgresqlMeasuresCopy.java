@@ -0,0 +1,266 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringJoiner;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Streams measures into the measures table with PostgreSQL "COPY FROM STDIN",
+ * using the CopyManager of the PostgreSQL JDBC driver.
+ *
+ * The rows are formatted as CSV in the column order of
+ * {@link SonarCollectorServlet#MEASURES_COLUMNS} and sent to the server in
+ * chunks, so that the size of the imported file doesn't matter.
+ *
+ * COPY can't skip rows that violate a unique constraint, so the rows are
+ * copied into a temporary table, and moved from there to the measures table
+ * with "insert ... on conflict do nothing".  Analyses that have already
+ * been stored are skipped, like with the batched inserts, instead of failing
+ * the whole import.  Everything is done in a single transaction, and the
+ * temporary table is dropped on commit.
+ *
+ * The copied rows get their ids from the sequence of the measures table
+ * while in the temporary table, so that the measure_values and the rollups
+ * of the inserted rows can be filled from the temporary table, in the same
+ * transaction.  Metrics without a value are NULL in the temporary table, so
+ * that the measure_values only get the metrics that were imported, like with
+ * the batched inserts.
+ *
+ * @author Steinar Bang
+ *
+ */
+class PostgresqlMeasuresCopy implements MeasuresImporter.MeasuresSink {
+
+    static final String CREATE_IMPORT_TABLE_SQL = "create temporary table measures_import on commit drop as select " + SonarCollectorServlet.MEASURES_COLUMNS + " from measures with no data";
+    static final String ADD_MEASURE_ID_SQL = "alter table measures_import add column measure_id bigint default nextval(pg_get_serial_sequence('measures', 'id'))";
+    static final String COPY_MEASURES_SQL = "COPY measures_import (" + SonarCollectorServlet.MEASURES_COLUMNS + ") FROM STDIN WITH (FORMAT csv)";
+    static final String MOVE_IMPORTED_MEASURES_SQL = "with inserted as (insert into measures (id, " + SonarCollectorServlet.MEASURES_COLUMNS + ") select measure_id, project_key, version, version_is_release, analysis_time, " + metricColumns(true) + ", analysis_id from measures_import on conflict do nothing returning id) " +
+        "delete from measures_import i where not exists (select 1 from inserted where inserted.id = i.measure_id)";
+    static final String READ_IMPORTED_MEASURES_SQL = "select measure_id, project_key, version, analysis_time, " + metricColumns(false) + ", analysis_id from measures_import order by measure_id";
+    private static final int CHUNK_SIZE = 65536;
+    private static final URI UNKNOWN_SERVER = URI.create("");
+    private final Connection connection;
+    private final MeasureValuesWriter measureValues;
+    private final MeasuresRollups rollups;
+    private final int batchSize;
+    private final boolean autoCommit;
+    private final CopyIn copyIn;
+    private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 1024);
+    private long skippedCount;
+
+    /**
+     * @param measureValues writes the measure_values of the inserted rows, or null if they aren't kept
+     * @param rollups updates the rollups with the inserted rows, or null if they aren't kept
+     * @param batchSize the number of inserted rows read back at a time, to fill the measure_values and the rollups
+     */
+    PostgresqlMeasuresCopy(Connection connection, MeasureValuesWriter measureValues, MeasuresRollups rollups, int batchSize) throws SQLException {
+        this.connection = connection;
+        this.measureValues = measureValues;
+        this.rollups = rollups;
+        this.batchSize = Math.max(1, batchSize);
+        this.autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (var statement = connection.createStatement()) {
+            statement.execute(CREATE_IMPORT_TABLE_SQL);
+            statement.execute(ADD_MEASURE_ID_SQL);
+            this.copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_MEASURES_SQL);
+        } catch (SQLException e) {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+            throw e;
+        }
+    }
+
+    @Override
+    public void add(SonarBuild build) throws SQLException {
+        appendCsvLine(chunk, build);
+        if (chunk.length() >= CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+    @Override
+    public void finish() throws SQLException {
+        flush();
+        copyIn.endCopy();
+        try (var statement = connection.createStatement()) {
+            // Leaves only the inserted rows in the temporary table
+            skippedCount = statement.executeUpdate(MOVE_IMPORTED_MEASURES_SQL);
+        }
+
+        if (measureValues != null || rollups != null) {
+            fillFromInsertedRows();
+        }
+
+        connection.commit();
+        connection.setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public void abort() {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            // The copy is failed anyway, and the first failure is the one reported
+        }
+    }
+
+    /**
+     * @return the number of copied rows that weren't inserted because their analysis had already been stored
+     */
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    private void fillFromInsertedRows() throws SQLException {
+        try (var statement = connection.prepareStatement(READ_IMPORTED_MEASURES_SQL)) {
+            statement.setFetchSize(batchSize);
+            try (var results = statement.executeQuery()) {
+                var builds = new ArrayList<SonarBuild>(batchSize);
+                var ids = new long[batchSize];
+                while (results.next()) {
+                    ids[builds.size()] = results.getLong(1);
+                    builds.add(readInsertedBuild(results));
+                    if (builds.size() == batchSize) {
+                        fill(builds, ids);
+                        builds.clear();
+                    }
+                }
+
+                if (!builds.isEmpty()) {
+                    fill(builds, Arrays.copyOf(ids, builds.size()));
+                }
+            }
+        }
+    }
+
+    private void fill(List<SonarBuild> builds, long[] ids) throws SQLException {
+        if (measureValues != null) {
+            measureValues.write(connection, builds, ids);
+        }
+
+        if (rollups != null) {
+            rollups.update(connection, builds);
+        }
+    }
+
+    /**
+     * Read a row of {@link #READ_IMPORTED_MEASURES_SQL} back into a build, with only the metrics that had a value.
+     */
+    static SonarBuild readInsertedBuild(ResultSet results) throws SQLException {
+        var measurements = new Measurements();
+        var column = 5;
+        for (var metric : Metric.all()) {
+            if (metric.type() == Metric.Type.RATING) {
+                var rating = results.getString(column);
+                if (rating != null && !rating.isEmpty()) {
+                    measurements.set(metric, Measurements.ratingNumber(rating));
+                }
+            } else if (results.getObject(column) instanceof Number value) {
+                measurements.set(metric, value.doubleValue());
+            }
+
+            ++column;
+        }
+
+        return new SonarBuild(results.getTimestamp(4).getTime(), results.getString(2), results.getString(3), UNKNOWN_SERVER, results.getString(column), measurements);
+    }
+
+    /**
+     * @param defaults true to replace missing numbers with 0, like the batched inserts do
+     * @return the metric columns of the measures table, in the order of {@link Metric}
+     */
+    private static String metricColumns(boolean defaults) {
+        var columns = new StringJoiner(", ");
+        for (var metric : Metric.all()) {
+            columns.add(defaults && metric.type() != Metric.Type.RATING ? "coalesce(" + metric.key() + ", 0)" : metric.key());
+        }
+
+        return columns.toString();
+    }
+
+    private void flush() throws SQLException {
+        if (!chunk.isEmpty()) {
+            var bytes = chunk.toString().getBytes(UTF_8);
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            chunk.setLength(0);
+        }
+    }
+
+    /**
+     * Format a build as a CSV line with the same values as
+     * {@link SonarCollectorServlet#bindMeasures(java.sql.PreparedStatement, SonarBuild)},
+     * except for numbers without a value, that are NULL until the row is moved
+     * to the measures table.  Strings are always quoted, because an unquoted
+     * empty value is NULL to COPY.
+     */
+    static void appendCsvLine(StringBuilder line, SonarBuild build) {
+        appendQuoted(line, build.getProject()).append(',');
+        appendQuoted(line, build.getVersion()).append(',');
+        line.append(SonarCollectorServlet.isReleaseVersion(build.getVersion())).append(',');
+        line.append(new Timestamp(build.getAnalysedAt()));
+        var measurements = build.getMeasurements();
+        for (var metric : Metric.all()) {
+            line.append(',');
+            // A number without a value is left empty, which is NULL to COPY
+            switch (metric.type()) {
+                case LONG -> line.append(measurements.has(metric) ? Long.toString(measurements.getLong(metric)) : "");
+                case DOUBLE -> line.append(measurements.has(metric) ? Double.toString(measurements.getDouble(metric)) : "");
+                case RATING -> appendQuoted(line, measurements.getRatingLetter(metric));
+            }
+        }
+
+        line.append(',');
+        if (build.getAnalysisId() != null) {
+            appendQuoted(line, build.getAnalysisId());
+        }
+
+        line.append('\n');
+    }
+
+    private static StringBuilder appendQuoted(StringBuilder line, String value) {
+        line.append('"');
+        for (var i = 0; i < value.length(); ++i) {
+            var c = value.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+
+            line.append(c);
+        }
+
+        return line.append('"');
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import no.priv.bang.sonar.collector.webhook.SonarServers.CallRejectedException;
+
+/**
+ * A {@link SonarApiClient} that retries failed calls to Sonar, and
+ * hedges slow calls, following the {@link CallbackPolicy} of the
+ * current configuration.
+ *
+ * All of the calls to the Sonar web API are GETs, so a call can
+ * safely be done more than once.
+ *
+ * <ul>
+ * <li>A call that fails with a timeout, a broken connection, or a 5xx or 429 status, is retried after a delay drawn at random between 0 and an exponentially growing max delay</li>
+ * <li>When hedging is enabled, a second identical call is sent if the first call hasn't completed after a percentile of the recent response times of the same API on the same server, and the first response wins</li>
+ * </ul>
+ *
+ * Calls rejected by the bulkhead or circuit breaker of {@link SonarServers}
+ * are not retried.
+ *
+ * @author Steinar Bang
+ *
+ */
+class ResilientSonarApiClient implements SonarApiClient {
+
+    // The server URLs come from the webhook payloads, so only this many servers and APIs have their response times tracked
+    static final int MAX_TRACKED_APIS = 256;
+    static final int LATENCY_WINDOW_SIZE = 128;
+    static final int MIN_LATENCY_SAMPLES = 20;
+    private static final Executor VIRTUAL_THREADS = runnable -> Thread.ofVirtual().name("sonar-collector-callback").start(runnable);
+
+    private final SonarApiClient client;
+    private final SonarCollectorConfiguration configuration;
+    private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * The response times of the most recent successful calls to an API.
+     * Only updated once per call, so the methods are synchronized.
+     */
+    static class LatencyWindow {
+        private final long[] nanos = new long[LATENCY_WINDOW_SIZE];
+        private int next;
+        private int size;
+
+        synchronized void record(long elapsedNanos) {
+            nanos[next] = elapsedNanos;
+            next = (next + 1) % nanos.length;
+            size = Math.min(size + 1, nanos.length);
+        }
+
+        /**
+         * @param percentile a percentile between 1 and 100
+         * @return the response time at the percentile, in milliseconds, or -1 if there are too few samples
+         */
+        synchronized long percentileMillis(int percentile) {
+            if (size < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+
+            var sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            var rank = (int) Math.ceil(Math.clamp(percentile, 1, 100) / 100.0 * size);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[rank - 1]);
+        }
+    }
+
+    /**
+     * The race between a call and its hedge.  The first successful
+     * response completes the result, and the call fails only when
+     * all of the calls sent have failed.
+     */
+    private class HedgedCall {
+        private final CompletableFuture<InputStream> result = new CompletableFuture<>();
+        private int started;
+        private int failed;
+        private Throwable firstFailure;
+
+        synchronized boolean startHedge() {
+            if (result.isDone()) {
+                return false;
+            }
+
+            ++started;
+            return true;
+        }
+
+        void add(CompletableFuture<InputStream> call, boolean hedge) {
+            call.whenComplete((body, failure) -> onComplete(body, failure, hedge));
+        }
+
+        private synchronized void onComplete(InputStream body, Throwable failure, boolean hedge) {
+            if (failure == null) {
+                if (result.isDone()) {
+                    closeQuietly(body);
+                    return;
+                }
+
+                // Counted before the result is completed, so that the count is up to date when the caller gets the response
+                if (hedge) {
+                    hedgeWins.increment();
+                }
+
+                result.complete(body);
+                return;
+            }
+
+            ++failed;
+            if (firstFailure == null) {
+                firstFailure = failure;
+            }
+
+            if (failed == started) {
+                result.completeExceptionally(firstFailure);
+            }
+        }
+    }
+
+    ResilientSonarApiClient(SonarApiClient client, SonarCollectorConfiguration configuration) {
+        this.client = client;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> get(URI url) {
+        var policy = configuration.snapshot().getCallbackPolicy();
+        var result = new CompletableFuture<InputStream>();
+        attempt(url, policy, 0, result);
+        return result;
+    }
+
+    private void attempt(URI url, CallbackPolicy policy, int retry, CompletableFuture<InputStream> result) {
+        hedgedGet(url, policy).whenComplete((body, failure) -> {
+            if (failure == null) {
+                if (!result.complete(body)) {
+                    closeQuietly(body);
+                }
+            } else if (retry < policy.maxRetries() && isRetryable(failure) && !result.isDone()) {
+                retries.increment();
+                var delay = ThreadLocalRandom.current().nextLong(policy.maxBackoffMillis(retry) + 1);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, VIRTUAL_THREADS)
+                    .execute(() -> attempt(url, policy, retry + 1, result));
+            } else {
+                result.completeExceptionally(unwrap(failure));
+            }
+        });
+    }
+
+    private CompletableFuture<InputStream> hedgedGet(URI url, CallbackPolicy policy) {
+        var window = latencyWindowFor(url);
+        var hedgeDelayMillis = policy.hedgingEnabled() && window != null ? window.percentileMillis(policy.hedgingPercentile()) : -1;
+        if (hedgeDelayMillis < 0) {
+            return timedGet(url, window);
+        }
+
+        // The calls are started on virtual threads, since a blocking client would otherwise complete the first call before the hedge could be sent
+        var call = new HedgedCall();
+        call.startHedge();
+        call.add(CompletableFuture.supplyAsync(() -> timedGet(url, window), VIRTUAL_THREADS).thenCompose(Function.identity()), false);
+        CompletableFuture.delayedExecutor(Math.max(hedgeDelayMillis, policy.hedgingMinDelayMillis()), TimeUnit.MILLISECONDS, VIRTUAL_THREADS)
+            .execute(() -> {
+                if (call.startHedge()) {
+                    hedges.increment();
+                    call.add(timedGet(url, window), true);
+                }
+            });
+        return call.result;
+    }
+
+    private CompletableFuture<InputStream> timedGet(URI url, LatencyWindow window) {
+        var startTime = System.nanoTime();
+        CompletableFuture<InputStream> call;
+        try {
+            call = client.get(url);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (window == null) {
+            return call;
+        }
+
+        return call.whenComplete((body, failure) -> {
+            if (failure == null) {
+                window.record(System.nanoTime() - startTime);
+            }
+        });
+    }
+
+    LatencyWindow latencyWindowFor(URI url) {
+        var key = SonarServerSettings.serverKey(url) + url.getRawPath();
+        var window = latencies.get(key);
+        if (window == null && latencies.size() < MAX_TRACKED_APIS) {
+            window = latencies.computeIfAbsent(key, k -> new LatencyWindow());
+        }
+
+        return window;
+    }
+
+    static boolean isRetryable(Throwable failure) {
+        var cause = unwrap(failure);
+        if (cause instanceof CallRejectedException) {
+            return false;
+        }
+
+        return SonarServers.isServerFailure(cause);
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        var cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        return cause;
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            // The response of the losing call isn't used
+        }
+    }
+
+    long getRetryCount() {
+        return retries.sum();
+    }
+
+    long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+}
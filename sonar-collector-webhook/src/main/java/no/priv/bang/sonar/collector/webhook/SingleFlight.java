@@ -0,0 +1,94 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lets concurrent callers asking for the same thing share a single
+ * in-flight computation, instead of doing the same work once per caller.
+ *
+ * A key is only remembered while its computation is in flight, so
+ * a caller arriving after the computation has completed, starts a
+ * new computation.
+ *
+ * @author Steinar Bang
+ *
+ * @param <K> the type of the key identifying the computation
+ * @param <V> the result of the computation
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Join the in-flight computation of the key, or start a new computation if there isn't one.
+     *
+     * @param key identifies the computation
+     * @param computation starts the computation, will only be called if there is no computation of the key in flight
+     * @return a future that will be completed with the result of the computation
+     */
+    CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> computation) {
+        var result = new CompletableFuture<V>();
+        var existing = inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return existing;
+        }
+
+        startedCount.incrementAndGet();
+        try {
+            computation.get().whenComplete((value, exception) -> {
+                    inFlight.remove(key, result);
+                    if (exception != null) {
+                        result.completeExceptionally(exception);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, result);
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of computations started
+     */
+    long getStartedCount() {
+        return startedCount.get();
+    }
+
+    /**
+     * @return the number of callers that joined a computation already in flight, instead of starting a new one
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    int getInFlightCount() {
+        return inFlight.size();
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Outbound calls from the collector to the Sonar web API.
+ *
+ * The calls return futures, so that independent calls
+ * to the same Sonar server can be in flight at the same time.
+ *
+ * @author Steinar Bang
+ *
+ */
+public interface SonarApiClient extends AutoCloseable {
+
+    /**
+     * Do a GET request to the Sonar web API.
+     *
+     * @param url the full URL of the web API request
+     * @return a future that will complete with the (uncompressed) response body, or with an {@link java.io.IOException} if the request fails
+     */
+    CompletableFuture<InputStream> get(URI url);
+
+    @Override
+    default void close() {
+        // Nothing to close by default
+    }
+
+}
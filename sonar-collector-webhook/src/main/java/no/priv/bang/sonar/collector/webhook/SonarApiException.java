@@ -0,0 +1,51 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A Sonar web API request answered with an HTTP error status.
+ *
+ * @author Steinar Bang
+ *
+ */
+public class SonarApiException extends IOException {
+    private static final long serialVersionUID = 6046553395217853208L;
+    private final int statusCode;
+
+    public SonarApiException(URI url, int statusCode) {
+        super(String.format("Sonar API request %s failed with HTTP status %d", url, statusCode));
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * A server error or "429 Too Many Requests" tells that the server is
+     * in trouble, while the other client errors (e.g. "404 Not Found" for
+     * an unknown project) tell that something is wrong with the request.
+     *
+     * @return true if the status tells that the server is unable to handle requests
+     */
+    public boolean isServerUnhealthy() {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+}
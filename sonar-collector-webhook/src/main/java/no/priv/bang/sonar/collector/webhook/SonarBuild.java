@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2024 Steinar Bang
+ * Copyright 2017-2026 Steinar Bang
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,30 +16,26 @@
 package no.priv.bang.sonar.collector.webhook;
 
 import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
 
 public class SonarBuild {
-    static final String[] MEASUREMENT_FIELDS = {"lines", "bugs", "new_bugs", "vulnerabilities", "new_vulnerabilities", "code_smells", "new_code_smells", "coverage", "new_coverage"};
     private long analysedAt;
     private String project;
     private String version;
     private URI serverUrl;
-    private Map<String, String> measurements;
+    private String analysisId;
+    private Measurements measurements;
 
     public SonarBuild(long analysedAt, String project, String version, URI serverUrl) {
+        this(analysedAt, project, version, serverUrl, null, new Measurements());
+    }
+
+    public SonarBuild(long analysedAt, String project, String version, URI serverUrl, String analysisId, Measurements measurements) {
         this.analysedAt = analysedAt;
         this.project = project;
         this.version = version;
         this.serverUrl = serverUrl;
-        initializeMeasurements();
-    }
-
-    private void initializeMeasurements() {
-        measurements = new HashMap<>();
-        for (var fieldName : MEASUREMENT_FIELDS) {
-            measurements.put(fieldName, "0");
-        }
+        this.analysisId = analysisId;
+        this.measurements = measurements;
     }
 
     public long getAnalysedAt() {
@@ -58,7 +54,14 @@ public class SonarBuild {
         return serverUrl;
     }
 
-    public Map<String, String> getMeasurements() {
+    /**
+     * @return the analysisId, or taskId, of the webhook call, or null if the webhook call had neither
+     */
+    public String getAnalysisId() {
+        return analysisId;
+    }
+
+    public Measurements getMeasurements() {
         return measurements;
     }
 
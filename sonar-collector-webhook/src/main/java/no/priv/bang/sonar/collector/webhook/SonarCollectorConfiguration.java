@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2024 Steinar Bang
+ * Copyright 2017-2026 Steinar Bang
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,7 @@ package no.priv.bang.sonar.collector.webhook;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
@@ -32,8 +33,65 @@ import org.osgi.service.log.LogService;
 public class SonarCollectorConfiguration {
     static final String SONAR_MEASURES_COMPONENTS_METRIC_KEYS = "sonar.measures.components.metricKeys";
     public static final String SONAR_USER_TOKEN = "sonar_user_token";
+    static final String SONAR_COLLECTOR_ASYNC_ENABLED = "sonar.collector.async.enabled";
+    static final String SONAR_COLLECTOR_ASYNC_WORKERS = "sonar.collector.async.workers";
+    static final String SONAR_COLLECTOR_ASYNC_QUEUE_CAPACITY = "sonar.collector.async.queueCapacity";
+    static final String SONAR_COLLECTOR_JDBC_BATCH_ENABLED = "sonar.collector.jdbc.batch.enabled";
+    static final String SONAR_COLLECTOR_JDBC_BATCH_MAX_SIZE = "sonar.collector.jdbc.batch.maxSize";
+    static final String SONAR_COLLECTOR_JDBC_BATCH_MAX_DELAY_MILLIS = "sonar.collector.jdbc.batch.maxDelayMillis";
+    static final String SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES = "sonar.collector.dedupe.maxEntries";
+    static final String SONAR_COLLECTOR_DEDUPE_TTL_SECONDS = "sonar.collector.dedupe.ttlSeconds";
+    static final String SONAR_COLLECTOR_SPOOL_ENABLED = "sonar.collector.spool.enabled";
+    static final String SONAR_COLLECTOR_SPOOL_DIRECTORY = "sonar.collector.spool.directory";
+    static final String SONAR_COLLECTOR_SPOOL_SEGMENT_SIZE_BYTES = "sonar.collector.spool.segmentSizeBytes";
+    static final String SONAR_COLLECTOR_SPOOL_REPLAY_BATCH_SIZE = "sonar.collector.spool.replayBatchSize";
+    static final String SONAR_COLLECTOR_SPOOL_REPLAY_INTERVAL_MILLIS = "sonar.collector.spool.replayIntervalMillis";
+    static final String SONAR_COLLECTOR_ADMIN_ENABLED = "sonar.collector.admin.enabled";
+    static final String SONAR_COLLECTOR_BACKFILL_CONCURRENCY = "sonar.collector.backfill.concurrency";
+    static final String SONAR_COLLECTOR_BACKFILL_PAGE_SIZE = "sonar.collector.backfill.pageSize";
+    static final String SONAR_COLLECTOR_IMPORT_BATCH_SIZE = "sonar.collector.import.batchSize";
+    static final String SONAR_COLLECTOR_READ_FETCH_SIZE = "sonar.collector.read.fetchSize";
+    static final String SONAR_COLLECTOR_READ_DEFAULT_LIMIT = "sonar.collector.read.defaultLimit";
+    static final String SONAR_COLLECTOR_READ_MAX_LIMIT = "sonar.collector.read.maxLimit";
+    static final String SONAR_COLLECTOR_PARTITIONING_ENABLED = "sonar.collector.partitioning.enabled";
+    static final String SONAR_COLLECTOR_PARTITIONING_MONTHS_AHEAD = "sonar.collector.partitioning.monthsAhead";
+    static final String SONAR_COLLECTOR_MEASURE_VALUES_ENABLED = "sonar.collector.measureValues.enabled";
+    static final String SONAR_COLLECTOR_ROLLUPS_ENABLED = "sonar.collector.rollups.enabled";
+    static final String SONAR_COLLECTOR_CALLBACKS_MAX_CONCURRENT_CALLS = "sonar.collector.callbacks.maxConcurrentCalls";
+    static final String SONAR_COLLECTOR_CALLBACKS_MAX_WAIT_MILLIS = "sonar.collector.callbacks.maxWaitMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_CONNECT_TIMEOUT_MILLIS = "sonar.collector.callbacks.connectTimeoutMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_READ_TIMEOUT_MILLIS = "sonar.collector.callbacks.readTimeoutMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_MAX_RETRIES = "sonar.collector.callbacks.maxRetries";
+    static final String SONAR_COLLECTOR_CALLBACKS_RETRY_BACKOFF_MILLIS = "sonar.collector.callbacks.retryBackoffMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_RETRY_MAX_BACKOFF_MILLIS = "sonar.collector.callbacks.retryMaxBackoffMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_HEDGING_ENABLED = "sonar.collector.callbacks.hedging.enabled";
+    static final String SONAR_COLLECTOR_CALLBACKS_HEDGING_PERCENTILE = "sonar.collector.callbacks.hedging.percentile";
+    static final String SONAR_COLLECTOR_CALLBACKS_HEDGING_MIN_DELAY_MILLIS = "sonar.collector.callbacks.hedging.minDelayMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_BATCH_ENABLED = "sonar.collector.callbacks.batch.enabled";
+    static final String SONAR_COLLECTOR_CALLBACKS_BATCH_WINDOW_MILLIS = "sonar.collector.callbacks.batch.windowMillis";
+    static final String SONAR_COLLECTOR_CALLBACKS_BATCH_MAX_SIZE = "sonar.collector.callbacks.batch.maxSize";
+    static final String SONAR_COLLECTOR_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "sonar.collector.circuitBreaker.failureThreshold";
+    static final String SONAR_COLLECTOR_CIRCUIT_BREAKER_OPEN_MILLIS = "sonar.collector.circuitBreaker.openMillis";
+    static final String SONAR_COLLECTOR_ADMISSION_ENABLED = "sonar.collector.admission.enabled";
+    static final String SONAR_COLLECTOR_ADMISSION_MAX_CONCURRENT_WEBHOOKS = "sonar.collector.admission.maxConcurrentWebhooks";
+    static final String SONAR_COLLECTOR_ADMISSION_PROJECT_RATE_PER_MINUTE = "sonar.collector.admission.projectRatePerMinute";
+    static final String SONAR_COLLECTOR_ADMISSION_PROJECT_BURST = "sonar.collector.admission.projectBurst";
+    static final String SONAR_COLLECTOR_ADMISSION_RETRY_AFTER_SECONDS = "sonar.collector.admission.retryAfterSeconds";
+    static final String SONAR_COLLECTOR_PAYLOAD_MEASURES_ENABLED = "sonar.collector.payloadMeasures.enabled";
+    static final String SONAR_COLLECTOR_POLLER_ENABLED = "sonar.collector.poller.enabled";
+    static final String SONAR_COLLECTOR_POLLER_INTERVAL_SECONDS = "sonar.collector.poller.intervalSeconds";
+    static final String SONAR_COLLECTOR_POLLER_CONCURRENCY = "sonar.collector.poller.concurrency";
+    static final String SONAR_COLLECTOR_POLLER_REQUESTS_PER_SECOND = "sonar.collector.poller.requestsPerSecond";
+    // Settings of a single Sonar server are sonar.collector.server.<name>.<setting>, e.g. sonar.collector.server.sonarcloud.url
+    static final String SONAR_COLLECTOR_SERVER_PREFIX = "sonar.collector.server.";
+    static final String SERVER_URL = "url";
+    static final String SERVER_TOKEN = "token";
+    static final String SERVER_MAX_CONCURRENT_CALLS = "maxConcurrentCalls";
+    static final String SERVER_FAILURE_THRESHOLD = "failureThreshold";
+    static final String SERVER_OPEN_MILLIS = "openMillis";
     private final Properties applicationProperties = new Properties();
     private Map<String, Object> injectedconfig = Collections.emptyMap();
+    private volatile ConfigurationSnapshot snapshot = ConfigurationSnapshot.compile(applicationProperties, injectedconfig);
 
     void loadProperties(LogService logservice) {
         try(var propertiesFile = getApplicationProperties()) {
@@ -42,18 +100,43 @@ public class SonarCollectorConfiguration {
             var logger = logservice.getLogger(getClass());
             logger.error("SonarCollectorConfiguration failed to load the application.properties", e);
         }
+
+        snapshot = ConfigurationSnapshot.compile(applicationProperties, injectedconfig);
     }
 
     protected InputStream getApplicationProperties() {
         return getClass().getClassLoader().getResourceAsStream("application.properties");
     }
 
+    /**
+     * Set the configuration injected by karaf, and replace the current
+     * snapshot with a snapshot compiled from the new configuration.
+     *
+     * System properties are read when the snapshot is compiled,
+     * so changes to system properties will be picked up on the
+     * next call to this method.
+     *
+     * @param config the configuration from karaf, may be null
+     */
     public void setConfig(Map<String, Object> config) {
         if (config != null) {
             injectedconfig = config;
         } else {
             injectedconfig = Collections.emptyMap();
         }
+
+        snapshot = ConfigurationSnapshot.compile(applicationProperties, injectedconfig);
+    }
+
+    /**
+     * Get the current configuration.  A webhook call should get the snapshot
+     * once, and use it for the rest of the call, to see a consistent configuration
+     * if the configuration is changed while the call is in progress.
+     *
+     * @return the current immutable configuration snapshot
+     */
+    ConfigurationSnapshot snapshot() {
+        return snapshot;
     }
 
     /**
@@ -65,25 +148,124 @@ public class SonarCollectorConfiguration {
      * @return a list of the metrics that will be retrieved from Sonar
      */
     public String[] getMetricKeys() {
-        // Settings made in karaf configuration takes precedence
-        var metricKeysFromKarafConfig = injectedconfig.get(SONAR_MEASURES_COMPONENTS_METRIC_KEYS);
-        if (metricKeysFromKarafConfig != null) {
-            return ((String) metricKeysFromKarafConfig).split(",");
-        }
+        return snapshot.getMetricKeys().clone();
+    }
 
-        var metricKeys = System.getProperty(SONAR_MEASURES_COMPONENTS_METRIC_KEYS, applicationProperties.getProperty(SONAR_MEASURES_COMPONENTS_METRIC_KEYS));
-        if (metricKeys != null) {
-            return metricKeys.split(",");
-        }
+    /**
+     * When true, the webhook will only check the payload and put it on a
+     * queue before returning "202 Accepted", and the callbacks to Sonar and
+     * the database insert will be done by a pool of worker threads.
+     *
+     * @return true if the webhook should use the accept-and-queue mode
+     */
+    public boolean isAsyncEnabled() {
+        return snapshot.isAsyncEnabled();
+    }
+
+    public int getAsyncWorkers() {
+        return snapshot.getAsyncWorkers();
+    }
+
+    public int getAsyncQueueCapacity() {
+        return snapshot.getAsyncQueueCapacity();
+    }
+
+    /**
+     * When true, measures are written to the database in batches, with
+     * one transaction per batch, instead of one transaction per webhook call.
+     *
+     * @return true if measures should be written in batches
+     */
+    public boolean isJdbcBatchEnabled() {
+        return snapshot.isJdbcBatchEnabled();
+    }
+
+    public int getJdbcBatchMaxSize() {
+        return snapshot.getJdbcBatchMaxSize();
+    }
+
+    public int getJdbcBatchMaxDelayMillis() {
+        return snapshot.getJdbcBatchMaxDelayMillis();
+    }
+
+    /**
+     * The max number of analyses remembered to recognize webhook
+     * calls retried by Sonar.  0 turns off the in-memory check,
+     * leaving only the unique constraint in the database.
+     *
+     * @return the max number of analyses to remember
+     */
+    public int getDedupeMaxEntries() {
+        return snapshot.getDedupeMaxEntries();
+    }
+
+    public int getDedupeTtlSeconds() {
+        return snapshot.getDedupeTtlSeconds();
+    }
+
+    /**
+     * When true, measures that can't be written because the database is
+     * unavailable are written to a local spool, and written to the
+     * database when it becomes available again.
+     *
+     * @return true if measures should be spooled when the database is unavailable
+     */
+    public boolean isSpoolEnabled() {
+        return snapshot.isSpoolEnabled();
+    }
+
+    public String getSpoolDirectory() {
+        return snapshot.getSpoolDirectory();
+    }
+
+    /**
+     * When true, the admin operations of the servlet (e.g. the history
+     * backfill) are available below /sonar-collector/admin/.
+     *
+     * @return true if the admin operations are available
+     */
+    public boolean isAdminEnabled() {
+        return snapshot.isAdminEnabled();
+    }
 
-        return new String[0];
+    public int getBackfillConcurrency() {
+        return snapshot.getBackfillConcurrency();
     }
 
     public boolean hasSonarApiUserToken() {
-        return injectedconfig.containsKey(SONAR_USER_TOKEN);
+        return snapshot.hasSonarApiUserToken();
     }
 
     public String getSonarApiUserToken() {
-        return (String) injectedconfig.get(SONAR_USER_TOKEN);
+        return snapshot.getSonarApiUserToken();
+    }
+
+    /**
+     * The value of the Authorization header to use in calls to the Sonar web API.
+     *
+     * @return a basic authentication header value with the user token as the username, or null if there is no user token
+     */
+    public String getSonarApiAuthorization() {
+        return snapshot.getSonarApiAuthorization();
+    }
+
+    /**
+     * The value of the Authorization header to use in calls to a particular
+     * Sonar server.  The token of the server is used if the server has one
+     * in the configuration, otherwise the global user token is used.
+     *
+     * @param url the URL of a call to the Sonar server
+     * @return a basic authentication header value, or null if there is no user token for the server
+     */
+    public String getSonarApiAuthorization(URI url) {
+        return snapshot.getSonarServerSettings(url).authorization();
+    }
+
+    String getSetting(String key) {
+        return snapshot.getSetting(key);
+    }
+
+    int getIntSetting(String key, int defaultValue) {
+        return snapshot.getIntSetting(key, defaultValue);
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2024 Steinar Bang
+ * Copyright 2017-2026 Steinar Bang
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,18 +16,32 @@
 package no.priv.bang.sonar.collector.webhook;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.time.ZonedDateTime;
+import java.sql.Types;
+import java.time.format.DateTimeParseException;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
@@ -39,6 +53,8 @@ import javax.sql.DataSource;
 
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.log.LogService;
 
@@ -53,6 +69,12 @@ import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
 @Component(service={Servlet.class}, property={"alias=/sonar-collector", "configurationPid=no.priv.bang.sonar.sonar-collector-webhook"} )
 public class SonarCollectorServlet extends HttpServlet {
     private static final long serialVersionUID = -8421243385012454373L;
+
+    @FunctionalInterface
+    private interface Transaction {
+        int run() throws SQLException;
+    }
+
     // A formatter that's able to parse ISO dates without colons in the time zone spec
     static final DateTimeFormatter isoZonedDateTimeformatter = new DateTimeFormatterBuilder()
         .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
@@ -62,11 +84,44 @@ public class SonarCollectorServlet extends HttpServlet {
         .toFormatter();
     private final Properties applicationProperties = new Properties();
     private final URLConnectionFactory factory;
+    private final transient SonarServers sonarServers;
+    private final transient ResilientSonarApiClient sonarApiClient;
     static final ObjectMapper mapper = new ObjectMapper();
     final DataSourceAdapter dataSource = new DataSourceAdapter();
     private final LogServiceAdapter logservice = new LogServiceAdapter();
     private final LoggerAdapter logger = new LoggerAdapter(getClass());
     final SonarCollectorConfiguration configuration = new SonarCollectorConfiguration();
+    static final String MEASURES_COLUMNS = "project_key, version, version_is_release, analysis_time, lines, bugs, new_bugs, vulnerabilities, new_vulnerabilities, code_smells, new_code_smells, coverage, new_coverage, complexity, sqale_rating, new_maintainability_rating, security_rating, new_security_rating, reliability_rating, new_reliability_rating, analysis_id";
+    static final String INSERT_MEASURES_SQL = "insert into measures (" + MEASURES_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    volatile WebhookQueue webhookQueue;
+    volatile MeasuresBatchWriter measuresWriter;
+    volatile WebhookDedupeCache dedupeCache;
+    volatile SpoolReplayer spoolReplayer;
+    volatile HistoryBackfill backfill;
+    volatile MeasuresPartitionMaintainer partitionMaintainer;
+    volatile AnalysisPoller analysisPoller;
+    static final int MAX_TRANSACTION_ATTEMPTS = 3;
+    static final String ADMIN_BACKFILL_PATH = "/admin/backfill";
+    static final String ADMIN_IMPORT_PATH = "/admin/import";
+    static final String ADMIN_ROLLUPS_REBUILD_PATH = "/admin/rollups/rebuild";
+    static final String MEASURES_PATH = "/measures";
+    static final String LATEST_PATH = "/latest";
+    final transient MetricDictionary metrics = new MetricDictionary(dataSource);
+    final transient MeasureValuesWriter measureValues = new MeasureValuesWriter(metrics);
+    final transient MeasuresRollups rollups = new MeasuresRollups(dataSource, metrics, logger);
+    final transient LatestMeasuresCache latestMeasures = new LatestMeasuresCache();
+    final transient SingleFlight<EnrichmentKey, SonarBuild> enrichments = new SingleFlight<>();
+    final transient MeasuresSearchBatcher measuresSearches = new MeasuresSearchBatcher(this::fetchMeasures, configuration);
+    final transient WebhookAdmission admission = new WebhookAdmission();
+    private final transient LongAdder callbacksAvoided = new LongAdder();
+    transient PipelineMetrics pipelineMetrics = new PipelineMetrics();
+    // The values registered in the pipeline metrics, removed when the servlet is deactivated
+    private final transient Map<String, LongSupplier> registeredMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * Identifies the callbacks to Sonar done for an analysis.
+     */
+    record EnrichmentKey(URI serverUrl, String projectKey, String analysis) {}
 
     @Reference(target = "(osgi.jndi.service.name=jdbc/sonar-collector)")
     public void setDataSource(DataSource ds) {
@@ -79,11 +134,251 @@ public class SonarCollectorServlet extends HttpServlet {
         this.logger.setLogService(logservice);
     }
 
+    @Reference
+    public void setPipelineMetrics(PipelineMetrics pipelineMetrics) {
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
     @Activate
     public void activate(Map<String, Object> config) {
+        registerPipelineMetrics();
         configuration.loadProperties(logservice);
         configuration.setConfig(config);
         createSchemaWithLiquibase(dataSource);
+        startPartitionMaintainer(configuration.snapshot());
+        warmLatestMeasures();
+        startPipeline(configuration.snapshot());
+        startDedupeCache(configuration.snapshot());
+        startSpool(configuration.snapshot());
+        startPoller(configuration.snapshot());
+    }
+
+    /**
+     * Called by DS when the karaf configuration of the component is changed.
+     *
+     * The new configuration replaces the old one in a single step, without
+     * restarting the bundle.  The queue, the batch writer and the dedupe
+     * cache are only replaced if their settings have changed.
+     *
+     * @param config the new configuration from karaf
+     */
+    @Modified
+    public void modified(Map<String, Object> config) {
+        var previous = configuration.snapshot();
+        configuration.setConfig(config);
+        var current = configuration.snapshot();
+        if (!current.hasSamePipelineSettings(previous)) {
+            logger.info("Sonar Collector queue or batch writer settings changed, restarting them");
+            var oldQueue = webhookQueue;
+            var oldWriter = measuresWriter;
+            startPipeline(current);
+            // Tasks still on the old queue will be written by the new writer
+            stopPipeline(oldQueue, oldWriter);
+        }
+
+        if (!current.hasSameDedupeSettings(previous)) {
+            logger.info("Sonar Collector dedupe cache settings changed, starting with an empty dedupe cache");
+            startDedupeCache(current);
+        }
+
+        if (!current.hasSameSpoolSettings(previous)) {
+            logger.info("Sonar Collector spool settings changed, reopening the spool");
+            stopSpool();
+            startSpool(current);
+        }
+
+        // The poller reads the rest of its settings on each poll
+        if (current.isPollerEnabled() != previous.isPollerEnabled()) {
+            stopPoller();
+            startPoller(current);
+        }
+    }
+
+    @Deactivate
+    public void deactivate() {
+        var oldQueue = webhookQueue;
+        var oldWriter = measuresWriter;
+        webhookQueue = null;
+        measuresWriter = null;
+        stopPipeline(oldQueue, oldWriter);
+        stopSpool();
+        stopPoller();
+        unregisterPipelineMetrics();
+        var maintainer = partitionMaintainer;
+        partitionMaintainer = null;
+        if (maintainer != null) {
+            maintainer.shutdown(10000);
+        }
+
+        sonarApiClient.close();
+    }
+
+    private void startPipeline(ConfigurationSnapshot settings) {
+        measuresWriter = settings.isJdbcBatchEnabled() ?
+            new MeasuresBatchWriter(dataSource, INSERT_MEASURES_SQL, this::bindMeasures, settings.isMeasureValuesEnabled() ? measureValues : null, settings.isRollupsEnabled() ? rollups : null, settings.getJdbcBatchMaxSize(), settings.getJdbcBatchMaxDelayMillis(), logger) :
+            null;
+        webhookQueue = settings.isAsyncEnabled() ?
+            new WebhookQueue(settings.getAsyncWorkers(), settings.getAsyncQueueCapacity(), logger) :
+            null;
+    }
+
+    private void startDedupeCache(ConfigurationSnapshot settings) {
+        dedupeCache = settings.getDedupeMaxEntries() > 0 ?
+            new WebhookDedupeCache(settings.getDedupeMaxEntries(), settings.getDedupeTtlSeconds() * 1000L) :
+            null;
+    }
+
+    /**
+     * Expose the sizes and counters kept by the queue, the batch writer, the
+     * dedupe cache, the spool and the single-flight callbacks.  The stages
+     * are read when the metrics are written, so that the values follow the
+     * stages when they are replaced by a configuration change.
+     */
+    private void registerPipelineMetrics() {
+        registerMetric("sonar_collector_queue_depth", "Webhook calls waiting on the queue", false, () -> queueValue(WebhookQueue::getQueueDepth));
+        registerMetric("sonar_collector_queue_busy_workers", "Workers processing webhook calls", false, () -> queueValue(WebhookQueue::getBusyWorkers));
+        registerMetric("sonar_collector_queue_rejected", "Webhook calls rejected because the queue was full", true, () -> queueValue(WebhookQueue::getRejectedCount));
+        registerMetric("sonar_collector_batch_writer_pending", "Measures waiting to be written by the batch writer", false, () -> writerValue(MeasuresBatchWriter::getPendingCount));
+        registerMetric("sonar_collector_batch_writer_batches", "Batches written by the batch writer", true, () -> writerValue(MeasuresBatchWriter::getBatchCount));
+        registerMetric("sonar_collector_dedupe_entries", "Analyses remembered by the dedupe cache", false, () -> {
+            var cache = dedupeCache;
+            return cache != null ? cache.size() : 0;
+        });
+        registerMetric("sonar_collector_spool_replayed", "Measures written to the database from the spool", true, () -> replayerValue(SpoolReplayer::getReplayedCount));
+        registerMetric("sonar_collector_spool_pending_records", "Measures waiting in the spool", false, () -> replayerValue(replayer -> replayer.getSpool().getPendingRecords()));
+        registerMetric("sonar_collector_spool_pending_bytes", "Bytes of measures waiting in the spool", false, () -> replayerValue(replayer -> replayer.getSpool().getPendingBytes()));
+        registerMetric("sonar_collector_spool_oldest_record_age_millis", "Milliseconds since the oldest measures in the spool were spooled", false, () -> replayerValue(replayer -> replayer.getSpool().getOldestRecordAgeMillis()));
+        registerMetric("sonar_collector_spool_quarantined", "Spooled measures moved to quarantine because they couldn't be written", true, () -> replayerValue(replayer -> replayer.getSpool().getQuarantinedCount()));
+        registerMetric("sonar_collector_spool_database_available", "1 when the measures are written to the database, 0 when they go to the spool", false, () -> {
+            // Without a spool all measures are written to the database
+            var replayer = spoolReplayer;
+            return replayer == null || replayer.isDatabaseAvailable() ? 1 : 0;
+        });
+        registerMetric("sonar_collector_callbacks_in_flight", "Analyses with callbacks to Sonar in progress", false, enrichments::getInFlightCount);
+        registerMetric("sonar_collector_callbacks_rejected", "Callbacks to Sonar not done because too many callbacks to the same server were in progress", true, sonarServers::getRejectedCallCount);
+        registerMetric("sonar_collector_callbacks_short_circuited", "Callbacks to Sonar not done because the circuit breaker of the server was open", true, sonarServers::getShortCircuitedCallCount);
+        registerMetric("sonar_collector_open_circuit_breakers", "Sonar servers with an open or half open circuit breaker", false, sonarServers::getOpenCircuitCount);
+        registerMetric("sonar_collector_callbacks_retried", "Callbacks to Sonar retried after a failure", true, sonarApiClient::getRetryCount);
+        registerMetric("sonar_collector_callbacks_hedged", "Second callbacks to Sonar sent because the first callback was slow", true, sonarApiClient::getHedgeCount);
+        registerMetric("sonar_collector_callbacks_hedge_wins", "Hedged callbacks to Sonar that completed before the first callback", true, sonarApiClient::getHedgeWinCount);
+        registerMetric("sonar_collector_admission_in_flight", "Admitted webhook calls in progress", false, admission::getInFlightCount);
+        registerMetric("sonar_collector_admission_admitted", "Webhook calls admitted by the admission control", true, admission::getAdmittedCount);
+        registerMetric("sonar_collector_admission_protected", "Webhook calls of release versions admitted over the limits", true, admission::getProtectedCount);
+        registerMetric("sonar_collector_admission_shed_overloaded", "Webhook calls shed with 503 because too many webhook calls were in progress", true, admission::getShedOverloadedCount);
+        registerMetric("sonar_collector_admission_shed_rate_limited", "Webhook calls shed with 429 because their project was over its rate", true, admission::getShedRateLimitedCount);
+        registerMetric("sonar_collector_callbacks_batches", "Callbacks to Sonar that fetched the measures of several projects with api/measures/search", true, measuresSearches::getBatchCount);
+        registerMetric("sonar_collector_callbacks_batched_projects", "Projects whose measures were fetched by batched callbacks to Sonar", true, measuresSearches::getBatchedProjectCount);
+        registerMetric("sonar_collector_callbacks_avoided", "Callbacks to Sonar not done because the webhook payload had the values", true, this::getCallbacksAvoidedCount);
+        registerMetric("sonar_collector_poller_polls", "Projects polled for analyses missed by the webhook", true, () -> pollerValue(AnalysisPoller::getPollCount));
+        registerMetric("sonar_collector_poller_analyses_processed", "Newest analyses of projects found by the poller and processed like webhook calls", true, () -> pollerValue(AnalysisPoller::getAnalysesProcessedCount));
+        registerMetric("sonar_collector_poller_gap_analyses_loaded", "Older analyses found by the poller and loaded from the measures history", true, () -> pollerValue(AnalysisPoller::getGapAnalysesLoadedCount));
+        registerMetric("sonar_collector_poller_failed_polls", "Polls of projects or servers that failed", true, () -> pollerValue(AnalysisPoller::getFailedPollCount));
+        registerMetric("sonar_collector_callbacks_coalesced", "Webhook calls that shared the callbacks of a concurrent call for the same analysis", true, enrichments::getCoalescedCount);
+    }
+
+    private long queueValue(ToLongFunction<WebhookQueue> value) {
+        var queue = webhookQueue;
+        return queue != null ? value.applyAsLong(queue) : 0;
+    }
+
+    private void registerMetric(String name, String help, boolean counter, LongSupplier value) {
+        pipelineMetrics.register(name, help, counter, value);
+        registeredMetrics.put(name, value);
+    }
+
+    private void unregisterPipelineMetrics() {
+        registeredMetrics.forEach(pipelineMetrics::unregister);
+        registeredMetrics.clear();
+    }
+
+    private long replayerValue(ToLongFunction<SpoolReplayer> value) {
+        var replayer = spoolReplayer;
+        return replayer != null ? value.applyAsLong(replayer) : 0;
+    }
+
+    private long pollerValue(ToLongFunction<AnalysisPoller> value) {
+        var poller = analysisPoller;
+        return poller != null ? value.applyAsLong(poller) : 0;
+    }
+
+    private long writerValue(ToLongFunction<MeasuresBatchWriter> value) {
+        var writer = measuresWriter;
+        return writer != null ? value.applyAsLong(writer) : 0;
+    }
+
+    private void stopPipeline(WebhookQueue queue, MeasuresBatchWriter writer) {
+        if (queue != null) {
+            queue.shutdown(10000);
+        }
+
+        if (writer != null) {
+            writer.shutdown(10000);
+        }
+    }
+
+    private void startSpool(ConfigurationSnapshot settings) {
+        if (!settings.isSpoolEnabled()) {
+            return;
+        }
+
+        try {
+            var spool = new MeasuresSpool(Path.of(settings.getSpoolDirectory()), settings.getSpoolSegmentSizeBytes(), logger);
+            spoolReplayer = new SpoolReplayer(spool, this::insertBuilds, this::isDatabaseReachable, settings.getSpoolReplayBatchSize(), settings.getSpoolReplayIntervalMillis(), logger);
+        } catch (IOException e) {
+            logger.error("Sonar Collector unable to open the spool in {}, measures will not be spooled", settings.getSpoolDirectory(), e);
+        }
+    }
+
+    private void stopSpool() {
+        var replayer = spoolReplayer;
+        spoolReplayer = null;
+        if (replayer != null) {
+            replayer.shutdown(10000);
+            try {
+                replayer.getSpool().close();
+            } catch (IOException e) {
+                logger.error("Sonar Collector unable to close the spool", e);
+            }
+        }
+    }
+
+    private void startPoller(ConfigurationSnapshot settings) {
+        if (!settings.isPollerEnabled()) {
+            return;
+        }
+
+        var poller = new AnalysisPoller(sonarApiClient, dataSource, this::insertBuilds, this::processWebhook, configuration, logger);
+        poller.start();
+        analysisPoller = poller;
+    }
+
+    private void stopPoller() {
+        var poller = analysisPoller;
+        analysisPoller = null;
+        if (poller != null) {
+            poller.shutdown(10000);
+        }
+    }
+
+    /**
+     * When partitioning is enabled, partition the measures table (only on PostgreSQL,
+     * other databases keep the unpartitioned table), and keep creating partitions ahead of time.
+     */
+    private void startPartitionMaintainer(ConfigurationSnapshot settings) {
+        if (!settings.isPartitioningEnabled()) {
+            return;
+        }
+
+        var liquibase = new LiquibaseClassPathChangeLogRunner();
+        try(var conn = dataSource.getConnection()) {
+            liquibase.applyLiquibaseChangelist(conn, "db-changelog/db-changelog-partitioning.xml", getClass().getClassLoader());
+        } catch (Exception e) {
+            logger.error("Sonar Collector servlet unable to partition the measures table", e);
+        }
+
+        var maintainer = new MeasuresPartitionMaintainer(dataSource, settings.getPartitioningMonthsAhead(), logger);
+        maintainer.start();
+        partitionMaintainer = maintainer;
     }
 
     private void createSchemaWithLiquibase(DataSource db) {
@@ -95,113 +390,775 @@ public class SonarCollectorServlet extends HttpServlet {
         }
     }
 
+    private void warmLatestMeasures() {
+        try {
+            latestMeasures.warm(dataSource);
+        } catch (SQLException e) {
+            logger.error("Sonar Collector unable to load the latest measures of the projects", e);
+        }
+    }
+
+    /**
+     * Create a servlet doing the callbacks to Sonar with {@link HttpURLConnection}
+     * objects from the factory.
+     *
+     * @param factory creates the connections used in the callbacks to Sonar
+     * @throws IOException if the built-in application.properties can't be read
+     */
     public SonarCollectorServlet(URLConnectionFactory factory) throws IOException {
         this.factory = factory;
+        this.sonarServers = new SonarServers(new URLConnectionSonarApiClient(this::openConnection), configuration);
+        this.sonarApiClient = new ResilientSonarApiClient(sonarServers, configuration);
         applicationProperties.load(getClass().getClassLoader().getResourceAsStream("application.properties"));
     }
 
+    /**
+     * Create a servlet doing the callbacks to Sonar with a {@link HttpClientSonarApiClient}.
+     *
+     * @throws IOException if the built-in application.properties can't be read
+     */
     public SonarCollectorServlet() throws IOException {
-        this(new URLConnectionFactory() {
+        this.factory = new URLConnectionFactory() {
 
             @Override
             public HttpURLConnection openConnection(URI url) throws IOException {
                 return (HttpURLConnection) url.toURL().openConnection();
             }
-        });
+        };
+        this.sonarServers = new SonarServers(new HttpClientSonarApiClient(configuration), configuration);
+        this.sonarApiClient = new ResilientSonarApiClient(sonarServers, configuration);
+        applicationProperties.load(getClass().getClassLoader().getResourceAsStream("application.properties"));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (isAdminRequest(request)) {
+            if (!isAdminOperationAvailable(request, ADMIN_BACKFILL_PATH)) {
+                response.setStatus(404);
+                return;
+            }
+
+            var current = backfill;
+            var progress = current != null ? current.getProgress() : new HistoryBackfill.Progress("idle", null, 0, 0, 0, 0, 0, 0);
+            writeJson(response, 200, progress);
+            return;
+        }
+
+        if (MEASURES_PATH.equals(request.getPathInfo())) {
+            readMeasures(request, response);
+            return;
+        }
+
+        if (LATEST_PATH.equals(request.getPathInfo())) {
+            writeLatestMeasures(request, response);
+            return;
+        }
+
+        super.doGet(request, response);
+    }
+
+    /**
+     * Write the latest measures of all projects.  Polls with the ETag of
+     * the previous response in If-None-Match get "304 Not Modified" and
+     * no body, until the measures change.
+     */
+    private void writeLatestMeasures(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        var rendered = latestMeasures.render();
+        response.setHeader("ETag", rendered.etag());
+        response.setHeader("Cache-Control", "no-cache");
+        if (rendered.etag().equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(304); // Report not modified
+            return;
+        }
+
+        response.setStatus(200);
+        response.setContentType("application/json");
+        response.setContentLength(rendered.body().length);
+        try (var body = response.getOutputStream()) {
+            body.write(rendered.body());
+        }
+    }
+
+    /**
+     * Stream the time series of the measures of a project to the response.
+     */
+    private void readMeasures(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        var settings = configuration.snapshot();
+        MeasuresReader.Query query;
+        try {
+            query = MeasuresReader.parseQuery(request, settings.getReadDefaultLimit(), settings.getReadMaxLimit());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Sonar Collector bad request for measures: {}", e.getMessage());
+            response.setStatus(400); // Report bad request
+            return;
+        }
 
+        try {
+            new MeasuresReader(dataSource, settings.getReadFetchSize(), logger).read(query, response);
+        } catch (SQLException e) {
+            logger.error("Sonar Collector failed to read measures of project {}", query.project(), e);
+            response.setStatus(500); // Report internal server error
+        }
     }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (isAdminRequest(request)) {
+            if (isAdminOperationAvailable(request, ADMIN_BACKFILL_PATH)) {
+                startBackfill(request, response);
+            } else if (isAdminOperationAvailable(request, ADMIN_IMPORT_PATH)) {
+                importMeasures(request, response);
+            } else if (isAdminOperationAvailable(request, ADMIN_ROLLUPS_REBUILD_PATH)) {
+                rebuildRollups(response);
+            } else {
+                response.setStatus(404);
+            }
+
+            return;
+        }
+
+        var queue = webhookQueue;
+        if (queue != null) {
+            acceptAndQueue(queue, request, response);
+            return;
+        }
+
         try {
-            var build = callbackToSonarServerToGetMetrics(request);
-            saveMeasuresInDatabase(build);
+            var payload = decodeWebhook(request);
+            if (isRepeatedWebhook(payload)) {
+                return; // Already stored, acknowledge with "200 OK" before admission, so that Sonar's retries don't use the rate of the project
+            }
+
+            var settings = configuration.snapshot();
+            if (!settings.isAdmissionEnabled()) {
+                processWebhook(payload);
+                return;
+            }
+
+            var rejection = admission.admit(payload.projectKey(), isReleaseVersion(payload.version()), true, settings);
+            if (rejection != null) {
+                shedWebhook(response, rejection);
+                return;
+            }
+
+            try {
+                processWebhook(payload);
+            } finally {
+                admission.done();
+            }
         } catch (Exception e) {
             logger.error("Sonar Collector caught exception ", e);
             response.setStatus(500); // Report internal server error
         }
     }
 
+    private static void shedWebhook(HttpServletResponse response, WebhookAdmission.Rejection rejection) {
+        response.setHeader("Retry-After", Long.toString(rejection.retryAfterSeconds()));
+        response.setStatus(rejection.status()); // Report too many requests or service unavailable, Sonar will have to retry
+    }
+
+    private boolean isAdminRequest(HttpServletRequest request) {
+        var pathInfo = request.getPathInfo();
+        return pathInfo != null && pathInfo.startsWith("/admin/");
+    }
+
+    private boolean isAdminOperationAvailable(HttpServletRequest request, String operationPath) {
+        return configuration.isAdminEnabled() && operationPath.equals(request.getPathInfo());
+    }
+
+    /**
+     * Import the measures of a CSV or NDJSON file in the request body.
+     * The format is given by the "format" parameter, or by the content type
+     * of the request, and is CSV by default.
+     */
+    void importMeasures(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        var format = isNdjson(request) ? MeasuresImporter.Format.NDJSON : MeasuresImporter.Format.CSV;
+        var settings = configuration.snapshot();
+        var importer = new MeasuresImporter(dataSource, this::insertBuilds, settings.getImportBatchSize(), settings.isMeasureValuesEnabled() ? measureValues : null, settings.isRollupsEnabled() ? rollups : null, latestMeasures::update, logger);
+        try (var body = request.getInputStream()) {
+            writeJson(response, 200, importer.importMeasures(body, format));
+        } catch (SQLException e) {
+            logger.error("Sonar Collector failed to import measures", e);
+            response.setStatus(500); // Report internal server error
+        } catch (IOException e) {
+            logger.warn("Sonar Collector unable to parse the measures to import", e);
+            response.setStatus(400); // Report bad request
+        }
+    }
+
+    /**
+     * Replace the rollups with rollups computed from the stored measures, and wait for the rebuild to complete.
+     */
+    void rebuildRollups(HttpServletResponse response) throws IOException {
+        try {
+            writeJson(response, 200, rollups.rebuild());
+        } catch (SQLException e) {
+            logger.error("Sonar Collector failed to rebuild the rollups", e);
+            response.setStatus(500); // Report internal server error
+        }
+    }
+
+    private static boolean isNdjson(HttpServletRequest request) {
+        var format = request.getParameter("format");
+        if (format != null) {
+            return "ndjson".equalsIgnoreCase(format);
+        }
+
+        var contentType = request.getContentType();
+        return contentType != null && (contentType.startsWith("application/x-ndjson") || contentType.startsWith("application/json"));
+    }
+
+    /**
+     * Start a backfill of the history of the projects of a Sonar server
+     * in the background.  The projects to backfill are given as "project"
+     * parameters, and when there are none, all projects of the server are
+     * backfilled.  Only the servers listed in the configuration can be
+     * backfilled, since the backfill sends the user token to the server.
+     */
+    synchronized void startBackfill(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        var serverUrl = parseServerUrl(request.getParameter("serverUrl"));
+        if (serverUrl == null) {
+            logger.warn("Sonar Collector backfill request without a valid serverUrl parameter");
+            response.setStatus(400); // Report bad request
+            return;
+        }
+
+        if (!configuration.snapshot().isListedSonarServer(serverUrl)) {
+            logger.warn("Sonar Collector backfill request for {}, that isn't a listed Sonar server", serverUrl);
+            response.setStatus(400); // Report bad request
+            return;
+        }
+
+        var current = backfill;
+        if (current != null && current.isRunning()) {
+            writeJson(response, 409, current.getProgress()); // Report conflict, only one backfill at a time
+            return;
+        }
+
+        var projectKeys = request.getParameterValues("project");
+        var next = new HistoryBackfill(serverUrl, sonarApiClient, dataSource, this::insertBuilds, configuration.snapshot(), logger);
+        backfill = next;
+        logger.info("Sonar Collector starting backfill from {}", serverUrl);
+        Thread.ofVirtual().name("sonar-collector-backfill").start(() -> next.run(projectKeys != null ? List.of(projectKeys) : List.of()));
+        writeJson(response, 202, next.getProgress()); // Report accepted, the backfill runs in the background
+    }
+
+    private static URI parseServerUrl(String serverUrl) {
+        if (serverUrl == null) {
+            return null;
+        }
+
+        try {
+            var url = new URI(serverUrl);
+            return url.isAbsolute() ? url : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static void writeJson(HttpServletResponse response, int status, Object value) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        mapper.writeValue(response.getOutputStream(), value);
+    }
+
+    private void acceptAndQueue(WebhookQueue queue, HttpServletRequest request, HttpServletResponse response) {
+        WebhookPayload payload;
+        try {
+            payload = decodeWebhook(request);
+        } catch (IOException e) {
+            logger.warn("Sonar Collector unable to parse webhook payload", e);
+            response.setStatus(400); // Report bad request
+            return;
+        }
+
+        if (!isValidWebhookPayload(payload)) {
+            logger.warn("Sonar Collector received webhook payload without project key, server URL or analysis time");
+            response.setStatus(400); // Report bad request
+            return;
+        }
+
+        if (isRepeatedWebhook(payload)) {
+            return; // Already stored, acknowledge with "200 OK" so that Sonar stops retrying
+        }
+
+        // The queue limits the number of webhook calls processed at the same time, so only the rates of the projects are limited here
+        var settings = configuration.snapshot();
+        if (settings.isAdmissionEnabled()) {
+            var rejection = admission.admit(payload.projectKey(), isReleaseVersion(payload.version()), false, settings);
+            if (rejection != null) {
+                shedWebhook(response, rejection);
+                return;
+            }
+        }
+
+        var accepted = queue.offer(payload.projectKey(), () -> processWebhook(payload));
+        if (accepted) {
+            response.setStatus(202); // Report accepted, a worker will do the callbacks and the database insert
+        } else {
+            response.setHeader("Retry-After", Integer.toString(settings.getAdmissionRetryAfterSeconds()));
+            response.setStatus(503); // Report service unavailable, Sonar will have to retry
+        }
+    }
+
+    private WebhookPayload decodeWebhook(HttpServletRequest request) throws IOException {
+        pipelineMetrics.observePayloadSize(request.getContentLengthLong());
+        var startedAt = System.nanoTime();
+        try(var postbody = request.getInputStream()) {
+            var payload = WebhookPayload.decode(mapper.getFactory(), postbody);
+            pipelineMetrics.webhookDecode.observeSince(startedAt);
+            return payload;
+        } catch (IOException e) {
+            pipelineMetrics.decodeFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * Do the callbacks to Sonar and store the measures of a webhook call,
+     * unless the analysis of the webhook call has already been stored.
+     *
+     * @param payload the decoded webhook call
+     */
+    void processWebhook(WebhookPayload payload) throws IOException, URISyntaxException, SQLException {
+        if (isRepeatedWebhook(payload)) {
+            return;
+        }
+
+        try {
+            var build = callbackToSonarServerToGetMetrics(payload);
+            saveMeasuresInDatabase(build);
+        } catch (IOException | URISyntaxException | SQLException | RuntimeException e) {
+            pipelineMetrics.webhookFailed(payload.serverUrl());
+            throw e;
+        }
+
+        pipelineMetrics.webhookSucceeded(payload.serverUrl());
+        var cache = dedupeCache;
+        if (cache != null) {
+            cache.record(payload.dedupeKey());
+        }
+    }
+
+    private boolean isRepeatedWebhook(WebhookPayload payload) {
+        var cache = dedupeCache;
+        if (cache != null && cache.contains(payload.dedupeKey())) {
+            logger.info("sonar-collector skipping repeated webhook call for project {} from server {}", payload.projectKey(), payload.serverUrl());
+            return true;
+        }
+
+        return false;
+    }
+
+    boolean isValidWebhookPayload(WebhookPayload payload) {
+        if ("".equals(payload.projectKey())) {
+            return false;
+        }
+
+        try {
+            var serverUrl = new URI(payload.serverUrl());
+            parseTimestamp(payload.analysedAt());
+            return serverUrl.isAbsolute();
+        } catch (URISyntaxException | DateTimeParseException e) {
+            return false;
+        }
+    }
+
     SonarBuild callbackToSonarServerToGetMetrics(ServletRequest request) throws IOException, URISyntaxException {
         try(var postbody = request.getInputStream()) {
-            var root = mapper.readTree(postbody);
-            var analysedAt = findAnalysisTimeAsMillisecondsFromEpoch(root);
-            var project = findProjectKey(root);
-            var serverUrl = findSonarServerUrl(root);
-            logger.info("sonar-collector webhook called for project {} from server {}", project, serverUrl);
+            return callbackToSonarServerToGetMetrics(WebhookPayload.decode(mapper.getFactory(), postbody));
+        }
+    }
+
+    SonarBuild callbackToSonarServerToGetMetrics(WebhookPayload payload) throws IOException, URISyntaxException {
+        var settings = configuration.snapshot();
+        var analysedAt = parseTimestamp(payload.analysedAt());
+        var project = payload.projectKey();
+        var serverUrl = new URI(payload.serverUrl());
+        logger.info("sonar-collector webhook called for project {} from server {}", project, serverUrl);
+
+        // Concurrent webhook calls for the same analysis (e.g. retries from Sonar) share the same callbacks
+        var analysisId = payload.analysisIdOrTaskId();
+        var key = new EnrichmentKey(serverUrl, project, analysisId != null ? analysisId : payload.analysedAt());
+        return waitForResult(enrichments.execute(key, () -> enrich(settings, analysedAt, payload, serverUrl, analysisId)));
+    }
 
-            var version = getAnalyzedProjectMavenVersionFromSonarServer(project, serverUrl);
+    private CompletableFuture<SonarBuild> enrich(ConfigurationSnapshot settings, long analysedAt, WebhookPayload payload, URI serverUrl, String analysisId) {
+        var project = payload.projectKey();
+        try {
+            // The two callbacks are independent of each other, so both are started before waiting for the results
+            var version = settings.isPayloadMeasuresEnabled() && !payload.version().isEmpty() ?
+                avoidedCallback(payload.version()) :
+                getAnalyzedProjectMavenVersionFromSonarServer(project, serverUrl);
+            var measures = settings.isPayloadMeasuresEnabled() ?
+                getAnalyzedProjectMetricsFromPayload(payload, serverUrl, settings) :
+                getAnalyzedProjectMetricsFromSonarServer(settings, serverUrl, project, settings.getMetricKeysQueryParameter());
+            return version.thenCombine(measures, (mavenVersion, measurements) -> new SonarBuild(analysedAt, project, mavenVersion, serverUrl, analysisId, measurements));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Take the measures found in the quality gate conditions of the webhook
+     * payload, and only call back to Sonar for the metrics that the payload
+     * doesn't have.
+     */
+    private CompletableFuture<Measurements> getAnalyzedProjectMetricsFromPayload(WebhookPayload payload, URI serverUrl, ConfigurationSnapshot settings) throws IOException {
+        var fromPayload = new LinkedHashMap<String, String>();
+        var missing = new ArrayList<String>();
+        var measurements = new Measurements();
+        for (var metricKey : settings.getMetricKeys()) {
+            var value = payload.conditionValues().get(metricKey);
+            if (value != null && measurements.set(metricKey, value)) {
+                fromPayload.put(metricKey, value);
+            } else {
+                missing.add(metricKey);
+            }
+        }
 
-            return getAnalyzedProjectMetricsFromSonarServer(serverUrl, project, version, analysedAt);
+        if (missing.isEmpty()) {
+            return avoidedCallback(measurements);
         }
+
+        return getAnalyzedProjectMetricsFromSonarServer(settings, serverUrl, payload.projectKey(), String.join(",", missing))
+            .thenApply(fromSonar -> {
+                // The measures from Sonar may be shared with other webhook calls, so they are copied before adding the payload values
+                var combined = fromSonar.copy();
+                fromPayload.forEach(combined::set);
+                return combined;
+            });
     }
 
-    private String getAnalyzedProjectMavenVersionFromSonarServer(String project, URI serverUrl) throws IOException {
+    private <T> CompletableFuture<T> avoidedCallback(T value) {
+        callbacksAvoided.increment();
+        return CompletableFuture.completedFuture(value);
+    }
+
+    long getCallbacksAvoidedCount() {
+        return callbacksAvoided.sum();
+    }
+
+    private CompletableFuture<String> getAnalyzedProjectMavenVersionFromSonarServer(String project, URI serverUrl) throws IOException {
         var componentsShowUrl = createSonarComponentsShowUrl(serverUrl, project);
-        var componentsShowUrlConnection = openConnection(componentsShowUrl);
-        var componentsShowRoot = mapper.readTree(componentsShowUrlConnection.getInputStream());
-        var version = componentsShowRoot.path("component").path("version").asText();
-        if ("".equals(version)) {
-            logger.warn(String.format("Maven version is missing from build \"%s\". API URL used to request the version, is: %s", project, componentsShowUrl.toString()));
+        var startedAt = System.nanoTime();
+        return sonarApiClient.get(componentsShowUrl)
+            .whenComplete((body, e) -> pipelineMetrics.componentsShowCallback.observeSince(startedAt))
+            .thenApply(body -> {
+                var componentsShowRoot = readTree(body);
+                var version = componentsShowRoot.path("component").path("version").asText();
+                if ("".equals(version)) {
+                    logger.warn(String.format("Maven version is missing from build \"%s\". API URL used to request the version, is: %s", project, componentsShowUrl.toString()));
+                }
+
+                return version;
+            });
+    }
+
+    private CompletableFuture<Measurements> getAnalyzedProjectMetricsFromSonarServer(ConfigurationSnapshot settings, URI serverUrl, String project, String metricKeysQueryParameter) throws IOException {
+        if (settings.isCallbacksBatchEnabled()) {
+            return measuresSearches.fetch(serverUrl, project, metricKeysQueryParameter);
         }
 
-        return version;
+        return getAnalyzedProjectMetricsFromSonarServer(serverUrl, project, metricKeysQueryParameter);
     }
 
-    private SonarBuild getAnalyzedProjectMetricsFromSonarServer(URI serverUrl, String project, String version, long analysedAt) throws IOException {
-        var build = new SonarBuild(analysedAt, project, version, serverUrl);
-        var measurementsUrl = createSonarMeasurementsComponentUrl(build, configuration.getMetricKeys());
-        var measurementsUrlConnection = openConnection(measurementsUrl);
-        var measurementsRoot = mapper.readTree(measurementsUrlConnection.getInputStream());
-        parseMeasures(build.getMeasurements(), measurementsRoot.path("component").path("measures"));
-        return build;
+    private CompletableFuture<Measurements> getAnalyzedProjectMetricsFromSonarServer(URI serverUrl, String project, String metricKeysQueryParameter) throws IOException {
+        var measurementsUrl = createSonarMeasurementsComponentUrl(serverUrl, project, metricKeysQueryParameter);
+        var startedAt = System.nanoTime();
+        return sonarApiClient.get(measurementsUrl)
+            .whenComplete((body, e) -> pipelineMetrics.measuresCallback.observeSince(startedAt))
+            .thenApply(this::decodeMeasurements);
     }
 
-    private int saveMeasuresInDatabase(SonarBuild build) throws SQLException {
-        var isRelease = versionIsReleaseVersion(build.getVersion());
+    /**
+     * Fetch the measures of a batch of projects from a Sonar server.  A single
+     * project is fetched with api/measures/component, and several projects
+     * are fetched together with api/measures/search.
+     */
+    CompletableFuture<Map<String, Measurements>> fetchMeasures(URI serverUrl, List<String> projectKeys, String metricKeysQueryParameter) throws IOException {
+        if (projectKeys.size() == 1) {
+            var project = projectKeys.get(0);
+            return getAnalyzedProjectMetricsFromSonarServer(serverUrl, project, metricKeysQueryParameter)
+                .thenApply(measurements -> Map.of(project, measurements));
+        }
+
+        var measuresSearchUrl = createSonarMeasuresSearchUrl(serverUrl, projectKeys, metricKeysQueryParameter);
+        var startedAt = System.nanoTime();
+        return sonarApiClient.get(measuresSearchUrl)
+            .whenComplete((body, e) -> pipelineMetrics.measuresCallback.observeSince(startedAt))
+            .thenApply(this::decodeMeasuresSearch);
+    }
+
+    private Map<String, Measurements> decodeMeasuresSearch(InputStream body) {
+        var startedAt = System.nanoTime();
+        try (body) {
+            var measurementsByProject = Measurements.decodeSearch(mapper.getFactory(), body);
+            pipelineMetrics.measuresDecode.observeSince(startedAt);
+            return measurementsByProject;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decode the measures of a callback, with the conversion of the
+     * ratings from numbers to letters done by the decoding.
+     */
+    private Measurements decodeMeasurements(InputStream body) {
+        var startedAt = System.nanoTime();
+        try (body) {
+            var measurements = Measurements.decode(mapper.getFactory(), body);
+            pipelineMetrics.measuresDecode.observeSince(startedAt);
+            return measurements;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JsonNode readTree(InputStream body) {
+        try (body) {
+            return mapper.readTree(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static <T> T waitForResult(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            var cause = e.getCause();
+            if (cause instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+
+            throw new IOException("Sonar API callback failed", cause);
+        }
+    }
+
+    int saveMeasuresInDatabase(SonarBuild build) throws SQLException {
+        var startedAt = System.nanoTime();
+        int count;
+        try {
+            count = storeMeasures(build);
+        } finally {
+            pipelineMetrics.databaseInsert.observeSince(startedAt);
+        }
+
+        latestMeasures.update(build);
+        return count;
+    }
+
+    private int storeMeasures(SonarBuild build) throws SQLException {
+        var replayer = spoolReplayer;
+        if (replayer != null && !replayer.isDatabaseAvailable()) {
+            return spoolMeasures(replayer, build, null);
+        }
+
+        try {
+            return insertMeasures(build);
+        } catch (SQLException e) {
+            if (replayer != null && !isDatabaseReachable()) {
+                return spoolMeasures(replayer, build, e);
+            }
+
+            throw e;
+        }
+    }
+
+    private int spoolMeasures(SpoolReplayer replayer, SonarBuild build, SQLException databaseFailure) throws SQLException {
+        try {
+            replayer.spool(build);
+            return 0;
+        } catch (IOException e) {
+            var failure = new SQLException("Sonar Collector unable to write measures to the database or the spool", e);
+            if (databaseFailure != null) {
+                failure.addSuppressed(databaseFailure);
+            }
+
+            throw failure;
+        }
+    }
+
+    /**
+     * Used after a failed write to tell a database that is down, from
+     * e.g. a bad value in a column.
+     */
+    private boolean isDatabaseReachable() {
+        try (var connection = dataSource.getConnection()) {
+            return connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write builds from the spool or from a backfill to the database in a
+     * single transaction.  Builds that have already been stored are skipped.
+     */
+    void insertBuilds(List<SonarBuild> builds) throws SQLException {
+        var settings = configuration.snapshot();
+        retryRolledBack(() -> writeBuilds(builds, settings));
+        builds.forEach(latestMeasures::update);
+    }
+
+    private int writeBuilds(List<SonarBuild> builds, ConfigurationSnapshot settings) throws SQLException {
         try (var connection = dataSource.getConnection()) {
-            try (var statement = connection.prepareStatement("insert into measures (project_key, version, version_is_release, analysis_time, lines, bugs, new_bugs, vulnerabilities, new_vulnerabilities, code_smells, new_code_smells, coverage, new_coverage, complexity, sqale_rating, new_maintainability_rating, security_rating, new_security_rating, reliability_rating, new_reliability_rating) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
-                statement.setString(1, build.getProject());
-                statement.setString(2, build.getVersion());
-                statement.setBoolean(3, isRelease);
-                statement.setTimestamp(4, new Timestamp(build.getAnalysedAt()));
-                statement.setLong(5, Long.valueOf(build.getMeasurements().get("lines")));
-                statement.setLong(6, Long.valueOf(build.getMeasurements().get("bugs")));
-                statement.setLong(7, Long.valueOf(build.getMeasurements().get("new_bugs")));
-                statement.setLong(8, Long.valueOf(build.getMeasurements().get("vulnerabilities")));
-                statement.setLong(9, Long.valueOf(build.getMeasurements().get("new_vulnerabilities")));
-                statement.setLong(10, Long.valueOf(build.getMeasurements().get("code_smells")));
-                statement.setLong(11, Long.valueOf(build.getMeasurements().get("new_code_smells")));
-                statement.setDouble(12, Double.valueOf(build.getMeasurements().get("coverage")));
-                statement.setDouble(13, Double.valueOf(build.getMeasurements().get("new_coverage")));
-                statement.setLong(14, Long.valueOf(build.getMeasurements().get("complexity")));
-                statement.setString(15, extractRating("sqale_rating", build.getMeasurements()));
-                statement.setString(16, extractRating("new_maintainability_rating", build.getMeasurements()));
-                statement.setString(17, extractRating("security_rating", build.getMeasurements()));
-                statement.setString(18, extractRating("new_security_rating", build.getMeasurements()));
-                statement.setString(19, extractRating("reliability_rating", build.getMeasurements()));
-                statement.setString(20, extractRating("new_reliability_rating", build.getMeasurements()));
-
-                return statement.executeUpdate();
+            connection.setAutoCommit(false);
+            try (var statement = prepareInsertMeasures(connection, settings)) {
+                insertMeasures(connection, statement, builds, settings);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!SqlStates.isUniqueViolation(e)) {
+                    throw e;
+                }
+
+                for (var build : builds) {
+                    insertIgnoringDuplicate(connection, build, settings);
+                }
             }
         }
+
+        return builds.size();
     }
 
-    boolean versionIsReleaseVersion(String version) {
-        return !"".equals(version) && !version.endsWith("-SNAPSHOT");
+    /**
+     * Concurrent writers, e.g. the projects of a backfill, can make the
+     * database roll back a transaction because of lock contention or
+     * deadlocks.  Such transactions are run again a few times before
+     * giving up.
+     */
+    private int retryRolledBack(Transaction transaction) throws SQLException {
+        for (var attempt = 1; ; ++attempt) {
+            try {
+                return transaction.run();
+            } catch (SQLException e) {
+                if (attempt >= MAX_TRANSACTION_ATTEMPTS || !SqlStates.isTransactionRollback(e)) {
+                    throw e;
+                }
+
+                logger.warn("Sonar Collector measures transaction rolled back by the database, retrying (attempt {} of {})", attempt, MAX_TRANSACTION_ATTEMPTS);
+            }
+        }
+    }
+
+    private void insertIgnoringDuplicate(Connection connection, SonarBuild build, ConfigurationSnapshot settings) throws SQLException {
+        try (var statement = prepareInsertMeasures(connection, settings)) {
+            insertMeasures(connection, statement, List.of(build), settings);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            if (!SqlStates.isUniqueViolation(e)) {
+                throw e;
+            }
+        }
+    }
+
+    private int insertMeasures(SonarBuild build) throws SQLException {
+        var writer = measuresWriter;
+        if (writer != null) {
+            return writer.write(build);
+        }
+
+        var settings = configuration.snapshot();
+        try {
+            return retryRolledBack(() -> writeMeasures(build, settings));
+        } catch (SQLException e) {
+            if (SqlStates.isUniqueViolation(e)) {
+                logger.info("sonar-collector measures of analysis {} of project {} have already been stored", build.getAnalysisId(), build.getProject());
+                return 0;
+            }
+
+            throw e;
+        }
+    }
+
+    private int writeMeasures(SonarBuild build, ConfigurationSnapshot settings) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            if (!settings.isMeasureValuesEnabled() && !settings.isRollupsEnabled()) {
+                try (var statement = connection.prepareStatement(INSERT_MEASURES_SQL)) {
+                    bindMeasures(statement, build);
+
+                    return statement.executeUpdate();
+                }
+            }
+
+            connection.setAutoCommit(false);
+            try (var statement = prepareInsertMeasures(connection, settings)) {
+                insertMeasures(connection, statement, List.of(build), settings);
+                connection.commit();
+                return 1;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static PreparedStatement prepareInsertMeasures(Connection connection, ConfigurationSnapshot settings) throws SQLException {
+        return settings.isMeasureValuesEnabled() ?
+            MeasureValuesWriter.prepareInsert(connection, INSERT_MEASURES_SQL) :
+            connection.prepareStatement(INSERT_MEASURES_SQL);
+    }
+
+    /**
+     * Insert the measures rows of builds, and the measure values and rollups
+     * when they are enabled, in the transaction of the connection.
+     */
+    private void insertMeasures(Connection connection, PreparedStatement statement, List<SonarBuild> builds, ConfigurationSnapshot settings) throws SQLException {
+        if (settings.isMeasureValuesEnabled()) {
+            measureValues.insert(connection, statement, builds, this::bindMeasures);
+        } else {
+            for (var build : builds) {
+                bindMeasures(statement, build);
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+        }
+
+        if (settings.isRollupsEnabled()) {
+            rollups.update(connection, builds);
+        }
     }
 
-    public Map<String, String> parseMeasures(Map<String, String> measuresResults, JsonNode measuresNode) {
-        for (var measureNode : measuresNode) {
-            var metric = measureNode.path("metric").asText();
-            var value = measureNode.path("value").asText();
-            if ("".equals(value)) {
-                value = measureNode.path("periods").path(0).path("value").asText();
+    void bindMeasures(PreparedStatement statement, SonarBuild build) throws SQLException {
+        var isRelease = versionIsReleaseVersion(build.getVersion());
+        statement.setString(1, build.getProject());
+        statement.setString(2, build.getVersion());
+        statement.setBoolean(3, isRelease);
+        statement.setTimestamp(4, new Timestamp(build.getAnalysedAt()));
+        var measurements = build.getMeasurements();
+        var parameterIndex = 5;
+        for (var metric : Metric.all()) {
+            switch (metric.type()) {
+                case LONG -> statement.setLong(parameterIndex, measurements.getLong(metric));
+                case DOUBLE -> statement.setDouble(parameterIndex, measurements.getDouble(metric));
+                case RATING -> statement.setString(parameterIndex, extractRating(metric, measurements));
             }
 
-            measuresResults.put(metric, value);
+            ++parameterIndex;
+        }
+
+        if (build.getAnalysisId() != null) {
+            statement.setString(parameterIndex, build.getAnalysisId());
+        } else {
+            statement.setNull(parameterIndex, Types.VARCHAR);
         }
-        return measuresResults;
+    }
+
+    boolean versionIsReleaseVersion(String version) {
+        return isReleaseVersion(version);
+    }
+
+    static boolean isReleaseVersion(String version) {
+        return !"".equals(version) && !version.endsWith("-SNAPSHOT");
     }
 
     public URI createSonarComponentsShowUrl(URI serverUrl, String project) throws IOException {
@@ -210,62 +1167,51 @@ public class SonarCollectorServlet extends HttpServlet {
     }
 
     public URI createSonarMeasurementsComponentUrl(SonarBuild build, String[] metricKeys) throws IOException {
-        var localPath = String.format("/api/measures/component?component=%s&metricKeys=%s", URLEncoder.encode(build.getProject(),"UTF-8"), String.join(",", metricKeys));
-        return build.getServerUrl().resolve(localPath);
+        return createSonarMeasurementsComponentUrl(build.getServerUrl(), build.getProject(), metricKeys);
     }
 
-    private long findAnalysisTimeAsMillisecondsFromEpoch(JsonNode root) {
-        return parseTimestamp(root.path("analysedAt").asText());
+    public URI createSonarMeasurementsComponentUrl(URI serverUrl, String project, String[] metricKeys) throws IOException {
+        return createSonarMeasurementsComponentUrl(serverUrl, project, String.join(",", metricKeys));
     }
 
-    private String findProjectKey(JsonNode root) {
-        return root.path("project").path("key").asText();
+    URI createSonarMeasurementsComponentUrl(URI serverUrl, String project, String metricKeysQueryParameter) throws IOException {
+        var localPath = "/api/measures/component?component=" + URLEncoder.encode(project,"UTF-8") + "&metricKeys=" + metricKeysQueryParameter;
+        return serverUrl.resolve(localPath);
     }
 
-    private URI findSonarServerUrl(JsonNode root) throws URISyntaxException {
-        return new URI(root.path("serverUrl").asText());
+    URI createSonarMeasuresSearchUrl(URI serverUrl, List<String> projectKeys, String metricKeysQueryParameter) throws IOException {
+        var localPath = "/api/measures/search?projectKeys=" + URLEncoder.encode(String.join(",", projectKeys), "UTF-8") + "&metricKeys=" + metricKeysQueryParameter;
+        return serverUrl.resolve(localPath);
     }
 
     long parseTimestamp(String timestamp) {
-        return ZonedDateTime.parse(timestamp, isoZonedDateTimeformatter).toEpochSecond() * 1000;
+        return IsoTimestamps.parseEpochMillis(timestamp);
     }
 
     HttpURLConnection openConnection(URI url) throws IOException {
-        if (configuration.hasSonarApiUserToken()) {
-            var connection = factory.openConnection(url);
-            var authorization =
-                "Basic " +
-                Base64.getEncoder().encodeToString((configuration.getSonarApiUserToken() + ":").getBytes());
+        var policy = configuration.snapshot().getCallbackPolicy();
+        var connection = factory.openConnection(url);
+        connection.setConnectTimeout(policy.connectTimeoutMillis());
+        connection.setReadTimeout(policy.readTimeoutMillis());
+        var authorization = configuration.getSonarApiAuthorization(url);
+        if (authorization != null) {
             connection.setRequestProperty("Authorization", authorization);
-            return connection;
-        } else {
-            return factory.openConnection(url);
         }
+
+        return connection;
     }
 
     public SonarCollectorConfiguration getConfiguration() {
         return configuration;
     }
 
-    public String extractRating(String rating, Map<String, String> measuresResults) {
-        return convertFromNumberToRating(rating, measuresResults.get(rating));
-    }
-
-    public String convertFromNumberToRating(String rating, String number) {
-        if ("1.0".equals(number)) {
-            return "A";
-        } else if ("2.0".equals(number)) {
-            return "B";
-        } else if ("3.0".equals(number)) {
-            return "C";
-        } else if ("4.0".equals(number)) {
-            return "D";
-        } else if ("5.0".equals(number)) {
-            return "E";
+    String extractRating(Metric rating, Measurements measurements) {
+        var letter = measurements.getRatingLetter(rating);
+        if ("".equals(letter)) {
+            logger.warn("Missing rating \"{}\" in measures from Sonar", rating.key());
         }
 
-        logger.warn("Unable to convert number \"{}\" to rating for rating \"{}\"", number, rating);
-        return "";
+        return letter;
     }
 
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * The settings of the callbacks to one Sonar server.  Servers listed in
+ * the configuration may have settings of their own, other servers use the
+ * default settings.
+ *
+ * @param serverKey identifies the server, see {@link #serverKey(URI)}, null for the default settings
+ * @param authorization the value of the Authorization header of the calls to the server, or null if the calls aren't authenticated
+ * @param maxConcurrentCalls the max number of calls in progress to the server at the same time
+ * @param failureThreshold the number of failed calls in a row that opens the circuit breaker of the server
+ * @param openMillis the time the circuit breaker stays open before a trial call is let through
+ *
+ * @author Steinar Bang
+ *
+ */
+record SonarServerSettings(String serverKey, String authorization, int maxConcurrentCalls, int failureThreshold, int openMillis) {
+
+    /**
+     * The scheme and authority of a URL, which identify the server the URL refers to.
+     *
+     * @param url a URL to a Sonar server, or to one of the web API requests of the server
+     * @return the lower case scheme and authority of the URL, e.g. "https://sonarcloud.io"
+     */
+    static String serverKey(URI url) {
+        var scheme = url.getScheme() != null ? url.getScheme() : "";
+        var authority = url.getRawAuthority() != null ? url.getRawAuthority() : "";
+        return (scheme + "://" + authority).toLowerCase(Locale.ROOT);
+    }
+
+}
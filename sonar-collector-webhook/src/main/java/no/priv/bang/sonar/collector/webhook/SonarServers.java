@@ -0,0 +1,263 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the Sonar servers the collector calls back to, that
+ * isolates the calls to each server from the calls to the other servers,
+ * so that a slow or failing server doesn't hold up the webhook calls from
+ * the healthy servers.
+ *
+ * Each server has:
+ * <ul>
+ * <li>a bulkhead limiting the number of calls in progress to the server, a call waits for at most a configured time for a free slot, and then fails</li>
+ * <li>a circuit breaker that opens after a number of failed calls in a row, and fails the calls to the server without trying them until the breaker has been open for a configured time, after which a single trial call decides if the breaker closes or opens again</li>
+ * </ul>
+ *
+ * The calls themselves are done by the wrapped client, which keeps a
+ * connection pool per server.
+ *
+ * @author Steinar Bang
+ *
+ */
+class SonarServers implements SonarApiClient {
+
+    // The server URLs come from the webhook payloads, so servers not in the configuration beyond this number share a state
+    static final int MAX_UNLISTED_SERVERS = 64;
+    static final String OTHER_SERVERS = "other";
+
+    private final SonarApiClient client;
+    private final SonarCollectorConfiguration configuration;
+    private final LongSupplier nanoClock;
+    private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder shortCircuitedCalls = new LongAdder();
+
+    enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * The state of a circuit breaker.  The methods are synchronized,
+     * since they are only called once or twice per call to the server.
+     */
+    static class CircuitBreaker {
+        private final int failureThreshold;
+        private final long openNanos;
+        private CircuitState state = CircuitState.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean trialInProgress;
+
+        CircuitBreaker(int failureThreshold, long openMillis) {
+            this.failureThreshold = Math.max(1, failureThreshold);
+            this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        }
+
+        synchronized boolean allowCall(long now) {
+            if (state == CircuitState.OPEN && now - openedAt >= openNanos) {
+                state = CircuitState.HALF_OPEN;
+            }
+
+            if (state == CircuitState.HALF_OPEN) {
+                if (trialInProgress) {
+                    return false;
+                }
+
+                trialInProgress = true;
+                return true;
+            }
+
+            return state == CircuitState.CLOSED;
+        }
+
+        synchronized void onSuccess() {
+            state = CircuitState.CLOSED;
+            consecutiveFailures = 0;
+            trialInProgress = false;
+        }
+
+        synchronized void onFailure(long now) {
+            ++consecutiveFailures;
+            if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                state = CircuitState.OPEN;
+                openedAt = now;
+            }
+
+            trialInProgress = false;
+        }
+
+        /**
+         * Used for calls that fail in a way that tells nothing about the
+         * health of the server, so that a trial call doesn't hold the
+         * breaker half open.
+         */
+        synchronized void onIgnoredFailure() {
+            trialInProgress = false;
+        }
+
+        synchronized CircuitState getState() {
+            return state;
+        }
+    }
+
+    /**
+     * A call that was not tried because the server is failing or busy.
+     * These calls shouldn't be retried right away, since a retry would
+     * only add to the load of the server.
+     */
+    static class CallRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CallRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    record Server(SonarServerSettings settings, Semaphore bulkhead, CircuitBreaker circuitBreaker) {
+
+        static Server create(SonarServerSettings settings) {
+            return new Server(settings, new Semaphore(Math.max(1, settings.maxConcurrentCalls())), new CircuitBreaker(settings.failureThreshold(), settings.openMillis()));
+        }
+
+        boolean hasSameLimits(SonarServerSettings other) {
+            return settings.maxConcurrentCalls() == other.maxConcurrentCalls() &&
+                settings.failureThreshold() == other.failureThreshold() &&
+                settings.openMillis() == other.openMillis();
+        }
+
+    }
+
+    SonarServers(SonarApiClient client, SonarCollectorConfiguration configuration) {
+        this(client, configuration, System::nanoTime);
+    }
+
+    SonarServers(SonarApiClient client, SonarCollectorConfiguration configuration, LongSupplier nanoClock) {
+        this.client = client;
+        this.configuration = configuration;
+        this.nanoClock = nanoClock;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> get(URI url) {
+        var settings = configuration.snapshot();
+        var server = serverFor(url, settings);
+        if (!server.circuitBreaker().allowCall(nanoClock.getAsLong())) {
+            shortCircuitedCalls.increment();
+            return CompletableFuture.failedFuture(new CallRejectedException("Sonar server " + SonarServerSettings.serverKey(url) + " is failing, calls are stopped for a while"));
+        }
+
+        if (!acquire(server, settings.getCallbacksMaxWaitMillis())) {
+            server.circuitBreaker().onIgnoredFailure();
+            rejectedCalls.increment();
+            return CompletableFuture.failedFuture(new CallRejectedException("Too many calls in progress to Sonar server " + SonarServerSettings.serverKey(url)));
+        }
+
+        CompletableFuture<InputStream> call;
+        try {
+            call = client.get(url);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+
+        return call.whenComplete((body, failure) -> {
+            server.bulkhead().release();
+            if (failure == null) {
+                server.circuitBreaker().onSuccess();
+            } else if (isServerFailure(failure)) {
+                server.circuitBreaker().onFailure(nanoClock.getAsLong());
+            } else {
+                // A failure of the request, such as an unknown project, tells that the server is up
+                server.circuitBreaker().onSuccess();
+            }
+        });
+    }
+
+    Server serverFor(URI url, ConfigurationSnapshot settings) {
+        var serverSettings = settings.getSonarServerSettings(url);
+        var key = serverSettings.serverKey();
+        if (key == null) {
+            // Not a listed server, the default settings are shared by all unlisted servers
+            key = SonarServerSettings.serverKey(url);
+            if (!servers.containsKey(key) && servers.size() >= MAX_UNLISTED_SERVERS) {
+                key = OTHER_SERVERS;
+            }
+        }
+
+        // The state is replaced when the limits of the server have been changed
+        return servers.compute(key, (k, server) -> server != null && server.hasSameLimits(serverSettings) ? server : Server.create(serverSettings));
+    }
+
+    private static boolean acquire(Server server, int maxWaitMillis) {
+        try {
+            return server.bulkhead().tryAcquire(Math.max(0, maxWaitMillis), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static boolean isServerFailure(Throwable failure) {
+        var cause = failure;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        if (cause instanceof SonarApiException sonarApiException) {
+            return sonarApiException.isServerUnhealthy();
+        }
+
+        // Connections refused or reset, and timeouts
+        return cause instanceof IOException;
+    }
+
+    CircuitState getCircuitState(URI url) {
+        var server = servers.get(SonarServerSettings.serverKey(url));
+        return server != null ? server.circuitBreaker().getState() : CircuitState.CLOSED;
+    }
+
+    long getOpenCircuitCount() {
+        return servers.values().stream().filter(server -> server.circuitBreaker().getState() != CircuitState.CLOSED).count();
+    }
+
+    long getRejectedCallCount() {
+        return rejectedCalls.sum();
+    }
+
+    long getShortCircuitedCallCount() {
+        return shortCircuitedCalls.sum();
+    }
+
+    int getNumberOfServers() {
+        return servers.size();
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * Keeps track of whether the database is available, and writes the
+ * builds of a {@link MeasuresSpool} to the database in batches, when
+ * the database becomes available again.
+ *
+ * While the database is unavailable, new builds go straight to the spool,
+ * so that webhook calls don't have to wait for database timeouts.
+ *
+ * A batch failing while the database is reachable is retried one build at
+ * the time, and the builds the database rejects (e.g. because of a bad
+ * value), or that can't be decoded, are quarantined by the spool, so that
+ * they don't block the builds after them.
+ *
+ * @author Steinar Bang
+ *
+ */
+class SpoolReplayer {
+
+    @FunctionalInterface
+    interface BatchInserter {
+        void insert(List<SonarBuild> builds) throws SQLException;
+    }
+
+    private final MeasuresSpool spool;
+    private final BatchInserter inserter;
+    private final BooleanSupplier databaseReachable;
+    private final int batchSize;
+    private final long intervalNanos;
+    private final LoggerAdapter logger;
+    private final Thread replayer;
+    private final AtomicLong replayedCount = new AtomicLong();
+    private volatile boolean databaseAvailable = true;
+    private volatile boolean running = true;
+
+    SpoolReplayer(MeasuresSpool spool, BatchInserter inserter, BooleanSupplier databaseReachable, int batchSize, long intervalMillis, LoggerAdapter logger) {
+        this.spool = spool;
+        this.inserter = inserter;
+        this.databaseReachable = databaseReachable;
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+        this.logger = logger;
+        this.replayer = Thread.ofVirtual().name("sonar-collector-spool-replayer").start(this::replayLoop);
+    }
+
+    boolean isDatabaseAvailable() {
+        return databaseAvailable;
+    }
+
+    /**
+     * Put a build on the spool, and have new builds go to the spool until
+     * the replayer has been able to write to the database.
+     *
+     * @param build the build that couldn't be written to the database
+     * @throws IOException if the build couldn't be written to the spool
+     */
+    void spool(SonarBuild build) throws IOException {
+        if (databaseAvailable) {
+            databaseAvailable = false;
+            logger.warn("Sonar Collector database unavailable, spooling measures until it is available again");
+        }
+
+        spool.append(build);
+        LockSupport.unpark(replayer);
+    }
+
+    private void replayLoop() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            replayPending();
+        }
+    }
+
+    /**
+     * Write the spooled builds to the database, one batch at a time,
+     * until the spool is empty or the database is unavailable.  Synchronized,
+     * so that a batch isn't written twice by replays running at the same time.
+     */
+    synchronized void replayPending() {
+        if (!databaseAvailable && spool.getPendingRecords() == 0) {
+            // Nothing to replay, let the next build try the database
+            databaseAvailable = true;
+            return;
+        }
+
+        try {
+            while (running && spool.getPendingRecords() > 0) {
+                var batch = spool.peek(batchSize);
+                if (!replayBatch(batch)) {
+                    return; // Try again after the interval
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Sonar Collector unable to update the spool", e);
+        }
+    }
+
+    private boolean replayBatch(List<MeasuresSpool.SpooledBuild> batch) throws IOException {
+        if (batch.stream().allMatch(spooled -> spooled.build() != null)) {
+            try {
+                inserter.insert(batch.stream().map(MeasuresSpool.SpooledBuild::build).toList());
+                replayed(batch);
+                return true;
+            } catch (SQLException e) {
+                if (!isRejectedByTheDatabase(e)) {
+                    return false;
+                }
+
+                logger.warn("Sonar Collector unable to write a batch of {} spooled measures, writing them one at a time", batch.size(), e);
+            }
+        }
+
+        for (var spooled : batch) {
+            if (!replayBuild(spooled)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean replayBuild(MeasuresSpool.SpooledBuild spooled) throws IOException {
+        if (spooled.build() == null) {
+            var file = spool.quarantine(spooled);
+            logger.error("Sonar Collector moved a spooled record that couldn't be decoded to {}", file);
+            return true;
+        }
+
+        try {
+            inserter.insert(List.of(spooled.build()));
+            replayed(List.of(spooled));
+            return true;
+        } catch (SQLException e) {
+            if (!isRejectedByTheDatabase(e)) {
+                return false;
+            }
+
+            var file = spool.quarantine(spooled);
+            logger.error("Sonar Collector database rejected the spooled measures of {} analysed at {}, moved them to {}", spooled.build().getProject(), spooled.build().getAnalysedAt(), file, e);
+            return true;
+        }
+    }
+
+    private void replayed(List<MeasuresSpool.SpooledBuild> builds) throws IOException {
+        spool.remove(builds);
+        replayedCount.addAndGet(builds.size());
+        if (!databaseAvailable) {
+            databaseAvailable = true;
+            logger.info("Sonar Collector database available again, writing {} spooled measures", spool.getPendingRecords());
+        }
+    }
+
+    /**
+     * Tell a database rejecting the measures (e.g. because of a bad value),
+     * from a database that can't be reached, or a transaction rolled back
+     * by the database, that will be tried again after the interval.
+     */
+    private boolean isRejectedByTheDatabase(SQLException e) {
+        if (SqlStates.isConnectionException(e) || !databaseReachable.getAsBoolean()) {
+            if (databaseAvailable) {
+                logger.warn("Sonar Collector database unavailable, spooled measures will be written when it is available again", e);
+            }
+
+            databaseAvailable = false;
+            return false;
+        }
+
+        if (SqlStates.isTransactionRollback(e)) {
+            logger.warn("Sonar Collector transaction writing spooled measures rolled back, trying again later", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop the replayer.  Builds still in the spool are kept, and will be
+     * written to the database by the next replayer using the same spool directory.
+     *
+     * @param timeoutMillis the max time to wait for a batch being written
+     */
+    void shutdown(long timeoutMillis) {
+        running = false;
+        LockSupport.unpark(replayer);
+        try {
+            if (!replayer.join(Duration.ofMillis(timeoutMillis))) {
+                replayer.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of spooled builds written to the database
+     */
+    long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    MeasuresSpool getSpool() {
+        return spool;
+    }
+
+}
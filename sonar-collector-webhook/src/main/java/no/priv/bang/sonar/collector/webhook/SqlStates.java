@@ -0,0 +1,90 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.sql.SQLException;
+
+/**
+ * SQLSTATE values used by the collector.  The values are from the SQL
+ * standard and are the same for PostgreSQL and derby.
+ *
+ * @author Steinar Bang
+ *
+ */
+final class SqlStates {
+
+    static final String UNIQUE_VIOLATION = "23505";
+    static final String TRANSACTION_ROLLBACK_CLASS = "40";
+    static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private SqlStates() {}
+
+    /**
+     * Check if an exception, or one of the exceptions chained to it, is
+     * caused by inserting a row that would violate a unique constraint.
+     *
+     * @param e the exception to check
+     * @return true if a unique constraint was violated
+     */
+    static boolean isUniqueViolation(SQLException e) {
+        for (var current = e; current != null; current = current.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(current.getSQLState())) {
+                return true;
+            }
+
+            if (current.getCause() instanceof SQLException cause && UNIQUE_VIOLATION.equals(cause.getSQLState())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if an exception is caused by the database rolling back the
+     * transaction, e.g. because of a deadlock or a lock timeout, in which
+     * case the transaction can be retried.
+     *
+     * @param e the exception to check
+     * @return true if the transaction was rolled back by the database
+     */
+    static boolean isTransactionRollback(SQLException e) {
+        return hasSqlStateClass(e, TRANSACTION_ROLLBACK_CLASS);
+    }
+
+    /**
+     * Check if an exception is caused by the connection to the database,
+     * e.g. the connection being refused or lost.
+     *
+     * @param e the exception to check
+     * @return true if the connection to the database failed
+     */
+    static boolean isConnectionException(SQLException e) {
+        return hasSqlStateClass(e, CONNECTION_EXCEPTION_CLASS);
+    }
+
+    private static boolean hasSqlStateClass(SQLException e, String sqlStateClass) {
+        for (var current = e; current != null; current = current.getNextException()) {
+            var sqlState = current.getSQLState();
+            if (sqlState != null && sqlState.startsWith(sqlStateClass)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
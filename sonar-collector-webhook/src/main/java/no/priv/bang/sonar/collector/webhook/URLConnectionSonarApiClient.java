@@ -0,0 +1,56 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link SonarApiClient} doing blocking calls on an
+ * {@link java.net.HttpURLConnection} from a {@link URLConnectionFactory}.
+ *
+ * The call is done in the calling thread, and the returned future
+ * is already completed when {@link #get(URI)} returns.
+ *
+ * @author Steinar Bang
+ *
+ */
+public class URLConnectionSonarApiClient implements SonarApiClient {
+
+    private final URLConnectionFactory factory;
+
+    public URLConnectionSonarApiClient(URLConnectionFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public CompletableFuture<InputStream> get(URI url) {
+        try {
+            var connection = factory.openConnection(url);
+            var statusCode = connection.getResponseCode();
+            if (statusCode >= 400) {
+                throw new SonarApiException(url, statusCode);
+            }
+
+            return CompletableFuture.completedFuture(connection.getInputStream());
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control in front of the webhook processing, that sheds
+ * webhook calls with a fast response when there are too many of them,
+ * instead of letting them pile up on the threads of the web server.
+ *
+ * <ul>
+ * <li>A global limit on the number of webhook calls processed at the same time, a webhook call over the limit gets "503 Service Unavailable"</li>
+ * <li>A token bucket per project, limiting the rate of webhook calls for each project, a webhook call for a project over its rate gets "429 Too Many Requests"</li>
+ * </ul>
+ *
+ * Both responses have a Retry-After header.  The webhook calls of
+ * release versions aren't shed, since the measures of the releases
+ * are the ones most worth keeping.  Note that a release version is only
+ * recognized when the webhook payload has the version, i.e. when the
+ * analysis was given the sonar.analysis.version property.  The version
+ * isn't looked up before admission, so the webhook calls of releases
+ * without a version in the payload are shed like any other webhook call.
+ *
+ * @author Steinar Bang
+ *
+ */
+class WebhookAdmission {
+
+    // The project keys come from the webhook payloads, so projects beyond this number share a bucket
+    static final int MAX_TRACKED_PROJECTS = 10000;
+    static final String OTHER_PROJECTS = "";
+
+    private final LongSupplier nanoClock;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder protectedFromShedding = new LongAdder();
+    private final LongAdder shedOverloaded = new LongAdder();
+    private final LongAdder shedRateLimited = new LongAdder();
+
+    /**
+     * The response to a webhook call that is shed.
+     *
+     * @param status the HTTP status of the response
+     * @param retryAfterSeconds the value of the Retry-After header of the response
+     */
+    record Rejection(int status, long retryAfterSeconds) {}
+
+    /**
+     * A token bucket refilled at a steady rate up to a max number of
+     * tokens.  Only used once per webhook call, so the methods are synchronized.
+     */
+    static class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        synchronized boolean tryTake(long now, double tokensPerSecond, int burst) {
+            refill(now, tokensPerSecond, burst);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+
+            return false;
+        }
+
+        synchronized long secondsUntilNextToken(double tokensPerSecond) {
+            if (tokens >= 1 || tokensPerSecond <= 0) {
+                return 1;
+            }
+
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerSecond));
+        }
+
+        synchronized long nanosUntilNextToken(double tokensPerSecond) {
+            if (tokens >= 1) {
+                return 0;
+            }
+
+            if (tokensPerSecond <= 0) {
+                return TimeUnit.SECONDS.toNanos(1);
+            }
+
+            return (long) Math.ceil((1 - tokens) / tokensPerSecond * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        synchronized boolean isFull(long now, double tokensPerSecond, int burst) {
+            refill(now, tokensPerSecond, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, double tokensPerSecond, int burst) {
+            var elapsedSeconds = (now - refilledAt) / (double) TimeUnit.SECONDS.toNanos(1);
+            tokens = Math.min(burst, tokens + elapsedSeconds * tokensPerSecond);
+            refilledAt = now;
+        }
+    }
+
+    WebhookAdmission() {
+        this(System::nanoTime);
+    }
+
+    WebhookAdmission(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Decide if a webhook call is processed or shed.
+     *
+     * @param projectKey the project of the webhook call
+     * @param isRelease true if the payload of the webhook call has a release version, which isn't shed
+     * @param limitConcurrency if true the webhook call is counted against the global limit, and {@link #done()} must be called when it has been processed
+     * @param settings the configuration of the webhook call
+     * @return null if the webhook call is admitted, otherwise the response to the webhook call
+     */
+    Rejection admit(String projectKey, boolean isRelease, boolean limitConcurrency, ConfigurationSnapshot settings) {
+        if (limitConcurrency && !tryEnter(settings.getAdmissionMaxConcurrentWebhooks())) {
+            if (!isRelease) {
+                shedOverloaded.increment();
+                return new Rejection(503, settings.getAdmissionRetryAfterSeconds());
+            }
+
+            inFlight.incrementAndGet();
+            protectedFromShedding.increment();
+            admitted.increment();
+            return null;
+        }
+
+        var tokensPerSecond = settings.getAdmissionProjectRatePerMinute() / 60.0;
+        var burst = settings.getAdmissionProjectBurst();
+        var now = nanoClock.getAsLong();
+        var bucket = bucketFor(projectKey, now, tokensPerSecond, burst);
+        if (!bucket.tryTake(now, tokensPerSecond, burst)) {
+            if (!isRelease) {
+                if (limitConcurrency) {
+                    inFlight.decrementAndGet();
+                }
+
+                shedRateLimited.increment();
+                return new Rejection(429, bucket.secondsUntilNextToken(tokensPerSecond));
+            }
+
+            protectedFromShedding.increment();
+        }
+
+        admitted.increment();
+        return null;
+    }
+
+    /**
+     * Called when an admitted webhook call counted against the global limit has been processed.
+     */
+    void done() {
+        inFlight.decrementAndGet();
+    }
+
+    private boolean tryEnter(int maxConcurrentWebhooks) {
+        while (true) {
+            var current = inFlight.get();
+            if (current >= maxConcurrentWebhooks) {
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    TokenBucket bucketFor(String projectKey, long now, double tokensPerSecond, int burst) {
+        var bucket = buckets.get(projectKey);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (buckets.size() >= MAX_TRACKED_PROJECTS) {
+            // The buckets that have been refilled to the top are the same as new buckets
+            buckets.values().removeIf(idle -> idle.isFull(now, tokensPerSecond, burst));
+        }
+
+        var key = buckets.size() < MAX_TRACKED_PROJECTS ? projectKey : OTHER_PROJECTS;
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(burst, now));
+    }
+
+    int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    long getProtectedCount() {
+        return protectedFromShedding.sum();
+    }
+
+    long getShedOverloadedCount() {
+        return shedOverloaded.sum();
+    }
+
+    long getShedRateLimitedCount() {
+        return shedRateLimited.sum();
+    }
+
+    int getNumberOfProjects() {
+        return buckets.size();
+    }
+
+}
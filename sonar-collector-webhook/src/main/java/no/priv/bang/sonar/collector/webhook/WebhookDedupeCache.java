@@ -0,0 +1,130 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, expiring, in-memory record of the webhook calls that have
+ * already been stored, used to recognize the retries Sonar does when
+ * a webhook call times out.
+ *
+ * The entries are spread over a number of segments, each being a
+ * least-recently-used map guarded by its own lock, so that webhook calls
+ * for different analyses seldom wait for each other.
+ *
+ * @author Steinar Bang
+ *
+ */
+class WebhookDedupeCache {
+
+    private static final int SEGMENTS_OF_LARGE_CACHE = 16;
+
+    private final List<Map<String, Long>> segments;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final AtomicLong hitCount = new AtomicLong();
+
+    WebhookDedupeCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::nanoTime);
+    }
+
+    WebhookDedupeCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+        var entries = Math.max(1, maxEntries);
+        var numberOfSegments = entries >= 1024 ? SEGMENTS_OF_LARGE_CACHE : 1;
+        var entriesPerSegment = entries / numberOfSegments;
+        segments = new ArrayList<>(numberOfSegments);
+        for (var i = 0; i < numberOfSegments; ++i) {
+            segments.add(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                        return size() > entriesPerSegment;
+                    }
+                });
+        }
+
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Check if a webhook call has already been stored.
+     *
+     * @param key identifies the analysis of the webhook call
+     * @return true if the analysis has been stored and the entry hasn't expired
+     */
+    boolean contains(String key) {
+        var segment = segmentOf(key);
+        synchronized (segment) {
+            var storedAt = segment.get(key);
+            if (storedAt == null) {
+                return false;
+            }
+
+            if (clock.getAsLong() - storedAt > ttlNanos) {
+                segment.remove(key);
+                return false;
+            }
+        }
+
+        hitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remember that a webhook call has been stored.
+     *
+     * @param key identifies the analysis of the webhook call
+     */
+    void record(String key) {
+        var segment = segmentOf(key);
+        var now = clock.getAsLong();
+        synchronized (segment) {
+            segment.put(key, now);
+        }
+    }
+
+    private Map<String, Long> segmentOf(String key) {
+        return segments.get(Math.floorMod(key.hashCode(), segments.size()));
+    }
+
+    int size() {
+        var size = 0;
+        for (var segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the number of duplicate webhook calls recognized
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The fields of a Sonar webhook call that are used by the collector.
+ *
+ * Fields missing from the payload are the empty string, which is
+ * the same value {@link com.fasterxml.jackson.databind.JsonNode#asText()}
+ * gives for a missing node.
+ *
+ * Newer versions of Sonar send an analysisId in addition to the
+ * taskId of the background task doing the analysis.  Both are
+ * repeated when Sonar retries a webhook call.
+ *
+ * The payload doesn't have the version of the project, but Sonar
+ * passes on the scanner properties starting with "sonar.analysis.",
+ * so the version is picked up from a sonar.analysis.version property,
+ * when the build sets one.
+ *
+ * The values of the quality gate conditions are measures of the
+ * analysis, and are kept by metric key.
+ *
+ * @author Steinar Bang
+ *
+ */
+record WebhookPayload(String serverUrl, String projectKey, String analysedAt, String taskId, String analysisId, String version, Map<String, String> conditionValues) {
+
+    static final String VERSION_PROPERTY = "sonar.analysis.version";
+
+    /**
+     * @return the analysisId if present, otherwise the taskId, otherwise null
+     */
+    String analysisIdOrTaskId() {
+        if (!analysisId.isEmpty()) {
+            return analysisId;
+        }
+
+        return taskId.isEmpty() ? null : taskId;
+    }
+
+    /**
+     * @return a key identifying the analysis, that is the same for the first webhook call and the retries
+     */
+    String dedupeKey() {
+        var id = analysisIdOrTaskId();
+        return id != null ? serverUrl + "|" + id : serverUrl + "|" + projectKey + "|" + analysedAt;
+    }
+
+
+    /**
+     * Decode a webhook payload with a streaming parser, picking out the
+     * fields used by the collector and skipping everything else
+     * without building a tree.
+     *
+     * @param factory the JSON factory creating the parser
+     * @param postbody the body of the webhook POST
+     * @return the decoded payload
+     * @throws IOException if the body can't be read, or isn't a JSON object
+     */
+    static WebhookPayload decode(JsonFactory factory, InputStream postbody) throws IOException {
+        try (var parser = factory.createParser(postbody)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Webhook payload isn't a JSON object");
+            }
+
+            var serverUrl = "";
+            var projectKey = "";
+            var analysedAt = "";
+            var taskId = "";
+            var analysisId = "";
+            var version = "";
+            Map<String, String> conditionValues = Collections.emptyMap();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var fieldName = parser.currentName();
+                var value = parser.nextToken();
+                switch (fieldName) {
+                    case "serverUrl" -> serverUrl = textOf(parser, value);
+                    case "analysedAt" -> analysedAt = textOf(parser, value);
+                    case "taskId" -> taskId = textOf(parser, value);
+                    case "analysisId" -> analysisId = textOf(parser, value);
+                    case "project" -> projectKey = findProjectKey(parser, value);
+                    case "properties" -> version = findVersion(parser, value);
+                    case "qualityGate" -> conditionValues = findConditionValues(parser, value);
+                    default -> parser.skipChildren();
+                }
+            }
+
+            return new WebhookPayload(serverUrl, projectKey, analysedAt, taskId, analysisId, version, conditionValues);
+        }
+    }
+
+    private static String findProjectKey(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return "";
+        }
+
+        var projectKey = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var fieldValue = parser.nextToken();
+            if ("key".equals(fieldName)) {
+                projectKey = textOf(parser, fieldValue);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return projectKey;
+    }
+
+    private static String findVersion(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return "";
+        }
+
+        var version = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var fieldValue = parser.nextToken();
+            if (VERSION_PROPERTY.equals(fieldName)) {
+                version = textOf(parser, fieldValue);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return version;
+    }
+
+    private static Map<String, String> findConditionValues(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> conditionValues = Collections.emptyMap();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var fieldValue = parser.nextToken();
+            if ("conditions".equals(fieldName) && fieldValue == JsonToken.START_ARRAY) {
+                conditionValues = new LinkedHashMap<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    addConditionValue(parser, conditionValues);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return conditionValues;
+    }
+
+    private static void addConditionValue(JsonParser parser, Map<String, String> conditionValues) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+
+        var metric = "";
+        var conditionValue = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var fieldName = parser.currentName();
+            var fieldValue = parser.nextToken();
+            switch (fieldName) {
+                case "metric" -> metric = textOf(parser, fieldValue);
+                case "value" -> conditionValue = textOf(parser, fieldValue);
+                default -> parser.skipChildren();
+            }
+        }
+
+        // Conditions without a value (status NO_VALUE) have no measure
+        if (!metric.isEmpty() && !conditionValue.isEmpty()) {
+            conditionValues.put(metric, conditionValue);
+        }
+    }
+
+    private static String textOf(JsonParser parser, JsonToken value) throws IOException {
+        if (value != null && value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+            return parser.getText();
+        }
+
+        parser.skipChildren();
+        return "";
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+
+/**
+ * A bounded in-memory queue of accepted webhook calls, processed by a
+ * pool of virtual thread workers.
+ *
+ * The queue is split into one lane per worker, and the lane is selected
+ * from the project key, so that webhook calls for the same project are
+ * processed one at a time, in the order they arrived.
+ *
+ * @author Steinar Bang
+ *
+ */
+class WebhookQueue {
+
+    @FunctionalInterface
+    interface WebhookTask {
+        void process() throws Exception;
+    }
+
+    private final List<BlockingQueue<WebhookTask>> lanes;
+    private final List<Thread> workers;
+    private final LoggerAdapter logger;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile boolean running = true;
+
+    WebhookQueue(int numberOfWorkers, int capacity, LoggerAdapter logger) {
+        this.logger = logger;
+        var workerCount = Math.max(1, numberOfWorkers);
+        var laneCapacity = Math.max(1, capacity / workerCount);
+        lanes = new ArrayList<>(workerCount);
+        workers = new ArrayList<>(workerCount);
+        for (var i = 0; i < workerCount; ++i) {
+            var lane = new ArrayBlockingQueue<WebhookTask>(laneCapacity);
+            lanes.add(lane);
+            workers.add(Thread.ofVirtual().name("sonar-collector-webhook-worker-" + i).start(() -> work(lane)));
+        }
+    }
+
+    /**
+     * Put a task on the queue of the given project.
+     *
+     * @param projectKey the key of the analysed project, used to keep tasks of the same project in order
+     * @param task the work to do
+     * @return false if the queue of the project is full, or if the queue has been shut down
+     */
+    boolean offer(String projectKey, WebhookTask task) {
+        var lane = lanes.get(Math.floorMod(projectKey.hashCode(), lanes.size()));
+        if (running && lane.offer(task)) {
+            acceptedCount.incrementAndGet();
+            return true;
+        }
+
+        rejectedCount.incrementAndGet();
+        logger.warn("sonar-collector webhook queue full, rejected webhook call for project {}, queue depth {}", projectKey, getQueueDepth());
+        return false;
+    }
+
+    private void work(BlockingQueue<WebhookTask> lane) {
+        while (running || !lane.isEmpty()) {
+            try {
+                var task = lane.poll(100, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    runTask(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void runTask(WebhookTask task) {
+        busyWorkers.incrementAndGet();
+        try {
+            task.process();
+            processedCount.incrementAndGet();
+        } catch (Exception e) {
+            failedCount.incrementAndGet();
+            logger.error("Sonar Collector worker caught exception ", e);
+        } finally {
+            busyWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stop accepting new tasks, and give the workers a chance to
+     * finish the tasks already on the queue.
+     *
+     * @param timeoutMillis the maximum time to wait for each worker
+     */
+    void shutdown(long timeoutMillis) {
+        running = false;
+        for (var worker : workers) {
+            try {
+                if (!worker.join(Duration.ofMillis(timeoutMillis))) {
+                    worker.interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    int getQueueDepth() {
+        return lanes.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    int getNumberOfWorkers() {
+        return workers.size();
+    }
+
+    int getBusyWorkers() {
+        return busyWorkers.get();
+    }
+
+    /**
+     * @return the fraction of the workers currently processing a webhook call, from 0.0 to 1.0
+     */
+    double getWorkerUtilisation() {
+        return (double) busyWorkers.get() / workers.size();
+    }
+
+    long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    long getFailedCount() {
+        return failedCount.get();
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class AnalysisPollerTest {
+    private static final String PROJECT = "no.priv.bang.ukelonn:parent";
+    private HttpServer server;
+    private URI serverUrl;
+    // key and date of the analyses of the project, newest first
+    private final List<String[]> analyses = new CopyOnWriteArrayList<>();
+    private final AtomicInteger componentsShowRequests = new AtomicInteger();
+    private final AtomicInteger historyRequests = new AtomicInteger();
+
+    @BeforeEach
+    void startStubSonarServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/components/search", exchange -> respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":1},\"components\":[{\"key\":\"" + PROJECT + "\"}]}"));
+        server.createContext("/api/project_analyses/search", exchange -> {
+            var query = parseQuery(exchange);
+            var from = query.containsKey("from") ? IsoTimestamps.parseEpochMillis(query.get("from")) : Long.MIN_VALUE;
+            var pageSize = Integer.parseInt(query.get("ps"));
+            var found = analyses.stream().filter(analysis -> IsoTimestamps.parseEpochMillis(analysis[1]) >= from).toList();
+            var page = new StringBuilder();
+            for (var analysis : found.subList(0, Math.min(pageSize, found.size()))) {
+                page.append(page.isEmpty() ? "" : ",").append("{\"key\":\"").append(analysis[0]).append("\",\"date\":\"").append(analysis[1]).append("\",\"projectVersion\":\"1.0.").append(analysis[0].charAt(1)).append("\"}");
+            }
+
+            respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":" + pageSize + ",\"total\":" + found.size() + "},\"analyses\":[" + page + "]}");
+        });
+        server.createContext("/api/measures/search_history", exchange -> {
+            historyRequests.incrementAndGet();
+            var query = parseQuery(exchange);
+            var from = IsoTimestamps.parseEpochMillis(query.get("from"));
+            var to = IsoTimestamps.parseEpochMillis(query.get("to"));
+            var history = new StringBuilder();
+            for (var analysis : analyses.reversed()) {
+                var analysedAt = IsoTimestamps.parseEpochMillis(analysis[1]);
+                if (analysedAt >= from && analysedAt <= to) {
+                    history.append(history.isEmpty() ? "" : ",").append("{\"date\":\"").append(analysis[1]).append("\",\"value\":\"42\"}");
+                }
+            }
+
+            respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":1000,\"total\":1},\"measures\":[{\"metric\":\"lines\",\"history\":[" + history + "]}]}");
+        });
+        server.createContext("/api/components/show", exchange -> {
+            componentsShowRequests.incrementAndGet();
+            respondWithResource(exchange, "json/sonar/api-components-show-version-1.0.0.json");
+        });
+        server.createContext("/api/measures/component", exchange -> respondWithResource(exchange, "json/sonar/api-measures-component-get-many-metrics.json"));
+        server.start();
+        serverUrl = URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopStubSonarServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testGapsAreClosedFromTheWatermark() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServlet("poller1", logservice, Map.of());
+        try (var client = new HttpClientSonarApiClient(servlet.configuration)) {
+            var poller = new AnalysisPoller(client, servlet.dataSource, servlet::insertBuilds, servlet::processWebhook, servlet.configuration, createLogger(logservice));
+
+            // The first poll only stores the newest analysis, like a webhook call
+            analyses.add(new String[] { "A1", "2017-11-19T10:00:00+0100" });
+            analyses.add(0, new String[] { "A0", "2017-11-18T10:00:00+0100" });
+            analyses.sort((a, b) -> b[1].compareTo(a[1]));
+            poller.pollServers();
+            assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+            assertEquals(1, componentsShowRequests.get());
+            assertEquals(IsoTimestamps.parseEpochMillis("2017-11-19T10:00:00+0100"), poller.findWatermark(serverUrl, PROJECT));
+
+            // Nothing new
+            assertEquals(0, poller.pollProject(serverUrl, PROJECT));
+
+            // The analyses missed in between are loaded from the history, and the newest gets the callbacks
+            analyses.add(0, new String[] { "A2", "2017-11-20T10:00:00+0100" });
+            analyses.add(0, new String[] { "A3", "2017-11-21T10:00:00+0100" });
+            analyses.add(0, new String[] { "A4", "2017-11-22T10:00:00+0100" });
+            assertEquals(3, poller.pollProject(serverUrl, PROJECT));
+            assertEquals(4, countRowsOfTableMeasures(servlet.dataSource));
+            assertEquals(1, historyRequests.get());
+            assertEquals(2, componentsShowRequests.get());
+            assertEquals(42, linesOf(servlet.dataSource, "A2"));
+            assertEquals("1.0.2", versionOf(servlet.dataSource, "A2"));
+            assertEquals(IsoTimestamps.parseEpochMillis("2017-11-22T10:00:00+0100"), poller.findWatermark(serverUrl, PROJECT));
+            assertEquals(2, poller.getAnalysesProcessedCount());
+            assertEquals(2, poller.getGapAnalysesLoadedCount());
+            assertEquals(0, poller.getFailedPollCount());
+        } finally {
+            servlet.deactivate();
+        }
+    }
+
+    @Test
+    void testAnalysisStoredByTheWebhookIsSkipped() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServlet("poller2", logservice, Map.of());
+        try (var client = new HttpClientSonarApiClient(servlet.configuration)) {
+            var poller = new AnalysisPoller(client, servlet.dataSource, servlet::insertBuilds, servlet::processWebhook, servlet.configuration, createLogger(logservice));
+            analyses.add(new String[] { "A1", "2017-11-19T10:00:00+0100" });
+            poller.pollProject(serverUrl, PROJECT);
+
+            analyses.add(0, new String[] { "A2", "2017-11-20T10:00:00+0100" });
+            servlet.insertBuilds(List.of(createBuild(PROJECT, IsoTimestamps.parseEpochMillis("2017-11-20T10:00:00+0100"), "A2")));
+            assertEquals(0, poller.pollProject(serverUrl, PROJECT));
+
+            assertEquals(1, componentsShowRequests.get());
+            assertEquals(2, countRowsOfTableMeasures(servlet.dataSource));
+            assertEquals(IsoTimestamps.parseEpochMillis("2017-11-20T10:00:00+0100"), poller.findWatermark(serverUrl, PROJECT));
+        } finally {
+            servlet.deactivate();
+        }
+    }
+
+    @Test
+    void testFailedPollDoesNotMoveTheWatermark() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServlet("poller3", logservice, Map.of());
+        server.removeContext("/api/measures/component");
+        try (var client = new HttpClientSonarApiClient(servlet.configuration)) {
+            var poller = new AnalysisPoller(client, servlet.dataSource, servlet::insertBuilds, servlet::processWebhook, servlet.configuration, createLogger(logservice));
+            analyses.add(new String[] { "A1", "2017-11-19T10:00:00+0100" });
+
+            assertEquals(0, poller.pollProject(serverUrl, PROJECT));
+
+            assertNull(poller.findWatermark(serverUrl, PROJECT));
+            assertEquals(1, poller.getFailedPollCount());
+            assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR] Sonar Collector poller failed to poll project"));
+        } finally {
+            servlet.deactivate();
+        }
+    }
+
+    @Test
+    void testRequestsToAServerAreRateLimited() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServlet("poller4", logservice, Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_POLLER_REQUESTS_PER_SECOND, "4"));
+        try (var client = new HttpClientSonarApiClient(servlet.configuration)) {
+            var poller = new AnalysisPoller(client, servlet.dataSource, servlet::insertBuilds, servlet::processWebhook, servlet.configuration, createLogger(logservice));
+
+            var startTime = System.nanoTime();
+            for (var i = 0; i < 5; ++i) {
+                poller.pollProject(serverUrl, PROJECT);
+            }
+
+            // The first request is done at once, and then one request every 250ms
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)).isGreaterThanOrEqualTo(900);
+            assertEquals(5, poller.getPollCount());
+        } finally {
+            servlet.deactivate();
+        }
+    }
+
+    @Test
+    void testPollerIsStartedAndStoppedWithTheServlet() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServlet("poller5", logservice, Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_POLLER_ENABLED, "true"));
+        analyses.add(new String[] { "A1", "2017-11-19T10:00:00+0100" });
+        assertNotNull(servlet.analysisPoller);
+
+        servlet.modified(config(Map.of()));
+        assertNull(servlet.analysisPoller);
+
+        servlet.modified(config(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_POLLER_ENABLED, "true")));
+        assertNotNull(servlet.analysisPoller);
+
+        servlet.deactivate();
+        assertNull(servlet.analysisPoller);
+    }
+
+    private SonarCollectorServlet createServlet(String dbname, MockLogService logservice, Map<String, Object> settings) throws Exception {
+        var datasource = new EmbeddedDataSource();
+        datasource.setDatabaseName("memory:" + dbname);
+        datasource.setCreateDatabase("create");
+        var servlet = new SonarCollectorServlet(url -> (HttpURLConnection) url.toURL().openConnection());
+        servlet.setDataSource(datasource);
+        servlet.setLogservice(logservice);
+        servlet.activate(config(settings));
+        return servlet;
+    }
+
+    private Map<String, Object> config(Map<String, Object> settings) {
+        var config = new HashMap<String, Object>(settings);
+        config.put("sonar.collector.server.stub.url", serverUrl.toString());
+        return config;
+    }
+
+    private static long linesOf(DataSource dataSource, String analysisId) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select lines from measures where analysis_id=?")) {
+                statement.setString(1, analysisId);
+                try (var results = statement.executeQuery()) {
+                    assertTrue(results.next());
+                    return results.getLong(1);
+                }
+            }
+        }
+    }
+
+    private static String versionOf(DataSource dataSource, String analysisId) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select version from measures where analysis_id=?")) {
+                statement.setString(1, analysisId);
+                try (var results = statement.executeQuery()) {
+                    assertTrue(results.next());
+                    return results.getString(1);
+                }
+            }
+        }
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(AnalysisPoller.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        var query = new HashMap<String, String>();
+        for (var parameter : exchange.getRequestURI().getQuery().split("&")) {
+            var equals = parameter.indexOf('=');
+            query.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+        }
+
+        return query;
+    }
+
+    private void respondWithResource(HttpExchange exchange, String resource) throws IOException {
+        try (var body = getClass().getClassLoader().getResourceAsStream(resource)) {
+            respond(exchange, new String(body.readAllBytes()));
+        }
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        var bytes = body.getBytes();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+}
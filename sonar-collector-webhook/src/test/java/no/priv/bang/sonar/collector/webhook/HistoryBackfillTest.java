@@ -0,0 +1,221 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class HistoryBackfillTest {
+    private HttpServer server;
+    private URI serverUrl;
+    private final AtomicInteger historyRequests = new AtomicInteger();
+
+    @BeforeEach
+    void startStubSonarServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/components/search", exchange -> respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":2},\"components\":[{\"key\":\"no.priv.bang.ukelonn:parent\"},{\"key\":\"no.priv.bang.handlereg:parent\"}]}"));
+        server.createContext("/api/project_analyses/search", exchange -> respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":3},\"analyses\":[" +
+            "{\"key\":\"" + project(exchange) + "-3\",\"date\":\"2017-11-21T10:00:00+0100\",\"projectVersion\":\"1.0.1-SNAPSHOT\"}," +
+            "{\"key\":\"" + project(exchange) + "-2\",\"date\":\"2017-11-20T10:00:00+0100\",\"events\":[{\"category\":\"VERSION\",\"name\":\"1.0.0\"}]}," +
+            "{\"key\":\"" + project(exchange) + "-1\",\"date\":\"2017-11-19T10:00:00+0100\"}]}"));
+        server.createContext("/api/measures/search_history", exchange -> {
+            historyRequests.incrementAndGet();
+            var firstPage = exchange.getRequestURI().getQuery().contains("&p=1&");
+            var dates = firstPage ? List.of("2017-11-19T10:00:00+0100", "2017-11-20T10:00:00+0100") : List.of("2017-11-21T10:00:00+0100");
+            var history = new StringBuilder();
+            for (var date : dates) {
+                history.append(history.isEmpty() ? "" : ",").append("{\"date\":\"").append(date).append("\",\"value\":\"1.0\"}");
+            }
+
+            var measures = new StringBuilder();
+            for (var metric : Metric.all()) {
+                measures.append(measures.isEmpty() ? "" : ",").append("{\"metric\":\"").append(metric.key()).append("\",\"history\":[").append(history).append("]}");
+            }
+
+            respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":2,\"total\":3},\"measures\":[" + measures + "]}");
+        });
+        server.start();
+        serverUrl = URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopStubSonarServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testBackfillAllProjects() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("backfill1", logservice);
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var backfill = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+
+            var progress = backfill.run(Collections.emptyList());
+
+            assertEquals(HistoryBackfill.COMPLETED, progress.state());
+            assertEquals(2, progress.projects());
+            assertEquals(2, progress.projectsCompleted());
+            assertEquals(6, progress.analysesLoaded());
+            assertEquals(6, countRowsOfTableMeasures(servlet.dataSource));
+            assertEquals(4, historyRequests.get());
+            assertFalse(backfill.isRunning());
+        }
+    }
+
+    @Test
+    void testBackfillIsResumedFromCheckpoint() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("backfill2", logservice);
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var first = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+            first.run(List.of("no.priv.bang.ukelonn:parent"));
+            historyRequests.set(0);
+
+            var second = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+            var progress = second.run(Collections.emptyList());
+
+            assertEquals(1, progress.projectsSkipped());
+            assertEquals(1, progress.projectsCompleted());
+            assertEquals(2, historyRequests.get());
+            assertEquals(6, countRowsOfTableMeasures(servlet.dataSource));
+        }
+    }
+
+    @Test
+    void testBackfilledAnalysesAlreadyStoredAreSkipped() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("backfill3", logservice);
+        servlet.insertBuilds(List.of(createBuild("no.priv.bang.ukelonn:parent", 1, "no.priv.bang.ukelonn:parent-2")));
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var backfill = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+
+            var progress = backfill.run(List.of("no.priv.bang.ukelonn:parent"));
+
+            assertEquals(HistoryBackfill.COMPLETED, progress.state());
+            assertEquals(3, countRowsOfTableMeasures(servlet.dataSource));
+        }
+    }
+
+    @Test
+    void testHistoryWithoutAnalysesIsNotDuplicatedWhenResumed() throws Exception {
+        // The analysis of 2017-11-20 is missing from the analyses of the project
+        server.removeContext("/api/project_analyses/search");
+        server.createContext("/api/project_analyses/search", exchange -> respond(exchange, "{\"paging\":{\"pageIndex\":1,\"pageSize\":500,\"total\":2},\"analyses\":[" +
+            "{\"key\":\"" + project(exchange) + "-3\",\"date\":\"2017-11-21T10:00:00+0100\"}," +
+            "{\"key\":\"" + project(exchange) + "-1\",\"date\":\"2017-11-19T10:00:00+0100\"}]}"));
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("backfill5", logservice);
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var first = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+            assertEquals(2, first.run(List.of("no.priv.bang.ukelonn:parent")).analysesLoaded());
+
+            // Backfill the project again, like a backfill interrupted before the checkpoint
+            try (var connection = servlet.dataSource.getConnection(); var statement = connection.createStatement()) {
+                statement.executeUpdate("delete from backfill_checkpoints");
+            }
+
+            var second = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+            assertEquals(HistoryBackfill.COMPLETED, second.run(List.of("no.priv.bang.ukelonn:parent")).state());
+            assertEquals(2, countRowsOfTableMeasures(servlet.dataSource));
+        }
+    }
+
+    @Test
+    void testFailedProjectIsReported() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("backfill4", logservice);
+        server.removeContext("/api/project_analyses/search");
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var backfill = new HistoryBackfill(serverUrl, client, servlet.dataSource, servlet::insertBuilds, createSettings(), createLogger(logservice));
+
+            var progress = backfill.run(List.of("no.priv.bang.ukelonn:parent"));
+
+            assertEquals(HistoryBackfill.FAILED, progress.state());
+            assertEquals(1, progress.projectsFailed());
+            assertEquals(0, countRowsOfTableMeasures(servlet.dataSource));
+            assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR] Sonar Collector failed to backfill project"));
+        }
+    }
+
+    @Test
+    void testToBuilds() throws Exception {
+        var logservice = new MockLogService();
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var backfill = new HistoryBackfill(serverUrl, client, null, builds -> {}, createSettings(), createLogger(logservice));
+            var measures = SonarCollectorServlet.mapper.readTree("[{\"metric\":\"lines\",\"history\":[{\"date\":\"2017-11-19T10:00:00+0100\",\"value\":\"952\"},{\"date\":\"2017-11-20T10:00:00+0100\"}]},{\"metric\":\"sqale_rating\",\"history\":[{\"date\":\"2017-11-19T10:00:00+0100\",\"value\":\"2.0\"}]}]");
+            var analysedAt = IsoTimestamps.parseEpochMillis("2017-11-19T10:00:00+0100");
+
+            var builds = backfill.toBuilds("no.priv.bang.ukelonn:parent", Map.of(analysedAt, new HistoryBackfill.Analysis("AYxyzzy1", "1.0.0")), measures);
+
+            // The history point without an analysis is left out, since it has no analysis_id to deduplicate on
+            assertEquals(1, builds.size());
+            var first = builds.get(0);
+            assertEquals(analysedAt, first.getAnalysedAt());
+            assertEquals("1.0.0", first.getVersion());
+            assertEquals("AYxyzzy1", first.getAnalysisId());
+            assertEquals(952, first.getMeasurements().getLong(Metric.LINES));
+            assertEquals("B", first.getMeasurements().getRatingLetter(Metric.SQALE_RATING));
+        }
+    }
+
+    private ConfigurationSnapshot createSettings() {
+        var properties = new Properties();
+        properties.setProperty(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, "lines,sqale_rating");
+        properties.setProperty(SonarCollectorConfiguration.SONAR_COLLECTOR_BACKFILL_PAGE_SIZE, "2");
+        return ConfigurationSnapshot.compile(properties, Collections.emptyMap());
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(HistoryBackfill.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+    private static String project(HttpExchange exchange) {
+        var query = exchange.getRequestURI().getQuery();
+        return query.substring(query.indexOf("project=") + "project=".length(), query.indexOf('&'));
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        var bytes = body.getBytes();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+}
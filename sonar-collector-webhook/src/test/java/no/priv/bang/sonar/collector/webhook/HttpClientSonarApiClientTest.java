@@ -0,0 +1,193 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+class HttpClientSonarApiClientTest {
+    private HttpServer server;
+    private URI serverUrl;
+    private final Map<String, String> receivedHeaders = new ConcurrentHashMap<>();
+    private final AtomicInteger redirectedCalls = new AtomicInteger();
+
+    @BeforeEach
+    void startStubSonarServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/components/show", exchange -> respond(exchange, 200, "{\"component\":{\"version\":\"1.0.0\"}}", false));
+        server.createContext("/api/measures/component", exchange -> respond(exchange, 200, "{\"component\":{\"measures\":[]}}", true));
+        server.createContext("/api/forbidden", exchange -> respond(exchange, 403, "{\"errors\":[]}", false));
+        server.createContext("/api/moved", exchange -> {
+            exchange.getResponseHeaders().add("Location", serverUrl.resolve("/api/redirected").toString());
+            respond(exchange, 301, "", false);
+        });
+        server.createContext("/api/redirected", exchange -> {
+            redirectedCalls.incrementAndGet();
+            respond(exchange, 200, "{}", false);
+        });
+        server.createContext("/api/slow", exchange -> {
+            // Send the headers at once, and stall before the body
+            exchange.sendResponseHeaders(200, 100);
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.close();
+        });
+        server.start();
+        serverUrl = URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopStubSonarServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testGetPlainResponse() throws Exception {
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var body = client.get(serverUrl.resolve("/api/components/show?component=foo")).get();
+            assertEquals("1.0.0", SonarCollectorServlet.mapper.readTree(body).path("component").path("version").asText());
+            assertEquals("gzip", receivedHeaders.get("Accept-encoding"));
+            assertFalse(receivedHeaders.containsKey("Authorization"));
+        }
+    }
+
+    @Test
+    void testGetGzipResponse() throws Exception {
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var body = client.get(serverUrl.resolve("/api/measures/component?component=foo")).get();
+            assertTrue(SonarCollectorServlet.mapper.readTree(body).path("component").path("measures").isArray());
+        }
+    }
+
+    @Test
+    void testUserTokenIsSentAsBasicAuthentication() throws Exception {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(Collections.singletonMap(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy"));
+        try (var client = new HttpClientSonarApiClient(configuration)) {
+            client.get(serverUrl.resolve("/api/components/show?component=foo")).get().close();
+            assertEquals("Basic eHl6enk6", receivedHeaders.get("Authorization"));
+        }
+    }
+
+    @Test
+    void testErrorStatusFailsTheFuture() {
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var future = client.get(serverUrl.resolve("/api/forbidden"));
+            var e = assertThrows(SonarApiException.class, () -> SonarCollectorServlet.waitForResult(future));
+            assertThat(e.getMessage()).contains("403");
+            assertEquals(403, e.getStatusCode());
+            assertFalse(e.isServerUnhealthy());
+        }
+    }
+
+    @Test
+    void testRedirectIsNotFollowed() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(Collections.singletonMap(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy"));
+        try (var client = new HttpClientSonarApiClient(configuration)) {
+            var future = client.get(serverUrl.resolve("/api/moved"));
+            var e = assertThrows(SonarApiException.class, () -> SonarCollectorServlet.waitForResult(future));
+            assertEquals(301, e.getStatusCode());
+            assertEquals(0, redirectedCalls.get());
+        }
+    }
+
+    @Test
+    void testSlowResponseBodyTimesOut() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_READ_TIMEOUT_MILLIS, "200"));
+        try (var client = new HttpClientSonarApiClient(configuration)) {
+            var future = client.get(serverUrl.resolve("/api/slow"));
+            var e = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+            assertThat(e.getCause()).isInstanceOf(HttpTimeoutException.class);
+        }
+    }
+
+    @Test
+    void testServerTokenIsSentToItsServerOnly() throws Exception {
+        var configuration = new SonarCollectorConfiguration();
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy");
+        config.put("sonar.collector.server.local.url", serverUrl.toString());
+        config.put("sonar.collector.server.local.token", "local");
+        configuration.setConfig(config);
+        try (var client = new HttpClientSonarApiClient(configuration)) {
+            client.get(serverUrl.resolve("/api/components/show?component=foo")).get().close();
+            assertEquals("Basic bG9jYWw6", receivedHeaders.get("Authorization"));
+            assertEquals("Basic eHl6enk6", configuration.getSonarApiAuthorization(URI.create("https://sonarcloud.io/api/components/show")));
+        }
+    }
+
+    @Test
+    void testConnectionsAreSharedPerServer() throws Exception {
+        try (var client = new HttpClientSonarApiClient(new SonarCollectorConfiguration())) {
+            var first = client.clientFor(serverUrl.resolve("/api/components/show"));
+            var second = client.clientFor(serverUrl.resolve("/api/measures/component"));
+            var other = client.clientFor(URI.create("https://sonarcloud.io/api/measures/component"));
+            assertSame(first, second);
+            assertNotSame(first, other);
+            assertEquals(2, client.getNumberOfServers());
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String body, boolean gzip) throws IOException {
+        var headers = new HashMap<String, String>();
+        exchange.getRequestHeaders().forEach((name, values) -> headers.put(name, values.get(0)));
+        receivedHeaders.putAll(headers);
+        var bytes = body.getBytes();
+        if (gzip) {
+            var compressed = new ByteArrayOutputStream();
+            try (var gzipped = new GZIPOutputStream(compressed)) {
+                gzipped.write(bytes);
+            }
+
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.ZonedDateTime;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class IsoTimestampsTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "2017-11-19T10:39:24+0100",
+            "2017-11-19T10:39:24+01:00",
+            "2017-11-19T10:39:24-0530",
+            "2017-11-19T10:39:24+01",
+            "2017-11-19T10:39:24Z",
+            "2017-11-19T10:39:24.123+0000",
+            "2017-11-19T10:39:24.5Z",
+            "2020-02-29T23:59:59+0000",
+            "1969-12-31T23:59:59Z",
+            "2000-01-01T00:00:00-1800",
+        })
+    void testFastPathGivesSameResultAsFormatter(String timestamp) {
+        var expected = ZonedDateTime.parse(timestamp, SonarCollectorServlet.isoZonedDateTimeformatter).toEpochSecond();
+        assertEquals(expected, IsoTimestamps.parseEpochSeconds(timestamp));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "2017-11-19",
+            "2017-11-19T10:39+0100",
+            "2017-11-19T10:39:24",
+            "2017-11-19T10:39:24+1",
+            "2017-11-19T10:39:24+010",
+            "2017-11-19T10:39:24.+0100",
+            "2017-13-19T10:39:24+0100",
+            "2019-02-29T10:39:24+0100",
+            "2017-11-19T24:00:00+0100",
+            "2017-11-19 10:39:24+0100",
+            "2017-11-19T10:39:24+0100x",
+        })
+    void testUnknownShapesAreUnparseable(String timestamp) {
+        assertEquals(IsoTimestamps.UNPARSEABLE, IsoTimestamps.parseEpochSeconds(timestamp));
+    }
+
+}
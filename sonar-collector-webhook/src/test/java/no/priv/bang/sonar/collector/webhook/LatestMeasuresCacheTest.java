@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class LatestMeasuresCacheTest {
+
+    @Test
+    void testUpdateKeepsLatestBuildOfEachProject() throws Exception {
+        var cache = new LatestMeasuresCache();
+        var first = createBuild("no.priv.bang.ukelonn:parent", 2000);
+        var older = createBuild("no.priv.bang.ukelonn:parent", 1000);
+        var other = createBuild("no.priv.bang.handlereg:parent", 1000);
+
+        cache.update(first);
+        cache.update(older);
+        cache.update(other);
+
+        assertEquals(2, cache.size());
+        assertSame(first, cache.get("no.priv.bang.ukelonn:parent"));
+        assertSame(other, cache.get("no.priv.bang.handlereg:parent"));
+    }
+
+    @Test
+    void testRenderIsSharedUntilTheCacheChanges() throws Exception {
+        var cache = new LatestMeasuresCache();
+        cache.update(createBuild("no.priv.bang.ukelonn:parent", 1000));
+
+        var first = cache.render();
+        var second = cache.render();
+        assertSame(first, second);
+
+        // An older build doesn't change the document
+        cache.update(createBuild("no.priv.bang.ukelonn:parent", 500));
+        assertSame(first, cache.render());
+
+        cache.update(createBuild("no.priv.bang.ukelonn:parent", 2000));
+        var third = cache.render();
+        assertNotSame(first, third);
+        assertNotEquals(first.etag(), third.etag());
+        var projects = SonarCollectorServlet.mapper.readTree(third.body()).path("projects");
+        assertEquals(1, projects.size());
+        assertEquals("1970-01-01T00:00:02Z", projects.get(0).path("analysisTime").asText());
+        assertEquals("A", projects.get(0).path("sqale_rating").asText());
+    }
+
+    @Test
+    void testSameContentsGiveSameEtag() throws Exception {
+        var cache = new LatestMeasuresCache();
+        var otherCache = new LatestMeasuresCache();
+        cache.update(createBuild("no.priv.bang.ukelonn:parent", 1000));
+        cache.update(createBuild("no.priv.bang.handlereg:parent", 1000));
+        otherCache.update(createBuild("no.priv.bang.handlereg:parent", 1000));
+        otherCache.update(createBuild("no.priv.bang.ukelonn:parent", 1000));
+
+        assertEquals(cache.render().etag(), otherCache.render().etag());
+    }
+
+    @Test
+    void testWarmFromDatabase() throws Exception {
+        var servlet = createServletWithSchema("latest1", new MockLogService());
+        servlet.insertBuilds(List.of(
+            createBuild("no.priv.bang.ukelonn:parent", 1000),
+            createBuild("no.priv.bang.ukelonn:parent", 3000, "AYxyzzy3"),
+            createBuild("no.priv.bang.ukelonn:parent", 2000),
+            createBuild("no.priv.bang.handlereg:parent", 1000)));
+        var cache = new LatestMeasuresCache();
+
+        cache.warm(servlet.dataSource);
+
+        assertEquals(2, cache.size());
+        var latest = cache.get("no.priv.bang.ukelonn:parent");
+        assertEquals(3000, latest.getAnalysedAt());
+        assertEquals("AYxyzzy3", latest.getAnalysisId());
+        assertEquals("A", latest.getMeasurements().getRatingLetter(Metric.SQALE_RATING));
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasureValuesWriterTest {
+
+    @Test
+    void testInsertedBuildsGetMeasureValues() throws Exception {
+        var servlet = createServletWithSchema("values1", new MockLogService());
+        servlet.modified(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_MEASURE_VALUES_ENABLED, "true"));
+        var build = createBuild("no.priv.bang.ukelonn:parent", 1000, "AYvalues1");
+        build.getMeasurements().set("lines", "1234");
+        build.getMeasurements().set("coverage", "87.5");
+        build.getMeasurements().set("security_rating", "3.0");
+        build.getMeasurements().set("duplicated_lines_density", "1.5");
+        build.getMeasurements().set("alert_status", "OK");
+
+        servlet.insertBuilds(List.of(build, createBuild("no.priv.bang.handlereg:parent", 2000, "AYvalues2")));
+
+        var values = findMeasureValues(servlet.dataSource, "AYvalues1");
+        assertEquals(1234.0, values.get("lines"));
+        assertEquals(87.5, values.get("coverage"));
+        assertEquals(0.0, values.get("complexity"));
+        assertEquals(1.0, values.get("sqale_rating"));
+        assertEquals(3.0, values.get("security_rating"));
+        assertEquals(1.5, values.get("duplicated_lines_density"));
+        assertThat(values)
+            .doesNotContainKey("alert_status") // Not a number
+            .doesNotContainKey("bugs"); // Not in the measures from Sonar
+        assertEquals(10, values.size());
+        assertEquals(7, findMeasureValues(servlet.dataSource, "AYvalues2").size());
+        assertEquals(17, servlet.measureValues.getValueCount());
+    }
+
+    @Test
+    void testBatchWriterWritesMeasureValues() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("values3", logservice);
+        var logger = new LoggerAdapter(MeasuresBatchWriter.class);
+        logger.setLogService(logservice);
+        var measureValues = new MeasureValuesWriter(new MetricDictionary(servlet.dataSource));
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, measureValues, null, 10, 200, logger);
+
+        var first = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1, "AYvalues3"));
+        assertEquals(1, first.get().intValue());
+        var completions = new ArrayList<CompletableFuture<Integer>>();
+        completions.add(writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1, "AYvalues3")));
+        completions.add(writer.submit(createBuild("no.priv.bang.ukelonn:parent", 2, "AYvalues4")));
+        completions.add(writer.submit(createBuild("no.priv.bang.ukelonn:parent", 3, "AYvalues5")));
+
+        assertEquals(0, completions.get(0).get().intValue());
+        assertEquals(1, completions.get(1).get().intValue());
+        assertEquals(1, completions.get(2).get().intValue());
+        writer.shutdown(1000);
+        assertEquals(3, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(1, writer.getDuplicateCount());
+        assertEquals(21, countRows(servlet.dataSource, "measure_values"));
+        assertEquals(7, findMeasureValues(servlet.dataSource, "AYvalues4").size());
+    }
+
+    @Test
+    void testMeasureValuesAreOffByDefault() throws Exception {
+        var servlet = createServletWithSchema("values4", new MockLogService());
+
+        servlet.saveMeasuresInDatabase(createBuild("no.priv.bang.ukelonn:parent", 1000, "AYvalues6"));
+        servlet.insertBuilds(List.of(createBuild("no.priv.bang.ukelonn:parent", 2000, "AYvalues7")));
+
+        assertEquals(2, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(0, countRows(servlet.dataSource, "measure_values"));
+
+        servlet.modified(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_MEASURE_VALUES_ENABLED, "true"));
+        servlet.saveMeasuresInDatabase(createBuild("no.priv.bang.ukelonn:parent", 3000, "AYvalues8"));
+        assertEquals(7, countRows(servlet.dataSource, "measure_values"));
+    }
+
+    @Test
+    void testInsertUsesBatchesOnPostgresql() throws Exception {
+        var servlet = createServletWithSchema("values5", new MockLogService());
+        var writer = new MeasureValuesWriter(new MetricDictionary(servlet.dataSource));
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        var keys = mock(ResultSet.class);
+        when(keys.next()).thenReturn(true, true, false);
+        when(keys.getLong(1)).thenReturn(41L, 42L);
+        var insertMeasures = mock(PreparedStatement.class);
+        when(insertMeasures.getGeneratedKeys()).thenReturn(keys);
+        var insertValues = mock(PreparedStatement.class);
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.prepareStatement(SonarCollectorServlet.INSERT_MEASURES_SQL, new String[] { "id" })).thenReturn(insertMeasures);
+        when(connection.prepareStatement(MeasureValuesWriter.INSERT_MEASURE_VALUE_SQL)).thenReturn(insertValues);
+        var builds = List.of(createBuild("no.priv.bang.ukelonn:parent", 1000), createBuild("no.priv.bang.ukelonn:parent", 2000));
+
+        var statement = MeasureValuesWriter.prepareInsert(connection, SonarCollectorServlet.INSERT_MEASURES_SQL);
+        writer.insert(connection, statement, builds, servlet::bindMeasures);
+
+        verify(insertMeasures, times(2)).addBatch();
+        verify(insertMeasures).executeBatch();
+        verify(insertMeasures, never()).executeUpdate();
+        verify(insertValues, times(7)).setLong(1, 41L);
+        verify(insertValues, times(7)).setLong(1, 42L);
+        verify(insertValues, times(14)).addBatch();
+        verify(insertValues).executeBatch();
+    }
+
+    @Test
+    void testMissingGeneratedIdsFailTheInsert() throws Exception {
+        var keys = mock(ResultSet.class);
+        when(keys.next()).thenReturn(true, false);
+        when(keys.getLong(1)).thenReturn(42L);
+        var statement = mock(PreparedStatement.class);
+        when(statement.getGeneratedKeys()).thenReturn(keys);
+
+        var e = assertThrows(SQLException.class, () -> MeasureValuesWriter.generatedIds(statement, 2));
+        assertThat(e.getMessage()).contains("got 1");
+    }
+
+    static Map<String, Double> findMeasureValues(DataSource dataSource, String analysisId) throws SQLException {
+        var values = new TreeMap<String, Double>();
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select k.metric_key, v.metric_value from measure_values v join metrics k on k.id=v.metric_id join measures m on m.id=v.measure_id where m.analysis_id=?")) {
+                statement.setString(1, analysisId);
+                try (var results = statement.executeQuery()) {
+                    while (results.next()) {
+                        values.put(results.getString(1), results.getDouble(2));
+                    }
+                }
+            }
+        }
+
+        return values;
+    }
+
+    static int countRows(DataSource dataSource, String table) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select count(*) from " + table)) {
+                try (var results = statement.executeQuery()) {
+                    results.next();
+                    return results.getInt(1);
+                }
+            }
+        }
+    }
+
+}
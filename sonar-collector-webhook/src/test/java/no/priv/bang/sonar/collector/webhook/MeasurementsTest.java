@@ -0,0 +1,174 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class MeasurementsTest {
+
+    @Test
+    void testDecodeMeasuresComponentResponse() throws Exception {
+        var measurements = Measurements.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/api-measures-component-get-many-metrics.json"));
+        for (var metric : Metric.all()) {
+            assertTrue(measurements.has(metric), "Expected a value for " + metric.key());
+        }
+
+        assertEquals(952L, measurements.getLong(Metric.LINES));
+        assertEquals(2L, measurements.getLong(Metric.NEW_BUGS));
+        assertEquals(41L, measurements.getLong(Metric.COMPLEXITY));
+        assertEquals(100.0, measurements.getDouble(Metric.COVERAGE), 0.001);
+        assertEquals(92.98, measurements.getDouble(Metric.NEW_COVERAGE), 0.01);
+        assertEquals(1, measurements.getRating(Metric.NEW_RELIABILITY_RATING));
+        assertEquals("A", measurements.getRatingLetter(Metric.SQALE_RATING));
+        assertThat(measurements.getExtras()).isEmpty();
+    }
+
+    @Test
+    void testCopy() {
+        var measurements = new Measurements();
+        measurements.set("lines", "952");
+        measurements.set("sqale_rating", "2.0");
+        measurements.set("duplicated_lines_density", "1.5");
+
+        var copy = measurements.copy();
+        copy.set("lines", "12");
+        copy.set("duplicated_lines_density", "2.5");
+        copy.set("coverage", "80.0");
+
+        assertEquals(952L, measurements.getLong(Metric.LINES));
+        assertEquals("1.5", measurements.getExtras().get("duplicated_lines_density"));
+        assertFalse(measurements.has(Metric.COVERAGE));
+        assertEquals(12L, copy.getLong(Metric.LINES));
+        assertEquals("B", copy.getRatingLetter(Metric.SQALE_RATING));
+        assertEquals("2.5", copy.getExtras().get("duplicated_lines_density"));
+        assertTrue(copy.has(Metric.COVERAGE));
+    }
+
+    @Test
+    void testDecodeMeasuresSearchResponse() throws Exception {
+        var measurementsByProject = Measurements.decodeSearch(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/api-measures-search-two-projects.json"));
+        assertThat(measurementsByProject).containsOnlyKeys("no.priv.bang.sonar.sonar-collector:sonar-collector", "no.priv.bang.ukelonn:parent");
+
+        var collector = measurementsByProject.get("no.priv.bang.sonar.sonar-collector:sonar-collector");
+        assertEquals(952L, collector.getLong(Metric.LINES));
+        assertEquals(2L, collector.getLong(Metric.NEW_BUGS));
+        assertEquals("A", collector.getRatingLetter(Metric.SQALE_RATING));
+        assertFalse(collector.has(Metric.COVERAGE));
+
+        var ukelonn = measurementsByProject.get("no.priv.bang.ukelonn:parent");
+        assertEquals(12418L, ukelonn.getLong(Metric.LINES));
+        assertTrue(ukelonn.has(Metric.NEW_BUGS));
+        assertEquals("B", ukelonn.getRatingLetter(Metric.SQALE_RATING));
+    }
+
+    @Test
+    void testDecodeMeasuresSearchWithoutMeasures() throws Exception {
+        var json = "{\"measures\": [{\"metric\": \"lines\", \"value\": \"12\"}], \"metrics\": []}";
+        assertThat(Measurements.decodeSearch(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(json.getBytes()))).isEmpty();
+        assertThat(Measurements.decodeSearch(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream("[]".getBytes()))).isEmpty();
+    }
+
+    @Test
+    void testDecodeMissingNewCoverage() throws Exception {
+        var measurements = Measurements.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/api-measures-component-get-many-metrics-no-new_coverage.json"));
+        assertFalse(measurements.has(Metric.NEW_COVERAGE));
+        assertEquals(0.0, measurements.getDouble(Metric.NEW_COVERAGE), 0.001);
+    }
+
+    @Test
+    void testDecodeUnknownAndBadMeasures() throws Exception {
+        var json = "{\"paging\": {\"total\": 1}, \"component\": {\"key\": \"foo\", \"measures\": [" +
+            "{\"metric\": \"duplicated_lines_density\", \"value\": \"1.5\"}," +
+            "{\"value\": \"12\", \"metric\": \"lines\", \"bestValue\": false}," +
+            "{\"metric\": \"bugs\", \"value\": \"not a number\"}," +
+            "{\"metric\": \"code_smells\", \"value\": \"12.5\"}," +
+            "{\"metric\": \"security_rating\", \"value\": \"7.0\"}," +
+            "{\"metric\": \"new_bugs\", \"periods\": [{\"index\": 1, \"value\": \"3\"}, {\"index\": 2, \"value\": \"4\"}]}," +
+            "{\"value\": \"1\"}" +
+            "]}}";
+        var measurements = Measurements.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(json.getBytes()));
+        assertThat(measurements.getExtras()).containsEntry("duplicated_lines_density", "1.5").hasSize(1);
+        assertEquals(12L, measurements.getLong(Metric.LINES));
+        assertFalse(measurements.has(Metric.BUGS));
+        assertEquals(0L, measurements.getLong(Metric.BUGS));
+        assertEquals(13L, measurements.getLong(Metric.CODE_SMELLS));
+        assertFalse(measurements.has(Metric.SECURITY_RATING));
+        assertEquals("", measurements.getRatingLetter(Metric.SECURITY_RATING));
+        assertEquals(3L, measurements.getLong(Metric.NEW_BUGS));
+    }
+
+    @Test
+    void testDecodeEmptyDocuments() throws Exception {
+        for (var json : new String[] { "{}", "[]", "{\"component\": []}", "{\"component\": {\"measures\": {}}}" }) {
+            var measurements = Measurements.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(json.getBytes()));
+            assertFalse(measurements.has(Metric.LINES));
+            assertThat(measurements.getExtras()).isEmpty();
+        }
+    }
+
+    @Test
+    void testDecodeNotJson() {
+        var body = new ByteArrayInputStream("{\"component\": not json".getBytes());
+        assertThrows(IOException.class, () -> Measurements.decode(SonarCollectorServlet.mapper.getFactory(), body));
+    }
+
+    @Test
+    void testParseNumber() {
+        assertEquals(42.0, Measurements.parseNumber("42"), 0.0);
+        assertEquals(-42.0, Measurements.parseNumber("-42"), 0.0);
+        assertEquals(92.98, Measurements.parseNumber("92.98"), 0.0);
+        assertEquals(0.5, Measurements.parseNumber(".5"), 0.0);
+        assertEquals(1500.0, Measurements.parseNumber("1.5e3"), 0.0);
+        assertEquals(1.0E20, Measurements.parseNumber("100000000000000000000"), 0.0);
+        assertTrue(Double.isNaN(Measurements.parseNumber(null)));
+        assertTrue(Double.isNaN(Measurements.parseNumber("")));
+        assertTrue(Double.isNaN(Measurements.parseNumber("-")));
+        assertTrue(Double.isNaN(Measurements.parseNumber(".")));
+        assertTrue(Double.isNaN(Measurements.parseNumber("1e")));
+        assertTrue(Double.isNaN(Measurements.parseNumber("12abc")));
+        assertTrue(Double.isNaN(Measurements.parseNumber("NaN")));
+    }
+
+    @Test
+    void testRatings() {
+        var measurements = new Measurements();
+        assertTrue(measurements.set("reliability_rating", "5.0"));
+        assertEquals("E", measurements.getRatingLetter(Metric.RELIABILITY_RATING));
+        assertTrue(measurements.set("reliability_rating", "2"));
+        assertEquals("B", measurements.getRatingLetter(Metric.RELIABILITY_RATING));
+        assertFalse(measurements.set("reliability_rating", "2.5"));
+        assertEquals("B", measurements.getRatingLetter(Metric.RELIABILITY_RATING));
+        assertFalse(measurements.set(Metric.RELIABILITY_RATING, 0.0));
+    }
+
+    @Test
+    void testConvertNumbersToRatingLetters() {
+        assertEquals("", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("XX"))));
+        assertEquals("", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber(null))));
+        assertEquals("A", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("1.0"))));
+        assertEquals("B", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("2.0"))));
+        assertEquals("C", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("3.0"))));
+        assertEquals("D", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("4.0"))));
+        assertEquals("E", Measurements.ratingLetter(Measurements.toRating(Measurements.parseNumber("5.0"))));
+    }
+
+}
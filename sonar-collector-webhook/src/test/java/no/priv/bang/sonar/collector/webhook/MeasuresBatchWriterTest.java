@@ -0,0 +1,237 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.sonar.collector.webhook.MeasuresBatchWriter.MeasuresStatementBinder;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresBatchWriterTest {
+
+    @Test
+    void testWriteManyBuildsInFewBatches() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch1", logservice);
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 10, 200, createLogger(logservice));
+
+        var completions = new ArrayList<CompletableFuture<Integer>>();
+        for (var i = 0; i < 25; ++i) {
+            completions.add(writer.submit(createBuild("no.priv.bang.ukelonn:parent", i)));
+        }
+
+        for (var completion : completions) {
+            assertEquals(1, completion.get().intValue());
+        }
+
+        writer.shutdown(1000);
+        assertEquals(25, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(25, writer.getRowCount());
+        assertThat(writer.getBatchCount()).isBetween(3L, 25L);
+        assertEquals(0, writer.getPendingCount());
+    }
+
+    @Test
+    void testBadBuildDoesNotFailTheRestOfTheBatch() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch2", logservice);
+        MeasuresStatementBinder binderFailingOnSecondBuild = (statement, build) -> {
+            if (build.getAnalysedAt() == 2) {
+                throw new IllegalArgumentException("Bad build");
+            }
+
+            servlet.bindMeasures(statement, build);
+        };
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, binderFailingOnSecondBuild, 10, 200, createLogger(logservice));
+
+        var good = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1));
+        var bad = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 2));
+
+        assertEquals(1, good.get().intValue());
+        var e = assertThrows(ExecutionException.class, bad::get);
+        assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        writer.shutdown(1000);
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(1, writer.getFailedRowCount());
+    }
+
+    @Test
+    void testFailedConnectionFailsAllBuildsInBatch() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch3", logservice);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenThrow(new SQLException("Connection refused"));
+        var writer = new MeasuresBatchWriter(datasource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 10, 50, createLogger(logservice));
+
+        var build = createBuild("no.priv.bang.ukelonn:parent", 1);
+        var e = assertThrows(SQLException.class, () -> writer.write(build));
+        assertEquals("Connection refused", e.getMessage());
+        writer.shutdown(1000);
+        assertEquals(1, writer.getFailedRowCount());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR] Sonar Collector failed to write a batch"));
+    }
+
+    @Test
+    void testSubmitAfterShutdown() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch4", logservice);
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 10, 50, createLogger(logservice));
+        writer.shutdown(1000);
+
+        var build = createBuild("no.priv.bang.ukelonn:parent", 1);
+        assertThrows(SQLException.class, () -> writer.write(build));
+    }
+
+    @Test
+    void testBuildsNotWrittenBeforeShutdownTimesOutAreFailed() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch7", logservice);
+        var connecting = new CountDownLatch(1);
+        var databaseHangs = new CountDownLatch(1);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenAnswer(invocation -> {
+            connecting.countDown();
+            // A database connection that doesn't give up when the thread is interrupted
+            var released = false;
+            while (!released) {
+                try {
+                    released = databaseHangs.await(10, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Keep waiting
+                }
+            }
+
+            throw new SQLException("Connection refused");
+        });
+        var writer = new MeasuresBatchWriter(datasource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 1, 0, createLogger(logservice));
+        var first = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1));
+        assertTrue(connecting.await(10, TimeUnit.SECONDS));
+        var second = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 2));
+        var third = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 3));
+
+        writer.shutdown(100);
+
+        var e = assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+        assertThat(e.getCause()).hasMessageContaining("has been shut down");
+        assertThrows(ExecutionException.class, () -> third.get(1, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> writer.submit(createBuild("no.priv.bang.ukelonn:parent", 4)).get(1, TimeUnit.SECONDS));
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("measures writer stopped with 2 measures not written"));
+        databaseHangs.countDown();
+        assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testRolledBackBatchIsRetried() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch8", logservice);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection())
+            .thenThrow(new SQLException("A lock could not be obtained due to a deadlock", "40001"))
+            .thenAnswer(invocation -> servlet.dataSource.getConnection());
+        var writer = new MeasuresBatchWriter(datasource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 10, 50, createLogger(logservice));
+
+        assertEquals(1, writer.write(createBuild("no.priv.bang.ukelonn:parent", 1)));
+
+        writer.shutdown(1000);
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(0, writer.getFailedRowCount());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("rolled back by the database, retrying (attempt 1 of 3)"));
+    }
+
+    @Test
+    void testDuplicatesInBatchAreSkipped() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("batch5", logservice);
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, 10, 200, createLogger(logservice));
+
+        var first = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1, "AYxyzzy1"));
+        assertEquals(1, first.get().intValue());
+
+        var repeated = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 1, "AYxyzzy1"));
+        var other = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 2, "AYxyzzy2"));
+        var withoutId = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 3));
+        var anotherWithoutId = writer.submit(createBuild("no.priv.bang.ukelonn:parent", 4));
+
+        assertEquals(0, repeated.get().intValue());
+        assertEquals(1, other.get().intValue());
+        assertEquals(1, withoutId.get().intValue());
+        assertEquals(1, anotherWithoutId.get().intValue());
+        writer.shutdown(1000);
+        assertEquals(4, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(1, writer.getDuplicateCount());
+        assertEquals(0, writer.getFailedRowCount());
+    }
+
+    static SonarBuild createBuild(String project, long analysedAt) throws Exception {
+        return createBuild(project, analysedAt, null);
+    }
+
+    static SonarBuild createBuild(String project, long analysedAt, String analysisId) throws Exception {
+        var build = new SonarBuild(analysedAt, project, "1.0.0-SNAPSHOT", new URI("http://localhost:9000"), analysisId, new Measurements());
+        build.getMeasurements().set("complexity", "0");
+        for (var rating : new String[] { "sqale_rating", "new_maintainability_rating", "security_rating", "new_security_rating", "reliability_rating", "new_reliability_rating" }) {
+            build.getMeasurements().set(rating, "1.0");
+        }
+
+        return build;
+    }
+
+    static SonarCollectorServlet createServletWithSchema(String dbname, MockLogService logservice) throws Exception {
+        var datasource = new EmbeddedDataSource();
+        datasource.setDatabaseName("memory:" + dbname);
+        datasource.setCreateDatabase("create");
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        servlet.setDataSource(datasource);
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        return servlet;
+    }
+
+    static int countRowsOfTableMeasures(DataSource dataSource) throws SQLException {
+        try(var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select count(*) from measures")) {
+                try (var resultset = statement.executeQuery()) {
+                    resultset.next();
+                    return resultset.getInt(1);
+                }
+            }
+        }
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(MeasuresBatchWriter.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresImporterTest {
+    private static final String CSV_HEADER = "project_key,version,analysis_time,lines,coverage,sqale_rating,security_rating,reliability_rating,new_maintainability_rating,new_security_rating,new_reliability_rating,analysis_id\n";
+
+    @Test
+    void testImportCsvWithBatchedInserts() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("import1", logservice);
+        var importer = new MeasuresImporter(servlet.dataSource, servlet::insertBuilds, 2, createLogger(logservice));
+        var csv = CSV_HEADER +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,952,85.5,1.0,A,1.0,1.0,1.0,1.0,\n" +
+            "\"no.priv.bang.ukelonn:parent\",\"1.0.1-SNAPSHOT\",2017-11-20 10:39:24,1000,86.0,2.0,B,1.0,1.0,1.0,1.0,AYxyzzy1\n" +
+            "\n" +
+            "no.priv.bang.handlereg:parent,1.0.0,2017-11-21T10:39:24Z,10,0,1.0,1.0,1.0,1.0,1.0,1.0,\n";
+
+        var result = importer.importMeasures(new ByteArrayInputStream(csv.getBytes()), MeasuresImporter.Format.CSV);
+
+        assertEquals(MeasuresImporter.BATCH, result.method());
+        assertEquals(3, result.rows());
+        assertEquals(0, result.rejected());
+        assertEquals(3, countRowsOfTableMeasures(servlet.dataSource));
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("rows/second"));
+    }
+
+    @Test
+    void testImportNdjsonWithBatchedInserts() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("import2", logservice);
+        var importer = new MeasuresImporter(servlet.dataSource, servlet::insertBuilds, 100, createLogger(logservice));
+        var ndjson =
+            "{\"project_key\":\"no.priv.bang.ukelonn:parent\",\"version\":\"1.0.0\",\"analysis_time\":\"2017-11-19T10:39:24+0100\",\"lines\":952,\"sqale_rating\":\"1.0\",\"extra\":{\"ignored\":true},\"analysis_id\":\"AYxyzzy1\"}\n" +
+            "{\"project_key\":\"no.priv.bang.ukelonn:parent\",\"version\":\"1.0.0\",\"analysis_time\":\"2017-11-19T10:39:24+0100\",\"lines\":952,\"analysis_id\":\"AYxyzzy1\"}\n" +
+            "{\"project_key\":\"no.priv.bang.ukelonn:parent\",\"analysis_time\":\"2017-11-20T10:39:24+0100\",\"lines\":null}\n";
+
+        var result = importer.importMeasures(new ByteArrayInputStream(ndjson.getBytes()), MeasuresImporter.Format.NDJSON);
+
+        assertEquals(3, result.rows());
+        assertEquals(2, countRowsOfTableMeasures(servlet.dataSource), "The repeated analysis should be skipped");
+    }
+
+    @Test
+    void testInvalidRowsAreRejected() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("import3", logservice);
+        var importer = new MeasuresImporter(servlet.dataSource, servlet::insertBuilds, 100, createLogger(logservice));
+        var csv = CSV_HEADER +
+            ",1.0.0,2017-11-19T10:39:24+0100,952,85.5,1.0,1.0,1.0,1.0,1.0,1.0,\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,yesterday,952,85.5,1.0,1.0,1.0,1.0,1.0,1.0,\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,many,85.5,1.0,1.0,1.0,1.0,1.0,1.0,\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,952,85.5,6.0,1.0,1.0,1.0,1.0,1.0,\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,952,85.5,F,1.0,1.0,1.0,1.0,1.0,\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,952\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24+0100,952,85.5,1.0,1.0,1.0,1.0,1.0,1.0,\n";
+
+        var result = importer.importMeasures(new ByteArrayInputStream(csv.getBytes()), MeasuresImporter.Format.CSV);
+
+        assertEquals(1, result.rows());
+        assertEquals(6, result.rejected());
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("invalid sqale_rating \"6.0\""));
+    }
+
+    @Test
+    void testMalformedNdjsonFailsTheImport() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("import4", logservice);
+        var importer = new MeasuresImporter(servlet.dataSource, servlet::insertBuilds, 100, createLogger(logservice));
+        var input = new ByteArrayInputStream("{\"project_key\":".getBytes());
+
+        assertThrows(IOException.class, () -> importer.importMeasures(input, MeasuresImporter.Format.NDJSON));
+    }
+
+    @Test
+    void testImportWithPostgresqlCopy() throws Exception {
+        var copied = new ByteArrayOutputStream();
+        var copyIn = mock(CopyIn.class);
+        doAnswer(invocation -> {
+            copied.write(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(copyIn).writeToCopy(any(byte[].class), anyInt(), anyInt());
+        var copyManager = mock(CopyManager.class);
+        when(copyManager.copyIn(PostgresqlMeasuresCopy.COPY_MEASURES_SQL)).thenReturn(copyIn);
+        var pgConnection = mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        var statement = mock(Statement.class);
+        // One of the analyses has already been stored
+        when(statement.executeUpdate(PostgresqlMeasuresCopy.MOVE_IMPORTED_MEASURES_SQL)).thenReturn(1);
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.getAutoCommit()).thenReturn(true);
+        when(connection.createStatement()).thenReturn(statement);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        var logservice = new MockLogService();
+        var latestCopied = new ArrayList<SonarBuild>();
+        var importer = new MeasuresImporter(datasource, builds -> org.junit.jupiter.api.Assertions.fail("Should not use batched inserts"), 100, null, null, latestCopied::add, createLogger(logservice));
+        var csv = CSV_HEADER +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24Z,952,85.5,1.0,A,1.0,1.0,1.0,1.0,AYxyzzy1\n" +
+            "no.priv.bang.ukelonn:parent,1.0.1,2017-11-20T10:39:24Z,960,85.5,1.0,A,1.0,1.0,1.0,1.0,AYxyzzy2\n" +
+            "no.priv.bang.ukelonn:parent,0.9.0,2017-11-18T10:39:24Z,900,85.5,1.0,A,1.0,1.0,1.0,1.0,AYxyzzy0\n";
+
+        var result = importer.importMeasures(new ByteArrayInputStream(csv.getBytes()), MeasuresImporter.Format.CSV);
+
+        assertEquals(MeasuresImporter.COPY, result.method());
+        assertEquals(3, result.rows());
+        verify(copyIn).endCopy();
+        var inOrder = inOrder(statement, copyIn, connection);
+        inOrder.verify(connection).setAutoCommit(false);
+        inOrder.verify(statement).execute(PostgresqlMeasuresCopy.CREATE_IMPORT_TABLE_SQL);
+        inOrder.verify(copyIn).endCopy();
+        inOrder.verify(statement).executeUpdate(PostgresqlMeasuresCopy.MOVE_IMPORTED_MEASURES_SQL);
+        inOrder.verify(connection).commit();
+        inOrder.verify(connection).setAutoCommit(true);
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("import skipped 1 rows of analyses that had already been stored"));
+        assertThat(copied.toString()).startsWith("\"no.priv.bang.ukelonn:parent\",\"1.0.0\",true,").endsWith(",\"AYxyzzy0\"\n");
+        // COPY bypasses the inserter, so the latest build of the project is handed to the listener
+        assertThat(latestCopied).extracting(SonarBuild::getAnalysisId).containsExactly("AYxyzzy2");
+    }
+
+    @Test
+    void testImportWithPostgresqlCopyFillsMeasureValuesAndRollups() throws Exception {
+        var servlet = createServletWithSchema("import5", new MockLogService());
+        var dictionary = new MetricDictionary(servlet.dataSource);
+        var measureValues = new MeasureValuesWriter(dictionary);
+        var rollups = new MeasuresRollups(servlet.dataSource, dictionary, mock(LoggerAdapter.class));
+        var copyIn = mock(CopyIn.class);
+        var copyManager = mock(CopyManager.class);
+        when(copyManager.copyIn(PostgresqlMeasuresCopy.COPY_MEASURES_SQL)).thenReturn(copyIn);
+        var pgConnection = mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        // The rows left in the temporary table after the move to the measures table
+        var metrics = Arrays.asList(Metric.all());
+        var linesColumn = 5 + metrics.indexOf(Metric.LINES);
+        var sqaleRatingColumn = 5 + metrics.indexOf(Metric.SQALE_RATING);
+        var inserted = mock(ResultSet.class);
+        when(inserted.next()).thenReturn(true, true, false);
+        when(inserted.getLong(1)).thenReturn(101L, 102L);
+        when(inserted.getString(anyInt())).thenReturn(null);
+        when(inserted.getString(2)).thenReturn("no.priv.bang.ukelonn:parent");
+        when(inserted.getString(3)).thenReturn("1.0.0");
+        when(inserted.getString(sqaleRatingColumn)).thenReturn("A");
+        when(inserted.getTimestamp(4)).thenReturn(Timestamp.from(Instant.parse("2017-11-19T10:39:24Z")), Timestamp.from(Instant.parse("2017-11-19T11:39:24Z")));
+        when(inserted.getObject(linesColumn)).thenReturn(952L, 960L);
+        var read = mock(PreparedStatement.class);
+        when(read.executeQuery()).thenReturn(inserted);
+        var values = mock(PreparedStatement.class);
+        var upserts = mock(PreparedStatement.class);
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.createStatement()).thenReturn(mock(Statement.class));
+        when(connection.prepareStatement(PostgresqlMeasuresCopy.READ_IMPORTED_MEASURES_SQL)).thenReturn(read);
+        when(connection.prepareStatement(MeasureValuesWriter.INSERT_MEASURE_VALUE_SQL)).thenReturn(values);
+        when(connection.prepareStatement(MeasuresRollups.UPSERT_ROLLUP_SQL)).thenReturn(upserts);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        var importer = new MeasuresImporter(datasource, builds -> org.junit.jupiter.api.Assertions.fail("Should not use batched inserts"), 100, measureValues, rollups, build -> {}, createLogger(new MockLogService()));
+        var csv = CSV_HEADER +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24Z,952,,A,,,,,,AYxyzzy1\n" +
+            "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T11:39:24Z,960,,A,,,,,,AYxyzzy2\n";
+
+        var result = importer.importMeasures(new ByteArrayInputStream(csv.getBytes()), MeasuresImporter.Format.CSV);
+
+        assertEquals(MeasuresImporter.COPY, result.method());
+        verify(read).setFetchSize(100);
+        // Only the lines and the sqale_rating of each row have values
+        verify(values, times(4)).addBatch();
+        verify(values, times(2)).setLong(1, 101L);
+        verify(values, times(2)).setLong(1, 102L);
+        verify(values, times(2)).setDouble(3, 1.0);
+        assertEquals(4, measureValues.getValueCount());
+        // Both rows are in the same day, week and month: 3 buckets of 10 numbers and the rating with a value
+        verify(upserts, times(33)).addBatch();
+        var inOrder = inOrder(values, upserts, connection);
+        inOrder.verify(values).executeBatch();
+        inOrder.verify(upserts).executeBatch();
+        inOrder.verify(connection).commit();
+    }
+
+    @Test
+    void testReadInsertedBuildOnlyHasTheMetricsWithValues() throws Exception {
+        var metrics = Arrays.asList(Metric.all());
+        var results = mock(ResultSet.class);
+        when(results.getString(anyInt())).thenReturn(null);
+        when(results.getString(2)).thenReturn("no.priv.bang.ukelonn:parent");
+        when(results.getString(3)).thenReturn("1.0.0");
+        when(results.getString(5 + metrics.indexOf(Metric.SECURITY_RATING))).thenReturn("C");
+        when(results.getString(5 + metrics.size())).thenReturn("AYxyzzy1");
+        when(results.getTimestamp(4)).thenReturn(new Timestamp(1000));
+        when(results.getObject(5 + metrics.indexOf(Metric.COVERAGE))).thenReturn(85.5);
+
+        var build = PostgresqlMeasuresCopy.readInsertedBuild(results);
+
+        assertEquals(1000, build.getAnalysedAt());
+        assertEquals("AYxyzzy1", build.getAnalysisId());
+        assertEquals(85.5, build.getMeasurements().getDouble(Metric.COVERAGE), 0.0001);
+        assertEquals("C", build.getMeasurements().getRatingLetter(Metric.SECURITY_RATING));
+        assertFalse(build.getMeasurements().has(Metric.LINES));
+        assertFalse(build.getMeasurements().has(Metric.SQALE_RATING));
+    }
+
+    @Test
+    void testFailedPostgresqlCopyIsCancelled() throws Exception {
+        var copyIn = mock(CopyIn.class);
+        when(copyIn.isActive()).thenReturn(true);
+        doThrow(new SQLException("invalid input syntax for type bigint", "22P02")).when(copyIn).endCopy();
+        var copyManager = mock(CopyManager.class);
+        when(copyManager.copyIn(anyString())).thenReturn(copyIn);
+        var pgConnection = mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.createStatement()).thenReturn(mock(Statement.class));
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        var importer = new MeasuresImporter(datasource, builds -> {}, 100, createLogger(new MockLogService()));
+        var input = new ByteArrayInputStream((CSV_HEADER + "no.priv.bang.ukelonn:parent,1.0.0,2017-11-19T10:39:24Z,952,85.5,1.0,A,1.0,1.0,1.0,1.0,AYxyzzy1\n").getBytes());
+
+        assertThrows(SQLException.class, () -> importer.importMeasures(input, MeasuresImporter.Format.CSV));
+        verify(copyIn).cancelCopy();
+        verify(connection).rollback();
+        verify(connection, never()).commit();
+    }
+
+    @Test
+    void testAppendCsvLine() throws Exception {
+        var build = new SonarBuild(0, "project \"with\" quotes", "1.0.0-SNAPSHOT", new URI("http://localhost:9000"), null, new Measurements());
+        build.getMeasurements().set("lines", "952");
+        build.getMeasurements().set("coverage", "85.5");
+        build.getMeasurements().set("sqale_rating", "2.0");
+        var line = new StringBuilder();
+
+        PostgresqlMeasuresCopy.appendCsvLine(line, build);
+
+        var values = MeasuresImporter.parseCsvLine(line.toString().trim());
+        assertEquals(SonarCollectorServlet.MEASURES_COLUMNS.split(", ").length, values.size());
+        assertEquals("project \"with\" quotes", values.get(0));
+        assertEquals("false", values.get(2));
+        assertEquals("952", values.get(4));
+        assertEquals("85.5", values.get(11));
+        assertEquals("B", values.get(14));
+        assertEquals("", values.get(20));
+        assertThat(line.toString()).endsWith(",\n");
+    }
+
+    @Test
+    void testParseCsvLine() {
+        assertEquals(List.of("a", "b,c", "d\"e", ""), MeasuresImporter.parseCsvLine("a,\"b,c\",\"d\"\"e\","));
+        assertEquals(List.of(""), MeasuresImporter.parseCsvLine(""));
+    }
+
+    @Test
+    void testToBuildConvertsRatingLetters() {
+        var importer = new MeasuresImporter(null, builds -> {}, 100, createLogger(new MockLogService()));
+
+        var build = importer.toBuild(Map.of("project_key", "no.priv.bang.ukelonn:parent", "analysis_time", "2017-11-19T10:39:24Z", "sqale_rating", "C", "new_security_rating", "4.0"));
+
+        assertEquals("C", build.getMeasurements().getRatingLetter(Metric.SQALE_RATING));
+        assertEquals("D", build.getMeasurements().getRatingLetter(Metric.NEW_SECURITY_RATING));
+        assertEquals("", build.getVersion());
+        assertNull(build.getAnalysisId());
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(MeasuresImporter.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}
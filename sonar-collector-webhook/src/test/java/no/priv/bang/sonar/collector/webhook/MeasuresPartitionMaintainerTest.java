@@ -0,0 +1,172 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresPartitionMaintainerTest {
+
+    @Test
+    void testCreatePartitionSql() {
+        assertEquals("measures_p202612", MeasuresPartitionMaintainer.partitionName(YearMonth.of(2026, 12)));
+        assertEquals("create table if not exists measures_p202612 partition of measures for values from ('2026-12-01') to ('2027-01-01')", MeasuresPartitionMaintainer.createPartitionSql(YearMonth.of(2026, 12)));
+    }
+
+    @Test
+    void testCreateMissingPartitionsOnPostgresql() throws Exception {
+        var isPartitionedResults = mock(ResultSet.class);
+        when(isPartitionedResults.next()).thenReturn(true);
+        when(isPartitionedResults.getInt(1)).thenReturn(1);
+        var isPartitioned = mock(PreparedStatement.class);
+        when(isPartitioned.executeQuery()).thenReturn(isPartitionedResults);
+        var existsResults = mock(ResultSet.class);
+        when(existsResults.next()).thenReturn(true);
+        when(existsResults.getBoolean(1)).thenReturn(true, false, false, false);
+        var exists = mock(PreparedStatement.class);
+        when(exists.executeQuery()).thenReturn(existsResults);
+        var create = mock(Statement.class);
+        var connection = createPostgresqlConnection();
+        when(connection.prepareStatement(MeasuresPartitionMaintainer.IS_PARTITIONED_SQL)).thenReturn(isPartitioned);
+        when(connection.prepareStatement(MeasuresPartitionMaintainer.PARTITION_EXISTS_SQL)).thenReturn(exists);
+        when(connection.createStatement()).thenReturn(create);
+        var logservice = new MockLogService();
+        var maintainer = new MeasuresPartitionMaintainer(createDataSource(connection), 3, createLogger(logservice));
+
+        var created = maintainer.createPartitionsAhead(LocalDate.of(2026, 11, 15));
+
+        assertEquals(3, created);
+        verify(exists).setString(1, "measures_p202611");
+        verify(create, never()).executeUpdate(MeasuresPartitionMaintainer.createPartitionSql(YearMonth.of(2026, 11)));
+        for (var month : List.of(YearMonth.of(2026, 12), YearMonth.of(2027, 1), YearMonth.of(2027, 2))) {
+            verify(create).executeUpdate(MeasuresPartitionMaintainer.createPartitionSql(month));
+        }
+    }
+
+    @Test
+    void testFailedPartitionIsLoggedAndSkipped() throws Exception {
+        var isPartitionedResults = mock(ResultSet.class);
+        when(isPartitionedResults.next()).thenReturn(true);
+        when(isPartitionedResults.getInt(1)).thenReturn(1);
+        var isPartitioned = mock(PreparedStatement.class);
+        when(isPartitioned.executeQuery()).thenReturn(isPartitionedResults);
+        var existsResults = mock(ResultSet.class);
+        when(existsResults.next()).thenReturn(true);
+        var exists = mock(PreparedStatement.class);
+        when(exists.executeQuery()).thenReturn(existsResults);
+        var create = mock(Statement.class);
+        when(create.executeUpdate(anyString())).thenThrow(new SQLException("updated partition constraint for default partition would be violated"));
+        var connection = createPostgresqlConnection();
+        when(connection.prepareStatement(MeasuresPartitionMaintainer.IS_PARTITIONED_SQL)).thenReturn(isPartitioned);
+        when(connection.prepareStatement(MeasuresPartitionMaintainer.PARTITION_EXISTS_SQL)).thenReturn(exists);
+        when(connection.createStatement()).thenReturn(create);
+        var logservice = new MockLogService();
+        var maintainer = new MeasuresPartitionMaintainer(createDataSource(connection), 1, createLogger(logservice));
+
+        assertEquals(0, maintainer.createPartitionsAhead(LocalDate.of(2026, 11, 15)));
+        assertEquals(2, logservice.getLogmessages().stream().filter(m -> m.startsWith("[WARNING] Sonar Collector unable to create partition")).count());
+    }
+
+    @Test
+    void testUnpartitionedPostgresqlTableIsLeftAlone() throws Exception {
+        var isPartitionedResults = mock(ResultSet.class);
+        when(isPartitionedResults.next()).thenReturn(true);
+        var isPartitioned = mock(PreparedStatement.class);
+        when(isPartitioned.executeQuery()).thenReturn(isPartitionedResults);
+        var connection = createPostgresqlConnection();
+        when(connection.prepareStatement(MeasuresPartitionMaintainer.IS_PARTITIONED_SQL)).thenReturn(isPartitioned);
+        var maintainer = new MeasuresPartitionMaintainer(createDataSource(connection), 3, createLogger(new MockLogService()));
+
+        assertEquals(0, maintainer.createPartitionsAhead(LocalDate.of(2026, 11, 15)));
+        verify(connection, never()).createStatement();
+    }
+
+    @Test
+    void testDerbyKeepsTheUnpartitionedTable() throws Exception {
+        var logservice = new MockLogService();
+        var datasource = new EmbeddedDataSource();
+        datasource.setDatabaseName("memory:partitions1");
+        datasource.setCreateDatabase("create");
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        servlet.setDataSource(datasource);
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_PARTITIONING_ENABLED, "true"));
+
+        assertNotNull(servlet.partitionMaintainer);
+        assertEquals(0, servlet.partitionMaintainer.createPartitionsAhead(LocalDate.now()));
+        servlet.insertBuilds(List.of(createBuild("no.priv.bang.ukelonn:parent", 1000)));
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertTrue(indexExists(servlet.dataSource, "IDX_MEASURES_PROJECT_KEY_ANALYSIS_TIME"));
+        assertFalse(indexExists(servlet.dataSource, "IDX_PROJECT_KEY"));
+        assertFalse(logservice.getLogmessages().stream().anyMatch(m -> m.startsWith("[ERROR]")));
+        servlet.deactivate();
+        assertNull(servlet.partitionMaintainer);
+    }
+
+    private static boolean indexExists(DataSource dataSource, String indexName) throws SQLException {
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select count(*) from sys.sysconglomerates where conglomeratename=?")) {
+                statement.setString(1, indexName);
+                try (var results = statement.executeQuery()) {
+                    results.next();
+                    return results.getInt(1) > 0;
+                }
+            }
+        }
+    }
+
+    private static Connection createPostgresqlConnection() throws SQLException {
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        return connection;
+    }
+
+    private static DataSource createDataSource(Connection connection) throws SQLException {
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        return datasource;
+    }
+
+    private static LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(MeasuresPartitionMaintainer.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}
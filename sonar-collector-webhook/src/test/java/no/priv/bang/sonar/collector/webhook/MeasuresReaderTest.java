@@ -0,0 +1,253 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresReaderTest {
+    private static final String PROJECT = "no.priv.bang.ukelonn:parent";
+    private static SonarCollectorServlet servlet;
+    private static MeasuresReader reader;
+
+    @BeforeAll
+    static void createMeasures() throws Exception {
+        var logservice = new MockLogService();
+        servlet = createServletWithSchema("read1", logservice);
+        var builds = new ArrayList<SonarBuild>();
+        for (var i = 1; i <= 5; ++i) {
+            var template = createBuild(PROJECT, i * 1000L);
+            var version = i % 2 == 0 ? "1.0." + i : "1.0." + i + "-SNAPSHOT";
+            var build = new SonarBuild(template.getAnalysedAt(), PROJECT, version, template.getServerUrl(), null, template.getMeasurements());
+            build.getMeasurements().set("lines", Integer.toString(i * 100));
+            builds.add(build);
+        }
+
+        // Two analyses at the same time, to check the tie breaking on id
+        builds.add(createBuild(PROJECT, 5000L));
+        builds.add(createBuild("no.priv.bang.handlereg:parent", 1000L));
+        servlet.insertBuilds(builds);
+        var logger = new LoggerAdapter(MeasuresReader.class);
+        logger.setLogService(logservice);
+        reader = new MeasuresReader(servlet.dataSource, 2, logger);
+    }
+
+    @Test
+    void testReadWholeSeries() throws Exception {
+        var series = read(Map.of("project", PROJECT));
+
+        assertEquals(PROJECT, series.path("project").asText());
+        var measures = series.path("measures");
+        assertEquals(6, measures.size());
+        assertEquals("1970-01-01T00:00:01Z", measures.get(0).path("analysisTime").asText());
+        assertEquals("1.0.1-SNAPSHOT", measures.get(0).path("version").asText());
+        assertFalse(measures.get(0).path("versionIsRelease").asBoolean());
+        assertEquals(100, measures.get(0).path("lines").asLong());
+        assertEquals("A", measures.get(0).path("sqale_rating").asText());
+        assertTrue(measures.get(0).has("coverage"));
+        assertTrue(series.path("next").isMissingNode());
+    }
+
+    @Test
+    void testReadPages() throws Exception {
+        var times = new ArrayList<String>();
+        var parameters = Map.of("project", PROJECT, "limit", "4");
+        var first = read(parameters);
+        first.path("measures").forEach(row -> times.add(row.path("analysisTime").asText()));
+        var next = first.path("next").asText();
+        assertThat(next).isNotEmpty();
+
+        var second = read(Map.of("project", PROJECT, "limit", "4", "after", next));
+        second.path("measures").forEach(row -> times.add(row.path("analysisTime").asText()));
+
+        assertEquals(4, first.path("measures").size());
+        assertEquals(2, second.path("measures").size());
+        assertTrue(second.path("next").isMissingNode());
+        assertEquals(List.of("1970-01-01T00:00:01Z", "1970-01-01T00:00:02Z", "1970-01-01T00:00:03Z", "1970-01-01T00:00:04Z", "1970-01-01T00:00:05Z", "1970-01-01T00:00:05Z"), times);
+    }
+
+    @Test
+    void testReadFilteredSeries() throws Exception {
+        var series = read(Map.of("project", PROJECT, "metrics", "lines, coverage", "from", "1970-01-01T00:00:02Z", "to", "1970-01-01T00:00:05Z", "releasesOnly", "true"));
+
+        var measures = series.path("measures");
+        assertEquals(2, measures.size());
+        assertEquals("1.0.2", measures.get(0).path("version").asText());
+        assertEquals("1.0.4", measures.get(1).path("version").asText());
+        assertEquals(400, measures.get(1).path("lines").asLong());
+        assertTrue(measures.get(1).has("coverage"));
+        assertFalse(measures.get(1).has("sqale_rating"));
+    }
+
+    @Test
+    void testReadFailingInTheMiddleOfTheSeries() throws Exception {
+        var results = mock(ResultSet.class);
+        when(results.next()).thenReturn(true, true, true).thenThrow(new SQLException("Connection reset", "08006"));
+        when(results.getLong(1)).thenReturn(1L, 2L, 3L);
+        when(results.getString(2)).thenReturn("1.0.0");
+        when(results.getTimestamp(4)).thenReturn(new Timestamp(1000), new Timestamp(2000), new Timestamp(3000));
+        // The lines of the third row can't be read, so the series ends after the second row
+        when(results.getLong(5)).thenReturn(100L, 200L).thenThrow(new SQLException("Connection reset", "08006"));
+        var statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(results);
+        var connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        var logservice = new MockLogService();
+        var logger = new LoggerAdapter(MeasuresReader.class);
+        logger.setLogService(logservice);
+        var failingReader = new MeasuresReader(datasource, 2, logger);
+        var query = MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "metrics", "lines")), 1000, 10000);
+        var response = mock(HttpServletResponse.class);
+        var body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(body));
+
+        failingReader.read(query, response);
+
+        var series = SonarCollectorServlet.mapper.readTree(body.toByteArray());
+        var measures = series.path("measures");
+        assertEquals(2, measures.size());
+        assertEquals(200, measures.get(1).path("lines").asLong());
+        assertTrue(series.path("error").asBoolean());
+        assertEquals(new MeasuresReader.Cursor(2000, 2).toString(), series.path("next").asText());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("failed reading measures of project " + PROJECT + " after 2 rows"));
+        verify(connection).rollback();
+    }
+
+    @Test
+    void testReadFailingBeforeTheFirstRowResumesFromTheSameCursor() throws Exception {
+        var results = mock(ResultSet.class);
+        when(results.next()).thenThrow(new SQLException("Connection reset", "08006"));
+        var statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(results);
+        var connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenReturn(connection);
+        var logger = new LoggerAdapter(MeasuresReader.class);
+        logger.setLogService(new MockLogService());
+        var failingReader = new MeasuresReader(datasource, 2, logger);
+        var query = MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "after", "1000:17")), 1000, 10000);
+        var response = mock(HttpServletResponse.class);
+        var body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(body));
+
+        failingReader.read(query, response);
+
+        var series = SonarCollectorServlet.mapper.readTree(body.toByteArray());
+        assertEquals(0, series.path("measures").size());
+        assertTrue(series.path("error").asBoolean());
+        assertEquals("1000:17", series.path("next").asText());
+    }
+
+    @Test
+    void testCreateSql() {
+        var query = new MeasuresReader.Query(PROJECT, List.of(Metric.LINES), 1L, 2L, true, new MeasuresReader.Cursor(3, 4), 10);
+
+        var sql = MeasuresReader.createSql(query);
+
+        assertEquals("select id, version, version_is_release, analysis_time, lines from measures where project_key=? and analysis_time>=? and analysis_time<? and version_is_release=? and (analysis_time>? or (analysis_time=? and id>?)) order by analysis_time, id", sql);
+    }
+
+    @Test
+    void testParseQuery() {
+        var query = MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "after", "1000:17")), 1000, 10000);
+        assertEquals(Metric.all().length, query.metrics().size());
+        assertEquals(new MeasuresReader.Cursor(1000, 17), query.after());
+        assertEquals(1000, query.limit());
+        assertNull(query.from());
+        assertFalse(query.releasesOnly());
+    }
+
+    @Test
+    void testParseInvalidQueries() {
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of()), 1000, 10000));
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "metrics", "lines from measures;--")), 1000, 10000));
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "limit", "0")), 1000, 10000));
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "limit", "10001")), 1000, 10000));
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "after", "xyzzy")), 1000, 10000));
+        assertThrows(IllegalArgumentException.class, () -> MeasuresReader.parseQuery(request(Map.of("project", PROJECT, "from", "yesterday")), 1000, 10000));
+    }
+
+    private JsonNode read(Map<String, String> parameters) throws Exception {
+        var query = MeasuresReader.parseQuery(request(parameters), 1000, 10000);
+        var response = mock(HttpServletResponse.class);
+        var body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(body));
+
+        reader.read(query, response);
+
+        verify(response).setStatus(200);
+        verify(response).setContentType("application/json");
+        return SonarCollectorServlet.mapper.readTree(body.toByteArray());
+    }
+
+    static HttpServletRequest request(Map<String, String> parameters) {
+        var request = mock(HttpServletRequest.class);
+        parameters.forEach((name, value) -> when(request.getParameter(name)).thenReturn(value));
+        return request;
+    }
+
+    static ServletOutputStream wrap(OutputStream outputStream) {
+        return new ServletOutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                outputStream.write(b);
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                // empty method
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+import no.priv.bang.sonar.collector.webhook.MeasuresRollups.Bucket;
+
+class MeasuresRollupsTest {
+
+    private static final long SUNDAY_AFTERNOON = Instant.parse("2026-10-18T15:30:00Z").toEpochMilli();
+    private static final long SUNDAY_EVENING = Instant.parse("2026-10-18T21:00:00Z").toEpochMilli();
+    private static final long MONDAY = Instant.parse("2026-10-19T08:00:00Z").toEpochMilli();
+    private static final long NEXT_MONTH = Instant.parse("2026-11-02T08:00:00Z").toEpochMilli();
+
+    @Test
+    void testBucketStart() {
+        assertEquals(Instant.parse("2026-10-18T00:00:00Z").toEpochMilli(), Bucket.DAY.start(SUNDAY_AFTERNOON));
+        assertEquals(Instant.parse("2026-10-12T00:00:00Z").toEpochMilli(), Bucket.WEEK.start(SUNDAY_AFTERNOON));
+        assertEquals(Instant.parse("2026-10-19T00:00:00Z").toEpochMilli(), Bucket.WEEK.start(MONDAY));
+        assertEquals(Instant.parse("2026-10-01T00:00:00Z").toEpochMilli(), Bucket.MONTH.start(SUNDAY_AFTERNOON));
+    }
+
+    @Test
+    void testRollupsAreUpdatedWhenMeasuresAreInserted() throws Exception {
+        var servlet = createServletWithSchema("rollups1", new MockLogService());
+        servlet.modified(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_ROLLUPS_ENABLED, "true"));
+
+        servlet.saveMeasuresInDatabase(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_EVENING, "lines", "120"));
+        servlet.insertBuilds(List.of(
+            createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100"),
+            createBuild("no.priv.bang.ukelonn:parent", MONDAY, "lines", "90"),
+            createBuild("no.priv.bang.handlereg:parent", MONDAY, "lines", "500")));
+
+        var rollups = findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines");
+        assertEquals(List.of(
+            "day 2026-10-18T00:00:00Z 2 100.0 120.0 220.0 120.0",
+            "day 2026-10-19T00:00:00Z 1 90.0 90.0 90.0 90.0",
+            "month 2026-10-01T00:00:00Z 3 90.0 120.0 310.0 90.0",
+            "week 2026-10-12T00:00:00Z 2 100.0 120.0 220.0 120.0",
+            "week 2026-10-19T00:00:00Z 1 90.0 90.0 90.0 90.0"), rollups);
+        assertEquals(List.of(
+            "day 2026-10-18T00:00:00Z 2 1.0 1.0 2.0 1.0",
+            "day 2026-10-19T00:00:00Z 1 1.0 1.0 1.0 1.0",
+            "month 2026-10-01T00:00:00Z 3 1.0 1.0 3.0 1.0",
+            "week 2026-10-12T00:00:00Z 2 1.0 1.0 2.0 1.0",
+            "week 2026-10-19T00:00:00Z 1 1.0 1.0 1.0 1.0"), findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "sqale_rating"));
+        assertEquals(3, findRollups(servlet.dataSource, "no.priv.bang.handlereg:parent", "lines").size());
+    }
+
+    @Test
+    void testBatchWriterUpdatesRollups() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = createServletWithSchema("rollups2", logservice);
+        var logger = new LoggerAdapter(MeasuresBatchWriter.class);
+        logger.setLogService(logservice);
+        var writer = new MeasuresBatchWriter(servlet.dataSource, SonarCollectorServlet.INSERT_MEASURES_SQL, servlet::bindMeasures, null, servlet.rollups, 10, 200, logger);
+
+        var first = writer.submit(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100", "AYrollups1"));
+        assertEquals(1, first.get().intValue());
+        var repeated = writer.submit(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100", "AYrollups1"));
+        var second = writer.submit(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_EVENING, "lines", "120", "AYrollups2"));
+
+        assertEquals(0, repeated.get().intValue());
+        assertEquals(1, second.get().intValue());
+        writer.shutdown(1000);
+        // The repeated analysis isn't counted in the rollups
+        assertEquals("day 2026-10-18T00:00:00Z 2 100.0 120.0 220.0 120.0", findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines").get(0));
+    }
+
+    @Test
+    void testRebuildGivesTheSameRollups() throws Exception {
+        var servlet = createServletWithSchema("rollups3", new MockLogService());
+        servlet.modified(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_MEASURE_VALUES_ENABLED, "true", SonarCollectorConfiguration.SONAR_COLLECTOR_ROLLUPS_ENABLED, "true"));
+        var withExtraMetric = createBuild("no.priv.bang.ukelonn:parent", MONDAY, "lines", "90");
+        withExtraMetric.getMeasurements().set("duplicated_lines_density", "2.5");
+        servlet.insertBuilds(List.of(
+            createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100"),
+            createBuild("no.priv.bang.ukelonn:parent", SUNDAY_EVENING, "lines", "120"),
+            withExtraMetric,
+            createBuild("no.priv.bang.handlereg:parent", NEXT_MONTH, "lines", "500")));
+        var linesBefore = findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines");
+        var extraBefore = findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "duplicated_lines_density");
+        var countBefore = MeasureValuesWriterTest.countRows(servlet.dataSource, "measure_rollups");
+
+        var result = servlet.rollups.rebuild();
+
+        assertEquals(4, result.measures());
+        assertEquals(countBefore, result.rollups());
+        assertEquals(countBefore, MeasureValuesWriterTest.countRows(servlet.dataSource, "measure_rollups"));
+        assertEquals(linesBefore, findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines"));
+        assertEquals(extraBefore, findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "duplicated_lines_density"));
+        assertEquals(3, extraBefore.size());
+    }
+
+    @Test
+    void testRollupsAreOffByDefault() throws Exception {
+        var servlet = createServletWithSchema("rollups4", new MockLogService());
+
+        servlet.saveMeasuresInDatabase(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100"));
+
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(0, MeasureValuesWriterTest.countRows(servlet.dataSource, "measure_rollups"));
+        assertEquals(0, servlet.rollups.getUpdateCount());
+    }
+
+    @Test
+    void testUpdateUsesUpsertsOnPostgresql() throws Exception {
+        var servlet = createServletWithSchema("rollups5", new MockLogService());
+        var rollups = new MeasuresRollups(servlet.dataSource, new MetricDictionary(servlet.dataSource), mock(LoggerAdapter.class));
+        var metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("PostgreSQL");
+        var upsert = mock(PreparedStatement.class);
+        var connection = mock(Connection.class);
+        when(connection.getMetaData()).thenReturn(metadata);
+        when(connection.prepareStatement(MeasuresRollups.UPSERT_ROLLUP_SQL)).thenReturn(upsert);
+
+        rollups.update(connection, List.of(
+            createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100"),
+            createBuild("no.priv.bang.ukelonn:parent", SUNDAY_EVENING, "lines", "120")));
+
+        // Both builds are in the same buckets: 3 buckets of 10 numbers and 6 ratings
+        verify(upsert, times(48)).addBatch();
+        verify(upsert).executeBatch();
+        verify(connection, never()).prepareStatement(MeasuresRollups.UPDATE_ROLLUP_SQL);
+        assertEquals(48, rollups.getUpdateCount());
+    }
+
+    @Test
+    void testRollupInsertedByAnotherTransactionIsUpdated() throws Exception {
+        var servlet = createServletWithSchema("rollups7", new MockLogService());
+        var build = createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100");
+        try (var connection = servlet.dataSource.getConnection(); var otherConnection = servlet.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            otherConnection.setAutoCommit(false);
+            // The other transaction inserts and commits the rollups after this transaction
+            // found the first rollup missing, and before this transaction inserts it
+            var racing = new AtomicBoolean(true);
+            var connectionWithRace = withRaceAfterFirstUpdate(connection, () -> {
+                if (racing.getAndSet(false)) {
+                    servlet.rollups.update(otherConnection, List.of(build));
+                    otherConnection.commit();
+                }
+            });
+
+            servlet.rollups.update(connectionWithRace, List.of(build));
+            connection.commit();
+        }
+
+        assertFalse(findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines").isEmpty());
+        for (var rollup : findRollups(servlet.dataSource, "no.priv.bang.ukelonn:parent", "lines")) {
+            assertTrue(rollup.contains(" 2 100.0 100.0 200.0 100.0"), rollup);
+        }
+    }
+
+    @Test
+    void testFailedRebuildKeepsTheOldRollups() throws Exception {
+        var servlet = createServletWithSchema("rollups6", new MockLogService());
+        servlet.modified(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_ROLLUPS_ENABLED, "true"));
+        servlet.saveMeasuresInDatabase(createBuild("no.priv.bang.ukelonn:parent", SUNDAY_AFTERNOON, "lines", "100"));
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenThrow(new SQLException("Connection refused"));
+        var rollups = new MeasuresRollups(datasource, servlet.metrics, mock(LoggerAdapter.class));
+
+        assertThrows(SQLException.class, rollups::rebuild);
+        assertEquals(48, MeasureValuesWriterTest.countRows(servlet.dataSource, "measure_rollups"));
+    }
+
+    static SonarBuild createBuild(String project, long analysedAt, String metric, String value) throws Exception {
+        return createBuild(project, analysedAt, metric, value, null);
+    }
+
+    static SonarBuild createBuild(String project, long analysedAt, String metric, String value, String analysisId) throws Exception {
+        var build = MeasuresBatchWriterTest.createBuild(project, analysedAt, analysisId);
+        build.getMeasurements().set(metric, value);
+        return build;
+    }
+
+    interface SqlAction {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Wrap a connection, so that an action runs after the first update of
+     * a rollup done on the connection.
+     */
+    private static Connection withRaceAfterFirstUpdate(Connection connection, SqlAction race) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+            var result = invoke(connection, method, args);
+            if ("prepareStatement".equals(method.getName()) && MeasuresRollups.UPDATE_ROLLUP_SQL.equals(args[0])) {
+                var update = (PreparedStatement) result;
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, (statementProxy, statementMethod, statementArgs) -> {
+                    var statementResult = invoke(update, statementMethod, statementArgs);
+                    if ("executeUpdate".equals(statementMethod.getName())) {
+                        race.run();
+                    }
+
+                    return statementResult;
+                });
+            }
+
+            return result;
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    static List<String> findRollups(DataSource dataSource, String project, String metricKey) throws SQLException {
+        var rollups = new ArrayList<String>();
+        try (var connection = dataSource.getConnection()) {
+            try (var statement = connection.prepareStatement("select r.bucket, r.bucket_start, r.value_count, r.min_value, r.max_value, r.sum_value, r.last_value from measure_rollups r join metrics k on k.id = r.metric_id where r.project_key = ? and k.metric_key = ? order by r.bucket, r.bucket_start")) {
+                statement.setString(1, project);
+                statement.setString(2, metricKey);
+                try (var results = statement.executeQuery()) {
+                    while (results.next()) {
+                        rollups.add(String.format("%s %s %d %s %s %s %s", results.getString(1), results.getTimestamp(2).toInstant(), results.getLong(3), results.getDouble(4), results.getDouble(5), results.getDouble(6), results.getDouble(7)));
+                    }
+                }
+            }
+        }
+
+        return rollups;
+    }
+
+}
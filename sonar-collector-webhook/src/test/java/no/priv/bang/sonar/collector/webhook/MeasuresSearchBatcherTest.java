@@ -0,0 +1,188 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresSearchBatcherTest {
+    private static final URI SERVER = URI.create("http://localhost:9000");
+    private static final URI OTHER_SERVER = URI.create("http://sonar2.example.com");
+
+    @Test
+    void testRequestsWithinTheWindowAreFetchedTogether() {
+        var fetched = new CopyOnWriteArrayList<List<String>>();
+        var batcher = new MeasuresSearchBatcher(recordingFetch(fetched), configuration(50, 50));
+
+        var foo = batcher.fetch(SERVER, "foo", "lines");
+        var bar = batcher.fetch(SERVER, "bar", "lines");
+        var fooAgain = batcher.fetch(SERVER, "foo", "lines");
+        assertEquals(3, batcher.getPendingCount());
+
+        assertEquals(3, foo.join().getLong(Metric.LINES));
+        assertEquals(3, bar.join().getLong(Metric.LINES));
+        assertEquals(3, fooAgain.join().getLong(Metric.LINES));
+        // Requests for the same project share the fetch, but not the measures
+        assertNotSame(foo.join(), fooAgain.join());
+        assertThat(fetched).containsExactly(List.of("foo", "bar"));
+        assertEquals(1, batcher.getBatchCount());
+        assertEquals(2, batcher.getBatchedProjectCount());
+        assertEquals(0, batcher.getPendingCount());
+    }
+
+    @Test
+    void testFullBatchIsFetchedWithoutWaitingForTheWindow() {
+        var fetched = new CopyOnWriteArrayList<List<String>>();
+        var batcher = new MeasuresSearchBatcher(recordingFetch(fetched), configuration(60000, 3));
+
+        var results = new ArrayList<CompletableFuture<Measurements>>();
+        for (var project : List.of("a", "b", "c", "d")) {
+            results.add(batcher.fetch(SERVER, project, "lines"));
+        }
+
+        results.subList(0, 3).forEach(CompletableFuture::join);
+        assertThat(fetched).containsExactly(List.of("a", "b", "c"));
+        assertFalse(results.get(3).isDone());
+        assertEquals(1, batcher.getPendingCount());
+    }
+
+    @Test
+    void testMaxBatchSizeIsLimitedToWhatSonarAccepts() {
+        var fetched = new CopyOnWriteArrayList<List<String>>();
+        var batcher = new MeasuresSearchBatcher(recordingFetch(fetched), configuration(60000, 1000));
+
+        for (var i = 0; i < MeasuresSearchBatcher.MAX_PROJECT_KEYS; ++i) {
+            batcher.fetch(SERVER, "project" + i, "lines");
+        }
+
+        assertThat(fetched).hasSize(1);
+        assertThat(fetched.get(0)).hasSize(MeasuresSearchBatcher.MAX_PROJECT_KEYS);
+    }
+
+    @Test
+    void testDifferentServersAndMetricsAreNotBatchedTogether() {
+        var fetched = new CopyOnWriteArrayList<List<String>>();
+        var batcher = new MeasuresSearchBatcher(recordingFetch(fetched), configuration(20, 50));
+
+        var first = batcher.fetch(SERVER, "foo", "lines");
+        var otherServer = batcher.fetch(OTHER_SERVER, "bar", "lines");
+        var otherMetrics = batcher.fetch(SERVER, "baz", "lines,bugs");
+        CompletableFuture.allOf(first, otherServer, otherMetrics).join();
+
+        assertThat(fetched).containsExactlyInAnyOrder(List.of("foo"), List.of("bar"), List.of("baz"));
+        assertEquals(0, batcher.getBatchCount());
+    }
+
+    @Test
+    void testProjectMissingFromTheBatchIsFetchedAlone() {
+        var fetched = new CopyOnWriteArrayList<List<String>>();
+        MeasuresSearchBatcher.MeasuresFetch fetch = (serverUrl, projectKeys, metricKeys) -> {
+            fetched.add(List.copyOf(projectKeys));
+            if (projectKeys.size() == 1) {
+                return CompletableFuture.failedFuture(new SonarApiException(serverUrl, 404));
+            }
+
+            return CompletableFuture.completedFuture(Map.of("foo", measurements(3)));
+        };
+        var batcher = new MeasuresSearchBatcher(fetch, configuration(50, 50));
+
+        var foo = batcher.fetch(SERVER, "foo", "lines");
+        var unknown = batcher.fetch(SERVER, "unknown", "lines");
+
+        assertEquals(3, foo.join().getLong(Metric.LINES));
+        var e = assertThrows(CompletionException.class, unknown::join);
+        assertThat(e.getCause()).isInstanceOf(SonarApiException.class);
+        assertThat(fetched).containsExactly(List.of("foo", "unknown"), List.of("unknown"));
+    }
+
+    @Test
+    void testFailedBatchFailsAllRequests() {
+        MeasuresSearchBatcher.MeasuresFetch fetch = (serverUrl, projectKeys, metricKeys) -> {
+            throw new IOException("Connection refused");
+        };
+        var batcher = new MeasuresSearchBatcher(fetch, configuration(50, 2));
+
+        var foo = batcher.fetch(SERVER, "foo", "lines");
+        var bar = batcher.fetch(SERVER, "bar", "lines");
+
+        for (var result : List.of(foo, bar)) {
+            var e = assertThrows(CompletionException.class, result::join);
+            assertThat(e.getCause()).isInstanceOf(IOException.class).hasMessage("Connection refused");
+        }
+    }
+
+    @Test
+    void testServletFetchesSeveralProjectsWithMeasuresSearch() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var connection = mock(HttpURLConnection.class);
+        when(connection.getResponseCode()).thenReturn(200);
+        when(connection.getInputStream()).thenReturn(getClass().getClassLoader().getResourceAsStream("json/sonar/api-measures-search-two-projects.json"));
+        when(factory.openConnection(any())).thenReturn(connection);
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setLogservice(new MockLogService());
+
+        var measurementsByProject = servlet.fetchMeasures(SERVER, List.of("no.priv.bang.sonar.sonar-collector:sonar-collector", "no.priv.bang.ukelonn:parent"), "lines,new_bugs,sqale_rating").join();
+
+        var url = ArgumentCaptor.forClass(URI.class);
+        verify(factory).openConnection(url.capture());
+        assertEquals("http://localhost:9000/api/measures/search?projectKeys=no.priv.bang.sonar.sonar-collector%3Asonar-collector%2Cno.priv.bang.ukelonn%3Aparent&metricKeys=lines,new_bugs,sqale_rating", url.getValue().toString());
+        assertEquals(952, measurementsByProject.get("no.priv.bang.sonar.sonar-collector:sonar-collector").getLong(Metric.LINES));
+        assertEquals(12418, measurementsByProject.get("no.priv.bang.ukelonn:parent").getLong(Metric.LINES));
+    }
+
+    private static MeasuresSearchBatcher.MeasuresFetch recordingFetch(List<List<String>> fetched) {
+        return (serverUrl, projectKeys, metricKeys) -> {
+            fetched.add(List.copyOf(projectKeys));
+            var measurementsByProject = new HashMap<String, Measurements>();
+            projectKeys.forEach(project -> measurementsByProject.put(project, measurements(3)));
+            return CompletableFuture.completedFuture(measurementsByProject);
+        };
+    }
+
+    private static Measurements measurements(long lines) {
+        var measurements = new Measurements();
+        measurements.set(Metric.LINES, lines);
+        return measurements;
+    }
+
+    private static SonarCollectorConfiguration configuration(int windowMillis, int maxSize) {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(Map.of(
+            SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_ENABLED, "true",
+            SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_WINDOW_MILLIS, Integer.toString(windowMillis),
+            SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_MAX_SIZE, Integer.toString(maxSize)));
+        return configuration;
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MeasuresSpoolTest {
+
+    @TempDir
+    Path spoolDirectory;
+
+    @Test
+    void testAppendPeekAndRemove() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            assertEquals(0, spool.getPendingRecords());
+            assertEquals(0, spool.getOldestRecordAgeMillis());
+            var build = MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 1, "AYxyzzy1");
+            build.getMeasurements().set("lines", "952");
+            build.getMeasurements().set("coverage", "92.98");
+            build.getMeasurements().set("duplicated_lines_density", "1.5");
+            spool.append(build);
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 2));
+            assertEquals(2, spool.getPendingRecords());
+            assertThat(spool.getPendingBytes()).isPositive();
+            assertEquals(2, spool.getSpooledCount());
+
+            var spooled = spool.peek(10);
+            assertThat(spooled).hasSize(2);
+            var first = spooled.get(0).build();
+            assertEquals("no.priv.bang.ukelonn:parent", first.getProject());
+            assertEquals(1, first.getAnalysedAt());
+            assertEquals("1.0.0-SNAPSHOT", first.getVersion());
+            assertEquals("http://localhost:9000", first.getServerUrl().toString());
+            assertEquals("AYxyzzy1", first.getAnalysisId());
+            assertEquals(952L, first.getMeasurements().getLong(Metric.LINES));
+            assertEquals(92.98, first.getMeasurements().getDouble(Metric.COVERAGE), 0.0);
+            assertEquals("A", first.getMeasurements().getRatingLetter(Metric.SQALE_RATING));
+            assertEquals("1.5", first.getMeasurements().getExtras().get("duplicated_lines_density"));
+            assertNull(spooled.get(1).build().getAnalysisId());
+
+            spool.remove(spooled.subList(0, 1));
+            assertEquals(1, spool.getPendingRecords());
+            assertEquals(2, spool.peek(10).get(0).build().getAnalysedAt());
+            spool.remove(spool.peek(10));
+            assertEquals(0, spool.getPendingRecords());
+            assertEquals(0, spool.getPendingBytes());
+        }
+    }
+
+    @Test
+    void testPendingBuildsSurviveReopen() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            for (var i = 1; i <= 3; ++i) {
+                spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", i));
+            }
+
+            spool.remove(spool.peek(1));
+        }
+
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            assertEquals(2, spool.getPendingRecords());
+            assertThat(spool.peek(10)).extracting(s -> s.build().getAnalysedAt()).containsExactly(2L, 3L);
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 4));
+            assertThat(spool.peek(10)).extracting(s -> s.build().getAnalysedAt()).containsExactly(2L, 3L, 4L);
+        }
+    }
+
+    @Test
+    void testCorruptRecordEndsSegment() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 1));
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 2));
+        }
+
+        // Flip a byte in the payload of the last record, like a write interrupted by a crash
+        var segment = Files.list(spoolDirectory).findFirst().orElseThrow();
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            var secondRecord = 16 + 16 + buffer.getInt(16);
+            buffer.put(secondRecord + 20, (byte) (buffer.get(secondRecord + 20) ^ 0xff));
+            buffer.force();
+        }
+
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            assertEquals(1, spool.getPendingRecords());
+            assertEquals(1, spool.peek(10).get(0).build().getAnalysedAt());
+        }
+    }
+
+    @Test
+    void testFullSegmentsRollOverAndAreDeletedWhenDrained() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 4096, createLogger(new MockLogService()))) {
+            for (var i = 1; i <= 40; ++i) {
+                spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", i));
+            }
+
+            assertThat(Files.list(spoolDirectory)).hasSizeGreaterThan(1);
+            assertEquals(40, spool.getPendingRecords());
+            while (spool.getPendingRecords() > 0) {
+                spool.remove(spool.peek(7));
+            }
+
+            assertThat(Files.list(spoolDirectory)).hasSize(1);
+        }
+    }
+
+    @Test
+    void testUndecodableRecordIsQuarantined() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 1));
+            spool.append(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 2));
+        }
+
+        corruptPayloadOfFirstRecord(spoolDirectory);
+
+        var logservice = new MockLogService();
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(logservice))) {
+            var spooled = spool.peek(10);
+            assertThat(spooled).hasSize(2);
+            assertNull(spooled.get(0).build());
+            assertEquals(2, spooled.get(1).build().getAnalysedAt());
+            assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR] Sonar Collector unable to decode the record"));
+
+            var file = spool.quarantine(spooled.get(0));
+            assertEquals(spoolDirectory.resolve(MeasuresSpool.QUARANTINE_DIRECTORY), file.getParent());
+            assertEquals(spooled.get(0).endPosition() - spooled.get(0).startPosition() - 16, Files.size(file));
+            assertEquals(1, spool.getQuarantinedCount());
+            assertEquals(1, spool.getPendingRecords());
+            assertEquals(2, spool.peek(10).get(0).build().getAnalysedAt());
+        }
+    }
+
+    /**
+     * Make the first record of the spool impossible to decode, with a valid
+     * checksum, like a record written by an incompatible version.
+     */
+    static void corruptPayloadOfFirstRecord(Path spoolDirectory) throws Exception {
+        var segment = Files.list(spoolDirectory).filter(Files::isRegularFile).findFirst().orElseThrow();
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            var length = buffer.getInt(16);
+            // The length of the project key follows the analysis time
+            buffer.put(16 + 16 + 8, (byte) 0xff);
+            var crc = new CRC32();
+            crc.update(buffer.slice(16 + 8, 8 + length));
+            buffer.putInt(16 + 4, (int) crc.getValue());
+            buffer.force();
+        }
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(MeasuresSpool.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static no.priv.bang.sonar.collector.webhook.MeasuresBatchWriterTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.sql.SQLException;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class MetricDictionaryTest {
+
+    @Test
+    void testMetricsGetTheSameIdEveryTime() throws Exception {
+        var servlet = createServletWithSchema("dictionary1", new MockLogService());
+        var metrics = new MetricDictionary(servlet.dataSource);
+        var otherMetrics = new MetricDictionary(servlet.dataSource);
+
+        var linesId = metrics.metricId("lines");
+        var coverageId = metrics.metricId("coverage");
+
+        assertNotEquals(linesId, coverageId);
+        assertEquals(linesId, metrics.metricId("lines"));
+        assertEquals(linesId, otherMetrics.metricId("lines"));
+        assertEquals(coverageId, otherMetrics.metricId("coverage"));
+    }
+
+    @Test
+    void testCachedIdsDontUseTheDatabase() throws Exception {
+        var servlet = createServletWithSchema("dictionary2", new MockLogService());
+        var datasource = spy(servlet.dataSource);
+        var metrics = new MetricDictionary(datasource);
+
+        var linesId = metrics.metricId("lines");
+        doThrow(new SQLException("Connection refused")).when(datasource).getConnection();
+
+        assertEquals(linesId, metrics.metricId("lines"));
+        assertThrows(SQLException.class, () -> metrics.metricId("coverage"));
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsServletTest {
+
+    @Test
+    void testGetMetrics() throws Exception {
+        var metrics = new PipelineMetrics();
+        metrics.webhookSucceeded("http://localhost:9000");
+        var servlet = new MetricsServlet();
+        servlet.setPipelineMetrics(metrics);
+        var request = mock(HttpServletRequest.class);
+        var response = mock(HttpServletResponse.class);
+        var body = new StringWriter();
+        var writer = new PrintWriter(body);
+        when(response.getWriter()).thenReturn(writer);
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(200);
+        verify(response).setContentType("application/openmetrics-text; version=1.0.0; charset=utf-8");
+        assertThat(body.toString())
+            .contains("sonar_collector_webhooks_total{server=\"http://localhost:9000\",result=\"success\"} 1\n")
+            .endsWith("# EOF\n");
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class PipelineMetricsTest {
+
+    @Test
+    void testHistogramBuckets() throws Exception {
+        var histogram = new PipelineMetrics.Histogram(new double[] { 1, 10 });
+        histogram.observe(0.5);
+        histogram.observe(1);
+        histogram.observe(5);
+        histogram.observe(100);
+
+        var writer = new StringWriter();
+        histogram.write(writer, "test_seconds");
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(106.5, histogram.getSum(), 0.0001);
+        assertThat(writer.toString()).isEqualTo(
+            "test_seconds_bucket{le=\"1.0\"} 2\n" +
+            "test_seconds_bucket{le=\"10.0\"} 3\n" +
+            "test_seconds_bucket{le=\"+Inf\"} 4\n" +
+            "test_seconds_count 4\n" +
+            "test_seconds_sum 106.5\n");
+    }
+
+    @Test
+    void testConcurrentObservations() throws Exception {
+        var histogram = new PipelineMetrics.Histogram(PipelineMetrics.LATENCY_BUCKETS_SECONDS);
+        var executor = Executors.newFixedThreadPool(4);
+        for (var i = 0; i < 4; ++i) {
+            executor.execute(() -> {
+                for (var j = 0; j < 1000; ++j) {
+                    histogram.observe(0.01);
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(4000, histogram.getCount());
+        assertEquals(40.0, histogram.getSum(), 0.0001);
+    }
+
+    @Test
+    void testWriteOpenMetrics() throws Exception {
+        var metrics = new PipelineMetrics();
+        metrics.observePayloadSize(1000);
+        metrics.observePayloadSize(-1); // Unknown length isn't recorded
+        metrics.webhookDecode.observe(0.002);
+        metrics.decodeFailed();
+        metrics.webhookSucceeded("http://localhost:9000");
+        metrics.webhookSucceeded("http://localhost:9000");
+        metrics.webhookFailed("http://sonar.example.com/\"quoted\"");
+        metrics.register("sonar_collector_queue_depth", "Webhook calls waiting on the queue", false, () -> 3);
+        metrics.register("sonar_collector_queue_rejected", "Webhook calls rejected", true, () -> 2);
+
+        var writer = new StringWriter();
+        metrics.write(writer);
+        var text = writer.toString();
+
+        assertEquals(1, metrics.payloadSize.getCount());
+        assertThat(text)
+            .contains("# TYPE sonar_collector_webhook_decode_seconds histogram\n# UNIT sonar_collector_webhook_decode_seconds seconds\n")
+            .contains("sonar_collector_webhook_decode_seconds_bucket{le=\"0.0025\"} 1\n")
+            .contains("sonar_collector_webhook_payload_bytes_bucket{le=\"1024.0\"} 1\n")
+            .contains("sonar_collector_webhook_decode_failures_total 1\n")
+            .contains("sonar_collector_webhooks_total{server=\"http://localhost:9000\",result=\"success\"} 2\n")
+            .contains("sonar_collector_webhooks_total{server=\"http://sonar.example.com/\\\"quoted\\\"\",result=\"failure\"} 1\n")
+            .contains("# TYPE sonar_collector_queue_depth gauge\n")
+            .contains("sonar_collector_queue_depth 3\n")
+            .contains("# TYPE sonar_collector_queue_rejected counter\n")
+            .contains("sonar_collector_queue_rejected_total 2\n")
+            .endsWith("# EOF\n");
+    }
+
+    @Test
+    void testUnregister() throws Exception {
+        var metrics = new PipelineMetrics();
+        LongSupplier oldDepth = () -> 3;
+        LongSupplier newDepth = () -> 4;
+        LongSupplier rejected = () -> 2;
+        metrics.register("sonar_collector_queue_depth", "Webhook calls waiting on the queue", false, oldDepth);
+        metrics.register("sonar_collector_queue_rejected", "Webhook calls rejected", true, rejected);
+        metrics.register("sonar_collector_queue_depth", "Webhook calls waiting on the queue", false, newDepth);
+
+        // The replaced value isn't removed by unregistering the old value
+        metrics.unregister("sonar_collector_queue_depth", oldDepth);
+        metrics.unregister("sonar_collector_queue_rejected", rejected);
+
+        var writer = new StringWriter();
+        metrics.write(writer);
+        assertThat(writer.toString())
+            .contains("sonar_collector_queue_depth 4\n")
+            .doesNotContain("sonar_collector_queue_rejected");
+    }
+
+    @Test
+    void testNumberOfServersIsLimited() {
+        var metrics = new PipelineMetrics();
+        for (var i = 0; i < PipelineMetrics.MAX_SERVERS * 2 + 10; ++i) {
+            metrics.webhookSucceeded("http://sonar" + i + ".example.com");
+        }
+
+        assertEquals(1, metrics.getWebhookResultCount("http://sonar0.example.com", PipelineMetrics.SUCCESS));
+        assertEquals(0, metrics.getWebhookResultCount("http://sonar" + (PipelineMetrics.MAX_SERVERS * 2 + 5) + ".example.com", PipelineMetrics.SUCCESS));
+        assertEquals(10, metrics.getWebhookResultCount(PipelineMetrics.OTHER_SERVERS, PipelineMetrics.SUCCESS));
+    }
+
+    @Test
+    void testFormatNumber() {
+        assertEquals("0.0005", PipelineMetrics.formatNumber(0.0005));
+        assertEquals("10.0", PipelineMetrics.formatNumber(10));
+        assertEquals("1048576.0", PipelineMetrics.formatNumber(1048576));
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import no.priv.bang.sonar.collector.webhook.SonarServers.CallRejectedException;
+
+class ResilientSonarApiClientTest {
+    private HttpServer server;
+    private URI serverUrl;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger slowResponsesLeft = new AtomicInteger();
+
+    @BeforeEach
+    void startStubSonarServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/api/components/show", exchange -> {
+            requests.incrementAndGet();
+            if (slowResponsesLeft.getAndDecrement() > 0) {
+                sleep(2000);
+            }
+
+            var status = failuresLeft.getAndDecrement() > 0 ? 503 : 200;
+            respond(exchange, status, "{\"component\":{\"version\":\"1.0.0\"}}");
+        });
+        server.createContext("/api/unknown", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 404, "{\"errors\":[]}");
+        });
+        server.start();
+        serverUrl = URI.create("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    void stopStubSonarServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testServerErrorsAreRetried() throws Exception {
+        failuresLeft.set(2);
+        try (var client = new ResilientSonarApiClient(new HttpClientSonarApiClient(configuration(2)), configuration(2))) {
+            var body = client.get(serverUrl.resolve("/api/components/show?component=foo")).get(5, TimeUnit.SECONDS);
+            assertEquals("1.0.0", SonarCollectorServlet.mapper.readTree(body).path("component").path("version").asText());
+            assertEquals(3, requests.get());
+            assertEquals(2, client.getRetryCount());
+        }
+    }
+
+    @Test
+    void testGivesUpAfterMaxRetries() {
+        failuresLeft.set(Integer.MAX_VALUE);
+        try (var client = new ResilientSonarApiClient(new HttpClientSonarApiClient(configuration(2)), configuration(2))) {
+            var future = client.get(serverUrl.resolve("/api/components/show?component=foo"));
+            var e = assertThrows(SonarApiException.class, () -> SonarCollectorServlet.waitForResult(future));
+            assertEquals(503, e.getStatusCode());
+            assertEquals(3, requests.get());
+            assertEquals(2, client.getRetryCount());
+        }
+    }
+
+    @Test
+    void testClientErrorsAreNotRetried() {
+        try (var client = new ResilientSonarApiClient(new HttpClientSonarApiClient(configuration(2)), configuration(2))) {
+            var future = client.get(serverUrl.resolve("/api/unknown"));
+            var e = assertThrows(SonarApiException.class, () -> SonarCollectorServlet.waitForResult(future));
+            assertEquals(404, e.getStatusCode());
+            assertEquals(1, requests.get());
+            assertEquals(0, client.getRetryCount());
+        }
+    }
+
+    @Test
+    void testReadTimeoutOfURLConnectionIsRetried() throws Exception {
+        slowResponsesLeft.set(1);
+        var servlet = new SonarCollectorServlet(url -> (HttpURLConnection) url.toURL().openConnection());
+        var config = settings(1);
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_READ_TIMEOUT_MILLIS, "200");
+        servlet.configuration.setConfig(config);
+        try (var client = new ResilientSonarApiClient(new URLConnectionSonarApiClient(servlet::openConnection), servlet.configuration)) {
+            var startTime = System.nanoTime();
+            var body = client.get(serverUrl.resolve("/api/components/show?component=foo")).get(5, TimeUnit.SECONDS);
+            body.close();
+            assertEquals(2, requests.get());
+            assertEquals(1, client.getRetryCount());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 1500);
+        }
+
+        // Without retries the timeout fails the call
+        slowResponsesLeft.set(1);
+        servlet.configuration.setConfig(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_READ_TIMEOUT_MILLIS, "200", SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_MAX_RETRIES, "0"));
+        try (var client = new ResilientSonarApiClient(new URLConnectionSonarApiClient(servlet::openConnection), servlet.configuration)) {
+            var future = client.get(serverUrl.resolve("/api/components/show?component=foo"));
+            assertThrows(SocketTimeoutException.class, () -> SonarCollectorServlet.waitForResult(future));
+        }
+    }
+
+    @Test
+    void testRejectedCallsAreNotRetried() {
+        var sonarServers = mock(SonarApiClient.class);
+        var rejected = CompletableFuture.<InputStream>failedFuture(new CallRejectedException("Too many calls in progress to Sonar server http://localhost"));
+        when(sonarServers.get(any())).thenReturn(rejected);
+        try (var client = new ResilientSonarApiClient(sonarServers, configuration(2))) {
+            var future = client.get(serverUrl.resolve("/api/components/show?component=foo"));
+            assertThrows(CallRejectedException.class, () -> SonarCollectorServlet.waitForResult(future));
+            verify(sonarServers, times(1)).get(any());
+            assertEquals(0, client.getRetryCount());
+        }
+    }
+
+    @Test
+    void testSlowCallIsHedged() throws Exception {
+        var config = settings(0);
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_HEDGING_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_HEDGING_MIN_DELAY_MILLIS, "50");
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(config);
+        var url = serverUrl.resolve("/api/components/show?component=foo");
+        try (var client = new ResilientSonarApiClient(new HttpClientSonarApiClient(configuration), configuration)) {
+            // No hedging until there are enough response times to find the percentile
+            for (int i = 0; i < ResilientSonarApiClient.MIN_LATENCY_SAMPLES; ++i) {
+                client.get(url).get(5, TimeUnit.SECONDS).close();
+            }
+            assertEquals(0, client.getHedgeCount());
+
+            slowResponsesLeft.set(1);
+            var startTime = System.nanoTime();
+            var body = client.get(url).get(5, TimeUnit.SECONDS);
+            assertEquals("1.0.0", SonarCollectorServlet.mapper.readTree(body).path("component").path("version").asText());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 1500);
+            assertEquals(1, client.getHedgeCount());
+            assertEquals(ResilientSonarApiClient.MIN_LATENCY_SAMPLES + 2, requests.get());
+        }
+    }
+
+    @Test
+    void testFirstResponseWins() throws Exception {
+        var sonarServers = mock(SonarApiClient.class);
+        var fast = CompletableFuture.<InputStream>completedFuture(new ByteArrayInputStream(new byte[0]));
+        var slow = new CompletableFuture<InputStream>();
+        var fastResponses = new ArrayList<CompletableFuture<InputStream>>();
+        for (var i = 1; i < ResilientSonarApiClient.MIN_LATENCY_SAMPLES; ++i) {
+            fastResponses.add(fast);
+        }
+        fastResponses.add(slow);
+        fastResponses.add(fast);
+        when(sonarServers.get(any())).thenReturn(fast, fastResponses.toArray(CompletableFuture[]::new));
+        var config = settings(0);
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_HEDGING_ENABLED, "true");
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(config);
+        var url = serverUrl.resolve("/api/components/show?component=foo");
+        try (var client = new ResilientSonarApiClient(sonarServers, configuration)) {
+            for (var i = 0; i < ResilientSonarApiClient.MIN_LATENCY_SAMPLES; ++i) {
+                client.get(url).get(5, TimeUnit.SECONDS);
+            }
+
+            assertNotNull(client.get(url).get(5, TimeUnit.SECONDS));
+            assertEquals(1, client.getHedgeCount());
+            assertEquals(1, client.getHedgeWinCount());
+
+            // The response of the losing call is closed when it arrives
+            var losingResponse = mock(InputStream.class);
+            slow.complete(losingResponse);
+            verify(losingResponse).close();
+        }
+    }
+
+    @Test
+    void testLatencyWindowPercentile() {
+        var window = new ResilientSonarApiClient.LatencyWindow();
+        for (int i = 1; i < ResilientSonarApiClient.MIN_LATENCY_SAMPLES; ++i) {
+            window.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(-1, window.percentileMillis(95));
+
+        window.record(TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(19, window.percentileMillis(95));
+        assertEquals(10, window.percentileMillis(50));
+        assertEquals(20, window.percentileMillis(100));
+
+        // Only the most recent response times are kept
+        for (int i = 0; i < ResilientSonarApiClient.LATENCY_WINDOW_SIZE; ++i) {
+            window.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertEquals(100, window.percentileMillis(50));
+    }
+
+    @Test
+    void testBackoffIsExponentialAndCapped() {
+        var policy = new CallbackPolicy(5000, 10000, 10, 100, 2000, false, 95, 50);
+        assertEquals(100, policy.maxBackoffMillis(0));
+        assertEquals(200, policy.maxBackoffMillis(1));
+        assertEquals(800, policy.maxBackoffMillis(3));
+        assertEquals(2000, policy.maxBackoffMillis(5));
+        assertEquals(2000, policy.maxBackoffMillis(40));
+    }
+
+    @Test
+    void testDefaultCallbackPolicy() {
+        var policy = new SonarCollectorConfiguration().snapshot().getCallbackPolicy();
+        assertEquals(5000, policy.connectTimeoutMillis());
+        assertEquals(10000, policy.readTimeoutMillis());
+        assertEquals(2, policy.maxRetries());
+        assertFalse(policy.hedgingEnabled());
+        assertEquals(95, policy.hedgingPercentile());
+    }
+
+    private static HashMap<String, Object> settings(int maxRetries) {
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_MAX_RETRIES, Integer.toString(maxRetries));
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_RETRY_BACKOFF_MILLIS, "10");
+        return config;
+    }
+
+    private static SonarCollectorConfiguration configuration(int maxRetries) {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(settings(maxRetries));
+        return configuration;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        var bytes = body.getBytes();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallersShareComputation() throws Exception {
+        var singleFlight = new SingleFlight<String, String>();
+        var computations = new AtomicInteger();
+        var pending = new CompletableFuture<String>();
+
+        var first = singleFlight.execute("key", () -> { computations.incrementAndGet(); return pending; });
+        var second = singleFlight.execute("key", () -> { computations.incrementAndGet(); return CompletableFuture.completedFuture("other"); });
+        var otherKey = singleFlight.execute("otherKey", () -> { computations.incrementAndGet(); return CompletableFuture.completedFuture("other"); });
+
+        assertSame(first, second);
+        assertEquals("other", otherKey.get());
+        assertEquals(1, singleFlight.getInFlightCount());
+        pending.complete("result");
+        assertEquals("result", first.get());
+        assertEquals("result", second.get());
+        assertEquals(2, computations.get());
+        assertEquals(2, singleFlight.getStartedCount());
+        assertEquals(1, singleFlight.getCoalescedCount());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    @Test
+    void testNewComputationAfterCompletion() throws Exception {
+        var singleFlight = new SingleFlight<String, Integer>();
+        var computations = new AtomicInteger();
+
+        assertEquals(1, singleFlight.execute("key", () -> CompletableFuture.completedFuture(computations.incrementAndGet())).get());
+        assertEquals(2, singleFlight.execute("key", () -> CompletableFuture.completedFuture(computations.incrementAndGet())).get());
+        assertEquals(0, singleFlight.getCoalescedCount());
+    }
+
+    @Test
+    void testFailureIsSharedAndForgotten() throws Exception {
+        var singleFlight = new SingleFlight<String, String>();
+        var pending = new CompletableFuture<String>();
+        var first = singleFlight.execute("key", () -> pending);
+        var second = singleFlight.execute("key", () -> CompletableFuture.completedFuture("not used"));
+        pending.completeExceptionally(new IOException("Sonar is down"));
+
+        var e = assertThrows(ExecutionException.class, second::get);
+        assertInstanceOf(IOException.class, e.getCause());
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals("retried", singleFlight.execute("key", () -> CompletableFuture.completedFuture("retried")).get());
+    }
+
+    @Test
+    void testComputationThrowing() {
+        var singleFlight = new SingleFlight<String, String>();
+        var result = singleFlight.execute("key", () -> { throw new IllegalStateException("failed to start"); });
+        var e = assertThrows(ExecutionException.class, result::get);
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+}
@@ -20,6 +20,7 @@ import static org.mockito.Mockito.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.HashMap;
 import java.util.Properties;
 
@@ -99,11 +100,12 @@ class SonarCollectorConfigurationTest {
             var logservice = new MockLogService();
             var configuration = new SonarCollectorConfiguration();
             configuration.loadProperties(logservice);
+            System.setProperty(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, "lines,bugs,new_bugs,vulnerabilities,new_vulnerabilities,code_smells,new_code_smells,coverage");
+
+            // System properties are picked up when the configuration is set
             var injectedConfig = new HashMap<String, Object>();
             configuration.setConfig(injectedConfig);
 
-            System.setProperty(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, "lines,bugs,new_bugs,vulnerabilities,new_vulnerabilities,code_smells,new_code_smells,coverage");
-
             assertEquals(8, configuration.getMetricKeys().length);
         } finally {
             // Restore the original system properties
@@ -128,6 +130,106 @@ class SonarCollectorConfigurationTest {
         assertEquals(usertoken, configuration.getSonarApiUserToken());
     }
 
+    @Test
+    void testSnapshotHasPrecompiledValues() {
+        var configuration = new SonarCollectorConfiguration();
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, " lines, bugs,,coverage ");
+        config.put(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy");
+        configuration.setConfig(config);
+
+        var snapshot = configuration.snapshot();
+        assertArrayEquals(new String[] { "lines", "bugs", "coverage" }, snapshot.getMetricKeys());
+        assertEquals("lines,bugs,coverage", snapshot.getMetricKeysQueryParameter());
+        assertEquals("Basic eHl6enk6", snapshot.getSonarApiAuthorization());
+        assertSame(snapshot, configuration.snapshot());
+    }
+
+    @Test
+    void testSonarServerSettings() {
+        var configuration = new SonarCollectorConfiguration();
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_MAX_CONCURRENT_CALLS, "4");
+        config.put("sonar.collector.server.cloud.url", "https://SonarCloud.io");
+        config.put("sonar.collector.server.cloud.token", "cloudtoken");
+        config.put("sonar.collector.server.cloud.maxConcurrentCalls", "2");
+        config.put("sonar.collector.server.broken.url", "not a url");
+        configuration.setConfig(config);
+        var snapshot = configuration.snapshot();
+
+        var cloud = snapshot.getSonarServerSettings(URI.create("https://sonarcloud.io/api/measures/component?component=foo"));
+        assertEquals("https://sonarcloud.io", cloud.serverKey());
+        assertEquals("Basic Y2xvdWR0b2tlbjo=", cloud.authorization());
+        assertEquals(2, cloud.maxConcurrentCalls());
+        assertEquals(5, cloud.failureThreshold());
+        assertTrue(snapshot.isListedSonarServer(URI.create("https://sonarcloud.io")));
+
+        var other = snapshot.getSonarServerSettings(URI.create("http://localhost:9000/api/components/show"));
+        assertNull(other.serverKey());
+        assertSame(other, snapshot.getSonarServerSettings(URI.create("http://localhost:9001/api/components/show")));
+        assertEquals("Basic eHl6enk6", other.authorization());
+        assertEquals(4, other.maxConcurrentCalls());
+        assertFalse(snapshot.isListedSonarServer(URI.create("http://localhost:9000")));
+    }
+
+    @Test
+    void testSetConfigReplacesSnapshot() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.loadProperties(new MockLogService());
+        var original = configuration.snapshot();
+        assertNull(original.getSonarApiAuthorization());
+
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, "lines,bugs");
+        config.put(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy");
+        configuration.setConfig(config);
+
+        // The old snapshot is left unchanged for calls already using it
+        assertEquals(16, original.getMetricKeys().length);
+        assertNull(original.getSonarApiAuthorization());
+        assertEquals(2, configuration.getMetricKeys().length);
+        assertEquals("Basic eHl6enk6", configuration.getSonarApiAuthorization());
+    }
+
+    @Test
+    void testGetMetricKeysReturnsCopy() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.loadProperties(new MockLogService());
+        configuration.getMetricKeys()[0] = "notametric";
+        assertEquals("lines", configuration.getMetricKeys()[0]);
+    }
+
+    @Test
+    void testHasSamePipelineSettings() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.loadProperties(new MockLogService());
+        var original = configuration.snapshot();
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_USER_TOKEN, "xyzzy");
+        configuration.setConfig(config);
+        assertTrue(configuration.snapshot().hasSamePipelineSettings(original));
+
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_WORKERS, "4");
+        configuration.setConfig(config);
+        assertFalse(configuration.snapshot().hasSamePipelineSettings(original));
+    }
+
+    @Test
+    void testHasSameDedupeSettings() {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.loadProperties(new MockLogService());
+        var original = configuration.snapshot();
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_WORKERS, "4");
+        configuration.setConfig(config);
+        assertTrue(configuration.snapshot().hasSameDedupeSettings(original));
+
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_DEDUPE_TTL_SECONDS, "60");
+        configuration.setConfig(config);
+        assertFalse(configuration.snapshot().hasSameDedupeSettings(original));
+    }
+
     static class SonarCollectorConfigurationWithApplicationPropertiesThrowingIOException extends SonarCollectorConfiguration {
 
         SonarCollectorConfigurationWithApplicationPropertiesThrowingIOException() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2017-2025 Steinar Bang
+ * Copyright 2017-2026 Steinar Bang
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,11 +20,18 @@ import static org.assertj.core.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.nio.file.Path;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.ZonedDateTime;
@@ -37,10 +44,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,9 +65,10 @@ import org.apache.derby.jdbc.EmbeddedDataSource;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
 
@@ -116,7 +132,7 @@ class SonarCollectorServletTest {
         // Check the contents of the measurement row
         var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
         var measuresRow = measuresRows.get(0);
-        assertEquals(21, measuresRow.size());
+        assertEquals(22, measuresRow.size());
         assertEquals("no.priv.bang.sonar.sonar-collector:parent", measuresRow.get("PROJECT_KEY"));
         assertEquals("1.0.0-SNAPSHOT", measuresRow.get("VERSION"));
         assertEquals(false, measuresRow.get("VERSION_IS_RELEASE"));
@@ -178,7 +194,7 @@ class SonarCollectorServletTest {
         // Check the contents of the measurement row
         var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
         var measuresRow = measuresRows.get(0);
-        assertEquals(21, measuresRow.size());
+        assertEquals(22, measuresRow.size());
         assertEquals(0.0, ((Double)measuresRow.get("NEW_COVERAGE")).doubleValue(), 0.01);
     }
 
@@ -214,7 +230,7 @@ class SonarCollectorServletTest {
         // Check the contents of the measurement row
         var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
         var measuresRow = measuresRows.get(0);
-        assertEquals(21, measuresRow.size());
+        assertEquals(22, measuresRow.size());
         assertEquals("no.priv.bang.sonar.sonar-collector:parent", measuresRow.get("PROJECT_KEY"));
         assertEquals("1.0.0-SNAPSHOT", measuresRow.get("VERSION"));
         assertEquals(false, measuresRow.get("VERSION_IS_RELEASE"));
@@ -281,6 +297,710 @@ class SonarCollectorServletTest {
         assertEquals(11L, measuresRow.get("ISSUES")); // This goes to 11!
     }
 
+    @Test
+    void testReceiveSonarWebhookCallInAsyncMode() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var value = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(value);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar5"));
+        servlet.setLogservice(logservice);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_WORKERS, "2");
+        servlet.activate(config);
+
+        // Check preconditions
+        truncateMeasuresTable(servlet.dataSource);
+        assertEquals(0, countRowsOfTableMeasures(servlet.dataSource));
+
+        // Run the code under test
+        servlet.doPost(request, response);
+
+        // Check that the webhook call was accepted
+        verify(response).setStatus(202);
+
+        // Wait for the worker to finish, and check that a measurement has been stored
+        servlet.deactivate();
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertNull(servlet.webhookQueue, "Expected deactivate to remove the queue");
+    }
+
+    @Test
+    void testRepeatedSonarWebhookCallIsSkipped() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var firstPost = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var retriedPost = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream())
+            .thenReturn(firstPost)
+            .thenReturn(retriedPost);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar10"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        truncateMeasuresTable(servlet.dataSource);
+
+        // The first call is stored, the retry is acknowledged without callbacks to Sonar
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(factory, times(2)).openConnection(any());
+        verify(response, never()).setStatus(anyInt());
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals("AV_TpdLHnHoAyOYzcfvS", getRowsOfTableMeasures(servlet.dataSource).get(0).get("ANALYSIS_ID"));
+        assertEquals(1, servlet.dedupeCache.getHitCount());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("skipping repeated webhook call"));
+    }
+
+    @Test
+    void testRepeatedSonarWebhookCallIsStoppedByDatabase() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        var retryComponentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var retryMeasurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection)
+            .thenReturn(retryComponentsShowConnection)
+            .thenReturn(retryMeasurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var firstPost = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var retriedPost = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream())
+            .thenReturn(firstPost)
+            .thenReturn(retriedPost);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar11"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES, "0"));
+        assertNull(servlet.dedupeCache);
+        truncateMeasuresTable(servlet.dataSource);
+
+        // Without the in-memory check, the retry is stopped by the unique constraint, and isn't reported as an error
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(factory, times(4)).openConnection(any());
+        verify(response, never()).setStatus(anyInt());
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("have already been stored"));
+    }
+
+    @Test
+    void testRepeatedSonarWebhookCallInAsyncModeIsAcknowledged() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var value = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(value);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar12"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_ENABLED, "true"));
+        servlet.dedupeCache.record("http://localhost:9000|AV_TpdLHnHoAyOYzcfvS");
+
+        servlet.doPost(request, response);
+
+        verify(response, never()).setStatus(anyInt());
+        assertEquals(0, servlet.webhookQueue.getAcceptedCount());
+        verifyNoInteractions(factory);
+        servlet.deactivate();
+    }
+
+    @Test
+    void testWebhookCallsOverTheRateOfTheProjectAreShed() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var first = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var second = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(first).thenReturn(second);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar21"));
+        servlet.setLogservice(logservice);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_RATE_PER_MINUTE, "1");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_BURST, "1");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES, "0"); // Let the repeated payload through to the admission control
+        servlet.activate(config);
+
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(response, times(1)).setStatus(429);
+        verify(response).setHeader(eq("Retry-After"), anyString());
+        verify(factory, times(2)).openConnection(any());
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(1, servlet.admission.getAdmittedCount());
+        assertEquals(1, servlet.admission.getShedRateLimitedCount());
+        assertEquals(0, servlet.admission.getInFlightCount());
+        servlet.deactivate();
+    }
+
+    @Test
+    void testRepeatedWebhookCallsDontUseTheRateOfTheProject() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var first = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var second = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var third = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(first).thenReturn(second).thenReturn(third);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar24"));
+        servlet.setLogservice(logservice);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_RATE_PER_MINUTE, "1");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_BURST, "1");
+        servlet.activate(config);
+
+        // The retries of the stored analysis are acknowledged before the admission control
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(response, never()).setStatus(anyInt());
+        verify(factory, times(2)).openConnection(any());
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        assertEquals(1, servlet.admission.getAdmittedCount());
+        assertEquals(0, servlet.admission.getShedRateLimitedCount());
+        assertEquals(2, servlet.dedupeCache.getHitCount());
+        servlet.deactivate();
+    }
+
+    @Test
+    void testSpoolMeasuresWhenDatabaseIsDown(@TempDir Path spoolDirectory) throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var value = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(value);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+        var database = createDataSource("sonar13");
+        var databaseIsDown = new AtomicBoolean();
+        var datasource = mock(DataSource.class);
+        when(datasource.getConnection()).thenAnswer(invocation -> {
+            if (databaseIsDown.get()) {
+                throw new SQLException("Connection refused");
+            }
+
+            return database.getConnection();
+        });
+
+        var metrics = new PipelineMetrics();
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(datasource);
+        servlet.setLogservice(logservice);
+        servlet.setPipelineMetrics(metrics);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_SPOOL_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_SPOOL_DIRECTORY, spoolDirectory.toString());
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_SPOOL_REPLAY_INTERVAL_MILLIS, "3600000");
+        servlet.activate(config);
+        truncateMeasuresTable(database);
+
+        // The webhook call succeeds while the database is down
+        databaseIsDown.set(true);
+        servlet.doPost(request, response);
+        verify(response, never()).setStatus(anyInt());
+        var replayer = servlet.spoolReplayer;
+        assertFalse(replayer.isDatabaseAvailable());
+        assertEquals(1, replayer.getSpool().getPendingRecords());
+        var spooledMetrics = new StringWriter();
+        metrics.write(spooledMetrics);
+        assertThat(spooledMetrics.toString())
+            .contains("sonar_collector_spool_pending_records 1\n")
+            .contains("sonar_collector_spool_database_available 0\n")
+            .containsPattern("sonar_collector_spool_pending_bytes [1-9]")
+            .contains("sonar_collector_spool_oldest_record_age_millis ");
+
+        // Nothing is written while the database is still down
+        replayer.replayPending();
+        assertEquals(1, replayer.getSpool().getPendingRecords());
+
+        // The spooled measures are written when the database is back
+        databaseIsDown.set(false);
+        replayer.replayPending();
+        assertTrue(replayer.isDatabaseAvailable());
+        assertEquals(0, replayer.getSpool().getPendingRecords());
+        assertEquals(1, replayer.getReplayedCount());
+        assertEquals(1, countRowsOfTableMeasures(database));
+        assertEquals(952L, getRowsOfTableMeasures(database).get(0).get("LINES"));
+        var replayedMetrics = new StringWriter();
+        metrics.write(replayedMetrics);
+        assertThat(replayedMetrics.toString())
+            .contains("sonar_collector_spool_pending_records 0\n")
+            .contains("sonar_collector_spool_pending_bytes 0\n")
+            .contains("sonar_collector_spool_database_available 1\n");
+        servlet.deactivate();
+        assertNull(servlet.spoolReplayer);
+    }
+
+    @Test
+    void testReceiveSonarWebhookCallWithBatchedWrites() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var request = mock(HttpServletRequest.class);
+        var value = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(value);
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar7"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_JDBC_BATCH_ENABLED, "true"));
+        assertNotNull(servlet.measuresWriter);
+
+        // Check preconditions
+        truncateMeasuresTable(servlet.dataSource);
+        assertEquals(0, countRowsOfTableMeasures(servlet.dataSource));
+
+        // Run the code under test
+        servlet.doPost(request, response);
+
+        // The webhook waits for the batch to be committed, so the measurement is stored when doPost returns
+        assertEquals(1, countRowsOfTableMeasures(servlet.dataSource));
+        verify(response, never()).setStatus(anyInt());
+        assertEquals(1, servlet.measuresWriter.getBatchCount());
+        servlet.deactivate();
+        assertNull(servlet.measuresWriter);
+    }
+
+    @Test
+    void testPipelineMetricsOfWebhookCalls() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0-SNAPSHOT.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection)
+            .thenThrow(new IOException("Sonar is down"));
+        var request = mock(HttpServletRequest.class);
+        var firstBody = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var secondBody = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(request.getInputStream()).thenReturn(firstBody, secondBody);
+        when(request.getContentLengthLong()).thenReturn(1500L);
+        var response = mock(HttpServletResponse.class);
+        var metrics = new PipelineMetrics();
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar20"));
+        servlet.setLogservice(new MockLogService());
+        servlet.setPipelineMetrics(metrics);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES, "0"));
+        truncateMeasuresTable(servlet.dataSource);
+
+        // The first call is stored, the callbacks of the second call fail
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(500);
+        assertEquals(2, metrics.webhookDecode.getCount());
+        assertEquals(2, metrics.payloadSize.getCount());
+        assertEquals(3000.0, metrics.payloadSize.getSum(), 0.0001);
+        assertEquals(2, metrics.componentsShowCallback.getCount()); // Failed callbacks are timed too
+        assertEquals(2, metrics.measuresCallback.getCount());
+        assertEquals(1, metrics.measuresDecode.getCount());
+        assertEquals(1, metrics.databaseInsert.getCount());
+        assertEquals(1, metrics.getWebhookResultCount("http://localhost:9000", PipelineMetrics.SUCCESS));
+        assertEquals(1, metrics.getWebhookResultCount("http://localhost:9000", PipelineMetrics.FAILURE));
+        var text = new StringWriter();
+        metrics.write(text);
+        assertThat(text.toString()).contains("sonar_collector_queue_depth 0\n");
+        servlet.deactivate();
+
+        // The values of the deactivated servlet are no longer in the shared metrics
+        var afterDeactivate = new StringWriter();
+        metrics.write(afterDeactivate);
+        assertThat(afterDeactivate.toString())
+            .doesNotContain("sonar_collector_queue_depth")
+            .doesNotContain("sonar_collector_spool_")
+            .contains("sonar_collector_webhooks_total");
+    }
+
+    @Test
+    void testReceiveInvalidSonarWebhookCallInAsyncMode() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var request = mock(HttpServletRequest.class);
+        when(request.getInputStream())
+            .thenReturn(wrap(new ByteArrayInputStream("{\"serverUrl\": \"http://localhost:9000\"}".getBytes())))
+            .thenReturn(wrap(new ByteArrayInputStream("not json".getBytes())));
+        var response = mock(HttpServletResponse.class);
+        var logservice = new MockLogService();
+
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar6"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_ENABLED, "true"));
+
+        // Payload without a project key
+        servlet.doPost(request, response);
+
+        // Payload that isn't JSON
+        servlet.doPost(request, response);
+
+        verify(response, times(2)).setStatus(400);
+        verifyNoInteractions(factory);
+        servlet.deactivate();
+    }
+
+    @Test
+    void testReceiveSonarWebhookCallWithHttpClientCallbacks() throws Exception {
+        var stubSonarServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubSonarServer.createContext("/api/components/show", exchange -> respondWithResource(exchange, "json/sonar/api-components-show-version-1.0.0.json"));
+        stubSonarServer.createContext("/api/measures/component", exchange -> respondWithResource(exchange, "json/sonar/api-measures-component-get-many-metrics.json"));
+        stubSonarServer.start();
+        try {
+            var serverUrl = "http://localhost:" + stubSonarServer.getAddress().getPort();
+            var webhookPost = new String(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json").readAllBytes()).replace("http://localhost:9000", serverUrl);
+            var request = mock(HttpServletRequest.class);
+            when(request.getInputStream()).thenReturn(wrap(new ByteArrayInputStream(webhookPost.getBytes())));
+            var response = mock(HttpServletResponse.class);
+            var logservice = new MockLogService();
+
+            var servlet = new SonarCollectorServlet();
+            servlet.setDataSource(createDataSource("sonar8"));
+            servlet.setLogservice(logservice);
+            servlet.activate(Collections.emptyMap());
+
+            // Check preconditions
+            truncateMeasuresTable(servlet.dataSource);
+            assertEquals(0, countRowsOfTableMeasures(servlet.dataSource));
+
+            // Run the code under test
+            servlet.doPost(request, response);
+
+            // Check that a measurement has been stored
+            verify(response, never()).setStatus(anyInt());
+            var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
+            assertEquals(1, measuresRows.size());
+            var measuresRow = measuresRows.get(0);
+            assertEquals("1.0.0", measuresRow.get("VERSION"));
+            assertEquals(true, measuresRow.get("VERSION_IS_RELEASE"));
+            assertEquals(952L, measuresRow.get("LINES"));
+            servlet.deactivate();
+        } finally {
+            stubSonarServer.stop(0);
+        }
+    }
+
+    @Test
+    void testAdminBackfill() throws Exception {
+        var stubSonarServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubSonarServer.createContext("/api/project_analyses/search", exchange -> respondWithBody(exchange, "{\"paging\":{\"total\":1},\"analyses\":[{\"key\":\"AYbackfill1\",\"date\":\"2017-11-19T10:00:00+0100\",\"projectVersion\":\"1.0.0\"}]}"));
+        stubSonarServer.createContext("/api/measures/search_history", exchange -> respondWithBody(exchange, "{\"paging\":{\"total\":1},\"measures\":[{\"metric\":\"lines\",\"history\":[{\"date\":\"2017-11-19T10:00:00+0100\",\"value\":\"952\"}]}]}"));
+        stubSonarServer.start();
+        try {
+            var serverUrl = "http://localhost:" + stubSonarServer.getAddress().getPort();
+            var logservice = new MockLogService();
+            var servlet = new SonarCollectorServlet();
+            servlet.setDataSource(createDataSource("sonar14"));
+            servlet.setLogservice(logservice);
+            servlet.activate(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMIN_ENABLED, "true", "sonar.collector.server.stub.url", serverUrl));
+            truncateMeasuresTable(servlet.dataSource);
+
+            // Start the backfill
+            var postRequest = mock(HttpServletRequest.class);
+            when(postRequest.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_BACKFILL_PATH);
+            when(postRequest.getParameter("serverUrl")).thenReturn(serverUrl);
+            when(postRequest.getParameterValues("project")).thenReturn(new String[] { "no.priv.bang.ukelonn:parent" });
+            var postResponse = mock(HttpServletResponse.class);
+            var postBody = new ByteArrayOutputStream();
+            when(postResponse.getOutputStream()).thenReturn(wrap(postBody));
+            servlet.doPost(postRequest, postResponse);
+            verify(postResponse).setStatus(202);
+            assertEquals(serverUrl, SonarCollectorServlet.mapper.readTree(postBody.toByteArray()).path("serverUrl").asText());
+
+            // Wait for the backfill to complete
+            for (var i = 0; i < 500 && servlet.backfill.isRunning(); ++i) {
+                Thread.sleep(10);
+            }
+
+            // Check the progress of the completed backfill
+            var getRequest = mock(HttpServletRequest.class);
+            when(getRequest.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_BACKFILL_PATH);
+            var getResponse = mock(HttpServletResponse.class);
+            var getBody = new ByteArrayOutputStream();
+            when(getResponse.getOutputStream()).thenReturn(wrap(getBody));
+            servlet.doGet(getRequest, getResponse);
+            verify(getResponse).setStatus(200);
+            var progress = SonarCollectorServlet.mapper.readTree(getBody.toByteArray());
+            assertEquals(HistoryBackfill.COMPLETED, progress.path("state").asText());
+            assertEquals(1, progress.path("analysesLoaded").asInt());
+            var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
+            assertEquals(1, measuresRows.size());
+            assertEquals("1.0.0", measuresRows.get(0).get("VERSION"));
+            assertEquals("AYbackfill1", measuresRows.get(0).get("ANALYSIS_ID"));
+            assertEquals(952L, measuresRows.get(0).get("LINES"));
+            servlet.deactivate();
+        } finally {
+            stubSonarServer.stop(0);
+        }
+    }
+
+    @Test
+    void testAdminBackfillRequests() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        servlet.setDataSource(createDataSource("sonar15"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+
+        // Admin operations are unavailable by default
+        var request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_BACKFILL_PATH);
+        var response = mock(HttpServletResponse.class);
+        servlet.doPost(request, response);
+        verify(response).setStatus(404);
+
+        // Missing server URL
+        servlet.modified(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMIN_ENABLED, "true"));
+        var badRequestResponse = mock(HttpServletResponse.class);
+        servlet.doPost(request, badRequestResponse);
+        verify(badRequestResponse).setStatus(400);
+
+        // A server that isn't listed in the configuration doesn't get the user token
+        var unlistedRequest = mock(HttpServletRequest.class);
+        when(unlistedRequest.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_BACKFILL_PATH);
+        when(unlistedRequest.getParameter("serverUrl")).thenReturn("https://evil.example.com");
+        var unlistedResponse = mock(HttpServletResponse.class);
+        servlet.doPost(unlistedRequest, unlistedResponse);
+        verify(unlistedResponse).setStatus(400);
+        assertNull(servlet.backfill);
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("https://evil.example.com, that isn't a listed Sonar server"));
+
+        // Unknown admin operation
+        var unknownRequest = mock(HttpServletRequest.class);
+        when(unknownRequest.getPathInfo()).thenReturn("/admin/xyzzy");
+        var unknownResponse = mock(HttpServletResponse.class);
+        servlet.doGet(unknownRequest, unknownResponse);
+        verify(unknownResponse).setStatus(404);
+
+        // Progress before any backfill has been started
+        var idleResponse = mock(HttpServletResponse.class);
+        var idleBody = new ByteArrayOutputStream();
+        when(idleResponse.getOutputStream()).thenReturn(wrap(idleBody));
+        servlet.doGet(request, idleResponse);
+        assertEquals("idle", SonarCollectorServlet.mapper.readTree(idleBody.toByteArray()).path("state").asText());
+        servlet.deactivate();
+    }
+
+    @Test
+    void testAdminImport() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        servlet.setDataSource(createDataSource("sonar16"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMIN_ENABLED, "true"));
+        truncateMeasuresTable(servlet.dataSource);
+        var ndjson = "{\"project_key\":\"no.priv.bang.ukelonn:parent\",\"version\":\"1.0.0\",\"analysis_time\":\"2017-11-19T10:39:24+0100\",\"lines\":952,\"sqale_rating\":\"A\"}\n";
+        var request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_IMPORT_PATH);
+        when(request.getContentType()).thenReturn("application/x-ndjson");
+        var requestBody = wrap(new ByteArrayInputStream(ndjson.getBytes()));
+        when(request.getInputStream()).thenReturn(requestBody);
+        var response = mock(HttpServletResponse.class);
+        var responseBody = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(responseBody));
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(200);
+        assertEquals(1, SonarCollectorServlet.mapper.readTree(responseBody.toByteArray()).path("rows").asInt());
+        var measuresRows = getRowsOfTableMeasures(servlet.dataSource);
+        assertEquals(1, measuresRows.size());
+        assertEquals(952L, measuresRows.get(0).get("LINES"));
+        assertEquals("A", measuresRows.get(0).get("SQALE_RATING"));
+
+        // Malformed files are reported as bad requests
+        var malformedRequest = mock(HttpServletRequest.class);
+        when(malformedRequest.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_IMPORT_PATH);
+        when(malformedRequest.getParameter("format")).thenReturn("ndjson");
+        var malformedBody = wrap(new ByteArrayInputStream("{\"project_key\":".getBytes()));
+        when(malformedRequest.getInputStream()).thenReturn(malformedBody);
+        var malformedResponse = mock(HttpServletResponse.class);
+        servlet.doPost(malformedRequest, malformedResponse);
+        verify(malformedResponse).setStatus(400);
+        servlet.deactivate();
+    }
+
+    @Test
+    void testAdminRebuildRollups() throws Exception {
+        var logservice = new MockLogService();
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        servlet.setDataSource(createDataSource("sonar19"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMIN_ENABLED, "true"));
+        truncateMeasuresTable(servlet.dataSource);
+        servlet.insertBuilds(List.of(MeasuresBatchWriterTest.createBuild("no.priv.bang.ukelonn:parent", 1000)));
+        var request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(SonarCollectorServlet.ADMIN_ROLLUPS_REBUILD_PATH);
+        var response = mock(HttpServletResponse.class);
+        var responseBody = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(responseBody));
+
+        servlet.doPost(request, response);
+
+        verify(response).setStatus(200);
+        var result = SonarCollectorServlet.mapper.readTree(responseBody.toByteArray());
+        assertEquals(1, result.path("measures").asInt());
+        assertEquals(48, result.path("rollups").asInt());
+
+        // Not available when the admin operations are disabled
+        servlet.modified(Collections.emptyMap());
+        var disabledResponse = mock(HttpServletResponse.class);
+        servlet.doPost(request, disabledResponse);
+        verify(disabledResponse).setStatus(404);
+        servlet.deactivate();
+    }
+
+    @Test
+    void testReadMeasures() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any())).thenReturn(componentsShowConnection, measurementsConnection);
+        var logservice = new MockLogService();
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar17"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        truncateMeasuresTable(servlet.dataSource);
+        var postRequest = mock(HttpServletRequest.class);
+        var postBody = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(postRequest.getInputStream()).thenReturn(postBody);
+        servlet.doPost(postRequest, mock(HttpServletResponse.class));
+
+        var request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(SonarCollectorServlet.MEASURES_PATH);
+        when(request.getParameter("project")).thenReturn("no.priv.bang.sonar.sonar-collector:parent");
+        when(request.getParameter("metrics")).thenReturn("lines");
+        var response = mock(HttpServletResponse.class);
+        var responseBody = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(responseBody));
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(200);
+        var measures = SonarCollectorServlet.mapper.readTree(responseBody.toByteArray()).path("measures");
+        assertEquals(1, measures.size());
+        assertEquals("1.0.0", measures.get(0).path("version").asText());
+        assertEquals(952, measures.get(0).path("lines").asLong());
+
+        // Unknown metrics are reported as bad requests
+        var badRequest = mock(HttpServletRequest.class);
+        when(badRequest.getPathInfo()).thenReturn(SonarCollectorServlet.MEASURES_PATH);
+        when(badRequest.getParameter("project")).thenReturn("no.priv.bang.ukelonn:parent");
+        when(badRequest.getParameter("metrics")).thenReturn("xyzzy");
+        var badResponse = mock(HttpServletResponse.class);
+        servlet.doGet(badRequest, badResponse);
+        verify(badResponse).setStatus(400);
+        servlet.deactivate();
+    }
+
+    @Test
+    void testLatestMeasures() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any())).thenReturn(componentsShowConnection, measurementsConnection);
+        var logservice = new MockLogService();
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar18"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        var request = mock(HttpServletRequest.class);
+        when(request.getPathInfo()).thenReturn(SonarCollectorServlet.LATEST_PATH);
+
+        // Nothing stored yet
+        var emptyResponse = mock(HttpServletResponse.class);
+        var emptyBody = new ByteArrayOutputStream();
+        when(emptyResponse.getOutputStream()).thenReturn(wrap(emptyBody));
+        servlet.doGet(request, emptyResponse);
+        assertEquals(0, SonarCollectorServlet.mapper.readTree(emptyBody.toByteArray()).path("projects").size());
+
+        // Store a build
+        var postRequest = mock(HttpServletRequest.class);
+        var postBody = wrap(getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        when(postRequest.getInputStream()).thenReturn(postBody);
+        servlet.doPost(postRequest, mock(HttpServletResponse.class));
+
+        var response = mock(HttpServletResponse.class);
+        var body = new ByteArrayOutputStream();
+        when(response.getOutputStream()).thenReturn(wrap(body));
+        servlet.doGet(request, response);
+        verify(response).setStatus(200);
+        var etag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), etag.capture());
+        var projects = SonarCollectorServlet.mapper.readTree(body.toByteArray()).path("projects");
+        assertEquals(1, projects.size());
+        assertEquals("no.priv.bang.sonar.sonar-collector:parent", projects.get(0).path("project").asText());
+        assertEquals(952, projects.get(0).path("lines").asLong());
+
+        // A poll with the ETag of the previous response gets no body
+        var pollRequest = mock(HttpServletRequest.class);
+        when(pollRequest.getPathInfo()).thenReturn(SonarCollectorServlet.LATEST_PATH);
+        when(pollRequest.getHeader("If-None-Match")).thenReturn(etag.getValue());
+        var pollResponse = mock(HttpServletResponse.class);
+        servlet.doGet(pollRequest, pollResponse);
+        verify(pollResponse).setStatus(304);
+        verify(pollResponse, never()).getOutputStream();
+        servlet.deactivate();
+    }
+
     @Test
     void testUseNoArgumentConstructorAndReceiveSonarWebhookCall() throws Exception {
         var logservice = new MockLogService();
@@ -298,6 +1018,151 @@ class SonarCollectorServletTest {
         assertEquals(500, status.getValue().intValue(), "Expected HTTP internal server error code");
     }
 
+    @Test
+    void testConcurrentCallbacksForSameAnalysisAreCoalesced() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        var firstCallbackStarted = new CountDownLatch(1);
+        var releaseFirstCallback = new CountDownLatch(1);
+        when(factory.openConnection(any()))
+            .thenAnswer(invocation -> {
+                firstCallbackStarted.countDown();
+                releaseFirstCallback.await();
+                return componentsShowConnection;
+            })
+            .thenReturn(measurementsConnection);
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setLogservice(new MockLogService());
+        var payload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var first = executor.submit(() -> servlet.callbackToSonarServerToGetMetrics(payload));
+            assertTrue(firstCallbackStarted.await(10, TimeUnit.SECONDS));
+            var second = executor.submit(() -> servlet.callbackToSonarServerToGetMetrics(payload));
+            while (servlet.enrichments.getCoalescedCount() == 0) {
+                Thread.sleep(1);
+            }
+
+            releaseFirstCallback.countDown();
+            var build = first.get(10, TimeUnit.SECONDS);
+            assertSame(build, second.get(10, TimeUnit.SECONDS));
+            assertEquals("1.0.0", build.getVersion());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(factory, times(2)).openConnection(any());
+        assertEquals(1, servlet.enrichments.getStartedCount());
+        assertEquals(1, servlet.enrichments.getCoalescedCount());
+        assertEquals(0, servlet.enrichments.getInFlightCount());
+    }
+
+    @Test
+    void testPayloadMeasuresAvoidCallbacks() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar22"));
+        servlet.setLogservice(new MockLogService());
+        servlet.activate(Collections.singletonMap(SonarCollectorConfiguration.SONAR_COLLECTOR_PAYLOAD_MEASURES_ENABLED, "true"));
+
+        // A payload with the version and all of the metrics doesn't need any callbacks
+        var conditions = new StringBuilder();
+        for (var metricKey : servlet.getConfiguration().getMetricKeys()) {
+            conditions.append(conditions.isEmpty() ? "" : ",").append("{\"metric\": \"").append(metricKey).append("\", \"value\": \"2\"}");
+        }
+        var completePayload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(("{\"serverUrl\": \"http://localhost:9000\", \"taskId\": \"AV_1\", \"analysedAt\": \"2017-11-19T10:39:24+0100\", \"project\": {\"key\": \"foo\"}, \"properties\": {\"sonar.analysis.version\": \"1.2.0\"}, \"qualityGate\": {\"conditions\": [" + conditions + "]}}").getBytes()));
+        var build = servlet.callbackToSonarServerToGetMetrics(completePayload);
+        verifyNoInteractions(factory);
+        assertEquals("1.2.0", build.getVersion());
+        assertEquals(2, build.getMeasurements().getLong(Metric.LINES));
+        assertEquals("B", build.getMeasurements().getRatingLetter(Metric.SQALE_RATING));
+
+        // Only the metrics missing from the payload are requested from Sonar
+        var payload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var buildWithCallbacks = servlet.callbackToSonarServerToGetMetrics(payload);
+        var urls = ArgumentCaptor.forClass(URI.class);
+        verify(factory, times(2)).openConnection(urls.capture());
+        var measuresUrl = urls.getAllValues().get(1).toString();
+        assertThat(measuresUrl).contains("metricKeys=lines,bugs,new_bugs,").doesNotContain("new_coverage").doesNotContain("new_security_rating");
+        assertEquals("1.0.0", buildWithCallbacks.getVersion());
+        assertEquals(100.0, buildWithCallbacks.getMeasurements().getDouble(Metric.NEW_COVERAGE));
+        assertEquals("B", buildWithCallbacks.getMeasurements().getRatingLetter(Metric.NEW_SECURITY_RATING));
+        assertEquals(2, servlet.getCallbacksAvoidedCount());
+        servlet.deactivate();
+    }
+
+    @Test
+    void testBatchedMeasuresCallback() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var componentsShowConnection = createConnectionFromResource("json/sonar/api-components-show-version-1.0.0.json");
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any()))
+            .thenReturn(componentsShowConnection)
+            .thenReturn(measurementsConnection);
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setLogservice(new MockLogService());
+        servlet.getConfiguration().setConfig(Map.of(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_ENABLED, "true"));
+
+        // A project alone in its batch is fetched with api/measures/component
+        var payload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        var build = servlet.callbackToSonarServerToGetMetrics(payload);
+
+        var urls = ArgumentCaptor.forClass(URI.class);
+        verify(factory, times(2)).openConnection(urls.capture());
+        assertThat(urls.getAllValues().get(1).toString()).contains("/api/measures/component?component=");
+        assertEquals(952, build.getMeasurements().getLong(Metric.LINES));
+        assertEquals(0, servlet.measuresSearches.getBatchCount());
+    }
+
+    @Test
+    void testBatchedMeasuresCallbackWithPayloadMeasures() throws Exception {
+        var factory = mock(URLConnectionFactory.class);
+        var measurementsConnection = createConnectionFromResource("json/sonar/api-measures-component-get-many-metrics.json");
+        when(factory.openConnection(any())).thenReturn(measurementsConnection);
+        var servlet = new SonarCollectorServlet(factory);
+        servlet.setDataSource(createDataSource("sonar23"));
+        servlet.setLogservice(new MockLogService());
+        servlet.activate(Map.of(
+            SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_ENABLED, "true",
+            SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_BATCH_WINDOW_MILLIS, "500",
+            SonarCollectorConfiguration.SONAR_COLLECTOR_PAYLOAD_MEASURES_ENABLED, "true"));
+
+        // Two analyses of the same project, in the same batch window, with different values in their payloads
+        var first = payloadWithNewCoverage("AV_1", "10.0");
+        var second = payloadWithNewCoverage("AV_2", "20.0");
+        var firstBuild = CompletableFuture.supplyAsync(() -> callback(servlet, first));
+        var secondBuild = CompletableFuture.supplyAsync(() -> callback(servlet, second));
+
+        verify(factory, timeout(5000).times(1)).openConnection(any());
+        assertEquals(10.0, firstBuild.join().getMeasurements().getDouble(Metric.NEW_COVERAGE));
+        assertEquals(20.0, secondBuild.join().getMeasurements().getDouble(Metric.NEW_COVERAGE));
+        assertEquals(952, firstBuild.join().getMeasurements().getLong(Metric.LINES));
+        assertEquals(952, secondBuild.join().getMeasurements().getLong(Metric.LINES));
+        assertNotSame(firstBuild.join().getMeasurements(), secondBuild.join().getMeasurements());
+        verify(factory, times(1)).openConnection(any());
+        servlet.deactivate();
+    }
+
+    private static WebhookPayload payloadWithNewCoverage(String taskId, String newCoverage) throws IOException {
+        var json = "{\"serverUrl\": \"http://localhost:9000\", \"taskId\": \"" + taskId + "\", \"analysedAt\": \"2017-11-19T10:39:24+0100\", \"project\": {\"key\": \"foo\"}, \"properties\": {\"sonar.analysis.version\": \"1.2.0\"}, \"qualityGate\": {\"conditions\": [{\"metric\": \"new_coverage\", \"value\": \"" + newCoverage + "\"}]}}";
+        return WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(json.getBytes()));
+    }
+
+    private static SonarBuild callback(SonarCollectorServlet servlet, WebhookPayload payload) {
+        try {
+            return servlet.callbackToSonarServerToGetMetrics(payload);
+        } catch (IOException | URISyntaxException e) {
+            throw new CompletionException(e);
+        }
+    }
+
     @Test
     void testCallbackToSonarServerToGetMetrics() throws Exception {
         var logservice = new MockLogService();
@@ -386,42 +1251,6 @@ class SonarCollectorServletTest {
         assertThat(query).contains(build.getProject());
     }
 
-    @Test
-    void testParseMeasures() throws Exception {
-        var root = SonarCollectorServlet.mapper.readTree(getClass().getClassLoader().getResourceAsStream("json/sonar/api-measures-component-get-many-metrics.json"));
-        var measuresNode = root.path("component").path("measures");
-        var servlet = new SonarCollectorServlet();
-        var logservice = new MockLogService();
-        servlet.setLogservice(logservice);
-        servlet.activate(Collections.emptyMap());
-
-        var metricKeys = servlet.getConfiguration().getMetricKeys();
-        var measures = new HashMap<String, String>();
-        servlet.parseMeasures(measures, measuresNode);
-        assertThat(measures).hasSameSizeAs(metricKeys).containsKeys(metricKeys);
-        assertEquals("2", measures.get("new_bugs"));
-    }
-
-    /**
-     * Corner case test of {@link SonarCollectorServlet#parseMeasures(JsonNode)}.
-     *
-     * Test behaviour on the parse results of an empty JSON file.
-     * Nothing will fail, but the parse results will be empty.
-     *
-     * @throws JsonProcessingException
-     * @throws IOException
-     */
-    @Test
-    void testParseMeasuresEmptyDocument() throws Exception {
-        var root = SonarCollectorServlet.mapper.readTree("{}");
-        var measuresNode = root.path("component").path("measures");
-        var servlet = new SonarCollectorServlet();
-
-        var measures = new HashMap<String, String>();
-        servlet.parseMeasures(measures, measuresNode);
-        assertEquals(0, measures.size(), "Parse results weren't empty");
-    }
-
     @Test
     void testInjectConfigFromKaraf() throws Exception {
         var servlet = new SonarCollectorServlet();
@@ -435,6 +1264,52 @@ class SonarCollectorServletTest {
         assertEquals(3, metricKeys.length);
     }
 
+    @Test
+    void testModifiedConfigFromKaraf() throws Exception {
+        var servlet = new SonarCollectorServlet(mock(URLConnectionFactory.class));
+        var logservice = new MockLogService();
+        servlet.setDataSource(createDataSource("sonar9"));
+        servlet.setLogservice(logservice);
+        servlet.activate(Collections.emptyMap());
+        assertEquals(16, servlet.configuration.getMetricKeys().length);
+        assertNull(servlet.webhookQueue);
+        var dedupeCache = servlet.dedupeCache;
+        assertNotNull(dedupeCache);
+
+        // Changing settings that aren't used by the queue keeps the pipeline
+        var configFromKaraf = new HashMap<String, Object>();
+        configFromKaraf.put(SonarCollectorConfiguration.SONAR_MEASURES_COMPONENTS_METRIC_KEYS, "lines,bugs,new_bugs");
+        servlet.modified(configFromKaraf);
+        assertEquals(3, servlet.configuration.getMetricKeys().length);
+        assertNull(servlet.webhookQueue);
+
+        // Turning on the async mode starts the queue without restarting the component
+        configFromKaraf.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_ENABLED, "true");
+        configFromKaraf.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_WORKERS, "2");
+        servlet.modified(configFromKaraf);
+        var queue = servlet.webhookQueue;
+        assertNotNull(queue);
+        assertEquals(2, queue.getNumberOfWorkers());
+
+        // Same settings again keeps the same queue
+        servlet.modified(new HashMap<>(configFromKaraf));
+        assertSame(queue, servlet.webhookQueue);
+
+        // Restarting the queue keeps the dedupe cache, which is only replaced when its own settings change
+        assertSame(dedupeCache, servlet.dedupeCache);
+        configFromKaraf.put(SonarCollectorConfiguration.SONAR_COLLECTOR_DEDUPE_MAX_ENTRIES, "100");
+        servlet.modified(configFromKaraf);
+        assertSame(queue, servlet.webhookQueue);
+        assertNotSame(dedupeCache, servlet.dedupeCache);
+
+        // Turning the async mode off again stops the queue
+        configFromKaraf.remove(SonarCollectorConfiguration.SONAR_COLLECTOR_ASYNC_ENABLED);
+        servlet.modified(configFromKaraf);
+        assertNull(servlet.webhookQueue);
+        assertFalse(queue.offer("project", () -> { }));
+        servlet.deactivate();
+    }
+
     @Test
     void testVersionIsReleaseVersion() throws Exception {
         var servlet = new SonarCollectorServlet();
@@ -484,37 +1359,19 @@ class SonarCollectorServletTest {
         servlet.setLogservice(logservice);
         servlet.activate(Collections.emptyMap());
 
-        var rating = "maintainability_rating";
+        var rating = Metric.SQALE_RATING;
 
         // Verify what happens when extracting a rating that is present and has a legal value
-        var measuresResults = Collections.singletonMap(rating, "2.0");
-        assertEquals("B", servlet.extractRating(rating, measuresResults));
+        var measurements = new Measurements();
+        measurements.set(rating.key(), "2.0");
+        assertEquals("B", servlet.extractRating(rating, measurements));
 
         // Verify what happens when attempting to extract a rating that isn't present
         var numberOfLogmessagesBefore = logservice.getLogmessages().size();
-        assertEquals("", servlet.extractRating(rating, Collections.emptyMap()));
+        assertEquals("", servlet.extractRating(rating, new Measurements()));
         assertThat(logservice.getLogmessages()).hasSizeGreaterThan(numberOfLogmessagesBefore);
         var lastLogmessage = logservice.getLogmessages().get(logservice.getLogmessages().size() - 1);
-        assertThat(lastLogmessage).startsWith("[WARNING] Unable to convert number \"null\" to rating for rating").contains(rating);
-    }
-
-    @Test
-    void testConvertFromNumberRating() throws Exception {
-        var rating = "maintability_rating";
-        var logservice = new MockLogService();
-        var servlet = new SonarCollectorServlet();
-        servlet.setLogservice(logservice);
-        servlet.activate(Collections.emptyMap());
-        var numberOfLogmessagesBefore = logservice.getLogmessages().size();
-        assertEquals("", servlet.convertFromNumberToRating(rating, "XX"));
-        assertThat(logservice.getLogmessages()).hasSizeGreaterThan(numberOfLogmessagesBefore);
-        var lastLogmessage = logservice.getLogmessages().get(logservice.getLogmessages().size() - 1);
-        assertThat(lastLogmessage).startsWith("[WARNING] Unable to convert number \"XX\" to rating for rating").contains(rating);
-        assertEquals("A", servlet.convertFromNumberToRating(rating, "1.0"));
-        assertEquals("B", servlet.convertFromNumberToRating(rating, "2.0"));
-        assertEquals("C", servlet.convertFromNumberToRating(rating, "3.0"));
-        assertEquals("D", servlet.convertFromNumberToRating(rating, "4.0"));
-        assertEquals("E", servlet.convertFromNumberToRating(rating, "5.0"));
+        assertThat(lastLogmessage).startsWith("[WARNING] Missing rating").contains(rating.key());
     }
 
     private void truncateMeasuresTable(DataSource dataSource) throws SQLException {
@@ -601,6 +1458,24 @@ class SonarCollectorServletTest {
         return measurementsConnection;
     }
 
+    private void respondWithResource(HttpExchange exchange, String resource) throws IOException {
+        var body = getClass().getClassLoader().getResourceAsStream(resource).readAllBytes();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    private void respondWithBody(HttpExchange exchange, String body) throws IOException {
+        var bytes = body.getBytes();
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (var responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
     private DataSource createDataSource(String dbname) {
         var datasource = new EmbeddedDataSource();
         datasource.setDatabaseName("memory:" + dbname);
@@ -632,4 +1507,24 @@ class SonarCollectorServletTest {
             }
         };
     }
+
+    private ServletOutputStream wrap(OutputStream outputStream) {
+        return new ServletOutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                outputStream.write(b);
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                // empty method
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+        };
+    }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.sonar.collector.webhook.SonarServers.CircuitState;
+
+class SonarServersTest {
+    private static final URI SLOW_SERVER = URI.create("http://slow.example.com/api/measures/component?component=foo");
+    private static final URI HEALTHY_SERVER = URI.create("http://healthy.example.com/api/measures/component?component=foo");
+
+    @Test
+    void testBulkheadLimitsCallsPerServer() throws Exception {
+        var client = mock(SonarApiClient.class);
+        var pending = new CompletableFuture<InputStream>();
+        var healthyResponse = CompletableFuture.<InputStream>completedFuture(new ByteArrayInputStream(new byte[0]));
+        when(client.get(SLOW_SERVER)).thenReturn(pending);
+        when(client.get(HEALTHY_SERVER)).thenReturn(healthyResponse);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CALLBACKS_MAX_WAIT_MILLIS, "0");
+        config.put("sonar.collector.server.slow.url", "http://slow.example.com");
+        config.put("sonar.collector.server.slow.maxConcurrentCalls", "2");
+        var servers = new SonarServers(client, configuration(config));
+
+        var first = servers.get(SLOW_SERVER);
+        var second = servers.get(SLOW_SERVER);
+        var rejected = servers.get(SLOW_SERVER);
+
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        var e = assertThrows(IOException.class, () -> SonarCollectorServlet.waitForResult(rejected));
+        assertTrue(e.getMessage().contains("Too many calls"));
+        assertEquals(1, servers.getRejectedCallCount());
+        verify(client, times(2)).get(SLOW_SERVER);
+
+        // The calls to other servers aren't held up by the slow server
+        assertNotNull(servers.get(HEALTHY_SERVER).get(1, TimeUnit.SECONDS));
+
+        // A completed call frees a slot
+        pending.complete(new ByteArrayInputStream(new byte[0]));
+        assertNotNull(servers.get(SLOW_SERVER).get(1, TimeUnit.SECONDS));
+        assertEquals(1, servers.getRejectedCallCount());
+    }
+
+    @Test
+    void testCircuitBreakerOpensAndRecovers() throws Exception {
+        var client = mock(SonarApiClient.class);
+        var failure = CompletableFuture.<InputStream>failedFuture(new SonarApiException(SLOW_SERVER, 502));
+        var success = CompletableFuture.<InputStream>completedFuture(new ByteArrayInputStream(new byte[0]));
+        when(client.get(any())).thenReturn(failure, failure, failure, success);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "3");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CIRCUIT_BREAKER_OPEN_MILLIS, "1000");
+        var clock = new AtomicLong();
+        var servers = new SonarServers(client, configuration(config), clock::get);
+
+        for (var i = 0; i < 3; ++i) {
+            assertTrue(servers.get(SLOW_SERVER).isCompletedExceptionally());
+        }
+
+        assertEquals(CircuitState.OPEN, servers.getCircuitState(SLOW_SERVER));
+        assertEquals(1, servers.getOpenCircuitCount());
+
+        // Fails fast without calling the server while the breaker is open
+        var shortCircuited = servers.get(SLOW_SERVER);
+        var e = assertThrows(IOException.class, () -> SonarCollectorServlet.waitForResult(shortCircuited));
+        assertTrue(e.getMessage().contains("is failing"));
+        assertEquals(1, servers.getShortCircuitedCallCount());
+        verify(client, times(3)).get(any());
+
+        // After the open time a trial call is let through, and closes the breaker when it succeeds
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        assertNotNull(servers.get(SLOW_SERVER).get(1, TimeUnit.SECONDS));
+        assertEquals(CircuitState.CLOSED, servers.getCircuitState(SLOW_SERVER));
+        assertEquals(0, servers.getOpenCircuitCount());
+    }
+
+    @Test
+    void testFailedTrialCallReopensCircuitBreaker() {
+        var client = mock(SonarApiClient.class);
+        var failure = CompletableFuture.<InputStream>failedFuture(new IOException("Connection refused"));
+        var pendingTrial = new CompletableFuture<InputStream>();
+        when(client.get(any())).thenReturn(failure, pendingTrial);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "1");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CIRCUIT_BREAKER_OPEN_MILLIS, "1000");
+        var clock = new AtomicLong();
+        var servers = new SonarServers(client, configuration(config), clock::get);
+
+        servers.get(SLOW_SERVER);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        var trial = servers.get(SLOW_SERVER);
+
+        // Only one trial call at a time
+        assertEquals(CircuitState.HALF_OPEN, servers.getCircuitState(SLOW_SERVER));
+        assertTrue(servers.get(SLOW_SERVER).isCompletedExceptionally());
+        assertEquals(1, servers.getShortCircuitedCallCount());
+
+        pendingTrial.completeExceptionally(new IOException("Connection reset"));
+        assertTrue(trial.isCompletedExceptionally());
+        assertEquals(CircuitState.OPEN, servers.getCircuitState(SLOW_SERVER));
+    }
+
+    @Test
+    void testClientErrorsDontOpenCircuitBreaker() {
+        var client = mock(SonarApiClient.class);
+        var notFound = CompletableFuture.<InputStream>failedFuture(new SonarApiException(SLOW_SERVER, 404));
+        when(client.get(any())).thenReturn(notFound);
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "2");
+        var servers = new SonarServers(client, configuration(config));
+
+        for (var i = 0; i < 5; ++i) {
+            assertTrue(servers.get(SLOW_SERVER).isCompletedExceptionally());
+        }
+
+        assertEquals(CircuitState.CLOSED, servers.getCircuitState(SLOW_SERVER));
+        verify(client, times(5)).get(any());
+    }
+
+    @Test
+    void testNumberOfUnlistedServersIsLimited() {
+        var client = mock(SonarApiClient.class);
+        var success = CompletableFuture.<InputStream>completedFuture(new ByteArrayInputStream(new byte[0]));
+        when(client.get(any())).thenReturn(success);
+        var servers = new SonarServers(client, configuration(new HashMap<>()));
+
+        for (var i = 0; i < SonarServers.MAX_UNLISTED_SERVERS + 10; ++i) {
+            servers.get(URI.create("http://sonar" + i + ".example.com/api/components/show"));
+        }
+
+        assertEquals(SonarServers.MAX_UNLISTED_SERVERS + 1, servers.getNumberOfServers());
+    }
+
+    @Test
+    void testIsServerFailure() {
+        assertTrue(SonarServers.isServerFailure(new IOException("Connection refused")));
+        assertTrue(SonarServers.isServerFailure(new SonarApiException(SLOW_SERVER, 503)));
+        assertTrue(SonarServers.isServerFailure(new SonarApiException(SLOW_SERVER, 429)));
+        assertFalse(SonarServers.isServerFailure(new SonarApiException(SLOW_SERVER, 404)));
+        assertFalse(SonarServers.isServerFailure(new IllegalStateException("Bug")));
+    }
+
+    private static SonarCollectorConfiguration configuration(Map<String, Object> config) {
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(config);
+        return configuration;
+    }
+
+}
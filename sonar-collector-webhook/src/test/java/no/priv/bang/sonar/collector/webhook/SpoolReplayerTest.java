@@ -0,0 +1,159 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class SpoolReplayerTest {
+    private static final String PROJECT = "no.priv.bang.ukelonn:parent";
+
+    @TempDir
+    Path spoolDirectory;
+
+    @Test
+    void testBuildRejectedByTheDatabaseIsQuarantined() throws Exception {
+        var logservice = new MockLogService();
+        var inserted = new CopyOnWriteArrayList<Long>();
+        SpoolReplayer.BatchInserter inserter = builds -> {
+            if (builds.stream().anyMatch(b -> b.getAnalysedAt() == 2)) {
+                throw new SQLException("Value out of range", "22003");
+            }
+
+            builds.forEach(b -> inserted.add(b.getAnalysedAt()));
+        };
+        var replayer = createReplayer(inserter, true, logservice, 1, 2, 3);
+        try {
+            replayer.replayPending();
+
+            assertThat(inserted).containsExactly(1L, 3L);
+            assertEquals(0, replayer.getSpool().getPendingRecords());
+            assertEquals(2, replayer.getReplayedCount());
+            assertEquals(1, replayer.getSpool().getQuarantinedCount());
+            assertThat(Files.list(spoolDirectory.resolve(MeasuresSpool.QUARANTINE_DIRECTORY))).hasSize(1);
+            assertTrue(replayer.isDatabaseAvailable());
+            assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR] Sonar Collector database rejected the spooled measures of " + PROJECT));
+        } finally {
+            shutdown(replayer);
+        }
+    }
+
+    @Test
+    void testNothingIsQuarantinedWhenTheConnectionFails() throws Exception {
+        var logservice = new MockLogService();
+        SpoolReplayer.BatchInserter inserter = builds -> {
+            throw new SQLException("Connection refused", "08001");
+        };
+        var replayer = createReplayer(inserter, true, logservice, 1, 2);
+        try {
+            replayer.replayPending();
+
+            assertEquals(2, replayer.getSpool().getPendingRecords());
+            assertEquals(0, replayer.getSpool().getQuarantinedCount());
+            assertFalse(replayer.isDatabaseAvailable());
+            assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[WARNING] Sonar Collector database unavailable"));
+        } finally {
+            shutdown(replayer);
+        }
+    }
+
+    @Test
+    void testNothingIsQuarantinedWhenTheDatabaseIsUnreachable() throws Exception {
+        SpoolReplayer.BatchInserter inserter = builds -> {
+            throw new SQLException("I/O error");
+        };
+        var replayer = createReplayer(inserter, false, new MockLogService(), 1, 2);
+        try {
+            replayer.replayPending();
+
+            assertEquals(2, replayer.getSpool().getPendingRecords());
+            assertEquals(0, replayer.getSpool().getQuarantinedCount());
+            assertFalse(replayer.isDatabaseAvailable());
+        } finally {
+            shutdown(replayer);
+        }
+    }
+
+    @Test
+    void testNothingIsQuarantinedWhenTheTransactionIsRolledBack() throws Exception {
+        SpoolReplayer.BatchInserter inserter = builds -> {
+            throw new SQLException("Deadlock detected", "40P01");
+        };
+        var replayer = createReplayer(inserter, true, new MockLogService(), 1, 2);
+        try {
+            replayer.replayPending();
+
+            assertEquals(2, replayer.getSpool().getPendingRecords());
+            assertEquals(0, replayer.getSpool().getQuarantinedCount());
+        } finally {
+            shutdown(replayer);
+        }
+    }
+
+    @Test
+    void testUndecodableRecordIsQuarantined() throws Exception {
+        try (var spool = new MeasuresSpool(spoolDirectory, 65536, createLogger(new MockLogService()))) {
+            spool.append(MeasuresBatchWriterTest.createBuild(PROJECT, 1));
+            spool.append(MeasuresBatchWriterTest.createBuild(PROJECT, 2));
+        }
+
+        MeasuresSpoolTest.corruptPayloadOfFirstRecord(spoolDirectory);
+        var inserted = new CopyOnWriteArrayList<Long>();
+        var replayer = createReplayer(builds -> builds.forEach(b -> inserted.add(b.getAnalysedAt())), true, new MockLogService());
+        try {
+            replayer.replayPending();
+
+            assertThat(inserted).containsExactly(2L);
+            assertEquals(0, replayer.getSpool().getPendingRecords());
+            assertEquals(1, replayer.getSpool().getQuarantinedCount());
+        } finally {
+            shutdown(replayer);
+        }
+    }
+
+    private SpoolReplayer createReplayer(SpoolReplayer.BatchInserter inserter, boolean databaseReachable, MockLogService logservice, long... analysedAt) throws Exception {
+        var logger = createLogger(logservice);
+        var spool = new MeasuresSpool(spoolDirectory, 65536, logger);
+        for (var time : analysedAt) {
+            spool.append(MeasuresBatchWriterTest.createBuild(PROJECT, time));
+        }
+
+        return new SpoolReplayer(spool, inserter, () -> databaseReachable, 10, 3600000, logger);
+    }
+
+    private static void shutdown(SpoolReplayer replayer) throws Exception {
+        replayer.shutdown(1000);
+        replayer.getSpool().close();
+    }
+
+    private static LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(SpoolReplayer.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class WebhookAdmissionTest {
+
+    @Test
+    void testGlobalConcurrencyLimit() {
+        var settings = settings(2, 600, 100);
+        var admission = new WebhookAdmission();
+
+        assertNull(admission.admit("foo", false, true, settings));
+        assertNull(admission.admit("bar", false, true, settings));
+        var rejection = admission.admit("baz", false, true, settings);
+        assertEquals(503, rejection.status());
+        assertEquals(30, rejection.retryAfterSeconds());
+        assertEquals(2, admission.getInFlightCount());
+        assertEquals(1, admission.getShedOverloadedCount());
+
+        // A webhook call that has been processed frees a slot
+        admission.done();
+        assertNull(admission.admit("baz", false, true, settings));
+
+        // Webhook calls not counted against the global limit, e.g. when accepted on the queue
+        assertNull(admission.admit("baz", false, false, settings));
+        assertEquals(2, admission.getInFlightCount());
+        assertEquals(4, admission.getAdmittedCount());
+    }
+
+    @Test
+    void testProjectRateLimit() {
+        var clock = new AtomicLong();
+        var settings = settings(100, 6, 2);
+        var admission = new WebhookAdmission(clock::get);
+
+        assertNull(admission.admit("foo", false, true, settings));
+        assertNull(admission.admit("foo", false, true, settings));
+        var rejection = admission.admit("foo", false, true, settings);
+        assertEquals(429, rejection.status());
+        assertEquals(10, rejection.retryAfterSeconds());
+        assertEquals(1, admission.getShedRateLimitedCount());
+
+        // A shed webhook call doesn't hold a slot of the global limit
+        assertEquals(2, admission.getInFlightCount());
+
+        // Other projects have buckets of their own
+        assertNull(admission.admit("bar", false, true, settings));
+
+        // 6 per minute is a new token every 10 seconds
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(5, admission.admit("foo", false, true, settings).retryAfterSeconds());
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertNull(admission.admit("foo", false, true, settings));
+        assertEquals(2, admission.getNumberOfProjects());
+    }
+
+    @Test
+    void testReleaseVersionsAreNeverShed() {
+        var settings = settings(1, 1, 1);
+        var admission = new WebhookAdmission(() -> 0);
+
+        assertNull(admission.admit("foo", false, true, settings));
+        assertEquals(503, admission.admit("foo", false, true, settings).status());
+        assertNull(admission.admit("foo", true, true, settings));
+        admission.done();
+        admission.done();
+        assertEquals(429, admission.admit("foo", false, true, settings).status());
+        assertNull(admission.admit("foo", true, true, settings));
+
+        assertEquals(2, admission.getProtectedCount());
+        assertEquals(3, admission.getAdmittedCount());
+        assertEquals(1, admission.getShedOverloadedCount());
+        assertEquals(1, admission.getShedRateLimitedCount());
+    }
+
+    @Test
+    void testNumberOfProjectsIsBounded() {
+        var clock = new AtomicLong();
+        var settings = settings(100, 60, 1);
+        var admission = new WebhookAdmission(clock::get);
+        for (var i = 0; i < WebhookAdmission.MAX_TRACKED_PROJECTS + 10; ++i) {
+            admission.admit("project" + i, false, false, settings);
+        }
+        assertEquals(WebhookAdmission.MAX_TRACKED_PROJECTS + 1, admission.getNumberOfProjects());
+
+        // Idle buckets are dropped to make room for new projects
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(admission.admit("new project", false, false, settings));
+        assertEquals(1, admission.getNumberOfProjects());
+    }
+
+    private static ConfigurationSnapshot settings(int maxConcurrentWebhooks, int projectRatePerMinute, int projectBurst) {
+        var config = new HashMap<String, Object>();
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_ENABLED, "true");
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_MAX_CONCURRENT_WEBHOOKS, Integer.toString(maxConcurrentWebhooks));
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_RATE_PER_MINUTE, Integer.toString(projectRatePerMinute));
+        config.put(SonarCollectorConfiguration.SONAR_COLLECTOR_ADMISSION_PROJECT_BURST, Integer.toString(projectBurst));
+        var configuration = new SonarCollectorConfiguration();
+        configuration.setConfig(config);
+        return configuration.snapshot();
+    }
+
+}
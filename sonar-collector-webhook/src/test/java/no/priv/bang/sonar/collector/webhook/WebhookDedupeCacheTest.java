@@ -0,0 +1,74 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class WebhookDedupeCacheTest {
+
+    @Test
+    void testRecordAndContains() {
+        var cache = new WebhookDedupeCache(10, 60000);
+        assertFalse(cache.contains("a"));
+        cache.record("a");
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() {
+        var cache = new WebhookDedupeCache(2, 60000);
+        cache.record("a");
+        cache.record("b");
+        assertTrue(cache.contains("a")); // "b" is now the least recently used
+        cache.record("c");
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testEntriesExpire() {
+        var now = new AtomicLong();
+        var cache = new WebhookDedupeCache(10, 1000, now::get);
+        cache.record("a");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertTrue(cache.contains("a"));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(2));
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testLargeCacheIsSegmented() {
+        var cache = new WebhookDedupeCache(2048, 60000);
+        for (var i = 0; i < 4096; ++i) {
+            cache.record("analysis" + i);
+        }
+
+        assertTrue(cache.size() <= 2048);
+        assertTrue(cache.contains("analysis4095"));
+    }
+
+}
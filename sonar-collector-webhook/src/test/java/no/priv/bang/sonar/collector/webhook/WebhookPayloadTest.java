@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class WebhookPayloadTest {
+
+    @Test
+    void testDecodeWebhookPost() throws Exception {
+        var payload = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        assertEquals("http://localhost:9000", payload.serverUrl());
+        assertEquals("no.priv.bang.sonar.sonar-collector:parent", payload.projectKey());
+        assertEquals("2017-11-19T10:39:24+0100", payload.analysedAt());
+        assertEquals("AV_TpdLHnHoAyOYzcfvS", payload.taskId());
+        assertEquals("", payload.analysisId());
+        assertEquals("AV_TpdLHnHoAyOYzcfvS", payload.analysisIdOrTaskId());
+        assertEquals("http://localhost:9000|AV_TpdLHnHoAyOYzcfvS", payload.dedupeKey());
+        assertEquals(5, payload.conditionValues().size());
+        assertEquals("2", payload.conditionValues().get("new_security_rating"));
+        assertEquals("100.0", payload.conditionValues().get("new_coverage"));
+    }
+
+    @Test
+    void testDecodeConditionsWithoutValues() throws Exception {
+        var payload = decode("{\"qualityGate\": {\"name\": \"Sonar way\", \"conditions\": [{\"metric\": \"new_bugs\", \"status\": \"NO_VALUE\"}, {\"value\": \"3\"}, \"not an object\", {\"metric\": \"bugs\", \"value\": \"4\", \"extra\": {\"value\": \"5\"}}]}}");
+        assertEquals(1, payload.conditionValues().size());
+        assertEquals("4", payload.conditionValues().get("bugs"));
+
+        assertTrue(decode("{\"qualityGate\": \"not an object\"}").conditionValues().isEmpty());
+        assertTrue(decode("{}").conditionValues().isEmpty());
+    }
+
+    @Test
+    void testDedupeKey() throws Exception {
+        var withAnalysisId = decode("{\"serverUrl\": \"http://localhost:9000\", \"taskId\": \"AV_1\", \"analysisId\": \"AY_2\"}");
+        assertEquals("AY_2", withAnalysisId.analysisIdOrTaskId());
+        assertEquals("http://localhost:9000|AY_2", withAnalysisId.dedupeKey());
+
+        var withoutIds = decode("{\"serverUrl\": \"http://localhost:9000\", \"project\": {\"key\": \"foo\"}, \"analysedAt\": \"2017-11-19T10:39:24+0100\"}");
+        assertNull(withoutIds.analysisIdOrTaskId());
+        assertEquals("http://localhost:9000|foo|2017-11-19T10:39:24+0100", withoutIds.dedupeKey());
+    }
+
+    @Test
+    void testDecodeMissingAndUnexpectedFields() throws Exception {
+        var payload = decode("{\"project\": \"not an object\", \"serverUrl\": null, \"analysedAt\": {\"nested\": [1, 2]}, \"extra\": [{\"key\": \"x\"}]}");
+        assertEquals("", payload.serverUrl());
+        assertEquals("", payload.projectKey());
+        assertEquals("", payload.analysedAt());
+        assertEquals("", payload.taskId());
+    }
+
+    @Test
+    void testDecodeProjectKeyAfterOtherProjectFields() throws Exception {
+        var payload = decode("{\"project\": {\"name\": \"foo\", \"tags\": [\"a\", {\"key\": \"wrong\"}], \"key\": \"foo:parent\"}}");
+        assertEquals("foo:parent", payload.projectKey());
+    }
+
+    @Test
+    void testDecodeVersionFromAnalysisProperties() throws Exception {
+        var payload = decode("{\"properties\": {\"sonar.analysis.buildNumber\": \"42\", \"sonar.analysis.version\": \"1.2.0\"}, \"project\": {\"key\": \"foo\"}}");
+        assertEquals("1.2.0", payload.version());
+        assertEquals("foo", payload.projectKey());
+
+        var withoutVersion = WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), getClass().getClassLoader().getResourceAsStream("json/sonar/webhook-post.json"));
+        assertEquals("", withoutVersion.version());
+    }
+
+    @Test
+    void testDecodeNotAnObject() {
+        assertThrows(IOException.class, () -> decode("[]"));
+        assertThrows(IOException.class, () -> decode("not json"));
+        assertThrows(IOException.class, () -> decode(""));
+    }
+
+    private WebhookPayload decode(String json) throws IOException {
+        return WebhookPayload.decode(SonarCollectorServlet.mapper.getFactory(), new ByteArrayInputStream(json.getBytes()));
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2026 Steinar Bang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package no.priv.bang.sonar.collector.webhook;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import no.priv.bang.osgi.service.adapters.logservice.LoggerAdapter;
+import no.priv.bang.osgi.service.mocks.logservice.MockLogService;
+
+class WebhookQueueTest {
+
+    @Test
+    void testTasksForSameProjectAreProcessedInOrder() throws Exception {
+        var queue = new WebhookQueue(4, 100, createLogger(new MockLogService()));
+        var processed = Collections.synchronizedList(new ArrayList<Integer>());
+        var done = new CountDownLatch(20);
+        for (var i = 0; i < 20; ++i) {
+            var taskNumber = i;
+            assertTrue(queue.offer("no.priv.bang.ukelonn:parent", () -> {
+                Thread.sleep(1);
+                processed.add(taskNumber);
+                done.countDown();
+            }));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertThat(processed).isSorted().hasSize(20);
+        queue.shutdown(1000);
+        assertEquals(20, queue.getAcceptedCount());
+        assertEquals(20, queue.getProcessedCount());
+        assertEquals(0, queue.getRejectedCount());
+    }
+
+    @Test
+    void testRejectWhenQueueIsFull() throws Exception {
+        var logservice = new MockLogService();
+        var queue = new WebhookQueue(1, 1, createLogger(logservice));
+        var workerStarted = new CountDownLatch(1);
+        var releaseWorker = new CountDownLatch(1);
+        assertTrue(queue.offer("project", () -> {
+            workerStarted.countDown();
+            releaseWorker.await();
+        }));
+        assertTrue(workerStarted.await(10, TimeUnit.SECONDS));
+        assertEquals(1, queue.getBusyWorkers());
+        assertEquals(1.0, queue.getWorkerUtilisation(), 0.001);
+
+        // The worker is busy, the next task fills the queue, and the one after that is rejected
+        assertTrue(queue.offer("project", () -> { }));
+        assertEquals(1, queue.getQueueDepth());
+        assertFalse(queue.offer("project", () -> { }));
+        assertEquals(1, queue.getRejectedCount());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.contains("queue full"));
+
+        releaseWorker.countDown();
+        queue.shutdown(1000);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(2, queue.getProcessedCount());
+    }
+
+    @Test
+    void testFailingTaskIsLoggedAndCounted() throws Exception {
+        var logservice = new MockLogService();
+        var queue = new WebhookQueue(1, 10, createLogger(logservice));
+        assertTrue(queue.offer("project", () -> { throw new IllegalStateException("failed"); }));
+        queue.shutdown(1000);
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(0, queue.getProcessedCount());
+        assertThat(logservice.getLogmessages()).anyMatch(m -> m.startsWith("[ERROR]"));
+    }
+
+    @Test
+    void testRejectAfterShutdown() {
+        var queue = new WebhookQueue(2, 10, createLogger(new MockLogService()));
+        queue.shutdown(1000);
+        assertFalse(queue.offer("project", () -> { }));
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    private LoggerAdapter createLogger(MockLogService logservice) {
+        var logger = new LoggerAdapter(WebhookQueue.class);
+        logger.setLogService(logservice);
+        return logger;
+    }
+
+}